@@ -23,7 +23,11 @@ import android.opengl.Matrix;
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
+import com.google.atap.tangoservice.TangoPoseData;
+import com.projecttango.tangoutils.PoseQueue;
+import com.projecttango.tangoutils.PoseSnapshot;
 import com.projecttango.tangoutils.Renderer;
+import com.projecttango.tangoutils.TripleBuffer;
 import com.projecttango.tangoutils.renderables.CameraFrustum;
 import com.projecttango.tangoutils.renderables.CameraFrustumAndAxis;
 import com.projecttango.tangoutils.renderables.Grid;
@@ -40,18 +44,37 @@ import com.projecttango.tangoutils.renderables.Trajectory;
  */
 public class ALRenderer extends Renderer implements GLSurfaceView.Renderer {
 
+    // About five seconds of poses, for the GL thread to catch up after a stall.
+    private static final int POSE_QUEUE_CAPACITY = 512;
+
     private Trajectory mGreenTrajectory;
     private Trajectory mBlueTrajectory;
     private CameraFrustum mCameraFrustum;
     private CameraFrustumAndAxis mCameraFrustumAndAxis;
     private Grid mFloorGrid;
-    private boolean mIsValid = false;
+    private volatile boolean mIsValid = false;
+    // Every pose, for the trajectories, while the matrices only use the newest.
+    private final PoseQueue mPoseQueue = new PoseQueue(POSE_QUEUE_CAPACITY);
+    private final PoseSnapshot mQueuedPose = new PoseSnapshot();
+    // Start of service wrt ADF poses, handed to the GL thread like the device
+    // poses.
+    private final TripleBuffer<PoseSnapshot> mStartOfServicePoseBuffer =
+            new TripleBuffer<PoseSnapshot>(new PoseSnapshot(), new PoseSnapshot(),
+                    new PoseSnapshot());
+
     @Override
     public void onSurfaceCreated(GL10 gl, EGLConfig config) {
         // Set background color and enable depth testing
         GLES20.glClearColor(1f, 1f, 1f, 1.0f);
         GLES20.glEnable(GLES20.GL_DEPTH_TEST);
         resetModelMatCalculator();
+        // A new context means the previous trajectories lost their buffers.
+        // Release them, which also closes their files, before any GL object
+        // is created.
+        if (mGreenTrajectory != null) {
+            mGreenTrajectory.release();
+            mBlueTrajectory.release();
+        }
         mCameraFrustum = new CameraFrustum();
         mFloorGrid = new Grid();
         mCameraFrustumAndAxis = new CameraFrustumAndAxis();
@@ -62,7 +85,6 @@ public class ALRenderer extends Renderer implements GLSurfaceView.Renderer {
         // Construct the initial view matrix
         Matrix.setIdentityM(mViewMatrix, 0);
         Matrix.setLookAtM(mViewMatrix, 0, 5f, 5f, 5f, 0f, 0f, 0f, 0f, 1f, 0f);
-        mCameraFrustumAndAxis.setModelMatrix(getModelMatCalculator().getModelMatrix());
         mIsValid = true;
     }
 
@@ -76,13 +98,49 @@ public class ALRenderer extends Renderer implements GLSurfaceView.Renderer {
 
     @Override
     public void onDrawFrame(GL10 gl) {
-        synchronized (AreaLearningActivity.sharedLock) {
-            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
-            mGreenTrajectory.draw(getViewMatrix(), mProjectionMatrix);
-            mBlueTrajectory.draw(getViewMatrix(), mProjectionMatrix);
-            mFloorGrid.draw(getViewMatrix(), mProjectionMatrix);
-            mCameraFrustumAndAxis.draw(getViewMatrix(), mProjectionMatrix);
+        // Apply the latest device pose once for this frame.
+        updateFrameMatrices();
+        getModelMatCalculator().getModelMatrix(mCameraFrustumAndAxis.getModelMatrix(), 0);
+        // Once relocalized, bring the start of service trajectory into the
+        // ADF frame by changing the matrix of its segments.
+        PoseSnapshot startOfServicePose = mStartOfServicePoseBuffer.acquire();
+        if (startOfServicePose != null) {
+            mBlueTrajectory.setSegmentPose(0, mBlueTrajectory.getSegmentCount() - 1,
+                    startOfServicePose.translation, startOfServicePose.rotation);
         }
+        // Extend the trajectory of each pose's base frame with every pose
+        // received since the last frame, here on the GL thread that draws it.
+        while (mPoseQueue.poll(mQueuedPose)) {
+            if (mQueuedPose.baseFrame == TangoPoseData.COORDINATE_FRAME_AREA_DESCRIPTION) {
+                mGreenTrajectory.updateTrajectory(mQueuedPose.translation,
+                        mQueuedPose.timestamp);
+            } else {
+                mBlueTrajectory.updateTrajectory(mQueuedPose.translation,
+                        mQueuedPose.timestamp);
+            }
+        }
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+        mGreenTrajectory.draw(getViewMatrix(), mProjectionMatrix);
+        mBlueTrajectory.draw(getViewMatrix(), mProjectionMatrix);
+        mFloorGrid.draw(getViewMatrix(), mProjectionMatrix);
+        mCameraFrustumAndAxis.draw(getViewMatrix(), mProjectionMatrix);
+    }
+
+    @Override
+    protected void onDevicePose(double timestamp, double[] translation, double[] rotation,
+            int baseFrame) {
+        mPoseQueue.offer(timestamp, translation, rotation, baseFrame);
+    }
+
+    /**
+     * Sets the pose of the start of service frame wrt the ADF frame, once the
+     * device is relocalized. Must always be called from the same thread.
+     */
+    public void setStartOfServicePose(double timestamp, double[] translation,
+            double[] rotation) {
+        mStartOfServicePoseBuffer.getWriteBuffer().set(timestamp, translation, rotation,
+                TangoPoseData.COORDINATE_FRAME_AREA_DESCRIPTION);
+        mStartOfServicePoseBuffer.publish();
     }
 
     public CameraFrustum getCameraFrustum() {
@@ -44,8 +44,11 @@ import android.widget.Toast;
 
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import com.projecttango.experiments.javaarealearning.SetADFNameDialog.SetNameCommunicator;
+import com.projecttango.tangoreplay.TangoReplayBridge;
+import com.projecttango.tangoutils.session.SessionRecorder;
 
 /**
  * Main Activity class for the Area Learning API Sample. Handles the connection to the Tango service
@@ -84,16 +87,16 @@ public class AreaLearningActivity extends Activity implements View.OnClickListen
     private Button mThirdPersonButton;
     private Button mTopDownButton;
 
-    private int mStart2DevicePoseCount;
-    private int mAdf2DevicePoseCount;
-    private int mAdf2StartPoseCount;
+    private volatile int mStart2DevicePoseCount;
+    private volatile int mAdf2DevicePoseCount;
+    private volatile int mAdf2StartPoseCount;
     private int mStart2DevicePreviousPoseStatus;
     private int mAdf2DevicePreviousPoseStatus;
     private int mAdf2StartPreviousPoseStatus;
 
-    private double mStart2DevicePoseDelta;
-    private double mAdf2DevicePoseDelta;
-    private double mAdf2StartPoseDelta;
+    private volatile double mStart2DevicePoseDelta;
+    private volatile double mAdf2DevicePoseDelta;
+    private volatile double mAdf2StartPoseDelta;
     private double mStart2DevicePreviousPoseTimeStamp;
     private double mAdf2DevicePreviousPoseTimeStamp;
     private double mAdf2StartPreviousPoseTimeStamp;
@@ -106,10 +109,18 @@ public class AreaLearningActivity extends Activity implements View.OnClickListen
     private ALRenderer mRenderer;
     private GLSurfaceView mGLView;
 
-    private TangoPoseData[] mPoses;
+    // Latest pose of each frame pair, written by the Tango callback thread and
+    // read by the UI thread.
+    private final AtomicReferenceArray<TangoPoseData> mPoses =
+            new AtomicReferenceArray<TangoPoseData>(3);
+    // Records the sensor streams when the activity is started with the
+    // SessionRecorder.EXTRA_RECORD_SESSION extra.
+    private volatile SessionRecorder mSessionRecorder;
+    // Replays a recorded session instead of connecting to the service when
+    // the activity is started with the SessionPlayer.EXTRA_REPLAY_SESSION extra.
+    private TangoReplayBridge mReplay;
     private static final int UPDATE_INTERVAL_MS = 100;
     private static final DecimalFormat threeDec = new DecimalFormat("00.000");
-    public static Object sharedLock = new Object();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -175,7 +186,6 @@ public class AreaLearningActivity extends Activity implements View.OnClickListen
         mIsLearningMode = intent.getBooleanExtra(ALStartActivity.USE_AREA_LEARNING, false);
         mIsConstantSpaceRelocalize = intent.getBooleanExtra(ALStartActivity.LOAD_ADF, false);
         setTangoConfig();
-        mPoses = new TangoPoseData[3];
         startUIThread();
     }
 
@@ -231,7 +241,7 @@ public class AreaLearningActivity extends Activity implements View.OnClickListen
                 TangoPoseData.COORDINATE_FRAME_AREA_DESCRIPTION,
                 TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE));
 
-        mTango.connectListener(framePairs, new OnTangoUpdateListener() {
+        OnTangoUpdateListener listener = new OnTangoUpdateListener() {
             @Override
             public void onXyzIjAvailable(TangoXyzIjData xyzij) {
                 // Not using XyzIj data for this sample
@@ -240,6 +250,11 @@ public class AreaLearningActivity extends Activity implements View.OnClickListen
             // Listen to Tango Events
             @Override
             public void onTangoEvent(final TangoEvent event) {
+                SessionRecorder recorder = mSessionRecorder;
+                if (recorder != null) {
+                    recorder.recordEvent(event.timestamp, event.eventType, event.eventKey,
+                            event.eventValue);
+                }
                 runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
@@ -250,85 +265,86 @@ public class AreaLearningActivity extends Activity implements View.OnClickListen
 
             @Override
             public void onPoseAvailable(TangoPoseData pose) {
-                // Make sure to have atomic access to Tango Data so that
-                // render loop doesn't interfere while Pose call back is updating
-                // the data.
-                synchronized (sharedLock) {
-                    float[] translation = pose.getTranslationAsFloats();
-                    boolean updateRenderer = false;
-
-                    // Check for Device wrt ADF pose, Device wrt Start of Service pose,
-                    // Start of Service wrt ADF pose(This pose determines if device
-                    // the is relocalized or not).
-                    if (pose.baseFrame == TangoPoseData.COORDINATE_FRAME_AREA_DESCRIPTION
-                            && pose.targetFrame == TangoPoseData.COORDINATE_FRAME_DEVICE) {
-                        mPoses[0] = pose;
-                        if (mAdf2DevicePreviousPoseStatus != pose.statusCode) {
-                            // Set the count to zero when status code changes.
-                            mAdf2DevicePoseCount = 0;
-                        }
-                        mAdf2DevicePreviousPoseStatus = pose.statusCode;
-                        mAdf2DevicePoseCount++;
-                        // Calculate time difference between current and last available Device wrt
-                        // ADF pose.
-                        mAdf2DevicePoseDelta = (pose.timestamp - mAdf2DevicePreviousPoseTimeStamp)
-                                * SECONDS_TO_MILLI;
-                        mAdf2DevicePreviousPoseTimeStamp = pose.timestamp;
-                        if (mIsRelocalized && mRenderer.isValid()) {
-                            updateRenderer = true;
-                            mRenderer.getGreenTrajectory().updateTrajectory(translation);
-                        }
-                    } else if (pose.baseFrame == TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE
-                            && pose.targetFrame == TangoPoseData.COORDINATE_FRAME_DEVICE) {
-                        mPoses[1] = pose;
-                        if (mStart2DevicePreviousPoseStatus != pose.statusCode) {
-                            // Set the count to zero when status code changes.
-                            mStart2DevicePoseCount = 0;
-                        }
-                        mStart2DevicePreviousPoseStatus = pose.statusCode;
-                        mStart2DevicePoseCount++;
-                        // Calculate time difference between current and last available Device wrt
-                        // SS pose.
-                        mStart2DevicePoseDelta = (pose.timestamp - mStart2DevicePreviousPoseTimeStamp)
-                                * SECONDS_TO_MILLI;
-                        mStart2DevicePreviousPoseTimeStamp = pose.timestamp;
-                        if (!mIsRelocalized && mRenderer.isValid()) {
-                            updateRenderer = true;
-
-                            synchronized (mRenderer.getBlueTrajectory()) {
-                                mRenderer.getBlueTrajectory().updateTrajectory(translation);
-                            }
-                        }
-                    } else if (pose.baseFrame == TangoPoseData.COORDINATE_FRAME_AREA_DESCRIPTION
-                            && pose.targetFrame == TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE) {
-                        mPoses[2] = pose;
-                        if (mAdf2StartPreviousPoseStatus != pose.statusCode) {
-                            // Set the count to zero when status code changes.
-                            mAdf2StartPoseCount = 0;
-                        }
-                        mAdf2StartPreviousPoseStatus = pose.statusCode;
-                        mAdf2StartPoseCount++;
-                        // Calculate time difference between current and last available SS wrt ADF
-                        // pose.
-                        mAdf2StartPoseDelta = (pose.timestamp - mAdf2StartPreviousPoseTimeStamp)
-                                * SECONDS_TO_MILLI;
-                        mAdf2StartPreviousPoseTimeStamp = pose.timestamp;
-                        if (pose.statusCode == TangoPoseData.POSE_VALID) {
-                            mIsRelocalized = true;
-                            // Set the color to green
-                        } else {
-                            mIsRelocalized = false;
-                            // Set the color blue
+                // Nothing here waits for the render loop: the renderer takes
+                // the pose through a lock-free buffer and the UI thread only
+                // reads volatile fields.
+                SessionRecorder recorder = mSessionRecorder;
+                if (recorder != null) {
+                    recorder.recordPose(pose.timestamp, pose.baseFrame, pose.targetFrame,
+                            pose.statusCode, pose.translation, pose.rotation);
+                }
+                boolean updateRenderer = false;
+
+                // Check for Device wrt ADF pose, Device wrt Start of Service pose,
+                // Start of Service wrt ADF pose(This pose determines if device
+                // the is relocalized or not).
+                if (pose.baseFrame == TangoPoseData.COORDINATE_FRAME_AREA_DESCRIPTION
+                        && pose.targetFrame == TangoPoseData.COORDINATE_FRAME_DEVICE) {
+                    mPoses.set(0, pose);
+                    if (mAdf2DevicePreviousPoseStatus != pose.statusCode) {
+                        // Set the count to zero when status code changes.
+                        mAdf2DevicePoseCount = 0;
+                    }
+                    mAdf2DevicePreviousPoseStatus = pose.statusCode;
+                    mAdf2DevicePoseCount++;
+                    // Calculate time difference between current and last available Device wrt
+                    // ADF pose.
+                    mAdf2DevicePoseDelta = (pose.timestamp - mAdf2DevicePreviousPoseTimeStamp)
+                            * SECONDS_TO_MILLI;
+                    mAdf2DevicePreviousPoseTimeStamp = pose.timestamp;
+                    if (mIsRelocalized && mRenderer.isValid()) {
+                        updateRenderer = true;
+                    }
+                } else if (pose.baseFrame == TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE
+                        && pose.targetFrame == TangoPoseData.COORDINATE_FRAME_DEVICE) {
+                    mPoses.set(1, pose);
+                    if (mStart2DevicePreviousPoseStatus != pose.statusCode) {
+                        // Set the count to zero when status code changes.
+                        mStart2DevicePoseCount = 0;
+                    }
+                    mStart2DevicePreviousPoseStatus = pose.statusCode;
+                    mStart2DevicePoseCount++;
+                    // Calculate time difference between current and last available Device wrt
+                    // SS pose.
+                    mStart2DevicePoseDelta = (pose.timestamp - mStart2DevicePreviousPoseTimeStamp)
+                            * SECONDS_TO_MILLI;
+                    mStart2DevicePreviousPoseTimeStamp = pose.timestamp;
+                    if (!mIsRelocalized && mRenderer.isValid()) {
+                        updateRenderer = true;
+                    }
+                } else if (pose.baseFrame == TangoPoseData.COORDINATE_FRAME_AREA_DESCRIPTION
+                        && pose.targetFrame == TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE) {
+                    mPoses.set(2, pose);
+                    if (mAdf2StartPreviousPoseStatus != pose.statusCode) {
+                        // Set the count to zero when status code changes.
+                        mAdf2StartPoseCount = 0;
+                    }
+                    mAdf2StartPreviousPoseStatus = pose.statusCode;
+                    mAdf2StartPoseCount++;
+                    // Calculate time difference between current and last available SS wrt ADF
+                    // pose.
+                    mAdf2StartPoseDelta = (pose.timestamp - mAdf2StartPreviousPoseTimeStamp)
+                            * SECONDS_TO_MILLI;
+                    mAdf2StartPreviousPoseTimeStamp = pose.timestamp;
+                    if (pose.statusCode == TangoPoseData.POSE_VALID) {
+                        mIsRelocalized = true;
+                        if (mRenderer.isValid()) {
+                            mRenderer.setStartOfServicePose(pose.timestamp, pose.translation,
+                                    pose.rotation);
                         }
+                        // Set the color to green
+                    } else {
+                        mIsRelocalized = false;
+                        // Set the color blue
                     }
+                }
 
-                    // Update the trajectory, model matrix, and view matrix, then
-                    // render the scene again
-                    if (updateRenderer && mRenderer.isValid()) {
-                        mRenderer.getModelMatCalculator().updateModelMatrix(translation,
-                                pose.getRotationAsFloats());
-                        mRenderer.updateViewMatrix();
-                    }
+                // Hand the pose to the renderer, which updates the model and
+                // view matrices and extends the trajectory of the pose's base
+                // frame when it draws the next frame.
+                if (updateRenderer && mRenderer.isValid()) {
+                    mRenderer.setDevicePose(pose.timestamp, pose.translation, pose.rotation,
+                            pose.baseFrame, pose.statusCode == TangoPoseData.POSE_VALID);
                 }
             }
 
@@ -336,7 +352,12 @@ public class AreaLearningActivity extends Activity implements View.OnClickListen
             public void onFrameAvailable(int cameraId) {
                 // We are not using onFrameAvailable for this application.
             }
-        });
+        };
+        if (mReplay != null) {
+            mReplay.connectListener(framePairs, listener);
+        } else {
+            mTango.connectListener(framePairs, listener);
+        }
     }
 
     private void saveAdf() {
@@ -393,32 +414,35 @@ public class AreaLearningActivity extends Activity implements View.OnClickListen
      * @param pose
      */
     private void updateTextViews() {
-        if (mPoses[0] != null
-                && mPoses[0].baseFrame == TangoPoseData.COORDINATE_FRAME_AREA_DESCRIPTION
-                && mPoses[0].targetFrame == TangoPoseData.COORDINATE_FRAME_DEVICE) {
-            mAdf2DeviceTranslationTextView.setText(getTranslationString(mPoses[0]));
-            mAdf2DeviceQuatTextView.setText(getQuaternionString(mPoses[0]));
-            mAdf2DevicePoseStatusTextView.setText(getPoseStatus(mPoses[0]));
+        TangoPoseData adf2DevicePose = mPoses.get(0);
+        if (adf2DevicePose != null
+                && adf2DevicePose.baseFrame == TangoPoseData.COORDINATE_FRAME_AREA_DESCRIPTION
+                && adf2DevicePose.targetFrame == TangoPoseData.COORDINATE_FRAME_DEVICE) {
+            mAdf2DeviceTranslationTextView.setText(getTranslationString(adf2DevicePose));
+            mAdf2DeviceQuatTextView.setText(getQuaternionString(adf2DevicePose));
+            mAdf2DevicePoseStatusTextView.setText(getPoseStatus(adf2DevicePose));
             mAdf2DevicePoseCountTextView.setText(Integer.toString(mAdf2DevicePoseCount));
             mAdf2DevicePoseDeltaTextView.setText(threeDec.format(mAdf2DevicePoseDelta));
         }
 
-        if (mPoses[1] != null
-                && mPoses[1].baseFrame == TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE
-                && mPoses[1].targetFrame == TangoPoseData.COORDINATE_FRAME_DEVICE) {
-            mStart2DeviceTranslationTextView.setText(getTranslationString(mPoses[1]));
-            mStart2DeviceQuatTextView.setText(getQuaternionString(mPoses[1]));
-            mStart2DevicePoseStatusTextView.setText(getPoseStatus(mPoses[1]));
+        TangoPoseData start2DevicePose = mPoses.get(1);
+        if (start2DevicePose != null
+                && start2DevicePose.baseFrame == TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE
+                && start2DevicePose.targetFrame == TangoPoseData.COORDINATE_FRAME_DEVICE) {
+            mStart2DeviceTranslationTextView.setText(getTranslationString(start2DevicePose));
+            mStart2DeviceQuatTextView.setText(getQuaternionString(start2DevicePose));
+            mStart2DevicePoseStatusTextView.setText(getPoseStatus(start2DevicePose));
             mStart2DevicePoseCountTextView.setText(Integer.toString(mStart2DevicePoseCount));
             mStart2DevicePoseDeltaTextView.setText(threeDec.format(mStart2DevicePoseDelta));
         }
 
-        if (mPoses[2] != null
-                && mPoses[2].baseFrame == TangoPoseData.COORDINATE_FRAME_AREA_DESCRIPTION
-                && mPoses[2].targetFrame == TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE) {
-            mAdf2StartTranslationTextView.setText(getTranslationString(mPoses[2]));
-            mAdf2StartQuatTextView.setText(getQuaternionString(mPoses[2]));
-            mAdf2StartPoseStatusTextView.setText(getPoseStatus(mPoses[2]));
+        TangoPoseData adf2StartPose = mPoses.get(2);
+        if (adf2StartPose != null
+                && adf2StartPose.baseFrame == TangoPoseData.COORDINATE_FRAME_AREA_DESCRIPTION
+                && adf2StartPose.targetFrame == TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE) {
+            mAdf2StartTranslationTextView.setText(getTranslationString(adf2StartPose));
+            mAdf2StartQuatTextView.setText(getQuaternionString(adf2StartPose));
+            mAdf2StartPoseStatusTextView.setText(getPoseStatus(adf2StartPose));
             mAdf2StartPoseCountTextView.setText(Integer.toString(mAdf2StartPoseCount));
             mAdf2StartPoseDeltaTextView.setText(threeDec.format(mAdf2StartPoseDelta));
         }
@@ -454,17 +478,32 @@ public class AreaLearningActivity extends Activity implements View.OnClickListen
     @Override
     protected void onPause() {
         super.onPause();
-        try {
-            mTango.disconnect();
-        } catch (TangoErrorException e) {
-            Toast.makeText(getApplicationContext(), R.string.tango_error, Toast.LENGTH_SHORT)
-                    .show();
+        if (mReplay != null) {
+            mReplay.disconnect();
+            mReplay = null;
+        } else {
+            try {
+                mTango.disconnect();
+            } catch (TangoErrorException e) {
+                Toast.makeText(getApplicationContext(), R.string.tango_error,
+                        Toast.LENGTH_SHORT).show();
+            }
+        }
+        if (mSessionRecorder != null) {
+            mSessionRecorder.stop();
+            mSessionRecorder = null;
         }
     }
 
     @Override
     protected void onResume() {
         super.onResume();
+        mReplay = TangoReplayBridge.openIfRequested(this);
+        if (mReplay != null) {
+            setUpTangoListeners();
+            mReplay.connect();
+            return;
+        }
         try {
             setUpTangoListeners();
         } catch (TangoErrorException e) {
@@ -474,6 +513,7 @@ public class AreaLearningActivity extends Activity implements View.OnClickListen
             Toast.makeText(getApplicationContext(), R.string.no_permissions, Toast.LENGTH_SHORT)
                     .show();
         }
+        mSessionRecorder = SessionRecorder.startIfRequested(this, 0);
         try {
             mTango.connect(mConfig);
         } catch (TangoOutOfDateException e) {
@@ -519,7 +559,7 @@ public class AreaLearningActivity extends Activity implements View.OnClickListen
 
     /**
      * Create a separate thread to update Log information on UI at the specified interval of
-     * UPDATE_INTERVAL_MS. This function also makes sure to have access to the mPoses atomically.
+     * UPDATE_INTERVAL_MS.
      */
     private void startUIThread() {
         new Thread(new Runnable() {
@@ -532,14 +572,7 @@ public class AreaLearningActivity extends Activity implements View.OnClickListen
                             @Override
                             public void run() {
                                 try {
-                                    synchronized (sharedLock) {
-
-                                        if (mPoses == null) {
-                                            return;
-                                        } else {
-                                            updateTextViews();
-                                        }
-                                    }
+                                    updateTextViews();
                                 } catch (NullPointerException e) {
                                     e.printStackTrace();
                                 }
@@ -23,6 +23,8 @@ import android.opengl.Matrix;
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
+import com.projecttango.tangoutils.PoseQueue;
+import com.projecttango.tangoutils.PoseSnapshot;
 import com.projecttango.tangoutils.Renderer;
 import com.projecttango.tangoutils.renderables.CameraFrustum;
 import com.projecttango.tangoutils.renderables.CameraFrustumAndAxis;
@@ -40,11 +42,23 @@ import com.projecttango.tangoutils.renderables.Trajectory;
  */
 public class MTGLRenderer extends Renderer implements GLSurfaceView.Renderer {
 
+    // About five seconds of poses, for the GL thread to catch up after a stall.
+    private static final int POSE_QUEUE_CAPACITY = 512;
+
     private Trajectory mTrajectory;
     private CameraFrustum mCameraFrustum;
     private CameraFrustumAndAxis mCameraFrustumAndAxis;
     private Grid mFloorGrid;
-    private boolean mIsValid = false;
+    private volatile boolean mIsValid = false;
+    // Every pose, for the trajectory, while the matrices only use the newest.
+    private final PoseQueue mPoseQueue = new PoseQueue(POSE_QUEUE_CAPACITY);
+    private final PoseSnapshot mQueuedPose = new PoseSnapshot();
+
+    public MTGLRenderer() {
+        // Extrapolate the device pose to the display time of each frame.
+        setPosePredictionEnabled(true);
+    }
+
     @Override
     public void onSurfaceCreated(GL10 gl, EGLConfig config) {
 
@@ -53,6 +67,11 @@ public class MTGLRenderer extends Renderer implements GLSurfaceView.Renderer {
         GLES20.glEnable(GLES20.GL_DEPTH_TEST);
 
         // resetModelMatCalculator();
+        // A new context means the previous trajectory lost its buffers. Release
+        // it, which also closes its file, before any GL object is created.
+        if (mTrajectory != null) {
+            mTrajectory.release();
+        }
         mCameraFrustum = new CameraFrustum();
         mFloorGrid = new Grid();
         mCameraFrustumAndAxis = new CameraFrustumAndAxis();
@@ -61,7 +80,6 @@ public class MTGLRenderer extends Renderer implements GLSurfaceView.Renderer {
         // Construct the initial view matrix
         Matrix.setIdentityM(mViewMatrix, 0);
         Matrix.setLookAtM(mViewMatrix, 0, 5f, 5f, 5f, 0f, 0f, 0f, 0f, 1f, 0f);
-        mCameraFrustumAndAxis.setModelMatrix(getModelMatCalculator().getModelMatrix());
         mIsValid = true;
 
     }
@@ -76,12 +94,24 @@ public class MTGLRenderer extends Renderer implements GLSurfaceView.Renderer {
 
     @Override
     public void onDrawFrame(GL10 gl) {
-        synchronized (MotionTrackingActivity.sharedLock) {
-            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
-            mTrajectory.draw(getViewMatrix(), mProjectionMatrix);
-            mFloorGrid.draw(getViewMatrix(), mProjectionMatrix);
-            mCameraFrustumAndAxis.draw(getViewMatrix(), mProjectionMatrix);
+        // Apply the latest device pose once for this frame.
+        updateFrameMatrices();
+        getModelMatCalculator().getModelMatrix(mCameraFrustumAndAxis.getModelMatrix(), 0);
+        // The trajectory is only touched on the GL thread, so it needs no lock.
+        // It gets every pose received since the last frame.
+        while (mPoseQueue.poll(mQueuedPose)) {
+            mTrajectory.updateTrajectory(mQueuedPose.translation, mQueuedPose.timestamp);
         }
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+        mTrajectory.draw(getViewMatrix(), mProjectionMatrix);
+        mFloorGrid.draw(getViewMatrix(), mProjectionMatrix);
+        mCameraFrustumAndAxis.draw(getViewMatrix(), mProjectionMatrix);
+    }
+
+    @Override
+    protected void onDevicePose(double timestamp, double[] translation, double[] rotation,
+            int baseFrame) {
+        mPoseQueue.offer(timestamp, translation, rotation, baseFrame);
     }
 
     public CameraFrustum getCameraFrustum() {
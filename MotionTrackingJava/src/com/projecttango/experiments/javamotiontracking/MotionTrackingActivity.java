@@ -42,6 +42,9 @@ import android.widget.Toast;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 
+import com.projecttango.tangoreplay.TangoReplayBridge;
+import com.projecttango.tangoutils.session.SessionRecorder;
+
 /**
  * Main Activity class for the Motion Tracking API Sample. Handles the connection to the Tango
  * service and propagation of Tango pose data to OpenGL and Layout views. OpenGL rendering logic is
@@ -64,15 +67,20 @@ public class MotionTrackingActivity extends Activity implements View.OnClickList
     private Button mMotionResetButton;
     private float mPreviousTimeStamp;
     private int mPreviousPoseStatus;
-    private int count;
-    private float mDeltaTime;
+    private volatile int count;
+    private volatile float mDeltaTime;
     private boolean mIsAutoRecovery;
     private MTGLRenderer mRenderer;
     private GLSurfaceView mGLView;
     private boolean mIsProcessing = false;
-    private TangoPoseData mPose;
+    private volatile TangoPoseData mPose;
+    // Records the sensor streams when the activity is started with the
+    // SessionRecorder.EXTRA_RECORD_SESSION extra.
+    private volatile SessionRecorder mSessionRecorder;
+    // Replays a recorded session instead of connecting to the service when
+    // the activity is started with the SessionPlayer.EXTRA_REPLAY_SESSION extra.
+    private TangoReplayBridge mReplay;
     private static final int UPDATE_INTERVAL_MS = 100;
-    public static Object sharedLock = new Object();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -155,37 +163,37 @@ public class MotionTrackingActivity extends Activity implements View.OnClickList
                 TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
                 TangoPoseData.COORDINATE_FRAME_DEVICE));
         // Listen for new Tango data
-        mTango.connectListener(framePairs, new OnTangoUpdateListener() {
+        OnTangoUpdateListener listener = new OnTangoUpdateListener() {
 
             @Override
             public void onPoseAvailable(final TangoPoseData pose) {
-                //Make sure to have atomic access to Tango Pose Data so that
-                //render loop doesn't interfere while Pose call back is updating
-                // the data.
-                synchronized (sharedLock) {
-                    mPose = pose;
-                    mDeltaTime = (float) (pose.timestamp - mPreviousTimeStamp) * SECS_TO_MILLISECS;
-                    mPreviousTimeStamp = (float) pose.timestamp;
-                    // Log whenever Motion Tracking enters an invalid state
-                    if (!mIsAutoRecovery && (pose.statusCode == TangoPoseData.POSE_INVALID)) {
-                        Log.w(TAG, "Invalid State");
-                    }
-                    if (mPreviousPoseStatus != pose.statusCode) {
-                        count = 0;
-                    }
-                    count++;
-                    mPreviousPoseStatus = pose.statusCode;
-                    // Update the OpenGL renderable objects with the new Tango Pose
-                    // data
-                    float[] translation = pose.getTranslationAsFloats();
-                    if(!mRenderer.isValid()){
-                        return;
-                    }
-                    mRenderer.getTrajectory().updateTrajectory(translation);
-                    mRenderer.getModelMatCalculator().updateModelMatrix(translation,
-                            pose.getRotationAsFloats());
-                    mRenderer.updateViewMatrix();
+                // Nothing here waits for the render loop: the renderer takes
+                // the pose through a lock-free buffer and the UI thread only
+                // reads volatile fields.
+                SessionRecorder recorder = mSessionRecorder;
+                if (recorder != null) {
+                    recorder.recordPose(pose.timestamp, pose.baseFrame, pose.targetFrame,
+                            pose.statusCode, pose.translation, pose.rotation);
                 }
+                mPose = pose;
+                mDeltaTime = (float) (pose.timestamp - mPreviousTimeStamp) * SECS_TO_MILLISECS;
+                mPreviousTimeStamp = (float) pose.timestamp;
+                // Log whenever Motion Tracking enters an invalid state
+                if (!mIsAutoRecovery && (pose.statusCode == TangoPoseData.POSE_INVALID)) {
+                    Log.w(TAG, "Invalid State");
+                }
+                if (mPreviousPoseStatus != pose.statusCode) {
+                    count = 0;
+                }
+                count++;
+                mPreviousPoseStatus = pose.statusCode;
+                if(!mRenderer.isValid()){
+                    return;
+                }
+                // Hand the pose to the renderer, which also extends the
+                // trajectory with it on the GL thread.
+                mRenderer.setDevicePose(pose.timestamp, pose.translation, pose.rotation,
+                        pose.baseFrame, pose.statusCode == TangoPoseData.POSE_VALID);
             }
 
             @Override
@@ -195,6 +203,11 @@ public class MotionTrackingActivity extends Activity implements View.OnClickList
 
             @Override
             public void onTangoEvent(final TangoEvent event) {
+                SessionRecorder recorder = mSessionRecorder;
+                if (recorder != null) {
+                    recorder.recordEvent(event.timestamp, event.eventType, event.eventKey,
+                            event.eventValue);
+                }
                 runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
@@ -207,7 +220,12 @@ public class MotionTrackingActivity extends Activity implements View.OnClickList
             public void onFrameAvailable(int cameraId) {
                 // We are not using onFrameAvailable for this application
             }
-        });
+        };
+        if (mReplay != null) {
+            mReplay.connectListener(framePairs, listener);
+        } else {
+            mTango.connectListener(framePairs, listener);
+        }
     }
 
     private void motionReset() {
@@ -217,15 +235,26 @@ public class MotionTrackingActivity extends Activity implements View.OnClickList
     @Override
     protected void onPause() {
         super.onPause();
-        try {
-            mTango.disconnect();
-        } catch (TangoErrorException e) {
-            Toast.makeText(getApplicationContext(), R.string.TangoError, Toast.LENGTH_SHORT).show();
+        if (mReplay != null) {
+            mReplay.disconnect();
+            mReplay = null;
+        } else {
+            try {
+                mTango.disconnect();
+            } catch (TangoErrorException e) {
+                Toast.makeText(getApplicationContext(), R.string.TangoError,
+                        Toast.LENGTH_SHORT).show();
+            }
+        }
+        if (mSessionRecorder != null) {
+            mSessionRecorder.stop();
+            mSessionRecorder = null;
         }
     }
 
     protected void onResume() {
         super.onResume();
+        mReplay = TangoReplayBridge.openIfRequested(this);
         try {
             setTangoListeners();
         } catch (TangoErrorException e) {
@@ -234,13 +263,17 @@ public class MotionTrackingActivity extends Activity implements View.OnClickList
             Toast.makeText(getApplicationContext(), R.string.motiontrackingpermission,
                     Toast.LENGTH_SHORT).show();
         }
-        try {
-            mTango.connect(mConfig);
-        } catch (TangoOutOfDateException e) {
-            Toast.makeText(getApplicationContext(), R.string.TangoOutOfDateException,
-                    Toast.LENGTH_SHORT).show();
-        } catch (TangoErrorException e) {
-            Toast.makeText(getApplicationContext(), R.string.TangoError, Toast.LENGTH_SHORT).show();
+        if (mReplay == null) {
+            mSessionRecorder = SessionRecorder.startIfRequested(this, 0);
+            try {
+                mTango.connect(mConfig);
+            } catch (TangoOutOfDateException e) {
+                Toast.makeText(getApplicationContext(), R.string.TangoOutOfDateException,
+                        Toast.LENGTH_SHORT).show();
+            } catch (TangoErrorException e) {
+                Toast.makeText(getApplicationContext(), R.string.TangoError,
+                        Toast.LENGTH_SHORT).show();
+            }
         }
         try {
             setUpExtrinsics();
@@ -250,6 +283,11 @@ public class MotionTrackingActivity extends Activity implements View.OnClickList
             Toast.makeText(getApplicationContext(), R.string.motiontrackingpermission,
                     Toast.LENGTH_SHORT).show();
         }
+        if (mReplay != null) {
+            // Start replaying once the extrinsics are set, so that every
+            // replay of the session goes through the same states.
+            mReplay.connect();
+        }
     }
 
     @Override
@@ -292,7 +330,7 @@ public class MotionTrackingActivity extends Activity implements View.OnClickList
         TangoCoordinateFramePair framePair = new TangoCoordinateFramePair();
         framePair.baseFrame = TangoPoseData.COORDINATE_FRAME_IMU;
         framePair.targetFrame = TangoPoseData.COORDINATE_FRAME_DEVICE;
-        device2IMUPose = mTango.getPoseAtTime(0.0, framePair);
+        device2IMUPose = getExtrinsicsPose(framePair);
         mRenderer.getModelMatCalculator().SetDevice2IMUMatrix(
                 device2IMUPose.getTranslationAsFloats(), device2IMUPose.getRotationAsFloats());
 
@@ -300,15 +338,32 @@ public class MotionTrackingActivity extends Activity implements View.OnClickList
         TangoPoseData color2IMUPose = new TangoPoseData();
         framePair.baseFrame = TangoPoseData.COORDINATE_FRAME_IMU;
         framePair.targetFrame = TangoPoseData.COORDINATE_FRAME_CAMERA_COLOR;
-        color2IMUPose = mTango.getPoseAtTime(0.0, framePair);
+        color2IMUPose = getExtrinsicsPose(framePair);
 
         mRenderer.getModelMatCalculator().SetColorCamera2IMUMatrix(
                 color2IMUPose.getTranslationAsFloats(), color2IMUPose.getRotationAsFloats());
     }
+
+    /**
+     * Gets an extrinsics pose from the service, recording it with the session,
+     * or from the replayed session.
+     */
+    private TangoPoseData getExtrinsicsPose(TangoCoordinateFramePair framePair) {
+        if (mReplay != null) {
+            return mReplay.getFirstPose(framePair);
+        }
+        TangoPoseData pose = mTango.getPoseAtTime(0.0, framePair);
+        SessionRecorder recorder = mSessionRecorder;
+        if (recorder != null) {
+            recorder.recordPose(pose.timestamp, pose.baseFrame, pose.targetFrame,
+                    pose.statusCode, pose.translation, pose.rotation);
+        }
+        return pose;
+    }
+
     /**
      * Create a separate thread to update Log information on UI at the specified
-     * interval of UPDATE_INTERVAL_MS. This function also makes sure to have access
-     * to the mPose atomically.
+     * interval of UPDATE_INTERVAL_MS.
      */
     private void startUIThread() {
         new Thread(new Runnable() {
@@ -322,35 +377,36 @@ public class MotionTrackingActivity extends Activity implements View.OnClickList
                             @Override
                             public void run() {
                                 try {
-                                    synchronized (sharedLock) {
-                                        if (mPose == null) {
-                                            return;
-                                        }
-                                       
-                                        String translationString = "["
-                                                + threeDec.format(mPose.translation[0]) + ", "
-                                                + threeDec.format(mPose.translation[1]) + ", "
-                                                + threeDec.format(mPose.translation[2]) + "] ";
-                                        String quaternionString = "["
-                                                + threeDec.format(mPose.rotation[0]) + ", "
-                                                + threeDec.format(mPose.rotation[1]) + ", "
-                                                + threeDec.format(mPose.rotation[2]) + ", "
-                                                + threeDec.format(mPose.rotation[3]) + "] ";
-
-                                        // Display pose data on screen in TextViews
-                                        mPoseTextView.setText(translationString);
-                                        mQuatTextView.setText(quaternionString);
-                                        mPoseCountTextView.setText(Integer.toString(count));
-                                        mDeltaTextView.setText(threeDec.format(mDeltaTime));
-                                        if (mPose.statusCode == TangoPoseData.POSE_VALID) {
-                                            mPoseStatusTextView.setText(R.string.pose_valid);
-                                        } else if (mPose.statusCode == TangoPoseData.POSE_INVALID) {
-                                            mPoseStatusTextView.setText(R.string.pose_invalid);
-                                        } else if (mPose.statusCode == TangoPoseData.POSE_INITIALIZING) {
-                                            mPoseStatusTextView.setText(R.string.pose_initializing);
-                                        } else if (mPose.statusCode == TangoPoseData.POSE_UNKNOWN) {
-                                            mPoseStatusTextView.setText(R.string.pose_unknown);
-                                        }
+                                    // Read the pose once, the callback may replace it
+                                    // while the text is being built.
+                                    TangoPoseData pose = mPose;
+                                    if (pose == null) {
+                                        return;
+                                    }
+
+                                    String translationString = "["
+                                            + threeDec.format(pose.translation[0]) + ", "
+                                            + threeDec.format(pose.translation[1]) + ", "
+                                            + threeDec.format(pose.translation[2]) + "] ";
+                                    String quaternionString = "["
+                                            + threeDec.format(pose.rotation[0]) + ", "
+                                            + threeDec.format(pose.rotation[1]) + ", "
+                                            + threeDec.format(pose.rotation[2]) + ", "
+                                            + threeDec.format(pose.rotation[3]) + "] ";
+
+                                    // Display pose data on screen in TextViews
+                                    mPoseTextView.setText(translationString);
+                                    mQuatTextView.setText(quaternionString);
+                                    mPoseCountTextView.setText(Integer.toString(count));
+                                    mDeltaTextView.setText(threeDec.format(mDeltaTime));
+                                    if (pose.statusCode == TangoPoseData.POSE_VALID) {
+                                        mPoseStatusTextView.setText(R.string.pose_valid);
+                                    } else if (pose.statusCode == TangoPoseData.POSE_INVALID) {
+                                        mPoseStatusTextView.setText(R.string.pose_invalid);
+                                    } else if (pose.statusCode == TangoPoseData.POSE_INITIALIZING) {
+                                        mPoseStatusTextView.setText(R.string.pose_initializing);
+                                    } else if (pose.statusCode == TangoPoseData.POSE_UNKNOWN) {
+                                        mPoseStatusTextView.setText(R.string.pose_unknown);
                                     }
                                 } catch (NullPointerException e) {
                                     e.printStackTrace();
@@ -23,11 +23,15 @@ import android.opengl.Matrix;
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
+import com.projecttango.tangoutils.PointOctree;
 import com.projecttango.tangoutils.Renderer;
+import com.projecttango.tangoutils.VoxelMap;
 import com.projecttango.tangoutils.renderables.CameraFrustum;
 import com.projecttango.tangoutils.renderables.CameraFrustumAndAxis;
 import com.projecttango.tangoutils.renderables.Grid;
+import com.projecttango.tangoutils.renderables.OctreeCloud;
 import com.projecttango.tangoutils.renderables.PointCloud;
+import com.projecttango.tangoutils.renderables.VoxelCloud;
 
 /**
  * OpenGL rendering class for the Motion Tracking API sample. This class manages the objects
@@ -42,13 +46,35 @@ import com.projecttango.tangoutils.renderables.PointCloud;
  */
 public class PCRenderer extends Renderer implements GLSurfaceView.Renderer {
 
+    // The accumulated points are drawn from a level-of-detail octree, within
+    // a fixed point budget per frame whatever the size of the scan.
+    private static final float OCTREE_HALF_SIZE = 128f;
+    private static final int OCTREE_MAX_POINTS = 4000000;
+    private static final int POINT_BUDGET = 500000;
+    // The same points are also accumulated into a coarse map of the space,
+    // 5 cm voxels up to 64 MB, filled on the octree thread and drawn instead
+    // of the octree on demand.
+    private static final float VOXEL_RESOLUTION = 0.05f;
+    private static final int VOXEL_MAP_MAX_BYTES = 64 * 1024 * 1024;
+
+    private final PointOctree mPointOctree;
+    private final VoxelMap mVoxelMap = new VoxelMap(VOXEL_RESOLUTION,
+            VOXEL_MAP_MAX_BYTES / VoxelMap.BYTES_PER_VOXEL);
     private PointCloud mPointCloud;
+    private OctreeCloud mOctreeCloud;
+    private VoxelCloud mVoxelCloud;
+    private volatile boolean mVoxelMapShown;
     private Grid mGrid;
     private CameraFrustumAndAxis mCameraFrustumAndAxis;
     private int mMaxDepthPoints;
-    private boolean mIsValid = false;
+    private volatile boolean mIsValid = false;
     public PCRenderer(int maxDepthPoints) {
         mMaxDepthPoints = maxDepthPoints;
+        mPointOctree = new PointOctree(OCTREE_HALF_SIZE, OCTREE_MAX_POINTS, maxDepthPoints);
+        mPointOctree.setVoxelMap(mVoxelMap);
+        mPointOctree.start();
+        // Extrapolate the device pose to the display time of each frame.
+        setPosePredictionEnabled(true);
     }
 
     @Override
@@ -56,11 +82,12 @@ public class PCRenderer extends Renderer implements GLSurfaceView.Renderer {
         GLES20.glClearColor(1f, 1f, 1f, 1.0f);
         GLES20.glEnable(GLES20.GL_DEPTH_TEST);
         mPointCloud = new PointCloud(mMaxDepthPoints);
+        mOctreeCloud = new OctreeCloud(mPointOctree, POINT_BUDGET);
+        mVoxelCloud = new VoxelCloud(mVoxelMap);
         mGrid = new Grid();
         mCameraFrustumAndAxis = new CameraFrustumAndAxis();
         Matrix.setIdentityM(mViewMatrix, 0);
         Matrix.setLookAtM(mViewMatrix, 0, 5f, 5f, 5f, 0f, 0f, 0f, 0f, 1f, 0f);
-        mCameraFrustumAndAxis.setModelMatrix(getModelMatCalculator().getModelMatrix());
         mIsValid = true;
     }
 
@@ -68,25 +95,52 @@ public class PCRenderer extends Renderer implements GLSurfaceView.Renderer {
     public void onSurfaceChanged(GL10 gl, int width, int height) {
         GLES20.glViewport(0, 0, width, height);
         mCameraAspect = (float) width / height;
+        mOctreeCloud.setViewportHeight(height);
         Matrix.perspectiveM(mProjectionMatrix, 0, CAMERA_FOV, mCameraAspect, CAMERA_NEAR,
                 CAMERA_FAR);
     }
 
     @Override
     public void onDrawFrame(GL10 gl) {
+        // Apply the latest device pose once for this frame.
+        updateFrameMatrices();
+        getModelMatCalculator().getModelMatrix(mCameraFrustumAndAxis.getModelMatrix(), 0);
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
         mGrid.draw(mViewMatrix, mProjectionMatrix);
-        synchronized (PointCloudActivity.depthLock) {
-            mPointCloud.draw(mViewMatrix, mProjectionMatrix);
-        }
-        synchronized (PointCloudActivity.poseLock) {
-            mCameraFrustumAndAxis.draw(mViewMatrix, mProjectionMatrix);
+        if (mVoxelMapShown) {
+            mVoxelCloud.draw(mViewMatrix, mProjectionMatrix);
+        } else {
+            mOctreeCloud.draw(mViewMatrix, mProjectionMatrix);
         }
+        // The point cloud takes the newest depth frame, with its own model
+        // matrix, without waiting for the depth callback.
+        mPointCloud.draw(mViewMatrix, mProjectionMatrix);
+        mCameraFrustumAndAxis.draw(mViewMatrix, mProjectionMatrix);
     }
 
     public PointCloud getPointCloud() {
         return mPointCloud;
     }
+
+    public PointOctree getPointOctree() {
+        return mPointOctree;
+    }
+
+    public VoxelMap getVoxelMap() {
+        return mVoxelMap;
+    }
+
+    /**
+     * Draws the accumulated points from the voxel map instead of the octree,
+     * or back. The voxel map keeps receiving frames either way.
+     */
+    public void setVoxelMapShown(boolean shown) {
+        mVoxelMapShown = shown;
+    }
+
+    public boolean isVoxelMapShown() {
+        return mVoxelMapShown;
+    }
     
     public boolean isValid(){
         return mIsValid;
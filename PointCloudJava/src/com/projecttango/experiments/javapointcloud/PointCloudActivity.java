@@ -26,6 +26,13 @@ import com.google.atap.tangoservice.TangoInvalidException;
 import com.google.atap.tangoservice.TangoOutOfDateException;
 import com.google.atap.tangoservice.TangoPoseData;
 import com.google.atap.tangoservice.TangoXyzIjData;
+import com.projecttango.tangoreplay.TangoReplayBridge;
+import com.projecttango.tangoutils.DepthStatistics;
+import com.projecttango.tangoutils.ModelMatCalculator;
+import com.projecttango.tangoutils.PointCloudExporter;
+import com.projecttango.tangoutils.PoseHistory;
+import com.projecttango.tangoutils.VoxelGridFilter;
+import com.projecttango.tangoutils.session.SessionRecorder;
 
 import android.app.Activity;
 import android.content.Intent;
@@ -41,6 +48,7 @@ import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.text.DecimalFormat;
@@ -76,21 +84,48 @@ public class PointCloudActivity extends Activity implements OnClickListener {
     private Button mFirstPersonButton;
     private Button mThirdPersonButton;
     private Button mTopDownButton;
+    private Button mExportButton;
+    private Button mVoxelMapButton;
 
-    private int count;
+    private volatile int count;
     private int mPreviousPoseStatus;
-    private int mPointCount;
-    private float mDeltaTime;
-    private float mPosePreviousTimeStamp;
-    private float mXyIjPreviousTimeStamp;
-    private float mCurrentTimeStamp;
-    private float mPointCloudFrameDelta;
+    private volatile int mPointCount;
+    private volatile float mDeltaTime;
+    private double mPosePreviousTimeStamp;
+    private double mXyIjPreviousTimeStamp;
+    private double mCurrentTimeStamp;
+    private volatile float mPointCloudFrameDelta;
     private String mServiceVersion;
     private boolean mIsTangoServiceConnected;
-    private TangoPoseData mPose;
+    private volatile TangoPoseData mPose;
     private static final int UPDATE_INTERVAL_MS = 100;
-    public static Object poseLock = new Object();
-    public static Object depthLock = new Object();
+    // About two and a half seconds of poses at the 100Hz pose rate.
+    private static final int POSE_HISTORY_CAPACITY = 256;
+    private final PoseHistory mPoseHistory = new PoseHistory(POSE_HISTORY_CAPACITY);
+    private final float[] mPointCloudTranslation = new float[3];
+    private final float[] mPointCloudRotation = new float[4];
+    private final float[] mPointCloudMatrix = new float[16];
+    // Depth statistics are computed on their own worker thread.
+    private static final float DEPTH_HISTOGRAM_RANGE = 8.0f;
+    private static final int DEPTH_HISTOGRAM_BINS = 64;
+    private DepthStatistics mDepthStatistics;
+    // Depth frames are downsampled to one point per centimeter cell before
+    // they are drawn.
+    private static final float DOWNSAMPLE_LEAF_SIZE = 0.01f;
+    private VoxelGridFilter mVoxelGridFilter;
+    private int mMaxDepthPoints;
+    // Records the sensor streams when the activity is started with the
+    // SessionRecorder.EXTRA_RECORD_SESSION extra.
+    private volatile SessionRecorder mSessionRecorder;
+    // Replays a recorded session instead of connecting to the service when
+    // the activity is started with the SessionPlayer.EXTRA_REPLAY_SESSION extra.
+    private TangoReplayBridge mReplay;
+    // Scans are exported by a background writer; when it is busy, new exports
+    // are dropped rather than stalling the callbacks.
+    private static final int EXPORT_QUEUE_CAPACITY = 2;
+    private PointCloudExporter mPointCloudExporter;
+    // Set by the export button, the next depth frame is exported to it.
+    private volatile File mFrameExportFile;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -116,13 +151,25 @@ public class PointCloudActivity extends Activity implements OnClickListener {
         mThirdPersonButton.setOnClickListener(this);
         mTopDownButton = (Button) findViewById(R.id.top_down_button);
         mTopDownButton.setOnClickListener(this);
+        mExportButton = (Button) findViewById(R.id.export_button);
+        mExportButton.setOnClickListener(this);
+        mVoxelMapButton = (Button) findViewById(R.id.voxel_map_button);
+        mVoxelMapButton.setOnClickListener(this);
         mTango = new Tango(this);
         mConfig = new TangoConfig();
         mConfig = mTango.getConfig(TangoConfig.CONFIG_TYPE_CURRENT);
         mConfig.putBoolean(TangoConfig.KEY_BOOLEAN_DEPTH, true);
 
         int maxDepthPoints = mConfig.getInt("max_point_cloud_elements");
+        mMaxDepthPoints = maxDepthPoints;
         mRenderer = new PCRenderer(maxDepthPoints);
+        mDepthStatistics = new DepthStatistics(maxDepthPoints, DEPTH_HISTOGRAM_RANGE,
+                DEPTH_HISTOGRAM_BINS);
+        mDepthStatistics.start();
+        mVoxelGridFilter = new VoxelGridFilter(maxDepthPoints, DOWNSAMPLE_LEAF_SIZE);
+        mPointCloudExporter = new PointCloudExporter(maxDepthPoints, EXPORT_QUEUE_CAPACITY,
+                false);
+        mPointCloudExporter.start();
         mGLView = (GLSurfaceView) findViewById(R.id.gl_surface_view);
         mGLView.setEGLContextClientVersion(2);
         mGLView.setRenderer(mRenderer);
@@ -145,11 +192,22 @@ public class PointCloudActivity extends Activity implements OnClickListener {
     @Override
     protected void onPause() {
         super.onPause();
-        try {
-            mTango.disconnect();
+        if (mReplay != null) {
+            mReplay.disconnect();
+            mReplay = null;
             mIsTangoServiceConnected = false;
-        } catch (TangoErrorException e) {
-            Toast.makeText(getApplicationContext(), R.string.TangoError, Toast.LENGTH_SHORT).show();
+        } else {
+            try {
+                mTango.disconnect();
+                mIsTangoServiceConnected = false;
+            } catch (TangoErrorException e) {
+                Toast.makeText(getApplicationContext(), R.string.TangoError,
+                        Toast.LENGTH_SHORT).show();
+            }
+        }
+        if (mSessionRecorder != null) {
+            mSessionRecorder.stop();
+            mSessionRecorder = null;
         }
     }
 
@@ -175,6 +233,7 @@ public class PointCloudActivity extends Activity implements OnClickListener {
                 finish();
                 return;
             }
+            mReplay = TangoReplayBridge.openIfRequested(this);
             try {
                 setTangoListeners();
             } catch (TangoErrorException e) {
@@ -183,23 +242,35 @@ public class PointCloudActivity extends Activity implements OnClickListener {
                 Toast.makeText(getApplicationContext(), R.string.motiontrackingpermission,
                         Toast.LENGTH_SHORT).show();
             }
-            try {
-                mTango.connect(mConfig);
-                mIsTangoServiceConnected = true;
-            } catch (TangoOutOfDateException e) {
-                Toast.makeText(getApplicationContext(), R.string.TangoOutOfDateException,
-                        Toast.LENGTH_SHORT).show();
-            } catch (TangoErrorException e) {
-                Toast.makeText(getApplicationContext(), R.string.TangoError, Toast.LENGTH_SHORT)
-                        .show();
+            if (mReplay == null) {
+                mSessionRecorder = SessionRecorder.startIfRequested(this, mMaxDepthPoints);
+                try {
+                    mTango.connect(mConfig);
+                    mIsTangoServiceConnected = true;
+                } catch (TangoOutOfDateException e) {
+                    Toast.makeText(getApplicationContext(), R.string.TangoOutOfDateException,
+                            Toast.LENGTH_SHORT).show();
+                } catch (TangoErrorException e) {
+                    Toast.makeText(getApplicationContext(), R.string.TangoError,
+                            Toast.LENGTH_SHORT).show();
+                }
             }
             setUpExtrinsics();
+            if (mReplay != null) {
+                // Start replaying once the extrinsics are set, so that every
+                // replay of the session goes through the same states.
+                mReplay.connect();
+                mIsTangoServiceConnected = true;
+            }
         }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        mDepthStatistics.stop();
+        mRenderer.getPointOctree().stop();
+        mPointCloudExporter.stop();
     }
 
     @Override
@@ -214,6 +285,15 @@ public class PointCloudActivity extends Activity implements OnClickListener {
         case R.id.top_down_button:
             mRenderer.setTopDownView();
             break;
+        case R.id.export_button:
+            exportScan();
+            break;
+        case R.id.voxel_map_button:
+            boolean voxelMapShown = !mRenderer.isVoxelMapShown();
+            mRenderer.setVoxelMapShown(voxelMapShown);
+            mVoxelMapButton.setText(voxelMapShown ? R.string.show_points
+                    : R.string.show_voxels);
+            break;
         default:
             Log.w(TAG, "Unrecognized button click.");
             return;
@@ -225,6 +305,24 @@ public class PointCloudActivity extends Activity implements OnClickListener {
         return mRenderer.onTouchEvent(event);
     }
 
+    /**
+     * Exports the accumulated points and the next depth frame, in world
+     * coordinates, as PLY files in the exports directory of the application.
+     */
+    private void exportScan() {
+        File directory = getExternalFilesDir("exports");
+        String name = "scan-" + System.currentTimeMillis();
+        if (directory == null || !mPointCloudExporter.exportOctree(
+                new File(directory, name + "-map.ply"), PointCloudExporter.FORMAT_PLY,
+                mRenderer.getPointOctree())) {
+            Toast.makeText(this, R.string.export_failed, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        mFrameExportFile = new File(directory, name + "-frame.ply");
+        Toast.makeText(this, getString(R.string.export_started) + directory,
+                Toast.LENGTH_SHORT).show();
+    }
+
     private void setUpExtrinsics() {
         // Set device to imu matrix in Model Matrix Calculator.
         TangoPoseData device2IMUPose = new TangoPoseData();
@@ -232,7 +330,7 @@ public class PointCloudActivity extends Activity implements OnClickListener {
         framePair.baseFrame = TangoPoseData.COORDINATE_FRAME_IMU;
         framePair.targetFrame = TangoPoseData.COORDINATE_FRAME_DEVICE;
         try {
-            device2IMUPose = mTango.getPoseAtTime(0.0, framePair);
+            device2IMUPose = getExtrinsicsPose(framePair);
         } catch (TangoErrorException e) {
             Toast.makeText(getApplicationContext(), R.string.TangoError, Toast.LENGTH_SHORT).show();
         }
@@ -245,7 +343,7 @@ public class PointCloudActivity extends Activity implements OnClickListener {
         framePair.baseFrame = TangoPoseData.COORDINATE_FRAME_IMU;
         framePair.targetFrame = TangoPoseData.COORDINATE_FRAME_CAMERA_COLOR;
         try {
-            color2IMUPose = mTango.getPoseAtTime(0.0, framePair);
+            color2IMUPose = getExtrinsicsPose(framePair);
         } catch (TangoErrorException e) {
             Toast.makeText(getApplicationContext(), R.string.TangoError, Toast.LENGTH_SHORT).show();
         }
@@ -253,6 +351,23 @@ public class PointCloudActivity extends Activity implements OnClickListener {
                 color2IMUPose.getTranslationAsFloats(), color2IMUPose.getRotationAsFloats());
     }
 
+    /**
+     * Gets an extrinsics pose from the service, recording it with the session,
+     * or from the replayed session.
+     */
+    private TangoPoseData getExtrinsicsPose(TangoCoordinateFramePair framePair) {
+        if (mReplay != null) {
+            return mReplay.getFirstPose(framePair);
+        }
+        TangoPoseData pose = mTango.getPoseAtTime(0.0, framePair);
+        SessionRecorder recorder = mSessionRecorder;
+        if (recorder != null) {
+            recorder.recordPose(pose.timestamp, pose.baseFrame, pose.targetFrame,
+                    pose.statusCode, pose.translation, pose.rotation);
+        }
+        return pose;
+    }
+
     private void setTangoListeners() {
         // Configure the Tango coordinate frame pair
         final ArrayList<TangoCoordinateFramePair> framePairs = new ArrayList<TangoCoordinateFramePair>();
@@ -260,68 +375,104 @@ public class PointCloudActivity extends Activity implements OnClickListener {
                 TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
                 TangoPoseData.COORDINATE_FRAME_DEVICE));
         // Listen for new Tango data
-        mTango.connectListener(framePairs, new OnTangoUpdateListener() {
+        OnTangoUpdateListener listener = new OnTangoUpdateListener() {
 
             @Override
             public void onPoseAvailable(final TangoPoseData pose) {
-                // Make sure to have atomic access to Tango Pose Data so that
-                // render loop doesn't interfere while Pose call back is updating
-                // the data.
-                synchronized (poseLock) {
-                    mPose = pose;
-                    // Calculate the delta time from previous pose.
-                    mDeltaTime = (float) (pose.timestamp - mPosePreviousTimeStamp)
-                            * SECS_TO_MILLISECS;
-                    mPosePreviousTimeStamp = (float) pose.timestamp;
-                    if (mPreviousPoseStatus != pose.statusCode) {
-                        count = 0;
-                    }
-                    count++;
-                    mPreviousPoseStatus = pose.statusCode;
-                    if(!mRenderer.isValid()){
-                        return;
-                    }
-                    mRenderer.getModelMatCalculator().updateModelMatrix(
-                            pose.getTranslationAsFloats(), pose.getRotationAsFloats());
-                    mRenderer.updateViewMatrix();
+                // Nothing here waits for the render loop: the renderer takes
+                // the pose through a lock-free buffer and the UI thread only
+                // reads volatile fields.
+                SessionRecorder recorder = mSessionRecorder;
+                if (recorder != null) {
+                    recorder.recordPose(pose.timestamp, pose.baseFrame, pose.targetFrame,
+                            pose.statusCode, pose.translation, pose.rotation);
+                }
+                mPose = pose;
+                // Calculate the delta time from previous pose.
+                mDeltaTime = (float) (pose.timestamp - mPosePreviousTimeStamp)
+                        * SECS_TO_MILLISECS;
+                mPosePreviousTimeStamp = pose.timestamp;
+                if (mPreviousPoseStatus != pose.statusCode) {
+                    count = 0;
                 }
+                count++;
+                mPreviousPoseStatus = pose.statusCode;
+                if (pose.statusCode == TangoPoseData.POSE_VALID) {
+                    // Keep the pose so that depth frames can look up their
+                    // pose without querying the service.
+                    mPoseHistory.add(pose.timestamp, pose.translation, pose.rotation);
+                }
+                if(!mRenderer.isValid()){
+                    return;
+                }
+                mRenderer.setDevicePose(pose.timestamp, pose.translation, pose.rotation,
+                        pose.baseFrame, pose.statusCode == TangoPoseData.POSE_VALID);
             }
 
             @Override
             public void onXyzIjAvailable(final TangoXyzIjData xyzIj) {
-                // Make sure to have atomic access to TangoXyzIjData so that
-                // render loop doesn't interfere while onXYZijAvailable callback is updating
-                // the point cloud data.
-                synchronized (depthLock) {
-                    mCurrentTimeStamp = (float) xyzIj.timestamp;
-                    mPointCloudFrameDelta = (mCurrentTimeStamp - mXyIjPreviousTimeStamp)
-                            * SECS_TO_MILLISECS;
-                    mXyIjPreviousTimeStamp = mCurrentTimeStamp;
-                    try {
-                        TangoPoseData pointCloudPose = mTango.getPoseAtTime(mCurrentTimeStamp,
-                             framePairs.get(0));
-                        mPointCount = xyzIj.xyzCount;
-                        if(!mRenderer.isValid()){
+                // The points are copied into a buffer owned by the point cloud
+                // and handed to the render loop without waiting for it.
+                SessionRecorder recorder = mSessionRecorder;
+                if (recorder != null) {
+                    recorder.recordDepthFrame(xyzIj.timestamp, xyzIj.xyz, xyzIj.xyzCount);
+                }
+                mCurrentTimeStamp = xyzIj.timestamp;
+                mPointCloudFrameDelta = (float) (mCurrentTimeStamp - mXyIjPreviousTimeStamp)
+                        * SECS_TO_MILLISECS;
+                mXyIjPreviousTimeStamp = mCurrentTimeStamp;
+                try {
+                    // Interpolate the pose of the depth frame from the recent pose
+                    // history, and only ask the service when the frame is outside
+                    // of the recorded range.
+                    if (!mPoseHistory.getPoseAtTime(mCurrentTimeStamp,
+                            mPointCloudTranslation, mPointCloudRotation)) {
+                        if (mReplay != null) {
+                            // There is no service to ask while replaying.
                             return;
                         }
-                        mRenderer.getPointCloud().UpdatePoints(xyzIj.xyz);
-                        mRenderer.getModelMatCalculator().updatePointCloudModelMatrix(
-                                        pointCloudPose.getTranslationAsFloats(),
-                                        pointCloudPose.getRotationAsFloats());
-                        mRenderer.getPointCloud().setModelMatrix(
-                                mRenderer.getModelMatCalculator().getPointCloudModelMatrixCopy());
-                      } catch (TangoErrorException e) {
-                        Toast.makeText(getApplicationContext(), R.string.TangoError,
-                                Toast.LENGTH_SHORT).show();
-                    } catch (TangoInvalidException e) {
-                        Toast.makeText(getApplicationContext(), R.string.TangoError,
-                                Toast.LENGTH_SHORT).show();
+                        TangoPoseData pointCloudPose = mTango.getPoseAtTime(
+                                mCurrentTimeStamp, framePairs.get(0));
+                        copyToFloats(pointCloudPose.translation, mPointCloudTranslation);
+                        copyToFloats(pointCloudPose.rotation, mPointCloudRotation);
+                    }
+                    mPointCount = xyzIj.xyzCount;
+                    mDepthStatistics.submit(mCurrentTimeStamp, xyzIj.xyz, xyzIj.xyzCount);
+                    if(!mRenderer.isValid()){
+                        return;
+                    }
+                    ModelMatCalculator modelMatCalculator = mRenderer.getModelMatCalculator();
+                    modelMatCalculator.updatePointCloudModelMatrix(mPointCloudTranslation,
+                            mPointCloudRotation);
+                    modelMatCalculator.getPointCloudModelMatrix(mPointCloudMatrix, 0);
+                    int filteredCount = mVoxelGridFilter.filter(xyzIj.xyz, xyzIj.xyzCount);
+                    mRenderer.getPointCloud().UpdatePoints(mVoxelGridFilter.getOutput(),
+                            filteredCount, mPointCloudMatrix);
+                    mRenderer.getPointOctree().submit(mVoxelGridFilter.getOutput(),
+                            filteredCount, mPointCloudMatrix);
+                    File frameExportFile = mFrameExportFile;
+                    if (frameExportFile != null) {
+                        mFrameExportFile = null;
+                        mPointCloudExporter.exportFrame(frameExportFile,
+                                PointCloudExporter.FORMAT_PLY, xyzIj.xyz, xyzIj.xyzCount,
+                                mPointCloudMatrix);
                     }
+                } catch (TangoErrorException e) {
+                    Toast.makeText(getApplicationContext(), R.string.TangoError,
+                            Toast.LENGTH_SHORT).show();
+                } catch (TangoInvalidException e) {
+                    Toast.makeText(getApplicationContext(), R.string.TangoError,
+                            Toast.LENGTH_SHORT).show();
                 }
             }
 
             @Override
             public void onTangoEvent(final TangoEvent event) {
+                SessionRecorder recorder = mSessionRecorder;
+                if (recorder != null) {
+                    recorder.recordEvent(event.timestamp, event.eventType, event.eventKey,
+                            event.eventValue);
+                }
                 runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
@@ -334,12 +485,23 @@ public class PointCloudActivity extends Activity implements OnClickListener {
             public void onFrameAvailable(int cameraId) {
                 // We are not using onFrameAvailable for this application.
             }
-        });
+        };
+        if (mReplay != null) {
+            mReplay.connectListener(framePairs, listener);
+        } else {
+            mTango.connectListener(framePairs, listener);
+        }
+    }
+
+    private static void copyToFloats(double[] source, float[] destination) {
+        for (int i = 0; i < destination.length; i++) {
+            destination[i] = (float) source[i];
+        }
     }
 
     /**
      * Create a separate thread to update Log information on UI at the specified interval of
-     * UPDATE_INTERVAL_MS. This function also makes sure to have access to the mPose atomically.
+     * UPDATE_INTERVAL_MS.
      */
     private void startUIThread() {
         new Thread(new Runnable() {
@@ -354,43 +516,45 @@ public class PointCloudActivity extends Activity implements OnClickListener {
                         runOnUiThread(new Runnable() {
                             @Override
                             public void run() {
-                                synchronized (poseLock) {
-                                    if (mPose == null) {
-                                        return;
-                                    }
-                                    String translationString = "["
-                                            + threeDec.format(mPose.translation[0]) + ", "
-                                            + threeDec.format(mPose.translation[1]) + ", "
-                                            + threeDec.format(mPose.translation[2]) + "] ";
-                                    String quaternionString = "["
-                                            + threeDec.format(mPose.rotation[0]) + ", "
-                                            + threeDec.format(mPose.rotation[1]) + ", "
-                                            + threeDec.format(mPose.rotation[2]) + ", "
-                                            + threeDec.format(mPose.rotation[3]) + "] ";
-
-                                    // Display pose data on screen in TextViews
-                                    mPoseTextView.setText(translationString);
-                                    mQuatTextView.setText(quaternionString);
-                                    mPoseCountTextView.setText(Integer.toString(count));
-                                    mDeltaTextView.setText(threeDec.format(mDeltaTime));
-                                    if (mPose.statusCode == TangoPoseData.POSE_VALID) {
-                                        mPoseStatusTextView.setText(R.string.pose_valid);
-                                    } else if (mPose.statusCode == TangoPoseData.POSE_INVALID) {
-                                        mPoseStatusTextView.setText(R.string.pose_invalid);
-                                    } else if (mPose.statusCode == TangoPoseData.POSE_INITIALIZING) {
-                                        mPoseStatusTextView.setText(R.string.pose_initializing);
-                                    } else if (mPose.statusCode == TangoPoseData.POSE_UNKNOWN) {
-                                        mPoseStatusTextView.setText(R.string.pose_unknown);
-                                    }
+                                // Read the pose once, the callback may replace it
+                                // while the text is being built.
+                                TangoPoseData pose = mPose;
+                                if (pose == null) {
+                                    return;
+                                }
+                                String translationString = "["
+                                        + threeDec.format(pose.translation[0]) + ", "
+                                        + threeDec.format(pose.translation[1]) + ", "
+                                        + threeDec.format(pose.translation[2]) + "] ";
+                                String quaternionString = "["
+                                        + threeDec.format(pose.rotation[0]) + ", "
+                                        + threeDec.format(pose.rotation[1]) + ", "
+                                        + threeDec.format(pose.rotation[2]) + ", "
+                                        + threeDec.format(pose.rotation[3]) + "] ";
+
+                                // Display pose data on screen in TextViews
+                                mPoseTextView.setText(translationString);
+                                mQuatTextView.setText(quaternionString);
+                                mPoseCountTextView.setText(Integer.toString(count));
+                                mDeltaTextView.setText(threeDec.format(mDeltaTime));
+                                if (pose.statusCode == TangoPoseData.POSE_VALID) {
+                                    mPoseStatusTextView.setText(R.string.pose_valid);
+                                } else if (pose.statusCode == TangoPoseData.POSE_INVALID) {
+                                    mPoseStatusTextView.setText(R.string.pose_invalid);
+                                } else if (pose.statusCode == TangoPoseData.POSE_INITIALIZING) {
+                                    mPoseStatusTextView.setText(R.string.pose_initializing);
+                                } else if (pose.statusCode == TangoPoseData.POSE_UNKNOWN) {
+                                    mPoseStatusTextView.setText(R.string.pose_unknown);
                                 }
-                                synchronized (depthLock) {
-                                    // Display number of points in the point cloud
-                                    mPointCountTextView.setText(Integer.toString(mPointCount));
-                                    mFrequencyTextView.setText(""
-                                            + threeDec.format(mPointCloudFrameDelta));
-                                    mAverageZTextView.setText(""
-                                            + threeDec.format(mRenderer.getPointCloud()
-                                                    .getAverageZ()));
+
+                                // Display number of points in the point cloud
+                                mPointCountTextView.setText(Integer.toString(mPointCount));
+                                mFrequencyTextView.setText(""
+                                        + threeDec.format(mPointCloudFrameDelta));
+                                DepthStatistics.Result depth = mDepthStatistics
+                                        .getLatestResult();
+                                if (depth != null && depth.pointCount > 0) {
+                                    mAverageZTextView.setText(threeDec.format(depth.mean));
                                 }
                             }
                         });
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoreplay;
+
+import com.google.atap.tangoservice.Tango.OnTangoUpdateListener;
+import com.google.atap.tangoservice.TangoCoordinateFramePair;
+import com.google.atap.tangoservice.TangoEvent;
+import com.google.atap.tangoservice.TangoPoseData;
+import com.google.atap.tangoservice.TangoXyzIjData;
+import com.projecttango.tangoutils.session.SessionPlayer;
+import com.projecttango.tangoutils.session.SessionReplay;
+
+import android.app.Activity;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+
+/**
+ * Stands in for the Tango service when the activity is started with the
+ * {@link SessionPlayer#EXTRA_REPLAY_SESSION} extra: the records of the session
+ * are turned back into Tango data objects and handed to the
+ * {@link OnTangoUpdateListener}, so that a recorded session drives the activity
+ * the same way the service does. As with
+ * {@link com.google.atap.tangoservice.Tango#connectListener}, only the poses of
+ * the listened frame pairs are delivered.
+ *
+ * Only the conversion to and from the Tango data objects is done here; the
+ * rest of the replay is in {@link SessionReplay}. The conversion needs the
+ * Tango SDK, which TangoUtils does not depend on, so it lives in this library
+ * project, which the samples that replay sessions reference next to TangoUtils.
+ */
+public class TangoReplayBridge extends SessionReplay {
+
+    private OnTangoUpdateListener mListener;
+
+    private TangoReplayBridge(SessionPlayer player, float speed) {
+        super(player, speed);
+    }
+
+    /**
+     * Opens the session named by the intent of an activity, if any.
+     *
+     * @return the bridge replaying the session, or null if the activity was not
+     *         asked to replay one or the session cannot be read.
+     */
+    public static TangoReplayBridge openIfRequested(Activity activity) {
+        SessionPlayer player = openPlayerIfRequested(activity);
+        if (player == null) {
+            return null;
+        }
+        return new TangoReplayBridge(player, getRequestedSpeed(activity));
+    }
+
+    /**
+     * Sets the listener receiving the replayed data, like
+     * {@link com.google.atap.tangoservice.Tango#connectListener}.
+     */
+    public void connectListener(List<TangoCoordinateFramePair> framePairs,
+            OnTangoUpdateListener listener) {
+        mListener = listener;
+        int[] baseFrames = new int[framePairs.size()];
+        int[] targetFrames = new int[framePairs.size()];
+        for (int i = 0; i < framePairs.size(); i++) {
+            baseFrames[i] = framePairs.get(i).baseFrame;
+            targetFrames[i] = framePairs.get(i).targetFrame;
+        }
+        setFramePairs(baseFrames, targetFrames);
+    }
+
+    /**
+     * Reads the first pose of a frame pair from the session, standing in for
+     * the {@link com.google.atap.tangoservice.Tango#getPoseAtTime} queries
+     * made at startup. Only call this before {@link #connect()}.
+     *
+     * @return the pose, or an identity pose if the session has none.
+     */
+    public TangoPoseData getFirstPose(TangoCoordinateFramePair framePair) {
+        TangoPoseData pose = new TangoPoseData();
+        pose.baseFrame = framePair.baseFrame;
+        pose.targetFrame = framePair.targetFrame;
+        pose.translation = new double[3];
+        pose.rotation = new double[] { 0, 0, 0, 1 };
+        double timestamp = findFirstPose(framePair.baseFrame, framePair.targetFrame,
+                pose.translation, pose.rotation);
+        if (!Double.isNaN(timestamp)) {
+            pose.timestamp = timestamp;
+            pose.statusCode = TangoPoseData.POSE_VALID;
+        }
+        return pose;
+    }
+
+    @Override
+    protected void onListenedPose(double timestamp, int baseFrame, int targetFrame,
+            int statusCode, double[] translation, double[] rotation) {
+        // The listener may keep the pose, so it gets its own arrays.
+        TangoPoseData pose = new TangoPoseData();
+        pose.timestamp = timestamp;
+        pose.baseFrame = baseFrame;
+        pose.targetFrame = targetFrame;
+        pose.statusCode = statusCode;
+        pose.translation = translation.clone();
+        pose.rotation = rotation.clone();
+        mListener.onPoseAvailable(pose);
+    }
+
+    @Override
+    public void onDepthFrame(double timestamp, FloatBuffer xyz, int pointCount) {
+        TangoXyzIjData xyzIj = new TangoXyzIjData();
+        xyzIj.timestamp = timestamp;
+        xyzIj.xyz = xyz;
+        xyzIj.xyzCount = pointCount;
+        mListener.onXyzIjAvailable(xyzIj);
+    }
+
+    @Override
+    public void onEvent(double timestamp, int eventType, String key, String value) {
+        TangoEvent event = new TangoEvent();
+        event.timestamp = timestamp;
+        event.eventType = eventType;
+        event.eventKey = key;
+        event.eventValue = value;
+        mListener.onTangoEvent(event);
+    }
+}
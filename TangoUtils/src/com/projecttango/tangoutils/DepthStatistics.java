@@ -0,0 +1,251 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Computes depth statistics of XyzIj frames on a worker thread: the mean,
+ * minimum and maximum depth and a fixed-bin depth histogram, from which
+ * percentiles are read. Frames are copied on the callback thread and handed to
+ * the worker through a {@link TripleBuffer}; results are handed to the UI the
+ * same way, so neither the callback nor the render thread does any of the work
+ * and nothing is allocated per frame.
+ */
+public class DepthStatistics {
+
+    private static final int POINT_TO_XYZ = 3;
+    private static final int BYTES_PER_FLOAT = 4;
+
+    private final TripleBuffer<Frame> mFrames;
+    private final TripleBuffer<Result> mResults;
+    private final float mMaxDepth;
+    private Result mLatestResult;
+    private volatile Thread mWorker;
+
+    /**
+     * The statistics of one depth frame. Depths are in meters.
+     */
+    public static class Result {
+        /** The timestamp of the depth frame, in seconds. */
+        public double timestamp;
+        public int pointCount;
+        public float mean;
+        public float min;
+        public float max;
+        /** The width of each histogram bin, in meters. */
+        public final float binWidth;
+        /**
+         * The number of points in each depth bin. Points deeper than the
+         * histogram range are counted in the last bin.
+         */
+        public final int[] histogram;
+
+        Result(int binCount, float maxDepth) {
+            histogram = new int[binCount];
+            binWidth = maxDepth / binCount;
+        }
+
+        /**
+         * Estimates a depth percentile from the histogram, interpolating
+         * linearly within the bin it falls in.
+         *
+         * @param fraction
+         *            the percentile as a fraction, between 0 and 1.
+         * @return the estimated depth, or NaN if the frame had no points.
+         */
+        public float getPercentile(float fraction) {
+            if (pointCount == 0) {
+                return Float.NaN;
+            }
+            float rank = fraction * pointCount;
+            int cumulative = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                int binCount = histogram[i];
+                if (binCount > 0 && cumulative + binCount >= rank) {
+                    float depth = (i + (rank - cumulative) / binCount) * binWidth;
+                    return Math.max(min, Math.min(max, depth));
+                }
+                cumulative += binCount;
+            }
+            return max;
+        }
+    }
+
+    /**
+     * A depth frame copied out of the Tango callback.
+     */
+    private static class Frame {
+        final FloatBuffer mPoints;
+        double mTimestamp;
+        int mPointCount;
+
+        Frame(int maxDepthPoints) {
+            mPoints = ByteBuffer
+                    .allocateDirect(maxDepthPoints * POINT_TO_XYZ * BYTES_PER_FLOAT)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+    }
+
+    /**
+     * @param maxDepthPoints
+     *            the largest number of points in a depth frame.
+     * @param maxDepth
+     *            the depth covered by the histogram, in meters.
+     * @param binCount
+     *            the number of histogram bins.
+     */
+    public DepthStatistics(int maxDepthPoints, float maxDepth, int binCount) {
+        mMaxDepth = maxDepth;
+        mFrames = new TripleBuffer<Frame>(new Frame(maxDepthPoints),
+                new Frame(maxDepthPoints), new Frame(maxDepthPoints));
+        mResults = new TripleBuffer<Result>(new Result(binCount, maxDepth),
+                new Result(binCount, maxDepth), new Result(binCount, maxDepth));
+    }
+
+    /**
+     * Starts the worker thread.
+     */
+    public synchronized void start() {
+        if (mWorker != null) {
+            return;
+        }
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Thread self = Thread.currentThread();
+                while (mWorker == self) {
+                    Frame frame = mFrames.acquire();
+                    if (frame == null) {
+                        LockSupport.park(DepthStatistics.this);
+                        continue;
+                    }
+                    compute(frame, mResults.getWriteBuffer());
+                    mResults.publish();
+                }
+            }
+        }, "DepthStatistics");
+        mWorker.start();
+    }
+
+    /**
+     * Stops the worker thread. Frames submitted afterwards are kept until the
+     * next call to {@link #start()}.
+     */
+    public synchronized void stop() {
+        Thread worker = mWorker;
+        mWorker = null;
+        if (worker != null) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    /**
+     * Copies a depth frame and wakes up the worker thread. Must always be
+     * called from the same thread, typically the Tango callback thread.
+     *
+     * @param timestamp
+     *            the timestamp of the depth frame, in seconds.
+     * @param xyz
+     *            the XYZ coordinates of the points, from position 0.
+     * @param pointCount
+     *            the number of points in the buffer.
+     */
+    public void submit(double timestamp, FloatBuffer xyz, int pointCount) {
+        Frame frame = mFrames.getWriteBuffer();
+        pointCount = Math.min(pointCount, frame.mPoints.capacity() / POINT_TO_XYZ);
+        FloatBuffer source = xyz.duplicate();
+        source.position(0);
+        source.limit(pointCount * POINT_TO_XYZ);
+        frame.mPoints.clear();
+        frame.mPoints.put(source);
+        frame.mTimestamp = timestamp;
+        frame.mPointCount = pointCount;
+        mFrames.publish();
+        Thread worker = mWorker;
+        if (worker != null) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    /**
+     * Returns the statistics of the newest processed frame. Must always be
+     * called from the same thread, typically the UI thread. The result stays
+     * valid until a call returns a different one.
+     *
+     * @return the newest statistics, or null if no frame was processed yet.
+     */
+    public Result getLatestResult() {
+        Result result = mResults.acquire();
+        if (result != null) {
+            mLatestResult = result;
+        }
+        return mLatestResult;
+    }
+
+    /**
+     * @return the buffer frames are handed to the worker through, for its
+     *         counters.
+     */
+    public TripleBuffer<?> getFrameBuffer() {
+        return mFrames;
+    }
+
+    /**
+     * Computes the statistics of a frame in one pass over its points.
+     */
+    private void compute(Frame frame, Result result) {
+        FloatBuffer points = frame.mPoints;
+        int[] histogram = result.histogram;
+        int lastBin = histogram.length - 1;
+        float binsPerMeter = histogram.length / mMaxDepth;
+        Arrays.fill(histogram, 0);
+
+        int floatCount = frame.mPointCount * POINT_TO_XYZ;
+        double totalZ = 0;
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for (int i = 2; i < floatCount; i += POINT_TO_XYZ) {
+            float z = points.get(i);
+            totalZ += z;
+            if (z < min) {
+                min = z;
+            }
+            if (z > max) {
+                max = z;
+            }
+            int bin = (int) (z * binsPerMeter);
+            histogram[bin < 0 ? 0 : (bin > lastBin ? lastBin : bin)]++;
+        }
+
+        result.timestamp = frame.mTimestamp;
+        result.pointCount = frame.mPointCount;
+        if (frame.mPointCount > 0) {
+            result.mean = (float) (totalZ / frame.mPointCount);
+            result.min = min;
+            result.max = max;
+        } else {
+            result.mean = Float.NaN;
+            result.min = Float.NaN;
+            result.max = Float.NaN;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from non-negative long keys to int values, with
+ * linear probing and no boxing. Keys are kept in a primitive array, so lookups
+ * and insertions allocate nothing; the table only reallocates when it grows.
+ * Not thread safe.
+ */
+public class LongIntHashMap {
+
+    /** Value returned by {@link #get(long)} for a missing key. */
+    public static final int NO_VALUE = -1;
+
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final float MAX_LOAD = 0.5f;
+
+    private long[] mKeys;
+    private int[] mValues;
+    private int mMask;
+    private int mSize;
+    private int mGrowThreshold;
+
+    /**
+     * @param expectedSize
+     *            the number of entries the map should hold without growing.
+     */
+    public LongIntHashMap(int expectedSize) {
+        int capacity = 4;
+        while (capacity * MAX_LOAD < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * @return the value of the key, or {@link #NO_VALUE} if the key is missing.
+     */
+    public int get(long key) {
+        int slot = hash(key) & mMask;
+        while (true) {
+            long current = mKeys[slot];
+            if (current == key) {
+                return mValues[slot];
+            }
+            if (current == EMPTY) {
+                return NO_VALUE;
+            }
+            slot = (slot + 1) & mMask;
+        }
+    }
+
+    /**
+     * Sets the value of a key, adding the key if it is missing.
+     *
+     * @param key
+     *            the key, which must not be negative.
+     * @param value
+     *            the value.
+     */
+    public void put(long key, int value) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Negative key " + key);
+        }
+        int slot = hash(key) & mMask;
+        while (true) {
+            long current = mKeys[slot];
+            if (current == key) {
+                mValues[slot] = value;
+                return;
+            }
+            if (current == EMPTY) {
+                mKeys[slot] = key;
+                mValues[slot] = value;
+                if (++mSize > mGrowThreshold) {
+                    grow();
+                }
+                return;
+            }
+            slot = (slot + 1) & mMask;
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Removes every entry, keeping the table.
+     */
+    public void clear() {
+        Arrays.fill(mKeys, EMPTY);
+        mSize = 0;
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+        Arrays.fill(mKeys, EMPTY);
+        mMask = capacity - 1;
+        mGrowThreshold = (int) (capacity * MAX_LOAD);
+    }
+
+    private void grow() {
+        long[] keys = mKeys;
+        int[] values = mValues;
+        allocate(keys.length * 2);
+        for (int i = 0; i < keys.length; i++) {
+            long key = keys[i];
+            if (key != EMPTY) {
+                int slot = hash(key) & mMask;
+                while (mKeys[slot] != EMPTY) {
+                    slot = (slot + 1) & mMask;
+                }
+                mKeys[slot] = key;
+                mValues[slot] = values[i];
+            }
+        }
+    }
+
+    /**
+     * Mixes the bits of a key, so that keys differing only in their high
+     * bits spread over the table.
+     */
+    private static int hash(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+}
@@ -16,18 +16,31 @@
 
 package com.projecttango.tangoutils;
 
-import android.opengl.Matrix;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.projecttango.tangoutils.math.Mat4;
+import com.projecttango.tangoutils.math.Quat;
 
 /**
  * Utility class to manage the calculation of a Model Matrix from the
  * translation and quaternion arrays obtained from an {@link TangoPose} object.
- * Delegates some mathematical computations to the {@link MathUtils}.
+ * Delegates the matrix and quaternion computations to {@link Mat4} and
+ * {@link Quat}.
  */
 public class ModelMatCalculator {
 
-    private static float[] mConversionMatrix = new float[] { 1.0f, 0.0f, 0.0f,
-            0.0f, 0.0f, 0.0f, -1.0f, 0.0f, 0.0f, 1.0f, 0.0f, 0.0f, 0.0f, 0.0f,
-            0.0f, 1.0f };
+    /**
+     * Batches smaller than this are always computed on the calling thread.
+     */
+    public static final int PARALLEL_BATCH_SIZE = 16384;
+    private static final int PARALLEL_CHUNK_SIZE = 4096;
+    private static final int MATRIX_SIZE = 16;
 
     private float[] mModelMatrix = new float[16];
     private float[] mPointCloudModelMatrix = new float[16];
@@ -41,9 +54,30 @@ public class ModelMatCalculator {
             0.0f, 0.0f, 1.0f, 0.0f, 0.0f, 0.0f, 0.0f, 1.0f, 0.0f, 0.0f, 0.0f,
             0.0f, 1.0f };
 
+    // Composition of the constant extrinsics, invert(Device2IMU) *
+    // ColorCamera2IMU * Opengl2ColorCamera. Only recomputed when one of the
+    // extrinsics is set, so that a pose update is a single closed-form
+    // composition of the pose with this matrix.
+    private final float[] mExtrinsicsMatrix = new float[16];
+    // The same for the point cloud, with the Y and Z flip of the depth camera
+    // folded in: mExtrinsicsMatrix * sInvertYandZMatrix.
+    private final float[] mPointCloudExtrinsicsMatrix = new float[16];
+
+    // The model matrices are written by the thread that receives poses and
+    // read from the GL thread, so both are guarded by a lock and versioned.
+    private final Object mModelMatrixLock = new Object();
+    private final Object mPointCloudModelMatrixLock = new Object();
+    private volatile long mModelMatrixVersion;
+    private volatile long mPointCloudModelMatrixVersion;
+
+    private static final float[] sInvertYandZMatrix = new float[] { 1.0f, 0.0f,
+            0.0f, 0.0f, 0.0f, -1.0f, 0.0f, 0.0f, 0.0f, 0.0f, -1.0f, 0.0f, 0.0f,
+            0.0f, 0.0f, 1.0f };
+
     public ModelMatCalculator() {
-        Matrix.setIdentityM(mModelMatrix, 0);
-        Matrix.setIdentityM(mPointCloudModelMatrix, 0);
+        Mat4.setIdentity(mModelMatrix, 0);
+        Mat4.setIdentity(mPointCloudModelMatrix, 0);
+        updateExtrinsicsMatrix();
     }
 
     /**
@@ -56,32 +90,11 @@ public class ModelMatCalculator {
      */
     public void updatePointCloudModelMatrix(float[] translation,
             float[] quaternion) {
-
-        float[] tempMultMatrix = new float[16];
-        Matrix.setIdentityM(tempMultMatrix, 0);
-        Matrix.multiplyMM(tempMultMatrix, 0, mColorCamera2IMUMatrix, 0,
-                mOpengl2ColorCameraMatrix, 0);
-        float[] tempInvertMatrix = new float[16];
-        Matrix.setIdentityM(tempInvertMatrix, 0);
-        Matrix.invertM(tempInvertMatrix, 0, mDevice2IMUMatrix, 0);
-        float[] tempMultMatrix2 = new float[16];
-        Matrix.setIdentityM(tempMultMatrix2, 0);
-        Matrix.multiplyMM(tempMultMatrix2, 0, tempInvertMatrix, 0,
-                tempMultMatrix, 0);
-
-        float[] quaternionMatrix = new float[16];
-        Matrix.setIdentityM(quaternionMatrix, 0);
-        quaternionMatrix = quaternionMatrixOpenGL(quaternion);
-        float[] tempMultMatrix3 = new float[16];
-        Matrix.setIdentityM(tempMultMatrix3, 0);
-        Matrix.setIdentityM(mPointCloudModelMatrix, 0);
-        Matrix.multiplyMM(tempMultMatrix3, 0, quaternionMatrix, 0,
-                tempMultMatrix2, 0);
-        Matrix.multiplyMM(mPointCloudModelMatrix, 0, mConversionMatrix, 0,
-                tempMultMatrix3, 0);
-        mPointCloudModelMatrix[12] += translation[0];
-        mPointCloudModelMatrix[13] += translation[2];
-        mPointCloudModelMatrix[14] += -1f * translation[1];
+        synchronized (mPointCloudModelMatrixLock) {
+            composeModelMatrix(mPointCloudExtrinsicsMatrix, translation,
+                    quaternion, mPointCloudModelMatrix);
+            mPointCloudModelMatrixVersion++;
+        }
     }
 
     /**
@@ -93,32 +106,261 @@ public class ModelMatCalculator {
      *            a four-element array of rotation data.
      */
     public void updateModelMatrix(float[] translation, float[] quaternion) {
+        synchronized (mModelMatrixLock) {
+            composeModelMatrix(mExtrinsicsMatrix, translation, quaternion,
+                    mModelMatrix);
+            mModelMatrixVersion++;
+        }
+    }
+
+    /**
+     * Computes the OpenGL model matrices of a batch of poses. The poses are
+     * packed as a structure of arrays: component c of pose i is at
+     * poses[c * count + i], with the components ordered as translation x, y,
+     * z followed by rotation x, y, z, w. The matrices are written one after
+     * the other, 16 floats each, starting at matricesOffset. The pose data is
+     * not modified. The result is the same as calling
+     * {@link #updateModelMatrix} on every pose, but does not touch the model
+     * matrix of this calculator.
+     * 
+     * @param poses
+     *            the packed poses, at least 7 * count elements long.
+     * @param count
+     *            the number of poses.
+     * @param matrices
+     *            destination array, at least matricesOffset + 16 * count
+     *            elements long.
+     * @param matricesOffset
+     *            index of the first element of the first matrix.
+     */
+    public void computeModelMatrices(float[] poses, int count,
+            float[] matrices, int matricesOffset) {
+        computeModelMatrices(mExtrinsicsMatrix, poses, count, 0, count,
+                matrices, matricesOffset);
+    }
+
+    /**
+     * Same as {@link #computeModelMatrices(float[], int, float[], int)}, but
+     * reads the packed poses from the position of a buffer and writes the
+     * matrices from the position of another. The positions of both buffers
+     * are left unchanged.
+     */
+    public void computeModelMatrices(FloatBuffer poses, int count,
+            FloatBuffer matrices) {
+        computeModelMatrices(mExtrinsicsMatrix, poses, count, 0, count,
+                matrices, new float[MATRIX_SIZE]);
+    }
+
+    /**
+     * Same as {@link #computeModelMatrices(float[], int, float[], int)}, but
+     * splits batches of at least {@link #PARALLEL_BATCH_SIZE} poses into
+     * chunks that are computed on the given executor, and waits for all of
+     * them. The extrinsics must not be changed while this runs.
+     * 
+     * @param executor
+     *            the executor to run the chunks on, typically a fixed thread
+     *            pool with one thread per core.
+     */
+    public void computeModelMatrices(float[] poses, int count,
+            float[] matrices, int matricesOffset, ExecutorService executor) {
+        runInChunks(new ModelMatrixTask(mExtrinsicsMatrix, poses, null, count,
+                matrices, matricesOffset, null), count, executor);
+    }
+
+    /**
+     * Same as {@link #computeModelMatrices(FloatBuffer, int, FloatBuffer)},
+     * but computes batches of at least {@link #PARALLEL_BATCH_SIZE} poses in
+     * chunks on the given executor, and waits for all of them.
+     */
+    public void computeModelMatrices(FloatBuffer poses, int count,
+            FloatBuffer matrices, ExecutorService executor) {
+        runInChunks(new ModelMatrixTask(mExtrinsicsMatrix, null, poses, count,
+                null, 0, matrices), count, executor);
+    }
+
+    private static void runInChunks(ModelMatrixTask task, int count,
+            ExecutorService executor) {
+        int chunks = Math.min(Runtime.getRuntime().availableProcessors(),
+                count / PARALLEL_CHUNK_SIZE);
+        if (count < PARALLEL_BATCH_SIZE || chunks < 2) {
+            task.run(0, count);
+            return;
+        }
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            tasks.add(task.chunk((int) ((long) count * i / chunks),
+                    (int) ((long) count * (i + 1) / chunks)));
+        }
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * The poses and destination of a batch, either arrays or buffers, which
+     * can be computed in ranges of poses.
+     */
+    private static final class ModelMatrixTask {
+        private final float[] mExtrinsics;
+        private final float[] mPoses;
+        private final FloatBuffer mPoseBuffer;
+        private final int mCount;
+        private final float[] mMatrices;
+        private final int mMatricesOffset;
+        private final FloatBuffer mMatrixBuffer;
+
+        ModelMatrixTask(float[] extrinsics, float[] poses,
+                FloatBuffer poseBuffer, int count, float[] matrices,
+                int matricesOffset, FloatBuffer matrixBuffer) {
+            mExtrinsics = extrinsics;
+            mPoses = poses;
+            mPoseBuffer = poseBuffer;
+            mCount = count;
+            mMatrices = matrices;
+            mMatricesOffset = matricesOffset;
+            mMatrixBuffer = matrixBuffer;
+        }
+
+        void run(int start, int end) {
+            if (mPoses != null) {
+                computeModelMatrices(mExtrinsics, mPoses, mCount, start, end,
+                        mMatrices, mMatricesOffset);
+            } else {
+                computeModelMatrices(mExtrinsics, mPoseBuffer, mCount, start,
+                        end, mMatrixBuffer, new float[MATRIX_SIZE]);
+            }
+        }
+
+        Callable<Void> chunk(final int start, final int end) {
+            return new Callable<Void>() {
+                @Override
+                public Void call() {
+                    run(start, end);
+                    return null;
+                }
+            };
+        }
+    }
+
+    private static void computeModelMatrices(float[] e, float[] poses,
+            int count, int start, int end, float[] matrices,
+            int matricesOffset) {
+        for (int i = start; i < end; i++) {
+            float x = poses[3 * count + i];
+            float y = poses[4 * count + i];
+            float z = poses[5 * count + i];
+            float w = poses[6 * count + i];
+            composeModelMatrix(e, poses[i], poses[count + i], poses[2 * count
+                    + i], x, y, z, w, matrices, matricesOffset + i
+                    * MATRIX_SIZE);
+        }
+    }
+
+    private static void computeModelMatrices(float[] e, FloatBuffer poses,
+            int count, int start, int end, FloatBuffer matrices,
+            float[] scratch) {
+        int base = poses.position();
+        FloatBuffer out = matrices.duplicate();
+        out.position(matrices.position() + start * MATRIX_SIZE);
+        for (int i = base + start; i < base + end; i++) {
+            float x = poses.get(3 * count + i);
+            float y = poses.get(4 * count + i);
+            float z = poses.get(5 * count + i);
+            float w = poses.get(6 * count + i);
+            composeModelMatrix(e, poses.get(i), poses.get(count + i),
+                    poses.get(2 * count + i), x, y, z, w, scratch, 0);
+            out.put(scratch, 0, MATRIX_SIZE);
+        }
+    }
+
+    private static void composeModelMatrix(float[] e, float[] translation,
+            float[] quaternion, float[] dest) {
+        composeModelMatrix(e, translation[0], translation[1], translation[2],
+                quaternion[0], quaternion[1], quaternion[2], quaternion[3],
+                dest, 0);
+    }
+
+    /**
+     * Computes the OpenGL model matrix of a pose into the given destination,
+     * that is conversion * quaternionMatrix * extrinsics plus the converted
+     * translation. The quaternion is normalized first, with the same test as
+     * {@link Quat#normalize}; this is the only place where the single-pose
+     * and the batch paths do it. The conversion from the Tango frame (Z up)
+     * to the OpenGL frame (Y up) maps (x, y, z) to (x, z, -y). It only swaps
+     * and negates rows of the rotation, so it is applied while building the
+     * rotation and the product with the extrinsics is expanded as a 3x3 by
+     * 3x4 product.
+     */
+    private static void composeModelMatrix(float[] e, float tx, float ty,
+            float tz, float x, float y, float z, float w, float[] dest, int o) {
+        float mag = Quat.normalizingMagnitude(x, y, z, w);
+        if (mag != 1f) {
+            x /= mag;
+            y /= mag;
+            z /= mag;
+            w /= mag;
+        }
+
+        float x2 = x * x;
+        float y2 = y * y;
+        float z2 = z * z;
+        float xy = x * y;
+        float xz = x * z;
+        float yz = y * z;
+        float wx = w * x;
+        float wy = w * y;
+        float wz = w * z;
+
+        // Rows of conversion * quaternionMatrix: (row0, row2, -row1).
+        float r00 = 1f - 2f * (y2 + z2);
+        float r01 = 2f * (xy - wz);
+        float r02 = 2f * (xz + wy);
+        float r10 = 2f * (xz - wy);
+        float r11 = 2f * (yz + wx);
+        float r12 = 1f - 2f * (x2 + y2);
+        float r20 = -2f * (xy + wz);
+        float r21 = -(1f - 2f * (x2 + z2));
+        float r22 = -2f * (yz - wx);
 
-        float[] tempMultMatrix = new float[16];
-        Matrix.setIdentityM(tempMultMatrix, 0);
-        Matrix.multiplyMM(tempMultMatrix, 0, mColorCamera2IMUMatrix, 0,
+        for (int c = 0; c < 16; c += 4) {
+            float e0 = e[c];
+            float e1 = e[c + 1];
+            float e2 = e[c + 2];
+            dest[o + c] = r00 * e0 + r01 * e1 + r02 * e2;
+            dest[o + c + 1] = r10 * e0 + r11 * e1 + r12 * e2;
+            dest[o + c + 2] = r20 * e0 + r21 * e1 + r22 * e2;
+            dest[o + c + 3] = 0f;
+        }
+        dest[o + 12] += tx;
+        dest[o + 13] += tz;
+        dest[o + 14] += -1f * ty;
+        dest[o + 15] = 1f;
+    }
+
+    /**
+     * Recomposes the cached extrinsics matrices. Called whenever one of the
+     * extrinsics changes.
+     */
+    private void updateExtrinsicsMatrix() {
+        float[] temp = new float[48];
+        Mat4.multiply(temp, 0, mColorCamera2IMUMatrix, 0,
                 mOpengl2ColorCameraMatrix, 0);
-        float[] tempInvertMatrix = new float[16];
-        Matrix.setIdentityM(tempInvertMatrix, 0);
-        Matrix.invertM(tempInvertMatrix, 0, mDevice2IMUMatrix, 0);
-        float[] tempMultMatrix2 = new float[16];
-        Matrix.setIdentityM(tempMultMatrix2, 0);
-        Matrix.multiplyMM(tempMultMatrix2, 0, tempInvertMatrix, 0,
-                tempMultMatrix, 0);
-
-        float[] quaternionMatrix = new float[16];
-        Matrix.setIdentityM(quaternionMatrix, 0);
-        quaternionMatrix = quaternionMatrixOpenGL(quaternion);
-        float[] tempMultMatrix3 = new float[16];
-        Matrix.setIdentityM(tempMultMatrix3, 0);
-        Matrix.setIdentityM(mModelMatrix, 0);
-        Matrix.multiplyMM(tempMultMatrix3, 0, quaternionMatrix, 0,
-                tempMultMatrix2, 0);
-        Matrix.multiplyMM(mModelMatrix, 0, mConversionMatrix, 0,
-                tempMultMatrix3, 0);
-        mModelMatrix[12] += translation[0];
-        mModelMatrix[13] += translation[2];
-        mModelMatrix[14] += -1f * translation[1];
+        Mat4.invert(temp, 16, mDevice2IMUMatrix, 0);
+        Mat4.multiply(temp, 32, temp, 16, temp, 0);
+        synchronized (mModelMatrixLock) {
+            System.arraycopy(temp, 32, mExtrinsicsMatrix, 0, 16);
+        }
+        synchronized (mPointCloudModelMatrixLock) {
+            Mat4.multiply(mPointCloudExtrinsicsMatrix, 0, temp, 32,
+                    sInvertYandZMatrix, 0);
+        }
     }
 
     public void SetDevice2IMUMatrix(float[] translation, float[] quaternion) {
@@ -126,6 +368,7 @@ public class ModelMatCalculator {
         mDevice2IMUMatrix[12] = translation[0];
         mDevice2IMUMatrix[13] = translation[1];
         mDevice2IMUMatrix[14] = translation[2];
+        updateExtrinsicsMatrix();
     }
 
     public void SetColorCamera2IMUMatrix(float[] translation, float[] quaternion) {
@@ -136,36 +379,101 @@ public class ModelMatCalculator {
         mColorCamera2IMUMatrix[12] = translation[0];
         mColorCamera2IMUMatrix[13] = translation[1];
         mColorCamera2IMUMatrix[14] = translation[2];
+        updateExtrinsicsMatrix();
     }
 
+    /**
+     * Returns the live model matrix. It is only safe to read from the thread
+     * that calls {@link #updateModelMatrix}; other threads should take a
+     * snapshot with {@link #getModelMatrix(float[], int)}.
+     */
     public float[] getModelMatrix() {
         return mModelMatrix;
     }
 
     public float[] getModelMatrixCopy() {
         float[] modelMatCopy = new float[16];
-        System.arraycopy(mModelMatrix, 0, modelMatCopy, 0, 16);
+        getModelMatrix(modelMatCopy, 0);
         return modelMatCopy;
     }
 
+    /**
+     * Copies a consistent snapshot of the model matrix into a caller-owned
+     * array.
+     * 
+     * @param dest
+     *            destination array, at least destOffset + 16 elements long.
+     * @param destOffset
+     *            index of the first element of the matrix in dest.
+     * @return the version of the copied matrix, see
+     *         {@link #getModelMatrixVersion()}.
+     */
+    public long getModelMatrix(float[] dest, int destOffset) {
+        synchronized (mModelMatrixLock) {
+            System.arraycopy(mModelMatrix, 0, dest, destOffset, 16);
+            return mModelMatrixVersion;
+        }
+    }
+
+    /**
+     * @return the number of times the model matrix has been updated. A reader
+     *         can compare it with the version of its last snapshot to skip
+     *         copying an unchanged matrix.
+     */
+    public long getModelMatrixVersion() {
+        return mModelMatrixVersion;
+    }
+
     public float[] getPointCloudModelMatrixCopy() {
         float[] modelMatCopy = new float[16];
-        float[] tempMultMat = new float[16];
-        Matrix.setIdentityM(tempMultMat, 0);
-        float[] invertYandZMatrix = new float[] { 1.0f, 0.0f, 0.0f, 0.0f, 0.0f,
-                -1.0f, 0.0f, 0.0f, 0.0f, 0.0f, -1.0f, 0.0f, 0.0f, 0.0f, 0.0f,
-                1.0f };
-        Matrix.multiplyMM(tempMultMat, 0, mPointCloudModelMatrix, 0,
-                invertYandZMatrix, 0);
-        System.arraycopy(tempMultMat, 0, modelMatCopy, 0, 16);
+        getPointCloudModelMatrix(modelMatCopy, 0);
         return modelMatCopy;
     }
 
+    /**
+     * Copies a consistent snapshot of the point cloud model matrix, with the Y
+     * and Z axes of the depth camera inverted, into a caller-owned array.
+     * 
+     * @param dest
+     *            destination array, at least destOffset + 16 elements long.
+     * @param destOffset
+     *            index of the first element of the matrix in dest.
+     * @return the version of the copied matrix, see
+     *         {@link #getPointCloudModelMatrixVersion()}.
+     */
+    public long getPointCloudModelMatrix(float[] dest, int destOffset) {
+        synchronized (mPointCloudModelMatrixLock) {
+            System.arraycopy(mPointCloudModelMatrix, 0, dest, destOffset, 16);
+            return mPointCloudModelMatrixVersion;
+        }
+    }
+
+    /**
+     * @return the number of times the point cloud model matrix has been
+     *         updated.
+     */
+    public long getPointCloudModelMatrixVersion() {
+        return mPointCloudModelMatrixVersion;
+    }
+
     public float[] getTranslation() {
         return new float[] { mModelMatrix[12], mModelMatrix[13],
                 mModelMatrix[14] };
     }
 
+    /**
+     * Copies the translation part of the model matrix into a caller-owned
+     * array.
+     * 
+     * @param dest
+     *            a three-element destination array.
+     */
+    public void getTranslation(float[] dest) {
+        dest[0] = mModelMatrix[12];
+        dest[1] = mModelMatrix[13];
+        dest[2] = mModelMatrix[14];
+    }
+
     /**
      * A function to convert a quaternion to quaternion Matrix. Please note that
      * Opengl.Matrix is Column Major and so we construct the matrix in Column
@@ -178,46 +486,27 @@ public class ModelMatCalculator {
      */
     public static float[] quaternionMatrixOpenGL(float[] quaternion) {
         float[] matrix = new float[16];
-        normalizeVector(quaternion);
-
-        float x = quaternion[0];
-        float y = quaternion[1];
-        float z = quaternion[2];
-        float w = quaternion[3];
-
-        float x2 = x * x;
-        float y2 = y * y;
-        float z2 = z * z;
-        float xy = x * y;
-        float xz = x * z;
-        float yz = y * z;
-        float wx = w * x;
-        float wy = w * y;
-        float wz = w * z;
-
-        matrix[0] = 1f - 2f * (y2 + z2);
-        matrix[4] = 2f * (xy - wz);
-        matrix[8] = 2f * (xz + wy);
-        matrix[12] = 0f;
-
-        matrix[1] = 2f * (xy + wz);
-        matrix[5] = 1f - 2f * (x2 + z2);
-        matrix[9] = 2f * (yz - wx);
-        matrix[13] = 0f;
-
-        matrix[2] = 2f * (xz - wy);
-        matrix[6] = 2f * (yz + wx);
-        matrix[10] = 1f - 2f * (x2 + y2);
-        matrix[14] = 0f;
-
-        matrix[3] = 0f;
-        matrix[7] = 0f;
-        matrix[11] = 0f;
-        matrix[15] = 1f;
-
+        quaternionMatrixOpenGL(quaternion, matrix, 0);
         return matrix;
     }
 
+    /**
+     * Same as {@link #quaternionMatrixOpenGL(float[])}, but writes the
+     * rotation matrix into a caller-owned array instead of allocating one.
+     * 
+     * @param quaternion
+     *            Input quaternion with float[4]
+     * @param matrix
+     *            destination array, at least offset + 16 elements long.
+     * @param offset
+     *            index of the first element of the matrix in the destination.
+     */
+    public static void quaternionMatrixOpenGL(float[] quaternion,
+            float[] matrix, int offset) {
+        Quat.normalize(quaternion, 0);
+        Quat.toRotationMatrix(matrix, offset, quaternion, 0);
+    }
+
     /**
      * Creates a unit vector in the direction of an arbitrary vector. The
      * original vector is modified in place.
@@ -226,13 +515,6 @@ public class ModelMatCalculator {
      *            the vector to normalize
      */
     public static void normalizeVector(float[] v) {
-        float mag2 = v[0] * v[0] + v[1] * v[1] + v[2] * v[2] + v[3] * v[3];
-        if (Math.abs(mag2) > 0.00001f && Math.abs(mag2 - 1.0f) > 0.00001f) {
-            float mag = (float) Math.sqrt(mag2);
-            v[0] = v[0] / mag;
-            v[1] = v[1] / mag;
-            v[2] = v[2] / mag;
-            v[3] = v[3] / mag;
-        }
+        Quat.normalize(v, 0);
     }
 }
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils;
+
+/**
+ * Simplifies a path as its positions arrive, deciding for each new position
+ * whether it is dropped, moves the last vertex or becomes a new vertex. A
+ * position closer than the minimum distance to the last vertex is dropped,
+ * and the last vertex keeps moving to the newest position for as long as the
+ * line from the vertex before it, the anchor, stays within the maximum error
+ * of every position it replaced. Allocates nothing; not thread safe.
+ */
+public class PathSimplifier {
+
+    /** Default distance below which a new position is dropped, in meters. */
+    public static final float DEFAULT_MIN_DISTANCE = 0.025f;
+    /** Default error allowed when replacing positions by a line, in meters. */
+    public static final float DEFAULT_MAX_ERROR = 0.02f;
+
+    /** The position is dropped. */
+    public static final int DROP = 0;
+    /** The last vertex moves to the position. */
+    public static final int MOVE = 1;
+    /** The position is appended as a new vertex. */
+    public static final int APPEND = 2;
+
+    private static final int COORDS_PER_VERTEX = 3;
+    // Bounds the positions a single vertex can replace, and so the cost of
+    // checking a new position.
+    private static final int MAX_REPLACED_POSITIONS = 64;
+
+    private float mMinDistance = DEFAULT_MIN_DISTANCE;
+    private float mMaxError = DEFAULT_MAX_ERROR;
+
+    private boolean mHasVertex;
+    private float mLastX;
+    private float mLastY;
+    private float mLastZ;
+    // The last vertex is floating when it may still be moved; it then stands
+    // for the replaced positions, all of them within the maximum error of the
+    // line from the anchor vertex before it.
+    private boolean mFloating;
+    private float mAnchorX;
+    private float mAnchorY;
+    private float mAnchorZ;
+    private final float[] mReplacedPositions = new float[MAX_REPLACED_POSITIONS
+            * COORDS_PER_VERTEX];
+    private int mReplacedPositionCount;
+
+    /**
+     * Sets how much the path is simplified. Only affects the positions added
+     * afterwards.
+     *
+     * @param minDistance
+     *            distance in meters below which a position is dropped.
+     * @param maxError
+     *            largest distance in meters between a position and the
+     *            simplified path, or 0 to keep every position.
+     */
+    public void setTolerances(float minDistance, float maxError) {
+        mMinDistance = minDistance;
+        mMaxError = maxError;
+        mFloating = false;
+    }
+
+    /**
+     * Forgets the path, so that the next position starts a new one.
+     */
+    public void reset() {
+        mHasVertex = false;
+        mFloating = false;
+    }
+
+    /**
+     * Decides what becomes of a new position of the path.
+     *
+     * @return {@link #DROP}, {@link #MOVE} or {@link #APPEND}.
+     */
+    public int add(float x, float y, float z) {
+        if (mHasVertex) {
+            float dx = mLastX - x;
+            float dy = mLastY - y;
+            float dz = mLastZ - z;
+            if (dx * dx + dy * dy + dz * dz <= mMinDistance * mMinDistance) {
+                return DROP;
+            }
+        }
+        int action;
+        if (mFloating && mReplacedPositionCount < MAX_REPLACED_POSITIONS
+                && fitsLine(x, y, z)) {
+            action = MOVE;
+        } else {
+            // The last vertex stays where it is, and anchors the new one.
+            mAnchorX = mLastX;
+            mAnchorY = mLastY;
+            mAnchorZ = mLastZ;
+            mFloating = mHasVertex && mMaxError > 0;
+            mHasVertex = true;
+            mReplacedPositionCount = 0;
+            action = APPEND;
+        }
+        mLastX = x;
+        mLastY = y;
+        mLastZ = z;
+        int p = mReplacedPositionCount++ * COORDS_PER_VERTEX;
+        mReplacedPositions[p] = x;
+        mReplacedPositions[p + 1] = y;
+        mReplacedPositions[p + 2] = z;
+        return action;
+    }
+
+    /**
+     * @return true if all the positions replaced by the last vertex are within
+     *         the maximum error of the line from the anchor to a new position.
+     */
+    private boolean fitsLine(float x, float y, float z) {
+        float ux = x - mAnchorX;
+        float uy = y - mAnchorY;
+        float uz = z - mAnchorZ;
+        float lengthSquared = ux * ux + uy * uy + uz * uz;
+        float maxErrorSquared = mMaxError * mMaxError;
+        float[] positions = mReplacedPositions;
+        for (int p = 0; p < mReplacedPositionCount * COORDS_PER_VERTEX; p += COORDS_PER_VERTEX) {
+            float vx = positions[p] - mAnchorX;
+            float vy = positions[p + 1] - mAnchorY;
+            float vz = positions[p + 2] - mAnchorZ;
+            float t = (vx * ux + vy * uy + vz * uz) / lengthSquared;
+            t = Math.max(0, Math.min(1, t));
+            float ex = vx - t * ux;
+            float ey = vy - t * uy;
+            float ez = vz - t * uz;
+            if (ex * ex + ey * ey + ez * ez > maxErrorSquared) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public float getMinDistance() {
+        return mMinDistance;
+    }
+
+    public float getMaxError() {
+        return mMaxError;
+    }
+}
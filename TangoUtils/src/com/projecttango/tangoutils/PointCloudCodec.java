@@ -0,0 +1,489 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Lossy compression of depth frames. The coordinates of a frame are quantized
+ * to 16 bits within the bounding box of the frame and rounded to the nearest
+ * step, so the error along each axis is at most half a step, 1/131070 of the
+ * box extent along that axis. The points are then put in the order of the
+ * depth image grid, recovered by projecting them on the image plane, so that
+ * consecutive points are neighbors. Each point is stored as the zigzag encoded
+ * difference with the previous one, bit packed by blocks of points to the
+ * width of the largest difference of the block.
+ *
+ * Each encoded frame is self-delimited, starting with a header of
+ * {@link #HEADER_BYTES} holding its length in bytes, so that frames can be
+ * streamed back to back through a buffer and decoded one at a time, see
+ * {@link #getFrameBytes(ByteBuffer)}. Everything is little endian.
+ *
+ * The scratch arrays are allocated once, so encoding and decoding allocate
+ * nothing. Not thread safe; use one codec per thread.
+ */
+public class PointCloudCodec {
+
+    /**
+     * Frame header: the length of the frame in bytes and the point count as
+     * ints, then the minimum corner of the bounding box and the quantization
+     * step along each axis as floats.
+     */
+    public static final int HEADER_BYTES = 32;
+
+    private static final int POINT_TO_XYZ = 3;
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int MAX_QUANTIZED = 0xFFFF;
+    // The differences are bit packed by blocks of points, with the number of
+    // bits of the largest difference along each axis of the block.
+    private static final int BLOCK_POINTS = 32;
+    private static final int BLOCK_COORDINATES = BLOCK_POINTS * POINT_TO_XYZ;
+    private static final int WIDTH_BITS = 5;
+    private static final int WIDTH_MASK = (1 << WIDTH_BITS) - 1;
+    // A zigzag encoded difference of two 16 bit values needs 17 bits.
+    private static final int MAX_DIFFERENCE_BITS = 17;
+    // The grid the points are ordered by covers slopes x/z and y/z in
+    // [-GRID_EXTENT, GRID_EXTENT], wider than the field of view of the depth
+    // camera.
+    private static final int GRID_SIZE = 128;
+    private static final float GRID_EXTENT = 1.5f;
+
+    private final int mMaxPoints;
+    private final int[] mQuantized;
+    private final int[] mCells;
+    private final int[] mCellStarts = new int[GRID_SIZE * GRID_SIZE + 1];
+    private final int[] mOrder;
+    private final int[] mDeltas;
+    private final int[] mWidths = new int[POINT_TO_XYZ];
+    private final float[] mCoordinates;
+    private final byte[] mBytes;
+
+    // Only written by the encoding and decoding thread.
+    private volatile long mEncodedFrameCount;
+    private volatile long mEncodedPointCount;
+    private volatile long mEncodedBytes;
+    private volatile long mEncodeNanos;
+    private volatile long mDecodedFrameCount;
+    private volatile long mDecodedPointCount;
+    private volatile long mDecodeNanos;
+
+    /**
+     * @param maxPoints
+     *            the largest number of points in a frame.
+     */
+    public PointCloudCodec(int maxPoints) {
+        mMaxPoints = maxPoints;
+        mQuantized = new int[maxPoints * POINT_TO_XYZ];
+        mCells = new int[maxPoints];
+        mOrder = new int[maxPoints];
+        mDeltas = new int[maxPoints * POINT_TO_XYZ];
+        mCoordinates = new float[maxPoints * POINT_TO_XYZ];
+        mBytes = new byte[getMaxFrameBytes(maxPoints)];
+    }
+
+    /**
+     * @return the largest number of bytes an encoded frame of a number of
+     *         points can take.
+     */
+    public static int getMaxFrameBytes(int pointCount) {
+        int blockCount = (pointCount + BLOCK_POINTS - 1) / BLOCK_POINTS;
+        long bits = (long) blockCount * 3 * WIDTH_BITS
+                + (long) pointCount * POINT_TO_XYZ * MAX_DIFFERENCE_BITS;
+        return HEADER_BYTES + (int) ((bits + 7) / 8);
+    }
+
+    /**
+     * Reads the length of the encoded frame at the position of a buffer,
+     * without moving the position. Once the buffer holds that many bytes, the
+     * frame can be decoded.
+     *
+     * @return the length of the frame in bytes, or -1 if the buffer does not
+     *         hold the length yet.
+     */
+    public static int getFrameBytes(ByteBuffer in) {
+        if (in.remaining() < 4) {
+            return -1;
+        }
+        int p = in.position();
+        return (in.get(p) & 0xFF) | (in.get(p + 1) & 0xFF) << 8 | (in.get(p + 2) & 0xFF) << 16
+                | (in.get(p + 3) & 0xFF) << 24;
+    }
+
+    /**
+     * Encodes a frame at the position of a buffer, and moves the position past
+     * it.
+     *
+     * @param points
+     *            the XYZ coordinates of the points, from position 0.
+     * @param pointCount
+     *            the number of points in the buffer.
+     * @param out
+     *            receives the frame. It must have room for
+     *            {@link #getMaxFrameBytes(int)} bytes.
+     * @return the length of the frame in bytes.
+     */
+    public int encode(FloatBuffer points, int pointCount, ByteBuffer out) {
+        long start = System.nanoTime();
+        pointCount = Math.min(pointCount, mMaxPoints);
+        float[] coordinates = mCoordinates;
+        int coordinateCount = pointCount * POINT_TO_XYZ;
+        for (int i = 0; i < coordinateCount; i++) {
+            coordinates[i] = points.get(i);
+        }
+
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+        for (int p = 0; p < coordinateCount; p += POINT_TO_XYZ) {
+            float x = coordinates[p];
+            float y = coordinates[p + 1];
+            float z = coordinates[p + 2];
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            minZ = Math.min(minZ, z);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+            maxZ = Math.max(maxZ, z);
+        }
+        if (pointCount == 0) {
+            minX = minY = minZ = maxX = maxY = maxZ = 0;
+        }
+        float stepX = (maxX - minX) / MAX_QUANTIZED;
+        float stepY = (maxY - minY) / MAX_QUANTIZED;
+        float stepZ = (maxZ - minZ) / MAX_QUANTIZED;
+        quantize(minX, stepX, 0, coordinateCount);
+        quantize(minY, stepY, 1, coordinateCount);
+        quantize(minZ, stepZ, 2, coordinateCount);
+        sortByGrid(pointCount);
+
+        int[] quantized = mQuantized;
+        int[] deltas = mDeltas;
+        int previousX = 0, previousY = 0, previousZ = 0;
+        for (int i = 0; i < pointCount; i++) {
+            int p = mOrder[i] * POINT_TO_XYZ;
+            int d = i * POINT_TO_XYZ;
+            int x = quantized[p];
+            int y = quantized[p + 1];
+            int z = quantized[p + 2];
+            deltas[d] = zigzag(x - previousX);
+            deltas[d + 1] = zigzag(y - previousY);
+            deltas[d + 2] = zigzag(z - previousZ);
+            previousX = x;
+            previousY = y;
+            previousZ = z;
+        }
+
+        byte[] bytes = mBytes;
+        int length = HEADER_BYTES;
+        long bits = 0;
+        int bitCount = 0;
+        int[] widths = mWidths;
+        for (int block = 0; block < coordinateCount; block += BLOCK_COORDINATES) {
+            int end = Math.min(block + BLOCK_COORDINATES, coordinateCount);
+            int x = 0, y = 0, z = 0;
+            for (int d = block; d < end; d += POINT_TO_XYZ) {
+                x |= deltas[d];
+                y |= deltas[d + 1];
+                z |= deltas[d + 2];
+            }
+            widths[0] = 32 - Integer.numberOfLeadingZeros(x);
+            widths[1] = 32 - Integer.numberOfLeadingZeros(y);
+            widths[2] = 32 - Integer.numberOfLeadingZeros(z);
+            bits |= (long) (widths[0] | widths[1] << WIDTH_BITS | widths[2] << 2 * WIDTH_BITS)
+                    << bitCount;
+            bitCount += 3 * WIDTH_BITS;
+            int axis = 0;
+            for (int d = block; d < end; d++) {
+                bits |= (long) deltas[d] << bitCount;
+                bitCount += widths[axis];
+                while (bitCount >= 8) {
+                    bytes[length++] = (byte) bits;
+                    bits >>>= 8;
+                    bitCount -= 8;
+                }
+                axis = axis == 2 ? 0 : axis + 1;
+            }
+        }
+        if (bitCount > 0) {
+            bytes[length++] = (byte) bits;
+        }
+        putInt(bytes, 0, length);
+        putInt(bytes, 4, pointCount);
+        putInt(bytes, 8, Float.floatToRawIntBits(minX));
+        putInt(bytes, 12, Float.floatToRawIntBits(minY));
+        putInt(bytes, 16, Float.floatToRawIntBits(minZ));
+        putInt(bytes, 20, Float.floatToRawIntBits(stepX));
+        putInt(bytes, 24, Float.floatToRawIntBits(stepY));
+        putInt(bytes, 28, Float.floatToRawIntBits(stepZ));
+        out.put(bytes, 0, length);
+
+        mEncodedFrameCount++;
+        mEncodedPointCount += pointCount;
+        mEncodedBytes += length;
+        mEncodeNanos += System.nanoTime() - start;
+        return length;
+    }
+
+    /**
+     * Decodes the frame at the position of a buffer, and moves the position
+     * past it. The points come out in the order of the image grid, not in the
+     * order they were encoded.
+     *
+     * @param in
+     *            holds the frame, see {@link #getFrameBytes(ByteBuffer)}.
+     * @param points
+     *            receives the XYZ coordinates of the points from position 0,
+     *            and is flipped, ready for
+     *            {@link com.projecttango.tangoutils.renderables.PointCloud#UpdatePoints}.
+     * @return the number of points of the frame.
+     * @throws IllegalArgumentException
+     *             if the frame is incomplete, truncated or corrupted. The
+     *             points buffer is left untouched.
+     */
+    public int decode(ByteBuffer in, FloatBuffer points) {
+        long start = System.nanoTime();
+        int length = getFrameBytes(in);
+        if (length < HEADER_BYTES || length > mBytes.length || length > in.remaining()) {
+            throw new IllegalArgumentException("Invalid or incomplete frame of " + length
+                    + " bytes");
+        }
+        byte[] bytes = mBytes;
+        in.get(bytes, 0, length);
+        int pointCount = getInt(bytes, 4);
+        if (pointCount < 0 || pointCount > mMaxPoints) {
+            throw new IllegalArgumentException("Invalid frame of " + pointCount + " points");
+        }
+        float minX = Float.intBitsToFloat(getInt(bytes, 8));
+        float minY = Float.intBitsToFloat(getInt(bytes, 12));
+        float minZ = Float.intBitsToFloat(getInt(bytes, 16));
+        float stepX = Float.intBitsToFloat(getInt(bytes, 20));
+        float stepY = Float.intBitsToFloat(getInt(bytes, 24));
+        float stepZ = Float.intBitsToFloat(getInt(bytes, 28));
+
+        float[] coordinates = mCoordinates;
+        int[] widths = mWidths;
+        int offset = HEADER_BYTES;
+        long bits = 0;
+        int bitCount = 0;
+        int x = 0, y = 0, z = 0;
+        int coordinateCount = pointCount * POINT_TO_XYZ;
+        for (int block = 0; block < coordinateCount; block += BLOCK_COORDINATES) {
+            int end = Math.min(block + BLOCK_COORDINATES, coordinateCount);
+            while (bitCount < 3 * WIDTH_BITS) {
+                if (offset == length) {
+                    throw new IllegalArgumentException("Truncated frame");
+                }
+                bits |= (long) (bytes[offset++] & 0xFF) << bitCount;
+                bitCount += 8;
+            }
+            widths[0] = (int) bits & WIDTH_MASK;
+            widths[1] = (int) (bits >>> WIDTH_BITS) & WIDTH_MASK;
+            widths[2] = (int) (bits >>> 2 * WIDTH_BITS) & WIDTH_MASK;
+            if (widths[0] > MAX_DIFFERENCE_BITS || widths[1] > MAX_DIFFERENCE_BITS
+                    || widths[2] > MAX_DIFFERENCE_BITS) {
+                throw new IllegalArgumentException("Corrupted frame");
+            }
+            bits >>>= 3 * WIDTH_BITS;
+            bitCount -= 3 * WIDTH_BITS;
+            for (int p = block; p < end; p += POINT_TO_XYZ) {
+                // Refill once per point: the three differences take at most
+                // 3 * 17 bits, and at most 7 bits are left from the last one.
+                while (bitCount < widths[0] + widths[1] + widths[2]) {
+                    if (offset == length) {
+                        throw new IllegalArgumentException("Truncated frame");
+                    }
+                    bits |= (long) (bytes[offset++] & 0xFF) << bitCount;
+                    bitCount += 8;
+                }
+                int value = (int) bits & ((1 << widths[0]) - 1);
+                bits >>>= widths[0];
+                x += (value >>> 1) ^ -(value & 1);
+                value = (int) bits & ((1 << widths[1]) - 1);
+                bits >>>= widths[1];
+                y += (value >>> 1) ^ -(value & 1);
+                value = (int) bits & ((1 << widths[2]) - 1);
+                bits >>>= widths[2];
+                z += (value >>> 1) ^ -(value & 1);
+                bitCount -= widths[0] + widths[1] + widths[2];
+                coordinates[p] = minX + x * stepX;
+                coordinates[p + 1] = minY + y * stepY;
+                coordinates[p + 2] = minZ + z * stepZ;
+            }
+        }
+        if (offset != length) {
+            throw new IllegalArgumentException("Corrupted frame");
+        }
+        points.clear();
+        points.put(coordinates, 0, coordinateCount);
+        points.flip();
+
+        mDecodedFrameCount++;
+        mDecodedPointCount += pointCount;
+        mDecodeNanos += System.nanoTime() - start;
+        return pointCount;
+    }
+
+    /**
+     * Quantizes one axis of the coordinates.
+     */
+    private void quantize(float min, float step, int axis, int coordinateCount) {
+        float inverseStep = step > 0 ? 1.0f / step : 0;
+        float[] coordinates = mCoordinates;
+        int[] quantized = mQuantized;
+        for (int p = axis; p < coordinateCount; p += POINT_TO_XYZ) {
+            int q = (int) ((coordinates[p] - min) * inverseStep + 0.5f);
+            quantized[p] = Math.min(q, MAX_QUANTIZED);
+        }
+    }
+
+    /**
+     * Orders the points row by row on the image
+     * grid. Counting sort, so it is linear and keeps the order of the points
+     * of a cell.
+     */
+    private void sortByGrid(int pointCount) {
+        float[] coordinates = mCoordinates;
+        int[] cellStarts = mCellStarts;
+        Arrays.fill(cellStarts, 0);
+        float scale = GRID_SIZE / (2 * GRID_EXTENT);
+        for (int i = 0; i < pointCount; i++) {
+            int p = i * POINT_TO_XYZ;
+            float z = coordinates[p + 2];
+            int cell = 0;
+            if (z > 0) {
+                int column = (int) ((coordinates[p] / z + GRID_EXTENT) * scale);
+                int row = (int) ((coordinates[p + 1] / z + GRID_EXTENT) * scale);
+                column = Math.max(0, Math.min(GRID_SIZE - 1, column));
+                row = Math.max(0, Math.min(GRID_SIZE - 1, row));
+                // Serpentine rows, so that the end of a row is next to the
+                // start of the following one.
+                if ((row & 1) != 0) {
+                    column = GRID_SIZE - 1 - column;
+                }
+                cell = row * GRID_SIZE + column;
+            }
+            mCells[i] = cell;
+            cellStarts[cell + 1]++;
+        }
+        for (int cell = 0; cell < GRID_SIZE * GRID_SIZE; cell++) {
+            cellStarts[cell + 1] += cellStarts[cell];
+        }
+        for (int i = 0; i < pointCount; i++) {
+            mOrder[cellStarts[mCells[i]]++] = i;
+        }
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+        bytes[offset + 2] = (byte) (value >>> 16);
+        bytes[offset + 3] = (byte) (value >>> 24);
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8
+                | (bytes[offset + 2] & 0xFF) << 16 | (bytes[offset + 3] & 0xFF) << 24;
+    }
+
+    /**
+     * @return the number of encoded frames.
+     */
+    public long getEncodedFrameCount() {
+        return mEncodedFrameCount;
+    }
+
+    /**
+     * @return the total number of encoded points.
+     */
+    public long getEncodedPointCount() {
+        return mEncodedPointCount;
+    }
+
+    /**
+     * @return the total length of the encoded frames, in bytes.
+     */
+    public long getEncodedBytes() {
+        return mEncodedBytes;
+    }
+
+    /**
+     * @return the total time, in nanoseconds, spent encoding.
+     */
+    public long getEncodeNanos() {
+        return mEncodeNanos;
+    }
+
+    /**
+     * @return the number of decoded frames.
+     */
+    public long getDecodedFrameCount() {
+        return mDecodedFrameCount;
+    }
+
+    /**
+     * @return the total number of decoded points.
+     */
+    public long getDecodedPointCount() {
+        return mDecodedPointCount;
+    }
+
+    /**
+     * @return the total time, in nanoseconds, spent decoding.
+     */
+    public long getDecodeNanos() {
+        return mDecodeNanos;
+    }
+
+    /**
+     * @return the size of the raw coordinates of the encoded points divided by
+     *         the size of the encoded frames.
+     */
+    public double getCompressionRatio() {
+        long encodedBytes = mEncodedBytes;
+        if (encodedBytes == 0) {
+            return 0;
+        }
+        return (double) mEncodedPointCount * POINT_TO_XYZ * BYTES_PER_FLOAT / encodedBytes;
+    }
+
+    /**
+     * @return the average number of raw coordinate bytes encoded per second.
+     */
+    public double getEncodeThroughput() {
+        long nanos = mEncodeNanos;
+        if (nanos == 0) {
+            return 0;
+        }
+        return mEncodedPointCount * POINT_TO_XYZ * BYTES_PER_FLOAT * 1e9 / nanos;
+    }
+
+    /**
+     * @return the average number of raw coordinate bytes decoded per second.
+     */
+    public double getDecodeThroughput() {
+        long nanos = mDecodeNanos;
+        if (nanos == 0) {
+            return 0;
+        }
+        return mDecodedPointCount * POINT_TO_XYZ * BYTES_PER_FLOAT * 1e9 / nanos;
+    }
+}
@@ -0,0 +1,431 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import android.util.Log;
+
+/**
+ * Writes point clouds to binary PLY or PCD files for use in other tools,
+ * either a single depth frame or all the points accumulated in a
+ * {@link PointOctree}.
+ *
+ * The export methods only copy the points into a pre-allocated direct buffer
+ * and queue it; a writer thread writes the queued exports through a
+ * {@link FileChannel}. When the writer falls behind and every buffer is
+ * queued, new exports are either dropped and counted, or wait for a buffer,
+ * as chosen at construction.
+ */
+public class PointCloudExporter {
+
+    /** Binary little endian PLY, with a float x, y and z per vertex. */
+    public static final int FORMAT_PLY = 0;
+    /** Binary PCD, version 0.7, with float x, y and z fields. */
+    public static final int FORMAT_PCD = 1;
+
+    private static final String TAG = PointCloudExporter.class.getSimpleName();
+    private static final int POINT_TO_XYZ = 3;
+    private static final int BYTES_PER_POINT = POINT_TO_XYZ * 4;
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    // The point counts in the headers are padded to a fixed width, so that
+    // they can be rewritten in place once an octree has been streamed out.
+    private static final String PLY_HEADER = "ply\n"
+            + "format binary_little_endian 1.0\n"
+            + "element vertex %-10d\n"
+            + "property float x\n"
+            + "property float y\n"
+            + "property float z\n"
+            + "end_header\n";
+    private static final String PCD_HEADER = "# .PCD v0.7 - Point Cloud Data file format\n"
+            + "VERSION 0.7\n"
+            + "FIELDS x y z\n"
+            + "SIZE 4 4 4\n"
+            + "TYPE F F F\n"
+            + "COUNT 1 1 1\n"
+            + "WIDTH %-10d\n"
+            + "HEIGHT 1\n"
+            + "VIEWPOINT 0 0 0 1 0 0 0\n"
+            + "POINTS %-10d\n"
+            + "DATA binary\n";
+
+    private final boolean mBlockWhenFull;
+    private final ArrayBlockingQueue<Export> mPendingExports;
+    private final ArrayBlockingQueue<Export> mFreeExports;
+    // Queued by stop() to end the writer thread.
+    private final Export mStopExport = new Export(0);
+    private volatile Thread mWriter;
+
+    private volatile long mExportCount;
+    private volatile long mDroppedExportCount;
+    private volatile long mFailedExportCount;
+    private volatile long mPointsWritten;
+    private volatile long mBytesWritten;
+    private volatile long mWriteNanos;
+
+    /**
+     * A pre-allocated export, queued between the exporting thread and the
+     * writer thread.
+     */
+    private static class Export {
+        File mFile;
+        int mFormat;
+        final ByteBuffer mPoints;
+        final FloatBuffer mPointFloats;
+        int mPointCount;
+        final float[] mModelMatrix = new float[16];
+        boolean mHasModelMatrix;
+        PointOctree mOctree;
+
+        Export(int maxPoints) {
+            mPoints = ByteBuffer.allocateDirect(maxPoints * BYTES_PER_POINT).order(
+                    ByteOrder.LITTLE_ENDIAN);
+            mPointFloats = mPoints.asFloatBuffer();
+        }
+    }
+
+    /**
+     * @param maxFramePoints
+     *            the largest number of points in an exported frame.
+     * @param queueCapacity
+     *            the number of exports that can wait for the writer.
+     * @param blockWhenFull
+     *            whether an export waits for the writer when the queue is
+     *            full, instead of being dropped.
+     */
+    public PointCloudExporter(int maxFramePoints, int queueCapacity, boolean blockWhenFull) {
+        mBlockWhenFull = blockWhenFull;
+        // Octrees are streamed out one node at a time through the buffer.
+        int bufferPoints = Math.max(maxFramePoints, PointOctree.NODE_CAPACITY);
+        mPendingExports = new ArrayBlockingQueue<Export>(queueCapacity + 1);
+        mFreeExports = new ArrayBlockingQueue<Export>(queueCapacity);
+        for (int i = 0; i < queueCapacity; i++) {
+            mFreeExports.add(new Export(bufferPoints));
+        }
+    }
+
+    /**
+     * Starts the writer thread.
+     */
+    public synchronized void start() {
+        if (mWriter != null) {
+            return;
+        }
+        mWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Export export = mPendingExports.take();
+                        if (export == mStopExport) {
+                            break;
+                        }
+                        write(export);
+                        export.mFile = null;
+                        export.mOctree = null;
+                        mFreeExports.add(export);
+                    }
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "Export interrupted");
+                }
+            }
+        }, "PointCloudExporter");
+        mWriter.start();
+    }
+
+    /**
+     * Writes the queued exports and stops the writer thread. Blocks until the
+     * files are closed.
+     */
+    public synchronized void stop() {
+        Thread writer = mWriter;
+        mWriter = null;
+        if (writer == null) {
+            return;
+        }
+        mPendingExports.add(mStopExport);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues a depth frame to be exported. The points are copied in bulk, so
+     * the buffer can be reused as soon as this returns; they are transformed
+     * by the writer thread.
+     *
+     * @param file
+     *            the file to write, overwritten if it exists.
+     * @param format
+     *            {@link #FORMAT_PLY} or {@link #FORMAT_PCD}.
+     * @param xyz
+     *            the XYZ coordinates of the points, from position 0.
+     * @param pointCount
+     *            the number of points in the buffer.
+     * @param modelMatrix
+     *            the matrix mapping the points to the exported space, or null
+     *            to export them as they are.
+     * @return false if the export was dropped.
+     */
+    public boolean exportFrame(File file, int format, FloatBuffer xyz, int pointCount,
+            float[] modelMatrix) {
+        Export export = obtainExport();
+        if (export == null) {
+            return false;
+        }
+        pointCount = Math.min(pointCount, export.mPointFloats.capacity() / POINT_TO_XYZ);
+        FloatBuffer source = xyz.duplicate();
+        source.position(0);
+        source.limit(pointCount * POINT_TO_XYZ);
+        export.mPointFloats.clear();
+        export.mPointFloats.put(source);
+        export.mPointCount = pointCount;
+        export.mHasModelMatrix = modelMatrix != null;
+        if (modelMatrix != null) {
+            System.arraycopy(modelMatrix, 0, export.mModelMatrix, 0, 16);
+        }
+        queue(export, file, format);
+        return true;
+    }
+
+    /**
+     * Queues the export of all the points of an octree. The writer thread
+     * copies them one node at a time, so points inserted meanwhile may or may
+     * not be exported.
+     *
+     * @param file
+     *            the file to write, overwritten if it exists.
+     * @param format
+     *            {@link #FORMAT_PLY} or {@link #FORMAT_PCD}.
+     * @param octree
+     *            the octree to export.
+     * @return false if the export was dropped.
+     */
+    public boolean exportOctree(File file, int format, PointOctree octree) {
+        Export export = obtainExport();
+        if (export == null) {
+            return false;
+        }
+        export.mOctree = octree;
+        queue(export, file, format);
+        return true;
+    }
+
+    private Export obtainExport() {
+        if (mWriter == null) {
+            return null;
+        }
+        Export export = mFreeExports.poll();
+        if (export == null && mBlockWhenFull) {
+            try {
+                export = mFreeExports.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (export == null) {
+            mDroppedExportCount++;
+        }
+        return export;
+    }
+
+    private void queue(Export export, File file, int format) {
+        if (format != FORMAT_PLY && format != FORMAT_PCD) {
+            mFreeExports.add(export);
+            throw new IllegalArgumentException("Unknown format: " + format);
+        }
+        export.mFile = file;
+        export.mFormat = format;
+        mPendingExports.add(export);
+        mExportCount++;
+    }
+
+    /**
+     * Writes an export on the writer thread.
+     */
+    private void write(Export export) {
+        long start = System.nanoTime();
+        RandomAccessFile file = null;
+        int pointCount = 0;
+        try {
+            File parent = export.mFile.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Cannot create " + parent);
+            }
+            file = new RandomAccessFile(export.mFile, "rw");
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+            if (export.mOctree != null) {
+                writeHeader(channel, export.mFormat, 0);
+                pointCount = writeOctree(channel, export);
+                // Now that the count is known, rewrite the header in place.
+                channel.position(0);
+                writeHeader(channel, export.mFormat, pointCount);
+            } else {
+                pointCount = export.mPointCount;
+                if (export.mHasModelMatrix) {
+                    transform(export.mPointFloats, pointCount, export.mModelMatrix);
+                }
+                writeHeader(channel, export.mFormat, pointCount);
+                writePoints(channel, export.mPoints, pointCount);
+            }
+            Log.i(TAG, "Exported " + pointCount + " points to " + export.mFile);
+        } catch (IOException e) {
+            mFailedExportCount++;
+            Log.e(TAG, "Cannot export to " + export.mFile, e);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot close " + export.mFile, e);
+                }
+            }
+        }
+        mWriteNanos += System.nanoTime() - start;
+    }
+
+    private int writeOctree(FileChannel channel, Export export) throws IOException {
+        PointOctree octree = export.mOctree;
+        FloatBuffer floats = export.mPointFloats;
+        floats.clear();
+        int pointCount = 0;
+        int bufferedPoints = 0;
+        int nodeCount = octree.getNodeCount();
+        for (int node = 0; node < nodeCount; node++) {
+            if (floats.remaining() < PointOctree.NODE_CAPACITY * POINT_TO_XYZ) {
+                writePoints(channel, export.mPoints, bufferedPoints);
+                floats.clear();
+                bufferedPoints = 0;
+            }
+            int copied = octree.copyPoints(node, floats);
+            bufferedPoints += copied;
+            pointCount += copied;
+        }
+        writePoints(channel, export.mPoints, bufferedPoints);
+        return pointCount;
+    }
+
+    private void writeHeader(FileChannel channel, int format, int pointCount)
+            throws IOException {
+        String header;
+        if (format == FORMAT_PLY) {
+            header = String.format(Locale.US, PLY_HEADER, pointCount);
+        } else {
+            header = String.format(Locale.US, PCD_HEADER, pointCount, pointCount);
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(header.getBytes(US_ASCII));
+        while (bytes.hasRemaining()) {
+            mBytesWritten += channel.write(bytes);
+        }
+    }
+
+    private void writePoints(FileChannel channel, ByteBuffer points, int pointCount)
+            throws IOException {
+        points.clear();
+        points.limit(pointCount * BYTES_PER_POINT);
+        while (points.hasRemaining()) {
+            mBytesWritten += channel.write(points);
+        }
+        mPointsWritten += pointCount;
+    }
+
+    /**
+     * Transforms points in place by a column-major matrix.
+     */
+    private static void transform(FloatBuffer points, int pointCount, float[] m) {
+        for (int p = 0; p < pointCount * POINT_TO_XYZ; p += POINT_TO_XYZ) {
+            float x = points.get(p);
+            float y = points.get(p + 1);
+            float z = points.get(p + 2);
+            points.put(p, m[0] * x + m[4] * y + m[8] * z + m[12]);
+            points.put(p + 1, m[1] * x + m[5] * y + m[9] * z + m[13]);
+            points.put(p + 2, m[2] * x + m[6] * y + m[10] * z + m[14]);
+        }
+    }
+
+    /**
+     * @return the number of exports waiting for the writer thread.
+     */
+    public int getQueueDepth() {
+        return mPendingExports.size();
+    }
+
+    /**
+     * @return the number of queued exports.
+     */
+    public long getExportCount() {
+        return mExportCount;
+    }
+
+    /**
+     * @return the number of exports dropped because the queue was full.
+     */
+    public long getDroppedExportCount() {
+        return mDroppedExportCount;
+    }
+
+    /**
+     * @return the number of exports that could not be written.
+     */
+    public long getFailedExportCount() {
+        return mFailedExportCount;
+    }
+
+    /**
+     * @return the total number of points written.
+     */
+    public long getPointsWritten() {
+        return mPointsWritten;
+    }
+
+    /**
+     * @return the total number of bytes written.
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @return the total time, in nanoseconds, spent writing.
+     */
+    public long getWriteNanos() {
+        return mWriteNanos;
+    }
+
+    /**
+     * @return the average number of bytes written per second of writing.
+     */
+    public double getThroughput() {
+        long nanos = mWriteNanos;
+        if (nanos == 0) {
+            return 0;
+        }
+        return mBytesWritten * 1e9 / nanos;
+    }
+}
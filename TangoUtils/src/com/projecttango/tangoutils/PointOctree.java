@@ -0,0 +1,559 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils;
+
+import java.nio.FloatBuffer;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import com.projecttango.tangoutils.math.Frustum;
+import com.projecttango.tangoutils.math.Mat4;
+
+/**
+ * Level-of-detail octree of accumulated world-space points, for drawing clouds
+ * far larger than a frame can afford. Every node keeps at most one point per
+ * cell of a coarse grid over its cube, so the root holds a sparse sample of
+ * the whole cloud and each level below adds detail. Points that find their
+ * cell taken are pushed down to the child containing them.
+ *
+ * Depth frames are queued with {@link #submit(FloatBuffer, int, float[])} and
+ * inserted on a background thread. Each frame, the renderer picks the nodes to
+ * draw with {@link #select(float[], float[], int, int, List)}: visible nodes
+ * are refined in order of their projected size on screen until the point
+ * budget is used up.
+ *
+ * The background thread is the only writer, and the rendering thread never
+ * waits for it. Nodes only ever grow: their points are appended to an array
+ * that is replaced by a larger copy when full, and the point count is
+ * published after the points it covers, so a reader that reads the count
+ * before the array sees a consistent prefix. Child arrays and the node list
+ * are published the same way.
+ */
+public class PointOctree {
+
+    /** Largest number of points kept in one node. */
+    public static final int NODE_CAPACITY = 4096;
+
+    private static final int GRID_SIZE = 16;
+    private static final int MAX_DEPTH = 16;
+    private static final int POINT_TO_XYZ = 3;
+    private static final int PENDING_FRAMES = 4;
+    private static final float SQRT_3 = (float) Math.sqrt(3);
+    // Children whose points would be closer than this on screen add no
+    // visible detail.
+    private static final float MIN_POINT_SPACING_PIXELS = 1.0f;
+
+    private final Node mRoot;
+    private final int mMaxPoints;
+    // Only used by the inserting thread, and published to mPointCount after
+    // each frame.
+    private int mInsertedPointCount;
+    private volatile int mPointCount;
+    // Grown by copy; the count is published after the node it covers.
+    private volatile Node[] mNodes = new Node[256];
+    private volatile int mNodeCount;
+    // Only held while inserting, in case a stopped worker is still finishing
+    // a frame when the next one starts. Readers never take it.
+    private final Object mInsertLock = new Object();
+
+    private final ArrayBlockingQueue<Frame> mPendingFrames;
+    private final ArrayBlockingQueue<Frame> mFreeFrames;
+    private volatile Thread mWorker;
+    private volatile VoxelMap mVoxelMap;
+
+    // Selection state, only used on the rendering thread.
+    private final float[] mViewProjectionMatrix = new float[16];
+    private final float[] mFrustumPlanes = new float[Frustum.SIZE];
+    private final PriorityQueue<Node> mCandidates = new PriorityQueue<Node>(64,
+            new Comparator<Node>() {
+                @Override
+                public int compare(Node lhs, Node rhs) {
+                    return Float.compare(rhs.mProjectedSize, lhs.mProjectedSize);
+                }
+            });
+
+    private volatile long mDroppedPointCount;
+    private volatile long mDroppedFrameCount;
+    private volatile long mInsertNanos;
+    private volatile int mSelectedPointCount;
+    private volatile long mSelectNanos;
+
+    /**
+     * A cubic node of the octree.
+     */
+    public static class Node {
+        private final int mId;
+        private final float mCenterX;
+        private final float mCenterY;
+        private final float mCenterZ;
+        private final float mHalfSize;
+        private final int mDepth;
+        // Only used by the inserting thread.
+        private final long[] mOccupiedCells = new long[GRID_SIZE * GRID_SIZE * GRID_SIZE / 64];
+        // Written by the inserting thread, read by any thread: the count is
+        // published after the points it covers, and the array is never
+        // modified below the count once published.
+        private volatile float[] mPoints = new float[64 * POINT_TO_XYZ];
+        private volatile int mPointCount;
+        // Replaced by a copy whenever a child is added.
+        private volatile Node[] mChildren;
+        // Selection state.
+        private float mProjectedSize;
+        private int mSelectedVersion;
+
+        Node(int id, float centerX, float centerY, float centerZ, float halfSize, int depth) {
+            mId = id;
+            mCenterX = centerX;
+            mCenterY = centerY;
+            mCenterZ = centerZ;
+            mHalfSize = halfSize;
+            mDepth = depth;
+        }
+
+        /**
+         * @return the index of the node. Nodes are numbered from 0 in the
+         *         order they are created.
+         */
+        public int getId() {
+            return mId;
+        }
+
+        public int getDepth() {
+            return mDepth;
+        }
+
+        /**
+         * @return the version of the node's points when it was last selected.
+         *         It grows every time points are added to the node; it is the
+         *         number of points the node held.
+         */
+        public int getSelectedVersion() {
+            return mSelectedVersion;
+        }
+    }
+
+    /**
+     * A depth frame waiting to be inserted.
+     */
+    private static class Frame {
+        final float[] mPoints;
+        // The same points, for the voxel map.
+        final FloatBuffer mPointBuffer;
+        final float[] mModelMatrix = new float[16];
+        int mPointCount;
+
+        Frame(int maxFramePoints) {
+            mPoints = new float[maxFramePoints * POINT_TO_XYZ];
+            mPointBuffer = FloatBuffer.wrap(mPoints);
+        }
+    }
+
+    /**
+     * @param halfSize
+     *            half the edge length of the root cube, which is centered on
+     *            the origin, in meters. Points outside of it are dropped.
+     * @param maxPoints
+     *            the largest number of points the octree holds.
+     * @param maxFramePoints
+     *            the largest number of points in a submitted frame.
+     */
+    public PointOctree(float halfSize, int maxPoints, int maxFramePoints) {
+        mMaxPoints = maxPoints;
+        mRoot = createNode(0, 0, 0, halfSize, 0);
+        mPendingFrames = new ArrayBlockingQueue<Frame>(PENDING_FRAMES);
+        mFreeFrames = new ArrayBlockingQueue<Frame>(PENDING_FRAMES);
+        for (int i = 0; i < PENDING_FRAMES; i++) {
+            mFreeFrames.add(new Frame(maxFramePoints));
+        }
+    }
+
+    /**
+     * Starts the background thread inserting submitted frames.
+     */
+    public synchronized void start() {
+        if (mWorker != null) {
+            return;
+        }
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Thread self = Thread.currentThread();
+                try {
+                    while (mWorker == self) {
+                        Frame frame = mPendingFrames.take();
+                        synchronized (mInsertLock) {
+                            insertFrame(frame);
+                        }
+                        mFreeFrames.add(frame);
+                    }
+                } catch (InterruptedException e) {
+                    // Stopped.
+                }
+            }
+        }, "PointOctree");
+        mWorker.start();
+    }
+
+    /**
+     * Also accumulates every frame into a voxel map, on the background thread,
+     * so that the thread submitting frames does not pay for it either.
+     *
+     * @param voxelMap
+     *            the map, or null to stop feeding one.
+     */
+    public void setVoxelMap(VoxelMap voxelMap) {
+        mVoxelMap = voxelMap;
+    }
+
+    /**
+     * Stops the background thread. Frames still queued are inserted after the
+     * next call to {@link #start()}.
+     */
+    public synchronized void stop() {
+        Thread worker = mWorker;
+        mWorker = null;
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Queues a depth frame to be inserted on the background thread. If the
+     * background thread is behind by more than a few frames, the frame is
+     * dropped. Must always be called from the same thread.
+     *
+     * @param points
+     *            the XYZ coordinates of the points in the depth camera frame,
+     *            from position 0.
+     * @param pointCount
+     *            the number of points in the buffer.
+     * @param modelMatrix
+     *            the point cloud model matrix of the frame, mapping the
+     *            points to world space.
+     */
+    public void submit(FloatBuffer points, int pointCount, float[] modelMatrix) {
+        Frame frame = mFreeFrames.poll();
+        if (frame == null) {
+            mDroppedFrameCount++;
+            return;
+        }
+        pointCount = Math.min(pointCount, frame.mPoints.length / POINT_TO_XYZ);
+        FloatBuffer source = points.duplicate();
+        source.position(0);
+        source.get(frame.mPoints, 0, pointCount * POINT_TO_XYZ);
+        frame.mPointCount = pointCount;
+        System.arraycopy(modelMatrix, 0, frame.mModelMatrix, 0, 16);
+        mPendingFrames.add(frame);
+    }
+
+    /**
+     * Transforms a frame to world space and inserts its points.
+     */
+    private void insertFrame(Frame frame) {
+        long start = System.nanoTime();
+        float[] m = frame.mModelMatrix;
+        float[] points = frame.mPoints;
+        long dropped = 0;
+        for (int i = 0; i < frame.mPointCount; i++) {
+            int p = i * POINT_TO_XYZ;
+            float x = points[p];
+            float y = points[p + 1];
+            float z = points[p + 2];
+            float wx = m[0] * x + m[4] * y + m[8] * z + m[12];
+            float wy = m[1] * x + m[5] * y + m[9] * z + m[13];
+            float wz = m[2] * x + m[6] * y + m[10] * z + m[14];
+            if (!insertPoint(wx, wy, wz)) {
+                dropped++;
+            }
+        }
+        mPointCount = mInsertedPointCount;
+        mDroppedPointCount += dropped;
+        mInsertNanos += System.nanoTime() - start;
+
+        VoxelMap voxelMap = mVoxelMap;
+        if (voxelMap != null) {
+            voxelMap.insert(frame.mPointBuffer, frame.mPointCount, m);
+        }
+    }
+
+    /**
+     * Stores a point in the shallowest node whose grid cell for it is free.
+     *
+     * @return false if the point was dropped.
+     */
+    private boolean insertPoint(float x, float y, float z) {
+        Node node = mRoot;
+        float h = node.mHalfSize;
+        if (mInsertedPointCount == mMaxPoints || Math.abs(x) >= h || Math.abs(y) >= h
+                || Math.abs(z) >= h) {
+            return false;
+        }
+        while (true) {
+            float scale = GRID_SIZE / (2 * node.mHalfSize);
+            int cx = clampCell((int) ((x - node.mCenterX + node.mHalfSize) * scale));
+            int cy = clampCell((int) ((y - node.mCenterY + node.mHalfSize) * scale));
+            int cz = clampCell((int) ((z - node.mCenterZ + node.mHalfSize) * scale));
+            int cell = (cx * GRID_SIZE + cy) * GRID_SIZE + cz;
+            long bit = 1L << (cell & 63);
+            if ((node.mOccupiedCells[cell >> 6] & bit) == 0
+                    && node.mPointCount < NODE_CAPACITY) {
+                node.mOccupiedCells[cell >> 6] |= bit;
+                addPoint(node, x, y, z);
+                return true;
+            }
+            if (node.mDepth == MAX_DEPTH) {
+                return false;
+            }
+            int octant = (x >= node.mCenterX ? 1 : 0) | (y >= node.mCenterY ? 2 : 0)
+                    | (z >= node.mCenterZ ? 4 : 0);
+            Node[] children = node.mChildren;
+            Node child = children != null ? children[octant] : null;
+            if (child == null) {
+                float q = node.mHalfSize / 2;
+                child = createNode(node.mCenterX + ((octant & 1) != 0 ? q : -q),
+                        node.mCenterY + ((octant & 2) != 0 ? q : -q),
+                        node.mCenterZ + ((octant & 4) != 0 ? q : -q), q, node.mDepth + 1);
+                // At most eight copies per node, and readers iterating the
+                // previous array are not disturbed.
+                Node[] added = children != null ? children.clone() : new Node[8];
+                added[octant] = child;
+                node.mChildren = added;
+            }
+            node = child;
+        }
+    }
+
+    private void addPoint(Node node, float x, float y, float z) {
+        int count = node.mPointCount;
+        int p = count * POINT_TO_XYZ;
+        float[] points = node.mPoints;
+        if (p == points.length) {
+            // Readers may still be copying from the old array, so the points
+            // go to a new one, published before the count that covers them.
+            float[] grown = new float[Math.min(points.length * 2, NODE_CAPACITY * POINT_TO_XYZ)];
+            System.arraycopy(points, 0, grown, 0, p);
+            points = grown;
+            node.mPoints = points;
+        }
+        points[p] = x;
+        points[p + 1] = y;
+        points[p + 2] = z;
+        node.mPointCount = count + 1;
+        mInsertedPointCount++;
+    }
+
+    private Node createNode(float centerX, float centerY, float centerZ, float halfSize,
+            int depth) {
+        int id = mNodeCount;
+        Node node = new Node(id, centerX, centerY, centerZ, halfSize, depth);
+        Node[] nodes = mNodes;
+        if (id == nodes.length) {
+            Node[] grown = new Node[nodes.length * 2];
+            System.arraycopy(nodes, 0, grown, 0, id);
+            nodes = grown;
+            mNodes = nodes;
+        }
+        nodes[id] = node;
+        mNodeCount = id + 1;
+        return node;
+    }
+
+    private static int clampCell(int cell) {
+        return cell < 0 ? 0 : (cell >= GRID_SIZE ? GRID_SIZE - 1 : cell);
+    }
+
+    /**
+     * Picks the nodes to draw for a view. Visible nodes are refined from the
+     * root in order of decreasing projected size, until the next node would
+     * exceed the point budget or no node adds visible detail. Only call this
+     * from the rendering thread. It never waits for the background thread, and
+     * sees the points inserted so far.
+     *
+     * @param viewMatrix
+     *            the view matrix to map from world space to camera space.
+     * @param projectionMatrix
+     *            the projection matrix to map from camera space to screen
+     *            space.
+     * @param viewportHeight
+     *            the height of the viewport, in pixels.
+     * @param pointBudget
+     *            the largest number of points to select.
+     * @param selected
+     *            receives the selected nodes.
+     * @return the number of points in the selected nodes.
+     */
+    public int select(float[] viewMatrix, float[] projectionMatrix,
+            int viewportHeight, int pointBudget, List<Node> selected) {
+        long start = System.nanoTime();
+        Mat4.multiply(mViewProjectionMatrix, 0, projectionMatrix, 0, viewMatrix, 0);
+        Frustum.setFromMatrix(mFrustumPlanes, mViewProjectionMatrix, 0);
+        // Pixels per meter at a distance of one meter.
+        float pixelScale = projectionMatrix[5] * viewportHeight / 2;
+
+        int pointCount = 0;
+        mCandidates.clear();
+        if (isVisible(mRoot)) {
+            mRoot.mProjectedSize = projectedSize(mRoot, viewMatrix, pixelScale);
+            mCandidates.add(mRoot);
+        }
+        Node node;
+        while ((node = mCandidates.poll()) != null) {
+            int nodePointCount = node.mPointCount;
+            if (pointCount + nodePointCount > pointBudget) {
+                break;
+            }
+            if (nodePointCount > 0) {
+                node.mSelectedVersion = nodePointCount;
+                selected.add(node);
+                pointCount += nodePointCount;
+            }
+            Node[] children = node.mChildren;
+            if (children == null) {
+                continue;
+            }
+            for (int i = 0; i < 8; i++) {
+                Node child = children[i];
+                if (child == null || !isVisible(child)) {
+                    continue;
+                }
+                child.mProjectedSize = projectedSize(child, viewMatrix, pixelScale);
+                float spacing = child.mProjectedSize * 2 / (GRID_SIZE * SQRT_3);
+                if (spacing >= MIN_POINT_SPACING_PIXELS) {
+                    mCandidates.add(child);
+                }
+            }
+        }
+        mCandidates.clear();
+        mSelectedPointCount = pointCount;
+        mSelectNanos = System.nanoTime() - start;
+        return pointCount;
+    }
+
+    /**
+     * Copies the current points of a node. Does not wait for the background
+     * thread; points inserted while copying may or may not be included.
+     *
+     * @param node
+     *            the node, as returned by
+     *            {@link #select(float[], float[], int, int, List)}.
+     * @param dest
+     *            receives the XYZ coordinates of the points, from its current
+     *            position. It must have room for {@link #NODE_CAPACITY} points.
+     * @return the number of points copied.
+     */
+    public int copyPoints(Node node, FloatBuffer dest) {
+        // The count first: the array read after it holds at least that many
+        // points.
+        int pointCount = node.mPointCount;
+        dest.put(node.mPoints, 0, pointCount * POINT_TO_XYZ);
+        return pointCount;
+    }
+
+    /**
+     * Copies the current points of a node, to walk all the points of the
+     * octree one node at a time.
+     *
+     * @param nodeId
+     *            the id of the node, below {@link #getNodeCount()}.
+     * @param dest
+     *            receives the XYZ coordinates of the points, from its current
+     *            position. It must have room for {@link #NODE_CAPACITY} points.
+     * @return the number of points copied.
+     */
+    public int copyPoints(int nodeId, FloatBuffer dest) {
+        if (nodeId >= mNodeCount) {
+            throw new IndexOutOfBoundsException("Node " + nodeId + " of " + mNodeCount);
+        }
+        return copyPoints(mNodes[nodeId], dest);
+    }
+
+    /**
+     * @return the radius, in pixels, of the bounding sphere of a node
+     *         projected on screen.
+     */
+    private static float projectedSize(Node node, float[] viewMatrix, float pixelScale) {
+        float radius = node.mHalfSize * SQRT_3;
+        float viewZ = viewMatrix[2] * node.mCenterX + viewMatrix[6] * node.mCenterY
+                + viewMatrix[10] * node.mCenterZ + viewMatrix[14];
+        float distance = -viewZ;
+        if (distance <= radius) {
+            // The camera is inside or right next to the node.
+            return Float.MAX_VALUE;
+        }
+        return radius * pixelScale / distance;
+    }
+
+    /**
+     * @return false if the bounding sphere of the node is outside of one of
+     *         the frustum planes.
+     */
+    private boolean isVisible(Node node) {
+        return Frustum.intersectsSphere(mFrustumPlanes, node.mCenterX, node.mCenterY,
+                node.mCenterZ, node.mHalfSize * SQRT_3);
+    }
+
+    /**
+     * @return the number of points in the octree, updated after each inserted
+     *         frame.
+     */
+    public int getPointCount() {
+        return mPointCount;
+    }
+
+    public int getNodeCount() {
+        return mNodeCount;
+    }
+
+    /**
+     * @return the number of points dropped because the octree was full or
+     *         they were outside of the root cube.
+     */
+    public long getDroppedPointCount() {
+        return mDroppedPointCount;
+    }
+
+    /**
+     * @return the number of frames dropped because the background thread was
+     *         behind.
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    /**
+     * @return the total time, in nanoseconds, spent inserting frames.
+     */
+    public long getInsertNanos() {
+        return mInsertNanos;
+    }
+
+    /**
+     * @return the number of points picked by the last selection.
+     */
+    public int getSelectedPointCount() {
+        return mSelectedPointCount;
+    }
+
+    /**
+     * @return the time, in nanoseconds, the last selection took.
+     */
+    public long getSelectNanos() {
+        return mSelectNanos;
+    }
+}
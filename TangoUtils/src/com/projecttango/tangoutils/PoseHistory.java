@@ -0,0 +1,182 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils;
+
+import com.projecttango.tangoutils.math.Quat;
+
+/**
+ * Fixed-capacity history of recent device poses, indexed by timestamp. Poses
+ * are kept in primitive ring buffers, so adding and querying never allocate.
+ * A query between two recorded poses interpolates them, linearly for the
+ * translation and spherically for the rotation. This lets a depth frame look up
+ * the pose at its own timestamp without a call into the Tango service.
+ */
+public class PoseHistory {
+
+    private static final int POSE_STRIDE = 7;
+    private static final int ROTATION_OFFSET = 3;
+
+    private final int mCapacity;
+    private final double[] mTimestamps;
+    private final float[] mPoses;
+    private int mHead;
+    private int mSize;
+
+    /**
+     * @param capacity
+     *            the maximum number of poses kept. Older poses are overwritten.
+     */
+    public PoseHistory(int capacity) {
+        mCapacity = capacity;
+        mTimestamps = new double[capacity];
+        mPoses = new float[capacity * POSE_STRIDE];
+    }
+
+    /**
+     * Records a pose. Poses must be added in timestamp order; a pose older
+     * than the newest recorded one (for example after the service restarted)
+     * clears the history first.
+     *
+     * @param timestamp
+     *            the pose timestamp, in seconds.
+     * @param translation
+     *            a three-element array of translation data.
+     * @param rotation
+     *            a four-element array of rotation data (quaternion).
+     */
+    public synchronized void add(double timestamp, double[] translation,
+            double[] rotation) {
+        if (mSize > 0) {
+            double newest = mTimestamps[physicalIndex(mSize - 1)];
+            if (timestamp == newest) {
+                return;
+            }
+            if (timestamp < newest) {
+                clear();
+            }
+        }
+        mTimestamps[mHead] = timestamp;
+        int p = mHead * POSE_STRIDE;
+        mPoses[p] = (float) translation[0];
+        mPoses[p + 1] = (float) translation[1];
+        mPoses[p + 2] = (float) translation[2];
+        mPoses[p + 3] = (float) rotation[0];
+        mPoses[p + 4] = (float) rotation[1];
+        mPoses[p + 5] = (float) rotation[2];
+        mPoses[p + 6] = (float) rotation[3];
+        mHead = (mHead + 1) % mCapacity;
+        if (mSize < mCapacity) {
+            mSize++;
+        }
+    }
+
+    /**
+     * Looks up the pose at the given timestamp, interpolating between the two
+     * recorded poses that bracket it.
+     *
+     * @param timestamp
+     *            the timestamp to look up, in seconds.
+     * @param translation
+     *            a three-element array that receives the translation.
+     * @param rotation
+     *            a four-element array that receives the rotation.
+     * @return false if the timestamp is outside of the recorded range, in
+     *         which case the output arrays are left untouched.
+     */
+    public synchronized boolean getPoseAtTime(double timestamp,
+            float[] translation, float[] rotation) {
+        if (mSize == 0 || timestamp < mTimestamps[physicalIndex(0)]
+                || timestamp > mTimestamps[physicalIndex(mSize - 1)]) {
+            return false;
+        }
+
+        // Find the first recorded pose with a timestamp >= the query.
+        int low = 0;
+        int high = mSize - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mTimestamps[physicalIndex(mid)] < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int after = physicalIndex(low);
+        if (low == 0 || mTimestamps[after] == timestamp) {
+            copyPose(after, translation, rotation);
+            return true;
+        }
+        int before = physicalIndex(low - 1);
+        double t0 = mTimestamps[before];
+        float t = (float) ((timestamp - t0) / (mTimestamps[after] - t0));
+        interpolate(before * POSE_STRIDE, after * POSE_STRIDE, t, translation,
+                rotation);
+        return true;
+    }
+
+    /**
+     * @return the timestamp of the newest recorded pose, or NaN if the history
+     *         is empty.
+     */
+    public synchronized double getNewestTimestamp() {
+        if (mSize == 0) {
+            return Double.NaN;
+        }
+        return mTimestamps[physicalIndex(mSize - 1)];
+    }
+
+    /**
+     * @return the number of recorded poses.
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Removes all recorded poses.
+     */
+    public synchronized void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+
+    private int physicalIndex(int logicalIndex) {
+        return (mHead - mSize + logicalIndex + mCapacity) % mCapacity;
+    }
+
+    private void copyPose(int index, float[] translation, float[] rotation) {
+        int p = index * POSE_STRIDE;
+        translation[0] = mPoses[p];
+        translation[1] = mPoses[p + 1];
+        translation[2] = mPoses[p + 2];
+        rotation[0] = mPoses[p + 3];
+        rotation[1] = mPoses[p + 4];
+        rotation[2] = mPoses[p + 5];
+        rotation[3] = mPoses[p + 6];
+    }
+
+    private void interpolate(int p0, int p1, float t, float[] translation,
+            float[] rotation) {
+        float[] poses = mPoses;
+        translation[0] = poses[p0] + (poses[p1] - poses[p0]) * t;
+        translation[1] = poses[p0 + 1] + (poses[p1 + 1] - poses[p0 + 1]) * t;
+        translation[2] = poses[p0 + 2] + (poses[p1 + 2] - poses[p0 + 2]) * t;
+
+        Quat.slerp(rotation, 0, poses, p0 + ROTATION_OFFSET, poses, p1
+                + ROTATION_OFFSET, t);
+    }
+}
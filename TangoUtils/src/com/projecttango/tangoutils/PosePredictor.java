@@ -0,0 +1,245 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils;
+
+import com.projecttango.tangoutils.math.Quat;
+
+/**
+ * Extrapolates the device pose from a {@link PoseHistory} to a time in the
+ * near future, typically the time at which the frame being drawn reaches the
+ * display. The linear and angular velocities are estimated over a short window
+ * ending at the newest recorded pose and are assumed constant over the
+ * prediction.
+ *
+ * Every prediction is remembered until the real pose for its target time has
+ * been recorded, and the difference between the two is accumulated as the
+ * prediction error. This class is not thread-safe and is meant to be used from
+ * the GL thread only; the history it reads from may be fed from any thread.
+ */
+public class PosePredictor {
+
+    private static final double DEFAULT_HORIZON_S = 0.016;
+    private static final double DEFAULT_VELOCITY_WINDOW_S = 0.03;
+    private static final double DEFAULT_MAX_EXTRAPOLATION_S = 0.1;
+    private static final int PENDING_CAPACITY = 16;
+    private static final int POSE_STRIDE = 7;
+
+    private final PoseHistory mHistory;
+    private double mHorizon = DEFAULT_HORIZON_S;
+    private double mVelocityWindow = DEFAULT_VELOCITY_WINDOW_S;
+    private double mMaxExtrapolation = DEFAULT_MAX_EXTRAPOLATION_S;
+
+    private final float[] mStartTranslation = new float[3];
+    private final float[] mStartRotation = new float[4];
+    private final float[] mEndTranslation = new float[3];
+    private final float[] mEndRotation = new float[4];
+    private final float[] mDeltaRotation = new float[4];
+
+    // Predictions waiting for the real pose at their target time.
+    private final double[] mPendingTimes = new double[PENDING_CAPACITY];
+    private final float[] mPendingPoses = new float[PENDING_CAPACITY
+            * POSE_STRIDE];
+    private int mPendingHead;
+    private int mPendingSize;
+
+    private long mErrorCount;
+    private double mTranslationErrorSum;
+    private double mRotationErrorSum;
+    private float mLastTranslationError;
+    private float mLastRotationError;
+
+    public PosePredictor(PoseHistory history) {
+        mHistory = history;
+    }
+
+    /**
+     * Predicts the pose at the given time.
+     *
+     * @param targetTime
+     *            the time to predict the pose at, in the timestamp base of the
+     *            history. It is clamped to at most the maximum extrapolation
+     *            after the newest recorded pose.
+     * @param translation
+     *            a three-element array that receives the translation.
+     * @param rotation
+     *            a four-element array that receives the rotation.
+     * @return false if the history is empty, in which case the output arrays
+     *         are left untouched.
+     */
+    public boolean predict(double targetTime, float[] translation,
+            float[] rotation) {
+        double newest = mHistory.getNewestTimestamp();
+        if (Double.isNaN(newest)
+                || !mHistory.getPoseAtTime(newest, mEndTranslation,
+                        mEndRotation)) {
+            return false;
+        }
+        double dt = Math.max(0.0,
+                Math.min(targetTime - newest, mMaxExtrapolation));
+        if (dt == 0.0
+                || !mHistory.getPoseAtTime(newest - mVelocityWindow,
+                        mStartTranslation, mStartRotation)) {
+            // Not enough history to estimate a velocity, use the newest pose.
+            System.arraycopy(mEndTranslation, 0, translation, 0, 3);
+            System.arraycopy(mEndRotation, 0, rotation, 0, 4);
+            return true;
+        }
+        float k = (float) (dt / mVelocityWindow);
+
+        translation[0] = mEndTranslation[0]
+                + (mEndTranslation[0] - mStartTranslation[0]) * k;
+        translation[1] = mEndTranslation[1]
+                + (mEndTranslation[1] - mStartTranslation[1]) * k;
+        translation[2] = mEndTranslation[2]
+                + (mEndTranslation[2] - mStartTranslation[2]) * k;
+        extrapolateRotation(mStartRotation, mEndRotation, k, rotation);
+
+        remember(newest + dt, translation, rotation);
+        return true;
+    }
+
+    /**
+     * Compares the remembered predictions with the real poses recorded since,
+     * and accumulates the prediction error for those whose target time is now
+     * covered by the history.
+     */
+    public void updatePredictionError() {
+        double newest = mHistory.getNewestTimestamp();
+        while (mPendingSize > 0) {
+            int oldest = (mPendingHead - mPendingSize + PENDING_CAPACITY)
+                    % PENDING_CAPACITY;
+            double time = mPendingTimes[oldest];
+            if (Double.isNaN(newest) || time > newest) {
+                return;
+            }
+            mPendingSize--;
+            if (!mHistory.getPoseAtTime(time, mEndTranslation, mEndRotation)) {
+                continue;
+            }
+            int p = oldest * POSE_STRIDE;
+            float dx = mPendingPoses[p] - mEndTranslation[0];
+            float dy = mPendingPoses[p + 1] - mEndTranslation[1];
+            float dz = mPendingPoses[p + 2] - mEndTranslation[2];
+            mLastTranslationError = (float) Math.sqrt(dx * dx + dy * dy + dz
+                    * dz);
+            mLastRotationError = Quat.angleBetween(mPendingPoses, p + 3,
+                    mEndRotation, 0);
+            mTranslationErrorSum += mLastTranslationError;
+            mRotationErrorSum += mLastRotationError;
+            mErrorCount++;
+        }
+    }
+
+    /**
+     * @param horizon
+     *            how far ahead of the frame start poses are predicted, in
+     *            seconds. This should match the time it takes a frame to reach
+     *            the display.
+     */
+    public void setHorizon(double horizon) {
+        mHorizon = horizon;
+    }
+
+    public double getHorizon() {
+        return mHorizon;
+    }
+
+    /**
+     * @param velocityWindow
+     *            the time span, in seconds, over which velocities are estimated.
+     */
+    public void setVelocityWindow(double velocityWindow) {
+        mVelocityWindow = velocityWindow;
+    }
+
+    /**
+     * @param maxExtrapolation
+     *            the maximum time, in seconds, a pose is extrapolated past the
+     *            newest recorded pose.
+     */
+    public void setMaxExtrapolation(double maxExtrapolation) {
+        mMaxExtrapolation = maxExtrapolation;
+    }
+
+    /**
+     * @return the number of predictions compared with a real pose.
+     */
+    public long getPredictionErrorCount() {
+        return mErrorCount;
+    }
+
+    /**
+     * @return the mean translation error of the predictions, in meters.
+     */
+    public float getMeanTranslationError() {
+        return mErrorCount == 0 ? 0f
+                : (float) (mTranslationErrorSum / mErrorCount);
+    }
+
+    /**
+     * @return the mean rotation error of the predictions, in radians.
+     */
+    public float getMeanRotationError() {
+        return mErrorCount == 0 ? 0f
+                : (float) (mRotationErrorSum / mErrorCount);
+    }
+
+    /**
+     * @return the translation error of the last evaluated prediction, in
+     *         meters.
+     */
+    public float getLastTranslationError() {
+        return mLastTranslationError;
+    }
+
+    /**
+     * @return the rotation error of the last evaluated prediction, in radians.
+     */
+    public float getLastRotationError() {
+        return mLastRotationError;
+    }
+
+    private void remember(double time, float[] translation, float[] rotation) {
+        mPendingTimes[mPendingHead] = time;
+        int p = mPendingHead * POSE_STRIDE;
+        mPendingPoses[p] = translation[0];
+        mPendingPoses[p + 1] = translation[1];
+        mPendingPoses[p + 2] = translation[2];
+        mPendingPoses[p + 3] = rotation[0];
+        mPendingPoses[p + 4] = rotation[1];
+        mPendingPoses[p + 5] = rotation[2];
+        mPendingPoses[p + 6] = rotation[3];
+        mPendingHead = (mPendingHead + 1) % PENDING_CAPACITY;
+        if (mPendingSize < PENDING_CAPACITY) {
+            mPendingSize++;
+        }
+    }
+
+    /**
+     * Applies the rotation from q0 to q1, scaled by k, on top of q1.
+     */
+    private void extrapolateRotation(float[] q0, float[] q1, float k,
+            float[] result) {
+        float[] delta = mDeltaRotation;
+        // delta = q1 * conjugate(q0)
+        Quat.conjugate(delta, 0, q0, 0);
+        Quat.multiply(delta, 0, q1, 0, delta, 0);
+        Quat.scaleAngle(delta, 0, delta, 0, k);
+        Quat.multiply(result, 0, delta, 0, q1, 0);
+        Quat.normalize(result, 0);
+    }
+}
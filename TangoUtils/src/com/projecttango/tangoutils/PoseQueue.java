@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils;
+
+/**
+ * Lock-free queue of poses from a single producer thread to a single consumer
+ * thread. Unlike a {@link TripleBuffer}, which only keeps the newest pose, it
+ * delivers every pose in order, for consumers such as trajectories that need
+ * all of them. The poses are copied into pre-allocated slots; when the
+ * consumer falls a full queue behind, new poses are dropped and counted.
+ */
+public class PoseQueue {
+
+    private final PoseSnapshot[] mSlots;
+    // Each count is only written by one side, and publishes the slots it
+    // covers to the other side.
+    private volatile long mWriteCount;
+    private volatile long mReadCount;
+    private volatile long mDropCount;
+
+    /**
+     * @param capacity
+     *            the number of poses the consumer can fall behind.
+     */
+    public PoseQueue(int capacity) {
+        mSlots = new PoseSnapshot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mSlots[i] = new PoseSnapshot();
+        }
+    }
+
+    /**
+     * Adds a pose at the end of the queue. Only call this from the producer
+     * thread.
+     *
+     * @return false if the queue is full and the pose was dropped.
+     */
+    public boolean offer(double timestamp, double[] translation,
+            double[] rotation, int baseFrame) {
+        long write = mWriteCount;
+        if (write - mReadCount == mSlots.length) {
+            mDropCount++;
+            return false;
+        }
+        mSlots[(int) (write % mSlots.length)].set(timestamp, translation,
+                rotation, baseFrame);
+        mWriteCount = write + 1;
+        return true;
+    }
+
+    /**
+     * Takes the oldest pose of the queue. Only call this from the consumer
+     * thread.
+     *
+     * @param dest
+     *            the snapshot that receives the pose.
+     * @return false if the queue is empty.
+     */
+    public boolean poll(PoseSnapshot dest) {
+        long read = mReadCount;
+        if (read == mWriteCount) {
+            return false;
+        }
+        PoseSnapshot slot = mSlots[(int) (read % mSlots.length)];
+        dest.timestamp = slot.timestamp;
+        dest.arrivalNanos = slot.arrivalNanos;
+        dest.baseFrame = slot.baseFrame;
+        System.arraycopy(slot.translation, 0, dest.translation, 0, 3);
+        System.arraycopy(slot.rotation, 0, dest.rotation, 0, 4);
+        mReadCount = read + 1;
+        return true;
+    }
+
+    /**
+     * @return the number of poses waiting in the queue.
+     */
+    public int size() {
+        return (int) (mWriteCount - mReadCount);
+    }
+
+    /**
+     * @return the number of poses dropped because the queue was full.
+     */
+    public long getDropCount() {
+        return mDropCount;
+    }
+}
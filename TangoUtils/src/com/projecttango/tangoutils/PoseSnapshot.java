@@ -0,0 +1,55 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils;
+
+/**
+ * Pre-allocated copy of a device pose, handed from the Tango callback thread
+ * to the GL thread through a {@link TripleBuffer}.
+ */
+public class PoseSnapshot {
+
+    /**
+     * Base frame of a pose recorded without one.
+     */
+    public static final int UNKNOWN_FRAME = -1;
+
+    /** The pose timestamp, in seconds. */
+    public double timestamp = Double.NaN;
+    /** The {@link System#nanoTime()} at which the pose was recorded. */
+    public long arrivalNanos;
+    /** The base frame of the pose, one of the Tango coordinate frames. */
+    public int baseFrame = UNKNOWN_FRAME;
+    public final float[] translation = new float[3];
+    public final float[] rotation = new float[4];
+
+    /**
+     * Copies a pose into this snapshot and stamps it with the current time.
+     */
+    public void set(double timestamp, double[] translation, double[] rotation,
+            int baseFrame) {
+        this.timestamp = timestamp;
+        this.arrivalNanos = System.nanoTime();
+        this.baseFrame = baseFrame;
+        this.translation[0] = (float) translation[0];
+        this.translation[1] = (float) translation[1];
+        this.translation[2] = (float) translation[2];
+        this.rotation[0] = (float) rotation[0];
+        this.rotation[1] = (float) rotation[1];
+        this.rotation[2] = (float) rotation[2];
+        this.rotation[3] = (float) rotation[3];
+    }
+}
@@ -15,10 +15,12 @@
 
 package com.projecttango.tangoutils;
 
-import android.opengl.Matrix;
 import android.util.Log;
 import android.view.MotionEvent;
 
+import com.projecttango.tangoutils.math.Mat4;
+import com.projecttango.tangoutils.math.RigidTransform;
+
 public class Renderer {
 
     protected static final int FIRST_PERSON = 0;
@@ -27,6 +29,9 @@ public class Renderer {
     protected static final int THIRD_PERSON_FOV = 65;
     protected static final int TOPDOWN_FOV = 65;
     protected static final int MATRIX_4X4 = 16;
+    // About two and a half seconds of poses at the 100Hz pose rate.
+    private static final int POSE_HISTORY_CAPACITY = 256;
+    private static final double NANOS_TO_SECONDS = 1e-9;
 
     protected static final float CAMERA_FOV = 37.8f;
     protected static final float CAMERA_NEAR = 0.01f;
@@ -50,6 +55,23 @@ public class Renderer {
     private float mTouch1X, mTouch2X, mTouch1Y, mTouch2Y, mTouchStartDistance,
             mTouchMoveDistance, mStartCameraRadius;
 
+    // Latest device pose received from the Tango callback thread. It is only
+    // recorded here and turned into matrices once per frame on the GL thread.
+    private final TripleBuffer<PoseSnapshot> mPoseBuffer =
+            new TripleBuffer<PoseSnapshot>(new PoseSnapshot(),
+                    new PoseSnapshot(), new PoseSnapshot());
+    // The newest pose acquired by the GL thread, and whether it was acquired
+    // for the current frame.
+    private PoseSnapshot mLatestPose;
+    private boolean mIsLatestPoseNew;
+    private final float[] mFrameTranslation = new float[3];
+    private final float[] mFrameRotation = new float[4];
+
+    private final PoseHistory mPoseHistory = new PoseHistory(
+            POSE_HISTORY_CAPACITY);
+    private final PosePredictor mPosePredictor = new PosePredictor(mPoseHistory);
+    private boolean mIsPosePredictionEnabled;
+
     public Renderer() {
         mModelMatCalculator = new ModelMatCalculator();
         mRotationX = (float) Math.PI / 4;
@@ -65,31 +87,180 @@ public class Renderer {
         mDevicePosition[2] = 0;
     }
 
+    /**
+     * Records the latest device pose. Only the pose is copied here; the model
+     * and view matrices are computed on the GL thread by
+     * {@link #updateFrameMatrices()}, so poses arriving faster than frames are
+     * coalesced. The pose is handed over through a {@link TripleBuffer}, so
+     * this never blocks on the GL thread. Must always be called from the same
+     * thread.
+     * 
+     * @param timestamp
+     *            the pose timestamp, in seconds.
+     * @param translation
+     *            a three-element array of translation data.
+     * @param rotation
+     *            a four-element array of rotation data (quaternion).
+     */
+    public void setDevicePose(double timestamp, double[] translation,
+            double[] rotation) {
+        setDevicePose(timestamp, translation, rotation,
+                PoseSnapshot.UNKNOWN_FRAME);
+    }
+
+    /**
+     * Same as {@link #setDevicePose(double, double[], double[])}, but also
+     * records the base frame of the pose, which subclasses can read back with
+     * {@link #getFramePose()}.
+     * 
+     * @param baseFrame
+     *            the base frame of the pose, one of the Tango coordinate
+     *            frames.
+     */
+    public void setDevicePose(double timestamp, double[] translation,
+            double[] rotation, int baseFrame) {
+        setDevicePose(timestamp, translation, rotation, baseFrame, true);
+    }
+
+    /**
+     * Same as {@link #setDevicePose(double, double[], double[], int)}, but
+     * keeps poses that are not valid out of the pose prediction. Such a pose
+     * also clears the prediction history, so that the jump back to the origin
+     * after a tracking reset is not taken for a velocity.
+     * 
+     * @param isValid
+     *            whether the status of the pose is valid.
+     */
+    public void setDevicePose(double timestamp, double[] translation,
+            double[] rotation, int baseFrame, boolean isValid) {
+        if (isValid) {
+            mPoseHistory.add(timestamp, translation, rotation);
+        } else if (mPoseHistory.size() > 0) {
+            mPoseHistory.clear();
+        }
+        mPoseBuffer.getWriteBuffer().set(timestamp, translation, rotation,
+                baseFrame);
+        mPoseBuffer.publish();
+        onDevicePose(timestamp, translation, rotation, baseFrame);
+    }
+
+    /**
+     * Called by {@link #setDevicePose} for every pose, on the thread that
+     * records them, while the matrices only see the newest pose of each frame.
+     * Subclasses that need every pose, such as to extend a trajectory,
+     * override this to queue them for the GL thread, for example through a
+     * {@link PoseQueue}. Must not block.
+     */
+    protected void onDevicePose(double timestamp, double[] translation,
+            double[] rotation, int baseFrame) {
+    }
+
+    /**
+     * Applies the latest pose recorded by {@link #setDevicePose} to the model
+     * matrix, if a new one arrived since the last call, and updates the view
+     * matrix. With pose prediction enabled, the pose is instead extrapolated
+     * to the expected display time of the frame. Must be called on the GL
+     * thread once per frame, before drawing.
+     * 
+     * @return true if the model matrix changed.
+     */
+    public boolean updateFrameMatrices() {
+        PoseSnapshot pose = mPoseBuffer.acquire();
+        mIsLatestPoseNew = pose != null;
+        if (mIsLatestPoseNew) {
+            mLatestPose = pose;
+            System.arraycopy(pose.translation, 0, mFrameTranslation, 0, 3);
+            System.arraycopy(pose.rotation, 0, mFrameRotation, 0, 4);
+        }
+        boolean isModelDirty = mIsLatestPoseNew;
+        if (mIsPosePredictionEnabled && mLatestPose != null) {
+            // Map the frame time to the pose time base using the arrival time
+            // of the latest pose, then look ahead by the prediction horizon.
+            double displayTime = mLatestPose.timestamp
+                    + (System.nanoTime() - mLatestPose.arrivalNanos)
+                    * NANOS_TO_SECONDS + mPosePredictor.getHorizon();
+            mPosePredictor.updatePredictionError();
+            if (mPosePredictor.predict(displayTime, mFrameTranslation,
+                    mFrameRotation)) {
+                isModelDirty = true;
+            }
+        }
+        if (isModelDirty) {
+            mModelMatCalculator.updateModelMatrix(mFrameTranslation,
+                    mFrameRotation);
+        }
+        updateViewMatrix();
+        return isModelDirty;
+    }
+
+    /**
+     * Enables or disables extrapolating the device pose to the expected
+     * display time of each frame, which hides part of the latency between a
+     * pose and the frame that shows it.
+     * 
+     * @param isEnabled
+     *            whether poses are predicted.
+     */
+    public void setPosePredictionEnabled(boolean isEnabled) {
+        mIsPosePredictionEnabled = isEnabled;
+    }
+
+    /**
+     * @return the pose predictor, used to configure the prediction horizon and
+     *         to read the measured prediction error.
+     */
+    public PosePredictor getPosePredictor() {
+        return mPosePredictor;
+    }
+
+    /**
+     * @return the raw pose applied by the last call to
+     *         {@link #updateFrameMatrices()}, or null if no new pose arrived
+     *         since the previous frame. Only valid on the GL thread, until the
+     *         next frame.
+     */
+    protected PoseSnapshot getFramePose() {
+        return mIsLatestPoseNew ? mLatestPose : null;
+    }
+
+    /**
+     * @return the number of poses recorded with {@link #setDevicePose}.
+     */
+    public long getPoseUpdateCount() {
+        return mPoseBuffer.getPublishCount();
+    }
+
+    /**
+     * @return the number of recorded poses that were overwritten by a newer
+     *         pose before a frame could apply them.
+     */
+    public long getCoalescedPoseCount() {
+        return mPoseBuffer.getDropCount();
+    }
+
+    /**
+     * @return the buffer poses are handed to the GL thread through, for its
+     *         timing counters.
+     */
+    public TripleBuffer<PoseSnapshot> getPoseBuffer() {
+        return mPoseBuffer;
+    }
+
     /**
      * Update the view matrix of the Renderer to follow the position of the
      * device in the current perspective.
      */
     public void updateViewMatrix() {
-        mDevicePosition = mModelMatCalculator.getTranslation();
+        mModelMatCalculator.getTranslation(mDevicePosition);
 
         switch (viewId) {
         case FIRST_PERSON:
-            float[] invertModelMat = new float[MATRIX_4X4];
-            Matrix.setIdentityM(invertModelMat, 0);
-
-            float[] temporaryMatrix = new float[MATRIX_4X4];
-            Matrix.setIdentityM(temporaryMatrix, 0);
-
-            Matrix.setIdentityM(mViewMatrix, 0);
-            Matrix.invertM(invertModelMat, 0,
+            RigidTransform.invert(mViewMatrix, 0,
                     mModelMatCalculator.getModelMatrix(), 0);
-            Matrix.multiplyMM(temporaryMatrix, 0, mViewMatrix, 0,
-                    invertModelMat, 0);
-            System.arraycopy(temporaryMatrix, 0, mViewMatrix, 0, 16);
             break;
         case THIRD_PERSON:
 
-            Matrix.setLookAtM(mViewMatrix, 0, mDevicePosition[0]
+            Mat4.setLookAt(mViewMatrix, 0, mDevicePosition[0]
                     + mCameraPosition[0], mCameraPosition[1]
                     + mDevicePosition[1], mCameraPosition[2]
                     + mDevicePosition[2], mDevicePosition[0],
@@ -97,7 +268,7 @@ public class Renderer {
             break;
         case TOP_DOWN:
             // Matrix.setIdentityM(mViewMatrix, 0);
-            Matrix.setLookAtM(mViewMatrix, 0, mDevicePosition[0]
+            Mat4.setLookAt(mViewMatrix, 0, mDevicePosition[0]
                     + mCameraPosition[0], mCameraPosition[1],
                     mCameraPosition[2] + mDevicePosition[2], mDevicePosition[0]
                             + mCameraPosition[0], mCameraPosition[1] - 5,
@@ -265,7 +436,7 @@ public class Renderer {
 
     public void setFirstPersonView() {
         viewId = FIRST_PERSON;
-        Matrix.perspectiveM(mProjectionMatrix, 0, CAMERA_FOV, mCameraAspect,
+        Mat4.perspective(mProjectionMatrix, 0, CAMERA_FOV, mCameraAspect,
                 CAMERA_NEAR, CAMERA_FAR);
     }
 
@@ -276,7 +447,7 @@ public class Renderer {
         mCameraPosition[2] = 5;
         mRotationX = mRotationY = (float) (Math.PI / 4);
         mCameraOrbitRadius = 5.0f;
-        Matrix.perspectiveM(mProjectionMatrix, 0, THIRD_PERSON_FOV,
+        Mat4.perspective(mProjectionMatrix, 0, THIRD_PERSON_FOV,
                 mCameraAspect, CAMERA_NEAR, CAMERA_FAR);
     }
 
@@ -285,7 +456,7 @@ public class Renderer {
         mCameraPosition[0] = 0;
         mCameraPosition[1] = 5;
         mCameraPosition[2] = 0;
-        Matrix.perspectiveM(mProjectionMatrix, 0, TOPDOWN_FOV, mCameraAspect,
+        Mat4.perspective(mProjectionMatrix, 0, TOPDOWN_FOV, mCameraAspect,
                 CAMERA_NEAR, CAMERA_FAR);
     }
 
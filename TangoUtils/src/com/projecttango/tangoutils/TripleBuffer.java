@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free handoff of snapshots from a single producer thread to a single
+ * consumer thread, such as from a Tango callback thread to the GL thread.
+ * Three pre-allocated slots rotate between the producer, the consumer and a
+ * shared middle position: the producer fills its slot and swaps it with the
+ * middle one, the consumer swaps its slot with the middle one when a fresh
+ * snapshot is there. Neither side ever waits for the other; snapshots
+ * published faster than they are consumed are dropped, keeping only the
+ * newest.
+ *
+ * @param <T>
+ *            the type of the snapshots.
+ */
+public class TripleBuffer<T> {
+
+    private static final int INDEX_MASK = 0x3;
+    private static final int FRESH = 0x4;
+
+    private final Object[] mSlots;
+    // Index of the middle slot, with the FRESH bit set when it holds a
+    // snapshot that the consumer has not acquired yet.
+    private final AtomicInteger mMiddle = new AtomicInteger(1);
+    private int mWriteIndex = 0;
+    private int mReadIndex = 2;
+
+    // Each counter is only written by one side.
+    private volatile long mPublishCount;
+    private volatile long mDropCount;
+    private volatile long mPublishNanos;
+    private volatile long mAcquireCount;
+    private volatile long mAcquireNanos;
+
+    /**
+     * @param first
+     *            the first slot, initially owned by the producer.
+     * @param second
+     *            the second slot.
+     * @param third
+     *            the third slot, initially owned by the consumer.
+     */
+    public TripleBuffer(T first, T second, T third) {
+        mSlots = new Object[] { first, second, third };
+    }
+
+    /**
+     * @return the slot owned by the producer, to be filled before calling
+     *         {@link #publish()}. Only call this from the producer thread.
+     */
+    @SuppressWarnings("unchecked")
+    public T getWriteBuffer() {
+        return (T) mSlots[mWriteIndex];
+    }
+
+    /**
+     * Hands the filled write buffer to the consumer and takes back another
+     * slot as the next write buffer. Only call this from the producer thread.
+     */
+    public void publish() {
+        long start = System.nanoTime();
+        int previous = mMiddle.getAndSet(mWriteIndex | FRESH);
+        mWriteIndex = previous & INDEX_MASK;
+        if ((previous & FRESH) != 0) {
+            mDropCount++;
+        }
+        mPublishCount++;
+        mPublishNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Takes the newest published snapshot, if there is one the consumer has
+     * not seen yet. The snapshot stays valid until the next successful call.
+     * Only call this from the consumer thread.
+     *
+     * @return the newest snapshot, or null if nothing was published since the
+     *         last call.
+     */
+    @SuppressWarnings("unchecked")
+    public T acquire() {
+        if ((mMiddle.get() & FRESH) == 0) {
+            return null;
+        }
+        long start = System.nanoTime();
+        int previous = mMiddle.getAndSet(mReadIndex);
+        mReadIndex = previous & INDEX_MASK;
+        mAcquireCount++;
+        mAcquireNanos += System.nanoTime() - start;
+        return (T) mSlots[mReadIndex];
+    }
+
+    /**
+     * @return the number of published snapshots.
+     */
+    public long getPublishCount() {
+        return mPublishCount;
+    }
+
+    /**
+     * @return the number of published snapshots that were replaced by a newer
+     *         one before the consumer acquired them.
+     */
+    public long getDropCount() {
+        return mDropCount;
+    }
+
+    /**
+     * @return the number of acquired snapshots.
+     */
+    public long getAcquireCount() {
+        return mAcquireCount;
+    }
+
+    /**
+     * @return the total time, in nanoseconds, the producer spent in
+     *         {@link #publish()}. There is nothing to wait for, so this only
+     *         grows by the cost of the swap itself.
+     */
+    public long getPublishNanos() {
+        return mPublishNanos;
+    }
+
+    /**
+     * @return the total time, in nanoseconds, the consumer spent in
+     *         {@link #acquire()} taking a snapshot.
+     */
+    public long getAcquireNanos() {
+        return mAcquireNanos;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Voxel-grid downsampling of depth frames. The points of a frame are binned
+ * into cubic cells of a configurable leaf size and every occupied cell is
+ * replaced by the centroid of its points. The hash table, the accumulators and
+ * the output buffer are allocated once and reused for every frame, so
+ * filtering allocates nothing. Not thread safe; typically used on the Tango
+ * callback thread.
+ */
+public class VoxelGridFilter {
+
+    private static final int POINT_TO_XYZ = 3;
+    private static final int BYTES_PER_FLOAT = 4;
+
+    private final LongIntHashMap mCells;
+    private final float[] mSums;
+    private final int[] mCounts;
+    private final FloatBuffer mOutput;
+    private float mLeafSize;
+    private float mInverseLeafSize;
+
+    // Only written by the filtering thread.
+    private volatile long mFrameCount;
+    private volatile long mInputPointCount;
+    private volatile long mOutputPointCount;
+    private volatile long mFilterNanos;
+
+    /**
+     * @param maxPoints
+     *            the largest number of points in a frame.
+     * @param leafSize
+     *            the edge length of each cell, in meters.
+     */
+    public VoxelGridFilter(int maxPoints, float leafSize) {
+        mCells = new LongIntHashMap(maxPoints);
+        mSums = new float[maxPoints * POINT_TO_XYZ];
+        mCounts = new int[maxPoints];
+        mOutput = ByteBuffer.allocateDirect(maxPoints * POINT_TO_XYZ * BYTES_PER_FLOAT)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        setLeafSize(leafSize);
+    }
+
+    /**
+     * Downsamples a frame into the output buffer, see {@link #getOutput()}.
+     *
+     * @param points
+     *            the XYZ coordinates of the points, from position 0.
+     * @param pointCount
+     *            the number of points in the buffer.
+     * @return the number of points written to the output buffer.
+     */
+    public int filter(FloatBuffer points, int pointCount) {
+        long start = System.nanoTime();
+        pointCount = Math.min(pointCount, mCounts.length);
+        mCells.clear();
+        int cellCount = 0;
+        for (int i = 0; i < pointCount; i++) {
+            int p = i * POINT_TO_XYZ;
+            float x = points.get(p);
+            float y = points.get(p + 1);
+            float z = points.get(p + 2);
+            long key = VoxelMap.packKey((int) Math.floor(x * mInverseLeafSize),
+                    (int) Math.floor(y * mInverseLeafSize),
+                    (int) Math.floor(z * mInverseLeafSize));
+            int cell = mCells.get(key);
+            int s;
+            if (cell == LongIntHashMap.NO_VALUE) {
+                cell = cellCount++;
+                mCells.put(key, cell);
+                s = cell * POINT_TO_XYZ;
+                mSums[s] = x;
+                mSums[s + 1] = y;
+                mSums[s + 2] = z;
+                mCounts[cell] = 1;
+            } else {
+                s = cell * POINT_TO_XYZ;
+                mSums[s] += x;
+                mSums[s + 1] += y;
+                mSums[s + 2] += z;
+                mCounts[cell]++;
+            }
+        }
+
+        mOutput.clear();
+        for (int cell = 0; cell < cellCount; cell++) {
+            int s = cell * POINT_TO_XYZ;
+            float inverseCount = 1.0f / mCounts[cell];
+            mOutput.put(mSums[s] * inverseCount);
+            mOutput.put(mSums[s + 1] * inverseCount);
+            mOutput.put(mSums[s + 2] * inverseCount);
+        }
+        mOutput.flip();
+
+        mFrameCount++;
+        mInputPointCount += pointCount;
+        mOutputPointCount += cellCount;
+        mFilterNanos += System.nanoTime() - start;
+        return cellCount;
+    }
+
+    /**
+     * @return the points of the last filtered frame, from position 0. The
+     *         buffer is overwritten by the next call to
+     *         {@link #filter(FloatBuffer, int)}.
+     */
+    public FloatBuffer getOutput() {
+        return mOutput;
+    }
+
+    /**
+     * Sets the edge length of each cell, taking effect from the next frame.
+     *
+     * @param leafSize
+     *            the edge length, in meters.
+     */
+    public void setLeafSize(float leafSize) {
+        if (!(leafSize > 0)) {
+            throw new IllegalArgumentException("Leaf size must be positive: " + leafSize);
+        }
+        mLeafSize = leafSize;
+        mInverseLeafSize = 1.0f / leafSize;
+    }
+
+    public float getLeafSize() {
+        return mLeafSize;
+    }
+
+    /**
+     * @return the number of filtered frames.
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return the total number of points given to the filter.
+     */
+    public long getInputPointCount() {
+        return mInputPointCount;
+    }
+
+    /**
+     * @return the total number of points produced by the filter.
+     */
+    public long getOutputPointCount() {
+        return mOutputPointCount;
+    }
+
+    /**
+     * @return the total time, in nanoseconds, spent filtering.
+     */
+    public long getFilterNanos() {
+        return mFilterNanos;
+    }
+}
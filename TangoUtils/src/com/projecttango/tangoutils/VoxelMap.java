@@ -0,0 +1,359 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Persistent world-space map of the points seen by the depth sensor. Each
+ * depth frame is transformed by its point cloud model matrix and its points
+ * are accumulated into voxels of a fixed size, keyed by their packed integer
+ * coordinates in a {@link LongIntHashMap}. Every voxel keeps the sum and count
+ * of its points, so it is drawn at their centroid.
+ *
+ * Voxels are grouped into cubic blocks of {@link #BLOCK_SIZE} voxels per edge.
+ * Blocks that received points are marked dirty, so a renderer only re-uploads
+ * the blocks that changed, see {@link #drainDirtyBlocks(List)}.
+ *
+ * Frames are inserted on one thread, typically the background thread of a
+ * {@link PointOctree}, see {@link PointOctree#setVoxelMap(VoxelMap)}, and
+ * drained on the rendering thread. An insert holds the map lock for a whole
+ * frame, so the drain does not wait for it: it returns nothing while a frame
+ * is being inserted and picks the changes up on a later call.
+ */
+public class VoxelMap {
+
+    /** Number of voxels along each edge of a block. */
+    public static final int BLOCK_SIZE = 16;
+
+    // Sums, count and block of a voxel. These arrays never grow past the
+    // largest map, but hold the old and the new copy while growing.
+    private static final int VOXEL_BYTES = 3 * 4 + 4 + 4;
+    // Index and vertex of a voxel in its block. The block arrays double, so
+    // up to half of them is unused.
+    private static final int BLOCK_ENTRY_BYTES = 4 + 3 * 4;
+    // Key and value of a hash table slot. The table is a power of two at most
+    // half full, so it has 2 to 4 slots per voxel, and 6 while it doubles.
+    private static final int HASH_SLOT_BYTES = 8 + 4;
+
+    /**
+     * Upper bound of the memory used by each voxel of a full map, in bytes,
+     * including the copies held while an array grows. Use it to derive the
+     * largest number of voxels from a memory budget.
+     */
+    public static final int BYTES_PER_VOXEL = 2 * VOXEL_BYTES + 2 * BLOCK_ENTRY_BYTES
+            + 6 * HASH_SLOT_BYTES;
+
+    private static final int BLOCK_SHIFT = 4;
+    private static final int COORDINATE_BITS = 21;
+    private static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+    private static final int POINT_TO_XYZ = 3;
+    private static final int INITIAL_VOXELS = 4096;
+
+    private final float mResolution;
+    private final float mInverseResolution;
+    private final int mMaxVoxels;
+
+    private final LongIntHashMap mVoxelIndex;
+    private float[] mSums;
+    private int[] mCounts;
+    private int[] mVoxelBlocks;
+    private volatile int mVoxelCount;
+
+    private final LongIntHashMap mBlockIndex;
+    private final ArrayList<Block> mBlocks = new ArrayList<Block>();
+    private final ArrayList<Block> mDirtyBlocks = new ArrayList<Block>();
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    private volatile long mInsertedPointCount;
+    private volatile long mDroppedPointCount;
+
+    /**
+     * A cubic block of voxels, uploaded and drawn as a unit.
+     */
+    public static class Block {
+        private final int mId;
+        private int[] mVoxels = new int[64];
+        private int mVoxelCount;
+        private boolean mDirty;
+        // Written by drainDirtyBlocks() and only read by its caller.
+        private float[] mVertices = new float[0];
+        private int mVertexCount;
+
+        Block(int id) {
+            mId = id;
+        }
+
+        /**
+         * @return the index of the block. Blocks are numbered from 0 in the
+         *         order they are created.
+         */
+        public int getId() {
+            return mId;
+        }
+
+        /**
+         * @return the XYZ centroids of the voxels of the block, as of the last
+         *         drain that returned it.
+         */
+        public float[] getVertices() {
+            return mVertices;
+        }
+
+        /**
+         * @return the number of vertices in {@link #getVertices()}.
+         */
+        public int getVertexCount() {
+            return mVertexCount;
+        }
+    }
+
+    /**
+     * @param resolution
+     *            the edge length of each voxel, in meters.
+     * @param maxVoxels
+     *            the largest number of voxels the map holds. Points falling in
+     *            new voxels once the map is full are dropped. Use
+     *            {@link #BYTES_PER_VOXEL} to derive it from a memory budget.
+     */
+    public VoxelMap(float resolution, int maxVoxels) {
+        mResolution = resolution;
+        mInverseResolution = 1.0f / resolution;
+        mMaxVoxels = maxVoxels;
+        int initialVoxels = Math.min(INITIAL_VOXELS, maxVoxels);
+        mVoxelIndex = new LongIntHashMap(initialVoxels);
+        mBlockIndex = new LongIntHashMap(64);
+        mSums = new float[initialVoxels * POINT_TO_XYZ];
+        mCounts = new int[initialVoxels];
+        mVoxelBlocks = new int[initialVoxels];
+    }
+
+    /**
+     * Accumulates a depth frame into the map.
+     *
+     * @param points
+     *            the XYZ coordinates of the points in the depth camera frame,
+     *            from position 0.
+     * @param pointCount
+     *            the number of points in the buffer.
+     * @param modelMatrix
+     *            the point cloud model matrix of the frame, mapping the
+     *            points to world space.
+     */
+    public void insert(FloatBuffer points, int pointCount, float[] modelMatrix) {
+        float[] m = modelMatrix;
+        long dropped = 0;
+        mLock.lock();
+        try {
+            for (int i = 0; i < pointCount; i++) {
+                int p = i * POINT_TO_XYZ;
+                float x = points.get(p);
+                float y = points.get(p + 1);
+                float z = points.get(p + 2);
+                float wx = m[0] * x + m[4] * y + m[8] * z + m[12];
+                float wy = m[1] * x + m[5] * y + m[9] * z + m[13];
+                float wz = m[2] * x + m[6] * y + m[10] * z + m[14];
+                if (!insertPoint(wx, wy, wz)) {
+                    dropped++;
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+        mInsertedPointCount += pointCount - dropped;
+        mDroppedPointCount += dropped;
+    }
+
+    /**
+     * Accumulates a single world-space point into the map.
+     *
+     * @return false if the point fell in a new voxel and the map is full.
+     */
+    private boolean insertPoint(float x, float y, float z) {
+        int vx = (int) Math.floor(x * mInverseResolution);
+        int vy = (int) Math.floor(y * mInverseResolution);
+        int vz = (int) Math.floor(z * mInverseResolution);
+        long key = packKey(vx, vy, vz);
+        int voxel = mVoxelIndex.get(key);
+        if (voxel == LongIntHashMap.NO_VALUE) {
+            if (mVoxelCount == mMaxVoxels) {
+                return false;
+            }
+            voxel = mVoxelCount++;
+            ensureVoxelCapacity(mVoxelCount);
+            mVoxelIndex.put(key, voxel);
+            Block block = getOrCreateBlock(vx >> BLOCK_SHIFT, vy >> BLOCK_SHIFT,
+                    vz >> BLOCK_SHIFT);
+            if (block.mVoxelCount == block.mVoxels.length) {
+                int[] voxels = new int[block.mVoxels.length * 2];
+                System.arraycopy(block.mVoxels, 0, voxels, 0, block.mVoxelCount);
+                block.mVoxels = voxels;
+            }
+            block.mVoxels[block.mVoxelCount++] = voxel;
+            mVoxelBlocks[voxel] = block.mId;
+        }
+        markDirty(mBlocks.get(mVoxelBlocks[voxel]));
+        int s = voxel * POINT_TO_XYZ;
+        mSums[s] += x;
+        mSums[s + 1] += y;
+        mSums[s + 2] += z;
+        mCounts[voxel]++;
+        return true;
+    }
+
+    /**
+     * Hands the blocks that changed since the last drain to the caller, with
+     * their vertices filled in, and marks them clean. Does not wait for a
+     * frame being inserted.
+     *
+     * @param changedBlocks
+     *            receives the blocks that changed.
+     * @return false if a frame was being inserted, in which case nothing is
+     *         drained and the blocks stay dirty for the next call.
+     */
+    public boolean drainDirtyBlocks(List<Block> changedBlocks) {
+        if (!mLock.tryLock()) {
+            return false;
+        }
+        try {
+            drainDirtyBlocksLocked(changedBlocks);
+        } finally {
+            mLock.unlock();
+        }
+        return true;
+    }
+
+    private void drainDirtyBlocksLocked(List<Block> changedBlocks) {
+        for (int b = 0; b < mDirtyBlocks.size(); b++) {
+            Block block = mDirtyBlocks.get(b);
+            int floatCount = block.mVoxelCount * POINT_TO_XYZ;
+            if (block.mVertices.length < floatCount) {
+                block.mVertices = new float[block.mVoxels.length * POINT_TO_XYZ];
+            }
+            float[] vertices = block.mVertices;
+            for (int i = 0; i < block.mVoxelCount; i++) {
+                int voxel = block.mVoxels[i];
+                int s = voxel * POINT_TO_XYZ;
+                float inverseCount = 1.0f / mCounts[voxel];
+                vertices[i * POINT_TO_XYZ] = mSums[s] * inverseCount;
+                vertices[i * POINT_TO_XYZ + 1] = mSums[s + 1] * inverseCount;
+                vertices[i * POINT_TO_XYZ + 2] = mSums[s + 2] * inverseCount;
+            }
+            block.mVertexCount = block.mVoxelCount;
+            block.mDirty = false;
+            changedBlocks.add(block);
+        }
+        mDirtyBlocks.clear();
+    }
+
+    /**
+     * Marks every block dirty, so that the next drain returns all of them,
+     * for instance after the GL context and its buffers were lost.
+     */
+    public void markAllDirty() {
+        mLock.lock();
+        try {
+            for (int b = 0; b < mBlocks.size(); b++) {
+                markDirty(mBlocks.get(b));
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public float getResolution() {
+        return mResolution;
+    }
+
+    public int getMaxVoxels() {
+        return mMaxVoxels;
+    }
+
+    public int getVoxelCount() {
+        return mVoxelCount;
+    }
+
+    public int getBlockCount() {
+        mLock.lock();
+        try {
+            return mBlocks.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of points accumulated into the map.
+     */
+    public long getInsertedPointCount() {
+        return mInsertedPointCount;
+    }
+
+    /**
+     * @return the number of points dropped because the map was full.
+     */
+    public long getDroppedPointCount() {
+        return mDroppedPointCount;
+    }
+
+    private Block getOrCreateBlock(int bx, int by, int bz) {
+        long key = packKey(bx, by, bz);
+        int index = mBlockIndex.get(key);
+        if (index != LongIntHashMap.NO_VALUE) {
+            return mBlocks.get(index);
+        }
+        Block block = new Block(mBlocks.size());
+        mBlockIndex.put(key, block.mId);
+        mBlocks.add(block);
+        return block;
+    }
+
+    private void markDirty(Block block) {
+        if (!block.mDirty) {
+            block.mDirty = true;
+            mDirtyBlocks.add(block);
+        }
+    }
+
+    private void ensureVoxelCapacity(int voxelCount) {
+        if (voxelCount <= mCounts.length) {
+            return;
+        }
+        int capacity = (int) Math.min((long) mCounts.length * 2, mMaxVoxels);
+        float[] sums = new float[capacity * POINT_TO_XYZ];
+        System.arraycopy(mSums, 0, sums, 0, mSums.length);
+        mSums = sums;
+        int[] counts = new int[capacity];
+        System.arraycopy(mCounts, 0, counts, 0, mCounts.length);
+        mCounts = counts;
+        int[] voxelBlocks = new int[capacity];
+        System.arraycopy(mVoxelBlocks, 0, voxelBlocks, 0, mVoxelBlocks.length);
+        mVoxelBlocks = voxelBlocks;
+    }
+
+    /**
+     * Packs three signed integer coordinates into a non-negative key, 21 bits
+     * each.
+     */
+    static long packKey(int x, int y, int z) {
+        return ((x & COORDINATE_MASK) << (2 * COORDINATE_BITS))
+                | ((y & COORDINATE_MASK) << COORDINATE_BITS) | (z & COORDINATE_MASK);
+    }
+}
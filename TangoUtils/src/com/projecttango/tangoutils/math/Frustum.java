@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.math;
+
+/**
+ * Static functions for view frustum culling. A frustum is stored as its six
+ * planes in a float array of 24 elements, each plane as (a, b, c, d) with
+ * a * x + b * y + c * z + d the signed distance of a point to the plane,
+ * positive inside. This class has no Android dependencies.
+ */
+public final class Frustum {
+
+    /** Number of elements of a frustum array. */
+    public static final int SIZE = 24;
+
+    private Frustum() {
+    }
+
+    /**
+     * Extracts the normalized frustum planes of a column-major
+     * view-projection matrix. The planes are in the space the matrix maps
+     * from, for instance world space for a view-projection matrix.
+     *
+     * @param planes
+     *            receives the planes.
+     * @param m
+     *            the matrix array.
+     * @param offset
+     *            index of the first element of the matrix.
+     */
+    public static void setFromMatrix(float[] planes, float[] m, int offset) {
+        for (int i = 0; i < 6; i++) {
+            int row = i / 2;
+            float sign = (i % 2 == 0) ? 1 : -1;
+            float a = m[offset + 3] + sign * m[offset + row];
+            float b = m[offset + 7] + sign * m[offset + 4 + row];
+            float c = m[offset + 11] + sign * m[offset + 8 + row];
+            float d = m[offset + 15] + sign * m[offset + 12 + row];
+            float length = (float) Math.sqrt(a * a + b * b + c * c);
+            planes[i * 4] = a / length;
+            planes[i * 4 + 1] = b / length;
+            planes[i * 4 + 2] = c / length;
+            planes[i * 4 + 3] = d / length;
+        }
+    }
+
+    /**
+     * @return false if the sphere is entirely outside of one of the planes.
+     */
+    public static boolean intersectsSphere(float[] planes, float centerX, float centerY,
+            float centerZ, float radius) {
+        for (int p = 0; p < SIZE; p += 4) {
+            float distance = planes[p] * centerX + planes[p + 1] * centerY
+                    + planes[p + 2] * centerZ + planes[p + 3];
+            if (distance < -radius) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the axis-aligned box is entirely outside of one of the
+     *         planes.
+     */
+    public static boolean intersectsBox(float[] planes, float minX, float minY, float minZ,
+            float maxX, float maxY, float maxZ) {
+        for (int p = 0; p < SIZE; p += 4) {
+            float a = planes[p];
+            float b = planes[p + 1];
+            float c = planes[p + 2];
+            // The corner of the box furthest along the plane normal.
+            float distance = a * (a >= 0 ? maxX : minX) + b * (b >= 0 ? maxY : minY)
+                    + c * (c >= 0 ? maxZ : minZ) + planes[p + 3];
+            if (distance < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
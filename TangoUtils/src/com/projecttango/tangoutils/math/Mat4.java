@@ -0,0 +1,240 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.math;
+
+/**
+ * Static functions for general 4x4 float matrices. Matrices are stored in
+ * column-major order in a float array with an offset, the same layout as
+ * android.opengl.Matrix, so both can be used on the same arrays. This class
+ * has no Android dependencies.
+ *
+ * The kernels are written as straight-line code over whole columns, without
+ * temporary arrays, so that they do not allocate and can be vectorized by the
+ * JIT. Unless stated otherwise, the result elements must not overlap any of
+ * the input elements.
+ */
+public final class Mat4 {
+
+    private Mat4() {
+    }
+
+    /**
+     * Sets a matrix to the identity.
+     *
+     * @param m
+     *            the matrix array.
+     * @param offset
+     *            index of the first element of the matrix.
+     */
+    public static void setIdentity(float[] m, int offset) {
+        for (int i = 0; i < 16; i++) {
+            m[offset + i] = 0f;
+        }
+        m[offset] = 1f;
+        m[offset + 5] = 1f;
+        m[offset + 10] = 1f;
+        m[offset + 15] = 1f;
+    }
+
+    /**
+     * Multiplies two matrices, result = lhs * rhs.
+     *
+     * @param result
+     *            destination array for the product.
+     * @param resultOffset
+     *            index of the first element of the result.
+     * @param lhs
+     *            the left-hand side matrix.
+     * @param lhsOffset
+     *            index of the first element of lhs.
+     * @param rhs
+     *            the right-hand side matrix.
+     * @param rhsOffset
+     *            index of the first element of rhs.
+     */
+    public static void multiply(float[] result, int resultOffset, float[] lhs,
+            int lhsOffset, float[] rhs, int rhsOffset) {
+        final int l = lhsOffset;
+        for (int c = 0; c < 16; c += 4) {
+            float r0 = rhs[rhsOffset + c];
+            float r1 = rhs[rhsOffset + c + 1];
+            float r2 = rhs[rhsOffset + c + 2];
+            float r3 = rhs[rhsOffset + c + 3];
+            // Each result column is a linear combination of the lhs columns.
+            result[resultOffset + c] = lhs[l] * r0 + lhs[l + 4] * r1
+                    + lhs[l + 8] * r2 + lhs[l + 12] * r3;
+            result[resultOffset + c + 1] = lhs[l + 1] * r0 + lhs[l + 5] * r1
+                    + lhs[l + 9] * r2 + lhs[l + 13] * r3;
+            result[resultOffset + c + 2] = lhs[l + 2] * r0 + lhs[l + 6] * r1
+                    + lhs[l + 10] * r2 + lhs[l + 14] * r3;
+            result[resultOffset + c + 3] = lhs[l + 3] * r0 + lhs[l + 7] * r1
+                    + lhs[l + 11] * r2 + lhs[l + 15] * r3;
+        }
+    }
+
+    /**
+     * Inverts a general matrix using its adjugate. Use
+     * {@link RigidTransform#invert} for rigid transforms, which is much
+     * cheaper.
+     *
+     * @param result
+     *            destination array for the inverse.
+     * @param resultOffset
+     *            index of the first element of the result.
+     * @param m
+     *            the matrix to invert.
+     * @param mOffset
+     *            index of the first element of m.
+     * @return false if the matrix is singular, in which case the result is
+     *         left untouched.
+     */
+    public static boolean invert(float[] result, int resultOffset, float[] m,
+            int mOffset) {
+        final int o = mOffset;
+        float m00 = m[o], m10 = m[o + 1], m20 = m[o + 2], m30 = m[o + 3];
+        float m01 = m[o + 4], m11 = m[o + 5], m21 = m[o + 6], m31 = m[o + 7];
+        float m02 = m[o + 8], m12 = m[o + 9], m22 = m[o + 10], m32 = m[o + 11];
+        float m03 = m[o + 12], m13 = m[o + 13], m23 = m[o + 14];
+        float m33 = m[o + 15];
+
+        // 2x2 sub-determinants of the two upper and the two lower rows.
+        float s0 = m00 * m11 - m10 * m01;
+        float s1 = m00 * m12 - m10 * m02;
+        float s2 = m00 * m13 - m10 * m03;
+        float s3 = m01 * m12 - m11 * m02;
+        float s4 = m01 * m13 - m11 * m03;
+        float s5 = m02 * m13 - m12 * m03;
+        float c5 = m22 * m33 - m32 * m23;
+        float c4 = m21 * m33 - m31 * m23;
+        float c3 = m21 * m32 - m31 * m22;
+        float c2 = m20 * m33 - m30 * m23;
+        float c1 = m20 * m32 - m30 * m22;
+        float c0 = m20 * m31 - m30 * m21;
+
+        float det = s0 * c5 - s1 * c4 + s2 * c3 + s3 * c2 - s4 * c1 + s5 * c0;
+        if (det == 0f) {
+            return false;
+        }
+        float invDet = 1f / det;
+
+        final int r = resultOffset;
+        result[r] = (m11 * c5 - m12 * c4 + m13 * c3) * invDet;
+        result[r + 1] = (-m10 * c5 + m12 * c2 - m13 * c1) * invDet;
+        result[r + 2] = (m10 * c4 - m11 * c2 + m13 * c0) * invDet;
+        result[r + 3] = (-m10 * c3 + m11 * c1 - m12 * c0) * invDet;
+
+        result[r + 4] = (-m01 * c5 + m02 * c4 - m03 * c3) * invDet;
+        result[r + 5] = (m00 * c5 - m02 * c2 + m03 * c1) * invDet;
+        result[r + 6] = (-m00 * c4 + m01 * c2 - m03 * c0) * invDet;
+        result[r + 7] = (m00 * c3 - m01 * c1 + m02 * c0) * invDet;
+
+        result[r + 8] = (m31 * s5 - m32 * s4 + m33 * s3) * invDet;
+        result[r + 9] = (-m30 * s5 + m32 * s2 - m33 * s1) * invDet;
+        result[r + 10] = (m30 * s4 - m31 * s2 + m33 * s0) * invDet;
+        result[r + 11] = (-m30 * s3 + m31 * s1 - m32 * s0) * invDet;
+
+        result[r + 12] = (-m21 * s5 + m22 * s4 - m23 * s3) * invDet;
+        result[r + 13] = (m20 * s5 - m22 * s2 + m23 * s1) * invDet;
+        result[r + 14] = (-m20 * s4 + m21 * s2 - m23 * s0) * invDet;
+        result[r + 15] = (m20 * s3 - m21 * s1 + m22 * s0) * invDet;
+        return true;
+    }
+
+    /**
+     * Builds a view matrix looking from an eye point towards a center point,
+     * with the same conventions as android.opengl.Matrix.setLookAtM.
+     *
+     * @param m
+     *            destination array for the view matrix.
+     * @param offset
+     *            index of the first element of the matrix.
+     */
+    public static void setLookAt(float[] m, int offset, float eyeX,
+            float eyeY, float eyeZ, float centerX, float centerY,
+            float centerZ, float upX, float upY, float upZ) {
+        float fx = centerX - eyeX;
+        float fy = centerY - eyeY;
+        float fz = centerZ - eyeZ;
+        float invLength = 1f / (float) Math.sqrt(fx * fx + fy * fy + fz * fz);
+        fx *= invLength;
+        fy *= invLength;
+        fz *= invLength;
+
+        // s = f x up
+        float sx = fy * upZ - fz * upY;
+        float sy = fz * upX - fx * upZ;
+        float sz = fx * upY - fy * upX;
+        invLength = 1f / (float) Math.sqrt(sx * sx + sy * sy + sz * sz);
+        sx *= invLength;
+        sy *= invLength;
+        sz *= invLength;
+
+        // u = s x f
+        float ux = sy * fz - sz * fy;
+        float uy = sz * fx - sx * fz;
+        float uz = sx * fy - sy * fx;
+
+        final int o = offset;
+        m[o] = sx;
+        m[o + 1] = ux;
+        m[o + 2] = -fx;
+        m[o + 3] = 0f;
+        m[o + 4] = sy;
+        m[o + 5] = uy;
+        m[o + 6] = -fy;
+        m[o + 7] = 0f;
+        m[o + 8] = sz;
+        m[o + 9] = uz;
+        m[o + 10] = -fz;
+        m[o + 11] = 0f;
+        m[o + 12] = -(sx * eyeX + sy * eyeY + sz * eyeZ);
+        m[o + 13] = -(ux * eyeX + uy * eyeY + uz * eyeZ);
+        m[o + 14] = fx * eyeX + fy * eyeY + fz * eyeZ;
+        m[o + 15] = 1f;
+    }
+
+    /**
+     * Builds a perspective projection matrix, with the same conventions as
+     * android.opengl.Matrix.perspectiveM.
+     *
+     * @param m
+     *            destination array for the projection matrix.
+     * @param offset
+     *            index of the first element of the matrix.
+     * @param fovy
+     *            the vertical field of view, in degrees.
+     * @param aspect
+     *            the width to height ratio of the viewport.
+     * @param zNear
+     *            the distance to the near clipping plane.
+     * @param zFar
+     *            the distance to the far clipping plane.
+     */
+    public static void perspective(float[] m, int offset, float fovy,
+            float aspect, float zNear, float zFar) {
+        float f = 1f / (float) Math.tan(fovy * (Math.PI / 360.0));
+        float rangeReciprocal = 1f / (zNear - zFar);
+        for (int i = 0; i < 16; i++) {
+            m[offset + i] = 0f;
+        }
+        m[offset] = f / aspect;
+        m[offset + 5] = f;
+        m[offset + 10] = (zFar + zNear) * rangeReciprocal;
+        m[offset + 11] = -1f;
+        m[offset + 14] = 2f * zFar * zNear * rangeReciprocal;
+    }
+}
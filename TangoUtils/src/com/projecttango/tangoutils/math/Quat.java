@@ -0,0 +1,251 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.math;
+
+/**
+ * Static functions for float quaternions. Quaternions are stored as (x, y, z,
+ * w) in a float array with an offset, the same order as the rotation of a
+ * Tango pose. Unless stated otherwise, the result elements may overlap the
+ * input elements.
+ */
+public final class Quat {
+
+    private static final float NORMALIZE_TOLERANCE = 0.00001f;
+    private static final float SLERP_LINEAR_THRESHOLD = 0.9995f;
+    private static final float SMALL_ANGLE_SINE = 1e-6f;
+
+    private Quat() {
+    }
+
+    /**
+     * Normalizes a quaternion in place. Quaternions that are already of unit
+     * length, or too close to zero, are left untouched.
+     *
+     * @param q
+     *            the quaternion array.
+     * @param offset
+     *            index of the x component.
+     */
+    public static void normalize(float[] q, int offset) {
+        float mag = normalizingMagnitude(q[offset], q[offset + 1],
+                q[offset + 2], q[offset + 3]);
+        if (mag != 1f) {
+            q[offset] /= mag;
+            q[offset + 1] /= mag;
+            q[offset + 2] /= mag;
+            q[offset + 3] /= mag;
+        }
+    }
+
+    /**
+     * Same test as {@link #normalize(float[], int)}, for callers that keep
+     * the components in locals.
+     *
+     * @return the magnitude to divide the components by, or exactly 1 if the
+     *         quaternion is already of unit length or too close to zero.
+     */
+    public static float normalizingMagnitude(float x, float y, float z, float w) {
+        float mag2 = x * x + y * y + z * z + w * w;
+        if (Math.abs(mag2) > NORMALIZE_TOLERANCE
+                && Math.abs(mag2 - 1.0f) > NORMALIZE_TOLERANCE) {
+            return (float) Math.sqrt(mag2);
+        }
+        return 1f;
+    }
+
+    /**
+     * @return the dot product of two quaternions.
+     */
+    public static float dot(float[] a, int aOffset, float[] b, int bOffset) {
+        return a[aOffset] * b[bOffset] + a[aOffset + 1] * b[bOffset + 1]
+                + a[aOffset + 2] * b[bOffset + 2] + a[aOffset + 3]
+                * b[bOffset + 3];
+    }
+
+    /**
+     * Writes the conjugate of a quaternion, which is its inverse for unit
+     * quaternions.
+     */
+    public static void conjugate(float[] result, int resultOffset, float[] q,
+            int qOffset) {
+        result[resultOffset] = -q[qOffset];
+        result[resultOffset + 1] = -q[qOffset + 1];
+        result[resultOffset + 2] = -q[qOffset + 2];
+        result[resultOffset + 3] = q[qOffset + 3];
+    }
+
+    /**
+     * Multiplies two quaternions, result = a * b, that is the rotation b
+     * followed by the rotation a.
+     */
+    public static void multiply(float[] result, int resultOffset, float[] a,
+            int aOffset, float[] b, int bOffset) {
+        float ax = a[aOffset];
+        float ay = a[aOffset + 1];
+        float az = a[aOffset + 2];
+        float aw = a[aOffset + 3];
+        float bx = b[bOffset];
+        float by = b[bOffset + 1];
+        float bz = b[bOffset + 2];
+        float bw = b[bOffset + 3];
+        result[resultOffset] = aw * bx + ax * bw + ay * bz - az * by;
+        result[resultOffset + 1] = aw * by - ax * bz + ay * bw + az * bx;
+        result[resultOffset + 2] = aw * bz + ax * by - ay * bx + az * bw;
+        result[resultOffset + 3] = aw * bw - ax * bx - ay * by - az * bz;
+    }
+
+    /**
+     * Writes the column-major 4x4 rotation matrix of a unit quaternion. The
+     * result elements must not overlap the quaternion.
+     *
+     * @param m
+     *            destination array for the matrix.
+     * @param mOffset
+     *            index of the first element of the matrix.
+     * @param q
+     *            the quaternion array.
+     * @param qOffset
+     *            index of the x component.
+     */
+    public static void toRotationMatrix(float[] m, int mOffset, float[] q,
+            int qOffset) {
+        float x = q[qOffset];
+        float y = q[qOffset + 1];
+        float z = q[qOffset + 2];
+        float w = q[qOffset + 3];
+
+        float x2 = x * x;
+        float y2 = y * y;
+        float z2 = z * z;
+        float xy = x * y;
+        float xz = x * z;
+        float yz = y * z;
+        float wx = w * x;
+        float wy = w * y;
+        float wz = w * z;
+
+        m[mOffset] = 1f - 2f * (y2 + z2);
+        m[mOffset + 4] = 2f * (xy - wz);
+        m[mOffset + 8] = 2f * (xz + wy);
+        m[mOffset + 12] = 0f;
+
+        m[mOffset + 1] = 2f * (xy + wz);
+        m[mOffset + 5] = 1f - 2f * (x2 + z2);
+        m[mOffset + 9] = 2f * (yz - wx);
+        m[mOffset + 13] = 0f;
+
+        m[mOffset + 2] = 2f * (xz - wy);
+        m[mOffset + 6] = 2f * (yz + wx);
+        m[mOffset + 10] = 1f - 2f * (x2 + y2);
+        m[mOffset + 14] = 0f;
+
+        m[mOffset + 3] = 0f;
+        m[mOffset + 7] = 0f;
+        m[mOffset + 11] = 0f;
+        m[mOffset + 15] = 1f;
+    }
+
+    /**
+     * Interpolates spherically between two unit quaternions along the shortest
+     * path, and normalizes the result.
+     *
+     * @param t
+     *            the interpolation factor, 0 for q0 and 1 for q1.
+     */
+    public static void slerp(float[] result, int resultOffset, float[] q0,
+            int q0Offset, float[] q1, int q1Offset, float t) {
+        float x0 = q0[q0Offset];
+        float y0 = q0[q0Offset + 1];
+        float z0 = q0[q0Offset + 2];
+        float w0 = q0[q0Offset + 3];
+        float x1 = q1[q1Offset];
+        float y1 = q1[q1Offset + 1];
+        float z1 = q1[q1Offset + 2];
+        float w1 = q1[q1Offset + 3];
+
+        // Take the shortest path between the two rotations.
+        float cosTheta = x0 * x1 + y0 * y1 + z0 * z1 + w0 * w1;
+        if (cosTheta < 0f) {
+            cosTheta = -cosTheta;
+            x1 = -x1;
+            y1 = -y1;
+            z1 = -z1;
+            w1 = -w1;
+        }
+        float s0;
+        float s1;
+        if (cosTheta > SLERP_LINEAR_THRESHOLD) {
+            // The rotations are almost equal, a linear blend is accurate
+            // enough and avoids dividing by a vanishing sine.
+            s0 = 1f - t;
+            s1 = t;
+        } else {
+            double theta = Math.acos(cosTheta);
+            double sinTheta = Math.sin(theta);
+            s0 = (float) (Math.sin((1.0 - t) * theta) / sinTheta);
+            s1 = (float) (Math.sin(t * theta) / sinTheta);
+        }
+        result[resultOffset] = s0 * x0 + s1 * x1;
+        result[resultOffset + 1] = s0 * y0 + s1 * y1;
+        result[resultOffset + 2] = s0 * z0 + s1 * z1;
+        result[resultOffset + 3] = s0 * w0 + s1 * w1;
+        normalize(result, resultOffset);
+    }
+
+    /**
+     * Scales the angle of a rotation, taking the shortest path, so that the
+     * result is q raised to the power k. Rotations too small to have a
+     * well-defined axis are returned as the identity.
+     */
+    public static void scaleAngle(float[] result, int resultOffset, float[] q,
+            int qOffset, float k) {
+        float x = q[qOffset];
+        float y = q[qOffset + 1];
+        float z = q[qOffset + 2];
+        float w = q[qOffset + 3];
+        if (w < 0f) {
+            x = -x;
+            y = -y;
+            z = -z;
+            w = -w;
+        }
+        float sinHalfAngle = (float) Math.sqrt(x * x + y * y + z * z);
+        if (sinHalfAngle < SMALL_ANGLE_SINE) {
+            result[resultOffset] = 0f;
+            result[resultOffset + 1] = 0f;
+            result[resultOffset + 2] = 0f;
+            result[resultOffset + 3] = 1f;
+            return;
+        }
+        double halfAngle = Math.atan2(sinHalfAngle, w) * k;
+        float scale = (float) Math.sin(halfAngle) / sinHalfAngle;
+        result[resultOffset] = x * scale;
+        result[resultOffset + 1] = y * scale;
+        result[resultOffset + 2] = z * scale;
+        result[resultOffset + 3] = (float) Math.cos(halfAngle);
+    }
+
+    /**
+     * @return the angle, in radians, of the rotation between two unit
+     *         quaternions.
+     */
+    public static float angleBetween(float[] a, int aOffset, float[] b,
+            int bOffset) {
+        float dot = Math.abs(dot(a, aOffset, b, bOffset));
+        return (float) (2.0 * Math.acos(Math.min(1f, dot)));
+    }
+}
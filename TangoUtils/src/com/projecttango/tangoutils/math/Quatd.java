@@ -0,0 +1,239 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.math;
+
+/**
+ * Double precision version of {@link Quat}, storing quaternions as (x, y, z,
+ * w) like the rotation arrays of a Tango pose. Unless stated otherwise, the
+ * result elements may overlap the input elements.
+ */
+public final class Quatd {
+
+    private static final double NORMALIZE_TOLERANCE = 1e-12;
+    private static final double SLERP_LINEAR_THRESHOLD = 0.9999999;
+    private static final double SMALL_ANGLE_SINE = 1e-12;
+
+    private Quatd() {
+    }
+
+    /**
+     * Normalizes a quaternion in place. Quaternions that are already of unit
+     * length, or too close to zero, are left untouched.
+     *
+     * @param q
+     *            the quaternion array.
+     * @param offset
+     *            index of the x component.
+     */
+    public static void normalize(double[] q, int offset) {
+        double x = q[offset];
+        double y = q[offset + 1];
+        double z = q[offset + 2];
+        double w = q[offset + 3];
+        double mag2 = x * x + y * y + z * z + w * w;
+        if (Math.abs(mag2) > NORMALIZE_TOLERANCE
+                && Math.abs(mag2 - 1.0) > NORMALIZE_TOLERANCE) {
+            double mag = Math.sqrt(mag2);
+            q[offset] = x / mag;
+            q[offset + 1] = y / mag;
+            q[offset + 2] = z / mag;
+            q[offset + 3] = w / mag;
+        }
+    }
+
+    /**
+     * @return the dot product of two quaternions.
+     */
+    public static double dot(double[] a, int aOffset, double[] b, int bOffset) {
+        return a[aOffset] * b[bOffset] + a[aOffset + 1] * b[bOffset + 1]
+                + a[aOffset + 2] * b[bOffset + 2] + a[aOffset + 3]
+                * b[bOffset + 3];
+    }
+
+    /**
+     * Writes the conjugate of a quaternion, which is its inverse for unit
+     * quaternions.
+     */
+    public static void conjugate(double[] result, int resultOffset, double[] q,
+            int qOffset) {
+        result[resultOffset] = -q[qOffset];
+        result[resultOffset + 1] = -q[qOffset + 1];
+        result[resultOffset + 2] = -q[qOffset + 2];
+        result[resultOffset + 3] = q[qOffset + 3];
+    }
+
+    /**
+     * Multiplies two quaternions, result = a * b, that is the rotation b
+     * followed by the rotation a.
+     */
+    public static void multiply(double[] result, int resultOffset, double[] a,
+            int aOffset, double[] b, int bOffset) {
+        double ax = a[aOffset];
+        double ay = a[aOffset + 1];
+        double az = a[aOffset + 2];
+        double aw = a[aOffset + 3];
+        double bx = b[bOffset];
+        double by = b[bOffset + 1];
+        double bz = b[bOffset + 2];
+        double bw = b[bOffset + 3];
+        result[resultOffset] = aw * bx + ax * bw + ay * bz - az * by;
+        result[resultOffset + 1] = aw * by - ax * bz + ay * bw + az * bx;
+        result[resultOffset + 2] = aw * bz + ax * by - ay * bx + az * bw;
+        result[resultOffset + 3] = aw * bw - ax * bx - ay * by - az * bz;
+    }
+
+    /**
+     * Writes the column-major 4x4 rotation matrix of a unit quaternion. The
+     * result elements must not overlap the quaternion.
+     *
+     * @param m
+     *            destination array for the matrix.
+     * @param mOffset
+     *            index of the first element of the matrix.
+     * @param q
+     *            the quaternion array.
+     * @param qOffset
+     *            index of the x component.
+     */
+    public static void toRotationMatrix(double[] m, int mOffset, double[] q,
+            int qOffset) {
+        double x = q[qOffset];
+        double y = q[qOffset + 1];
+        double z = q[qOffset + 2];
+        double w = q[qOffset + 3];
+
+        double x2 = x * x;
+        double y2 = y * y;
+        double z2 = z * z;
+        double xy = x * y;
+        double xz = x * z;
+        double yz = y * z;
+        double wx = w * x;
+        double wy = w * y;
+        double wz = w * z;
+
+        m[mOffset] = 1.0 - 2.0 * (y2 + z2);
+        m[mOffset + 4] = 2.0 * (xy - wz);
+        m[mOffset + 8] = 2.0 * (xz + wy);
+        m[mOffset + 12] = 0.0;
+
+        m[mOffset + 1] = 2.0 * (xy + wz);
+        m[mOffset + 5] = 1.0 - 2.0 * (x2 + z2);
+        m[mOffset + 9] = 2.0 * (yz - wx);
+        m[mOffset + 13] = 0.0;
+
+        m[mOffset + 2] = 2.0 * (xz - wy);
+        m[mOffset + 6] = 2.0 * (yz + wx);
+        m[mOffset + 10] = 1.0 - 2.0 * (x2 + y2);
+        m[mOffset + 14] = 0.0;
+
+        m[mOffset + 3] = 0.0;
+        m[mOffset + 7] = 0.0;
+        m[mOffset + 11] = 0.0;
+        m[mOffset + 15] = 1.0;
+    }
+
+    /**
+     * Interpolates spherically between two unit quaternions along the shortest
+     * path, and normalizes the result.
+     *
+     * @param t
+     *            the interpolation factor, 0 for q0 and 1 for q1.
+     */
+    public static void slerp(double[] result, int resultOffset, double[] q0,
+            int q0Offset, double[] q1, int q1Offset, double t) {
+        double x0 = q0[q0Offset];
+        double y0 = q0[q0Offset + 1];
+        double z0 = q0[q0Offset + 2];
+        double w0 = q0[q0Offset + 3];
+        double x1 = q1[q1Offset];
+        double y1 = q1[q1Offset + 1];
+        double z1 = q1[q1Offset + 2];
+        double w1 = q1[q1Offset + 3];
+
+        // Take the shortest path between the two rotations.
+        double cosTheta = x0 * x1 + y0 * y1 + z0 * z1 + w0 * w1;
+        if (cosTheta < 0.0) {
+            cosTheta = -cosTheta;
+            x1 = -x1;
+            y1 = -y1;
+            z1 = -z1;
+            w1 = -w1;
+        }
+        double s0;
+        double s1;
+        if (cosTheta > SLERP_LINEAR_THRESHOLD) {
+            // The rotations are almost equal, a linear blend is accurate
+            // enough and avoids dividing by a vanishing sine.
+            s0 = 1.0 - t;
+            s1 = t;
+        } else {
+            double theta = Math.acos(cosTheta);
+            double sinTheta = Math.sin(theta);
+            s0 = (Math.sin((1.0 - t) * theta) / sinTheta);
+            s1 = (Math.sin(t * theta) / sinTheta);
+        }
+        result[resultOffset] = s0 * x0 + s1 * x1;
+        result[resultOffset + 1] = s0 * y0 + s1 * y1;
+        result[resultOffset + 2] = s0 * z0 + s1 * z1;
+        result[resultOffset + 3] = s0 * w0 + s1 * w1;
+        normalize(result, resultOffset);
+    }
+
+    /**
+     * Scales the angle of a rotation, taking the shortest path, so that the
+     * result is q raised to the power k. Rotations too small to have a
+     * well-defined axis are returned as the identity.
+     */
+    public static void scaleAngle(double[] result, int resultOffset, double[] q,
+            int qOffset, double k) {
+        double x = q[qOffset];
+        double y = q[qOffset + 1];
+        double z = q[qOffset + 2];
+        double w = q[qOffset + 3];
+        if (w < 0.0) {
+            x = -x;
+            y = -y;
+            z = -z;
+            w = -w;
+        }
+        double sinHalfAngle = Math.sqrt(x * x + y * y + z * z);
+        if (sinHalfAngle < SMALL_ANGLE_SINE) {
+            result[resultOffset] = 0.0;
+            result[resultOffset + 1] = 0.0;
+            result[resultOffset + 2] = 0.0;
+            result[resultOffset + 3] = 1.0;
+            return;
+        }
+        double halfAngle = Math.atan2(sinHalfAngle, w) * k;
+        double scale = Math.sin(halfAngle) / sinHalfAngle;
+        result[resultOffset] = x * scale;
+        result[resultOffset + 1] = y * scale;
+        result[resultOffset + 2] = z * scale;
+        result[resultOffset + 3] = Math.cos(halfAngle);
+    }
+
+    /**
+     * @return the angle, in radians, of the rotation between two unit
+     *         quaternions.
+     */
+    public static double angleBetween(double[] a, int aOffset, double[] b,
+            int bOffset) {
+        double dot = Math.abs(dot(a, aOffset, b, bOffset));
+        return 2.0 * Math.acos(Math.min(1.0, dot));
+    }
+}
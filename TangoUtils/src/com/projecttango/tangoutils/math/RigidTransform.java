@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.math;
+
+/**
+ * Static functions for 4x4 float matrices that hold a rigid transform (a
+ * rotation followed by a translation), stored column-major like {@link Mat4}.
+ * Model matrices produced by
+ * {@link com.projecttango.tangoutils.ModelMatCalculator} and view matrices
+ * produced by {@link Mat4#setLookAt} are of this form, which allows much
+ * cheaper inversion and composition than the general 4x4 routines.
+ */
+public final class RigidTransform {
+
+    private RigidTransform() {
+    }
+
+    /**
+     * Inverts a rigid transform by transposing its rotation and rotating the
+     * negated translation. The result is undefined if the rotation part of the
+     * input is not orthonormal, or if the result elements overlap the input
+     * elements.
+     *
+     * @param result
+     *            destination array for the inverted matrix.
+     * @param resultOffset
+     *            index of the first element of the result.
+     * @param m
+     *            the rigid transform to invert.
+     * @param mOffset
+     *            index of the first element of the input.
+     */
+    public static void invert(float[] result, int resultOffset, float[] m,
+            int mOffset) {
+        final int r = resultOffset;
+        final int o = mOffset;
+        float tx = m[o + 12];
+        float ty = m[o + 13];
+        float tz = m[o + 14];
+
+        result[r] = m[o];
+        result[r + 1] = m[o + 4];
+        result[r + 2] = m[o + 8];
+        result[r + 3] = 0f;
+
+        result[r + 4] = m[o + 1];
+        result[r + 5] = m[o + 5];
+        result[r + 6] = m[o + 9];
+        result[r + 7] = 0f;
+
+        result[r + 8] = m[o + 2];
+        result[r + 9] = m[o + 6];
+        result[r + 10] = m[o + 10];
+        result[r + 11] = 0f;
+
+        result[r + 12] = -(m[o] * tx + m[o + 1] * ty + m[o + 2] * tz);
+        result[r + 13] = -(m[o + 4] * tx + m[o + 5] * ty + m[o + 6] * tz);
+        result[r + 14] = -(m[o + 8] * tx + m[o + 9] * ty + m[o + 10] * tz);
+        result[r + 15] = 1f;
+    }
+
+    /**
+     * Multiplies two affine transforms, result = lhs * rhs. Both inputs must
+     * have (0, 0, 0, 1) as their bottom row, which holds for any rigid
+     * transform; the multiplications by that row are skipped. The result is
+     * undefined if the result elements overlap either input.
+     *
+     * @param result
+     *            destination array for the product.
+     * @param resultOffset
+     *            index of the first element of the result.
+     * @param lhs
+     *            the left-hand side transform.
+     * @param lhsOffset
+     *            index of the first element of lhs.
+     * @param rhs
+     *            the right-hand side transform.
+     * @param rhsOffset
+     *            index of the first element of rhs.
+     */
+    public static void multiply(float[] result, int resultOffset, float[] lhs,
+            int lhsOffset, float[] rhs, int rhsOffset) {
+        final int l = lhsOffset;
+        float l00 = lhs[l];
+        float l10 = lhs[l + 1];
+        float l20 = lhs[l + 2];
+        float l01 = lhs[l + 4];
+        float l11 = lhs[l + 5];
+        float l21 = lhs[l + 6];
+        float l02 = lhs[l + 8];
+        float l12 = lhs[l + 9];
+        float l22 = lhs[l + 10];
+
+        for (int c = 0; c < 12; c += 4) {
+            float r0 = rhs[rhsOffset + c];
+            float r1 = rhs[rhsOffset + c + 1];
+            float r2 = rhs[rhsOffset + c + 2];
+            result[resultOffset + c] = l00 * r0 + l01 * r1 + l02 * r2;
+            result[resultOffset + c + 1] = l10 * r0 + l11 * r1 + l12 * r2;
+            result[resultOffset + c + 2] = l20 * r0 + l21 * r1 + l22 * r2;
+            result[resultOffset + c + 3] = 0f;
+        }
+
+        float tx = rhs[rhsOffset + 12];
+        float ty = rhs[rhsOffset + 13];
+        float tz = rhs[rhsOffset + 14];
+        result[resultOffset + 12] = l00 * tx + l01 * ty + l02 * tz
+                + lhs[l + 12];
+        result[resultOffset + 13] = l10 * tx + l11 * ty + l12 * tz
+                + lhs[l + 13];
+        result[resultOffset + 14] = l20 * tx + l21 * ty + l22 * tz
+                + lhs[l + 14];
+        result[resultOffset + 15] = 1f;
+    }
+
+    /**
+     * Builds the rigid transform of a pose, a rotation by a unit quaternion
+     * followed by a translation.
+     *
+     * @param result
+     *            destination array for the transform.
+     * @param resultOffset
+     *            index of the first element of the result.
+     * @param translation
+     *            a three-element array of translation data.
+     * @param rotation
+     *            a four-element array of rotation data (x, y, z, w).
+     */
+    public static void compose(float[] result, int resultOffset,
+            float[] translation, float[] rotation) {
+        Quat.toRotationMatrix(result, resultOffset, rotation, 0);
+        result[resultOffset + 12] = translation[0];
+        result[resultOffset + 13] = translation[1];
+        result[resultOffset + 14] = translation[2];
+    }
+}
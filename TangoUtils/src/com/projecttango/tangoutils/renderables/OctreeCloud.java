@@ -0,0 +1,219 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.renderables;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+import com.projecttango.tangoutils.PointOctree;
+
+/**
+ * {@link Renderable} OpenGL object drawing a {@link PointOctree} with level of
+ * detail. Every frame, the nodes to draw are picked against a point budget for
+ * the current view; each node has its own VBO, uploaded again only when the
+ * node received new points. The points are already in world space, so the
+ * model matrix stays the identity.
+ */
+public class OctreeCloud extends Renderable {
+
+    private static final int COORDS_PER_VERTEX = 3;
+    private static final int BYTES_PER_FLOAT = 4;
+    // Limits the uploads of a single frame, so that a burst of new nodes is
+    // spread over several frames.
+    private static final int MAX_UPLOADS_PER_FRAME = 32;
+
+    private static final String sVertexShaderCode = "uniform mat4 uMVPMatrix;"
+            + "attribute vec4 vPosition;" + "varying vec4 vColor;"
+            + "void main() {" + "gl_PointSize = 3.0;"
+            + "  gl_Position = uMVPMatrix * vPosition;"
+            + "  vColor = vec4(abs(fract(vPosition.xyz)), 1.0);" + "}";
+    private static final String sFragmentShaderCode = "precision mediump float;"
+            + "varying vec4 vColor;"
+            + "void main() {"
+            + "  gl_FragColor = vColor;" + "}";
+
+    private final PointOctree mOctree;
+    private final ArrayList<PointOctree.Node> mSelectedNodes =
+            new ArrayList<PointOctree.Node>();
+    private final FloatBuffer mStagingBuffer;
+    private final int mProgram;
+    private int mPosHandle;
+    private int mMVPMatrixHandle;
+    private int mViewportHeight = 1;
+    private int mPointBudget;
+
+    // Per-node GL state, indexed by node id.
+    private int[] mVbos = new int[256];
+    private int[] mVboCapacities = new int[256];
+    private int[] mVertexCounts = new int[256];
+    private int[] mUploadedVersions = new int[256];
+
+    private volatile long mNodeUploadCount;
+    private volatile long mUploadBytes;
+    private volatile int mDrawnPointCount;
+
+    /**
+     * @param octree
+     *            the octree to draw.
+     * @param pointBudget
+     *            the largest number of points drawn in a frame.
+     */
+    public OctreeCloud(PointOctree octree, int pointBudget) {
+        mOctree = octree;
+        mPointBudget = pointBudget;
+        int vertexShader = RenderUtils.loadShader(GLES20.GL_VERTEX_SHADER,
+                sVertexShaderCode);
+        int fragShader = RenderUtils.loadShader(GLES20.GL_FRAGMENT_SHADER,
+                sFragmentShaderCode);
+        mProgram = GLES20.glCreateProgram();
+        GLES20.glAttachShader(mProgram, vertexShader);
+        GLES20.glAttachShader(mProgram, fragShader);
+        GLES20.glLinkProgram(mProgram);
+        Matrix.setIdentityM(getModelMatrix(), 0);
+        mStagingBuffer = ByteBuffer
+                .allocateDirect(PointOctree.NODE_CAPACITY * COORDS_PER_VERTEX * BYTES_PER_FLOAT)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    @Override
+    public void draw(float[] viewMatrix, float[] projectionMatrix) {
+        mOctree.select(viewMatrix, projectionMatrix, mViewportHeight, mPointBudget,
+                mSelectedNodes);
+
+        GLES20.glUseProgram(mProgram);
+        updateMvpMatrix(viewMatrix, projectionMatrix);
+        mPosHandle = GLES20.glGetAttribLocation(mProgram, "vPosition");
+        mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix");
+        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, getMvpMatrix(), 0);
+        GLES20.glEnableVertexAttribArray(mPosHandle);
+
+        int uploads = 0;
+        int drawnPoints = 0;
+        for (int i = 0; i < mSelectedNodes.size(); i++) {
+            PointOctree.Node node = mSelectedNodes.get(i);
+            int id = node.getId();
+            ensureNodeCapacity(id + 1);
+            if (mUploadedVersions[id] != node.getSelectedVersion()
+                    && uploads < MAX_UPLOADS_PER_FRAME) {
+                uploadNode(node);
+                uploads++;
+            }
+            if (mVertexCounts[id] == 0) {
+                continue;
+            }
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVbos[id]);
+            GLES20.glVertexAttribPointer(mPosHandle, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false,
+                    0, 0);
+            GLES20.glDrawArrays(GLES20.GL_POINTS, 0, mVertexCounts[id]);
+            drawnPoints += mVertexCounts[id];
+        }
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        mSelectedNodes.clear();
+        mDrawnPointCount = drawnPoints;
+    }
+
+    /**
+     * Uploads the points of a node to its VBO, creating or growing the VBO as
+     * needed.
+     */
+    private void uploadNode(PointOctree.Node node) {
+        int id = node.getId();
+        int version = node.getSelectedVersion();
+        mStagingBuffer.clear();
+        int pointCount = mOctree.copyPoints(node, mStagingBuffer);
+        mStagingBuffer.position(0);
+
+        if (mVbos[id] == 0) {
+            int[] buffers = new int[1];
+            GLES20.glGenBuffers(1, buffers, 0);
+            mVbos[id] = buffers[0];
+        }
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVbos[id]);
+        int byteCount = pointCount * COORDS_PER_VERTEX * BYTES_PER_FLOAT;
+        if (mVboCapacities[id] < byteCount) {
+            // Leave room for the node to fill up before reallocating again.
+            mVboCapacities[id] = Math.min(byteCount * 2,
+                    PointOctree.NODE_CAPACITY * COORDS_PER_VERTEX * BYTES_PER_FLOAT);
+            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mVboCapacities[id], null,
+                    GLES20.GL_DYNAMIC_DRAW);
+        }
+        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, byteCount, mStagingBuffer);
+        mVertexCounts[id] = pointCount;
+        mUploadedVersions[id] = version;
+        mNodeUploadCount++;
+        mUploadBytes += byteCount;
+    }
+
+    private void ensureNodeCapacity(int nodeCount) {
+        if (nodeCount <= mVbos.length) {
+            return;
+        }
+        int capacity = Math.max(nodeCount, mVbos.length * 2);
+        mVbos = grow(mVbos, capacity);
+        mVboCapacities = grow(mVboCapacities, capacity);
+        mVertexCounts = grow(mVertexCounts, capacity);
+        mUploadedVersions = grow(mUploadedVersions, capacity);
+    }
+
+    private static int[] grow(int[] array, int capacity) {
+        int[] grown = new int[capacity];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    /**
+     * Sets the height of the viewport, used to measure the projected size of
+     * the nodes. Call it whenever the surface changes.
+     */
+    public void setViewportHeight(int viewportHeight) {
+        mViewportHeight = viewportHeight;
+    }
+
+    public void setPointBudget(int pointBudget) {
+        mPointBudget = pointBudget;
+    }
+
+    public int getPointBudget() {
+        return mPointBudget;
+    }
+
+    /**
+     * @return the number of points drawn in the last frame.
+     */
+    public int getDrawnPointCount() {
+        return mDrawnPointCount;
+    }
+
+    /**
+     * @return the number of node uploads, counting re-uploads.
+     */
+    public long getNodeUploadCount() {
+        return mNodeUploadCount;
+    }
+
+    /**
+     * @return the total number of bytes uploaded.
+     */
+    public long getUploadBytes() {
+        return mUploadBytes;
+    }
+}
@@ -19,14 +19,20 @@ package com.projecttango.tangoutils.renderables;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.opengl.GLES20;
 import android.opengl.Matrix;
 
+import com.projecttango.tangoutils.TripleBuffer;
+
 /**
  * {@link Renderable} OpenGL showing a PointCloud obtained from Tango XyzIj
- * data. The point count can vary over as the information is updated.
+ * data. The point count can vary over as the information is updated. Depth
+ * frames are copied on the callback thread and handed to the GL thread through
+ * a {@link TripleBuffer}, so neither thread waits for the other. The vertex
+ * buffer is allocated once for the largest depth frame and only the points of
+ * each new frame are streamed into it. Depth statistics are computed off the
+ * GL thread by {@link com.projecttango.tangoutils.DepthStatistics}.
  */
 public class PointCloud extends Renderable {
 
@@ -46,17 +52,36 @@ public class PointCloud extends Renderable {
     private static final int POINT_TO_XYZ = 3;
 
     int mVertexVBO; // VertexBufferObject.
-    private AtomicBoolean mUpdateVBO = new AtomicBoolean();
-    private volatile FloatBuffer mPointCloudBuffer;
+    private final int mVboCapacityPoints;
+    private final TripleBuffer<DepthFrame> mDepthFrames;
 
     private final int mProgram;
     private int mPosHandle;
     private int mMVPMatrixHandle;
-    private int mPointCount;
-    private float mAverageZ;
+    private volatile int mPointCount;
+
+    // Upload metrics, only written by the GL thread.
+    private volatile long mUploadCount;
+    private volatile long mUploadBytes;
+    private volatile long mUploadNanos;
+
+    /**
+     * A depth frame copied out of the Tango callback, with the model matrix
+     * of the pose it was captured at.
+     */
+    private static class DepthFrame {
+        final FloatBuffer mPoints;
+        final float[] mModelMatrix = new float[16];
+        int mPointCount;
+
+        DepthFrame(int maxDepthPoints) {
+            mPoints = ByteBuffer
+                    .allocateDirect(maxDepthPoints * POINT_TO_XYZ * BYTES_PER_FLOAT)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+    }
 
     public PointCloud(int maxDepthPoints) {
-        mAverageZ = 0;
         int vertexShader = RenderUtils.loadShader(GLES20.GL_VERTEX_SHADER,
                 sVertexShaderCode);
         int fragShader = RenderUtils.loadShader(GLES20.GL_FRAGMENT_SHADER,
@@ -69,38 +94,64 @@ public class PointCloud extends Renderable {
 
         final int buffers[] = new int[1];
         GLES20.glGenBuffers(1, buffers, 0);
-        mVertexVBO = buffers[0];        
-    }
+        mVertexVBO = buffers[0];
+        // Size the VBO once for the largest depth frame; frames are then
+        // streamed into it with glBufferSubData.
+        mVboCapacityPoints = maxDepthPoints;
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexVBO);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER,
+                maxDepthPoints * POINT_TO_XYZ * BYTES_PER_FLOAT, null, GLES20.GL_STREAM_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
-    public synchronized void UpdatePoints(FloatBuffer pointCloudFloatBuffer) {
-        //save the reference in order to update this in the proper thread.
-        mPointCloudBuffer = pointCloudFloatBuffer;
+        mDepthFrames = new TripleBuffer<DepthFrame>(new DepthFrame(maxDepthPoints),
+                new DepthFrame(maxDepthPoints), new DepthFrame(maxDepthPoints));
+    }
 
-        //signal the update
-        mUpdateVBO.set(true);
+    /**
+     * Copies a depth frame to be drawn from the next frame on. Must always be
+     * called from the same thread, typically the Tango callback thread.
+     * 
+     * @param pointCloudFloatBuffer
+     *            the XYZ coordinates of the points, from position 0.
+     * @param pointCount
+     *            the number of points in the buffer.
+     * @param modelMatrix
+     *            the point cloud model matrix for the pose of the frame.
+     */
+    public void UpdatePoints(FloatBuffer pointCloudFloatBuffer, int pointCount,
+            float[] modelMatrix) {
+        DepthFrame frame = mDepthFrames.getWriteBuffer();
+        pointCount = Math.min(pointCount, mVboCapacityPoints);
+        FloatBuffer source = pointCloudFloatBuffer.duplicate();
+        source.position(0);
+        source.limit(pointCount * POINT_TO_XYZ);
+        frame.mPoints.clear();
+        frame.mPoints.put(source);
+        frame.mPointCount = pointCount;
+        System.arraycopy(modelMatrix, 0, frame.mModelMatrix, 0, 16);
+        mDepthFrames.publish();
     }
 
     @Override
-    public synchronized void draw(float[] viewMatrix, float[] projectionMatrix) {
+    public void draw(float[] viewMatrix, float[] projectionMatrix) {
         GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexVBO);
-            
-        if (mUpdateVBO.getAndSet(false)) {
-            if (mPointCloudBuffer != null) {
-                mPointCloudBuffer.position(0);
-                // Pass the info to the VBO
-                GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mPointCloudBuffer.capacity()
-                        * BYTES_PER_FLOAT, mPointCloudBuffer, GLES20.GL_STATIC_DRAW);
-                mPointCount = mPointCloudBuffer.capacity() / 3;
-                float totalZ = 0;
-                for (int i = 0; i < mPointCloudBuffer.capacity() - 3; i = i + 3) {
-                    totalZ = totalZ + mPointCloudBuffer.get(i + 2);
-                }
-                if (mPointCount != 0)
-                    mAverageZ = totalZ / mPointCount;
-                // signal the update
-                mUpdateVBO.set(true);
+
+        DepthFrame frame = mDepthFrames.acquire();
+        if (frame != null) {
+            FloatBuffer points = frame.mPoints;
+            int floatCount = frame.mPointCount * POINT_TO_XYZ;
+            points.position(0);
+            // Stream only the points of this frame into the preallocated VBO.
+            long start = System.nanoTime();
+            int byteCount = floatCount * BYTES_PER_FLOAT;
+            if (byteCount > 0) {
+                GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, byteCount, points);
             }
-            mPointCloudBuffer = null;
+            mUploadNanos += System.nanoTime() - start;
+            mUploadBytes += byteCount;
+            mUploadCount++;
+            System.arraycopy(frame.mModelMatrix, 0, getModelMatrix(), 0, 16);
+            mPointCount = frame.mPointCount;
         }
 
         if (mPointCount > 0) {
@@ -116,11 +167,36 @@ public class PointCloud extends Renderable {
         GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
     }
 
-    public float getAverageZ() {
-        return mAverageZ;
-    }
-
     public int getPointCount() {
         return mPointCount;
     }
+
+    /**
+     * @return the number of depth frames uploaded to the VBO.
+     */
+    public long getUploadCount() {
+        return mUploadCount;
+    }
+
+    /**
+     * @return the total number of bytes uploaded to the VBO.
+     */
+    public long getUploadBytes() {
+        return mUploadBytes;
+    }
+
+    /**
+     * @return the total time, in nanoseconds, spent issuing the VBO uploads.
+     */
+    public long getUploadNanos() {
+        return mUploadNanos;
+    }
+
+    /**
+     * @return the buffer depth frames are handed to the GL thread through, for
+     *         its timing counters.
+     */
+    public TripleBuffer<?> getDepthFrameBuffer() {
+        return mDepthFrames;
+    }
 }
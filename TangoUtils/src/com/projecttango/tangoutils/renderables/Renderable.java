@@ -16,7 +16,8 @@
 
 package com.projecttango.tangoutils.renderables;
 
-import android.opengl.Matrix;
+import com.projecttango.tangoutils.math.Mat4;
+import com.projecttango.tangoutils.math.RigidTransform;
 
 /**
  * Base class for all self-drawing OpenGL objects used in Tango Java examples.
@@ -39,14 +40,21 @@ public abstract class Renderable {
      */
     public abstract void draw(float[] viewMatrix, float[] projectionMatrix);
 
+    /**
+     * Composes the model, view, and projection matrices into a single mvp
+     * matrix. The view and model matrices are expected to be rigid
+     * transforms, so their product skips the general 4x4 multiply.
+     * 
+     * @param viewMatrix
+     *            the view matrix to map from world space to camera space.
+     * @param projectionMatrix
+     *            the projection matrix to map from camera space to screen
+     *            space.
+     */
     public synchronized void updateMvpMatrix(float[] viewMatrix,
             float[] projectionMatrix) {
-        // Compose the model, view, and projection matrices into a single mvp
-        // matrix
-        Matrix.setIdentityM(mMvMatrix, 0);
-        Matrix.setIdentityM(mMvpMatrix, 0);
-        Matrix.multiplyMM(mMvMatrix, 0, viewMatrix, 0, mModelMatrix, 0);
-        Matrix.multiplyMM(mMvpMatrix, 0, projectionMatrix, 0, mMvMatrix, 0);
+        RigidTransform.multiply(mMvMatrix, 0, viewMatrix, 0, mModelMatrix, 0);
+        Mat4.multiply(mMvpMatrix, 0, projectionMatrix, 0, mMvMatrix, 0);
     }
 
     public float[] getModelMatrix() {
@@ -16,30 +16,84 @@
 
 package com.projecttango.tangoutils.renderables;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
 import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 
 import android.opengl.GLES20;
 import android.opengl.Matrix;
 import android.util.Log;
 
+import com.projecttango.tangoutils.PathSimplifier;
+import com.projecttango.tangoutils.math.Frustum;
+import com.projecttango.tangoutils.math.Mat4;
+import com.projecttango.tangoutils.math.RigidTransform;
+
 /**
  * {@link Renderable} OpenGL object showing the Trajectory of the Project Tango
  * device in 3D space. Points are added when the trajectory is updated by
  * passing translation data obtained from Tango Pose Data.
+ *
+ * The trajectory is unbounded. Its vertices are stored in fixed-size segments,
+ * each consecutive pair sharing a vertex so that their line strips join. The
+ * segments live in a memory-mapped file, which the system pages in and out,
+ * and the visible ones are uploaded to one VBO each. At most
+ * {@link #MAX_RESIDENT_SEGMENTS} VBOs exist; when more segments are visible,
+ * the least recently drawn ones give theirs up. Must only be used on the GL
+ * thread.
+ *
+ * Positions are simplified as they arrive by a {@link PathSimplifier}. A
+ * position closer than the minimum distance to the previous one is dropped,
+ * and the last vertex keeps moving to the newest position for as long as the
+ * line from the vertex before it stays within the maximum error of every
+ * position it replaced.
+ *
+ * Every vertex keeps the timestamp of its position, and the trajectory can be
+ * limited to a time range. Timestamps are expected not to decrease, so that
+ * the range maps to a run of vertices in each segment, found by binary search
+ * and drawn straight from its VBO.
+ *
+ * Each segment also has its own model matrix, applied after the one of the
+ * trajectory, so that a correction of part of the trajectory, such as a
+ * relocalization or a loop closure, only changes a matrix per segment and
+ * leaves the vertices alone.
  */
 public class Trajectory extends Renderable {
 
-    private static final int COORDS_PER_VERTEX = 3;
-    private static final float MIN_DISTANCE_CHECK = 0.025f;
+    /** Number of vertices in a full segment. */
+    public static final int SEGMENT_VERTICES = 1024;
+    /** Largest number of segments kept in VBOs. */
+    public static final int MAX_RESIDENT_SEGMENTS = 512;
+    /** Default distance below which a new position is dropped, in meters. */
+    public static final float DEFAULT_MIN_DISTANCE = PathSimplifier.DEFAULT_MIN_DISTANCE;
+    /** Default error allowed when replacing positions by a line, in meters. */
+    public static final float DEFAULT_MAX_ERROR = PathSimplifier.DEFAULT_MAX_ERROR;
 
-    /** Note: due to resetPath() logic, keep this as a multiple of 9 **/
-    private static final int MAX_VERTICES = 9000;
+    private static final String TAG = Trajectory.class.getSimpleName();
+    private static final int COORDS_PER_VERTEX = 3;
     private static final int BYTES_PER_FLOAT = 4;
-    private static int mTrajectoryCount = 0;
+    private static final int BYTES_PER_VERTEX = COORDS_PER_VERTEX * BYTES_PER_FLOAT;
+    private static final int SEGMENT_FLOATS = SEGMENT_VERTICES * COORDS_PER_VERTEX;
+    private static final int SEGMENT_BYTES = SEGMENT_VERTICES * BYTES_PER_VERTEX;
+    private static final int BYTES_PER_TIMESTAMP = 8;
+    // The backing file is mapped by windows of several segments, each window
+    // holding the vertices of its segments followed by their timestamps.
+    private static final int WINDOW_SEGMENTS = 64;
+    private static final int WINDOW_VERTEX_BYTES = WINDOW_SEGMENTS * SEGMENT_BYTES;
+    private static final int WINDOW_BYTES = WINDOW_VERTEX_BYTES + WINDOW_SEGMENTS
+            * SEGMENT_VERTICES * BYTES_PER_TIMESTAMP;
+    // Limits the segments paged in by a single frame, so that a large view
+    // change is spread over several frames.
+    private static final int MAX_UPLOADS_PER_FRAME = 16;
+    private static final int BOUNDS_PER_SEGMENT = 6;
+    private static final int MATRIX_SIZE = 16;
 
-    private static final String TAG = Trajectory.class.getSimpleName();
     private String mVertexShaderCode = "uniform mat4 uMVPMatrix;"
             + "attribute vec4 vPosition;" + "uniform vec4 aColor;"
             + "varying vec4 vColor;" + "void main() {" + "gl_PointSize = 5.0;"
@@ -47,7 +101,6 @@ public class Trajectory extends Renderable {
     private String mFragmentShaderCode = "precision mediump float;"
             + "varying vec4 vColor;" + "void main() {"
             + "gl_FragColor = vColor;" + "}";
-    private FloatBuffer mVertexBuffer;
     private float[] mColor = { 0.22f, 0.28f, 0.67f, 1.0f };
     private final int mProgram;
     private int mPosHandle;
@@ -55,16 +108,64 @@ public class Trajectory extends Renderable {
     private int mColorHandle;
     private int mLineWidth;
 
+    // Segment storage: the backing file, or direct buffers if it cannot be
+    // created, with a float and a double view of each window.
+    private FileChannel mSpillChannel;
+    private final ArrayList<FloatBuffer> mWindows = new ArrayList<FloatBuffer>();
+    private final ArrayList<DoubleBuffer> mTimestampWindows = new ArrayList<DoubleBuffer>();
+
+    // Per-segment state, indexed by segment number.
+    private int mSegmentCount;
+    private int[] mSegmentVertexCounts = new int[64];
+    private float[] mSegmentBounds = new float[64 * BOUNDS_PER_SEGMENT];
+    private double[] mSegmentStartTimes = new double[64];
+    private double[] mSegmentEndTimes = new double[64];
+    private float[] mSegmentMatrices = new float[64 * MATRIX_SIZE];
+    private int[] mVbos = new int[64];
+    private int[] mUploadedVertexCounts = new int[64];
+    private int[] mLastDrawnFrames = new int[64];
+
+    private final int[] mResidentSegments = new int[MAX_RESIDENT_SEGMENTS];
+    private int mResidentSegmentCount;
+    private final int[] mFreeVbos = new int[MAX_RESIDENT_SEGMENTS];
+    private int mFreeVboCount;
+    private int mCreatedVboCount;
+    private final float[] mFrustumPlanes = new float[Frustum.SIZE];
+    private final float[] mSegmentMvpMatrix = new float[MATRIX_SIZE];
+    private final float[] mPoseMatrix = new float[MATRIX_SIZE];
+    private final float[] mPoseTranslation = new float[3];
+    private final float[] mPoseRotation = new float[4];
+    private int mFrame;
+    private double mRangeStart = Double.NEGATIVE_INFINITY;
+    private double mRangeEnd = Double.POSITIVE_INFINITY;
+
+    private int mVertexCount;
+    private float mLastX;
+    private float mLastY;
+    private float mLastZ;
+    private double mLastTimestamp;
+    private final PathSimplifier mSimplifier = new PathSimplifier();
+
+    private volatile long mUploadBytes;
+    private volatile long mPoseCount;
+    private volatile long mPoseNanos;
+
     public Trajectory(int lineWidth) {
         mLineWidth = lineWidth;
         // Reset the model matrix to the identity
         Matrix.setIdentityM(getModelMatrix(), 0);
 
-        // Allocate a vertex buffer
-        ByteBuffer vertexByteBuffer = ByteBuffer.allocateDirect(MAX_VERTICES
-                * BYTES_PER_FLOAT);
-        vertexByteBuffer.order(ByteOrder.nativeOrder());
-        mVertexBuffer = vertexByteBuffer.asFloatBuffer();
+        // The backing file is unlinked right away, it only lives as long as
+        // the trajectory keeps it open.
+        try {
+            File file = File.createTempFile("trajectory", ".bin");
+            mSpillChannel = new RandomAccessFile(file, "rw").getChannel();
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot create the trajectory file, keeping it in memory", e);
+        }
 
         // Load the vertex and fragment shaders, then link the program
         int vertexShader = RenderUtils.loadShader(GLES20.GL_VERTEX_SHADER,
@@ -79,102 +180,528 @@ public class Trajectory extends Renderable {
 
     // float[] color should contain only 4 elements.
     public Trajectory(int lineWidth, float[] color) {
-        mLineWidth = lineWidth;
+        this(lineWidth);
         mColor = color;
-        // Reset the model matrix to the identity
-        Matrix.setIdentityM(getModelMatrix(), 0);
-
-        // Allocate a vertex buffer
-        ByteBuffer vertexByteBuffer = ByteBuffer.allocateDirect(MAX_VERTICES
-                * BYTES_PER_FLOAT);
-        vertexByteBuffer.order(ByteOrder.nativeOrder());
-        mVertexBuffer = vertexByteBuffer.asFloatBuffer();
+    }
 
-        // Load the vertex and fragment shaders, then link the program
-        int vertexShader = RenderUtils.loadShader(GLES20.GL_VERTEX_SHADER,
-                mVertexShaderCode);
-        int fragShader = RenderUtils.loadShader(GLES20.GL_FRAGMENT_SHADER,
-                mFragmentShaderCode);
-        mProgram = GLES20.glCreateProgram();
-        GLES20.glAttachShader(mProgram, vertexShader);
-        GLES20.glAttachShader(mProgram, fragShader);
-        GLES20.glLinkProgram(mProgram);
+    /**
+     * Sets how much the trajectory is simplified. Only affects the positions
+     * added afterwards.
+     *
+     * @param minDistance
+     *            distance in meters below which a position is dropped.
+     * @param maxError
+     *            largest distance in meters between a position and the drawn
+     *            line, or 0 to keep every position.
+     */
+    public void setSimplification(float minDistance, float maxError) {
+        mSimplifier.setTolerances(minDistance, maxError);
     }
 
+    /**
+     * Extends the trajectory to a new position, unless it is too close to the
+     * last one. The position gets the timestamp of the last one.
+     */
     public void updateTrajectory(float[] translation) {
-        mVertexBuffer.position(mTrajectoryCount * 3);
-        if (((mTrajectoryCount + 1) * 3) >= MAX_VERTICES) {
-            Log.w(TAG, "Clearing float buffer");
-            resetPath();
+        updateTrajectory(translation, mLastTimestamp);
+    }
+
+    /**
+     * Extends the trajectory to a new position, unless it is too close to the
+     * last one.
+     *
+     * @param translation
+     *            the translation of the device pose.
+     * @param timestamp
+     *            the timestamp of the pose, not below the previous one.
+     */
+    public void updateTrajectory(float[] translation, double timestamp) {
+        long start = System.nanoTime();
+        addPosition(translation[0], translation[2], -translation[1], timestamp);
+        mPoseNanos += System.nanoTime() - start;
+        mPoseCount++;
+    }
+
+    private void addPosition(float x, float y, float z, double timestamp) {
+        switch (mSimplifier.add(x, y, z)) {
+        case PathSimplifier.MOVE:
+            moveLastVertex(x, y, z, timestamp);
+            break;
+        case PathSimplifier.APPEND:
+            int segment = mSegmentCount - 1;
+            if (segment < 0 || mSegmentVertexCounts[segment] == SEGMENT_VERTICES) {
+                segment = startSegment();
+                if (segment < 0) {
+                    // Start over from the next position.
+                    mSimplifier.reset();
+                    return;
+                }
+            }
+            appendVertex(segment, x, y, z, timestamp);
+            mVertexCount++;
+            break;
+        default:
+            break;
         }
-        float dx = 0, dy = 0, dz = 0;
-        try {
-            dx = mVertexBuffer.get(mVertexBuffer.position() - 3)
-                    - translation[0];
-            dy = mVertexBuffer.get(mVertexBuffer.position() - 2)
-                    - translation[2];
-            dz = mVertexBuffer.get(mVertexBuffer.position() - 1)
-                    - (-translation[1]);
-        } catch (IndexOutOfBoundsException e) {
-            mVertexBuffer.put(new float[] { translation[0], translation[2],
-                    -translation[1] });
-            mTrajectoryCount++;
+    }
+
+    /**
+     * Moves the floating vertex, which is never shared with the next segment.
+     */
+    private void moveLastVertex(float x, float y, float z, double timestamp) {
+        int segment = mSegmentCount - 1;
+        int last = mSegmentVertexCounts[segment] - 1;
+        mSegmentVertexCounts[segment] = last;
+        appendVertex(segment, x, y, z, timestamp);
+        mUploadedVertexCounts[segment] = Math.min(mUploadedVertexCounts[segment], last);
+    }
+
+    /**
+     * Adds a segment, starting with the last vertex of the previous one.
+     *
+     * @return the new segment, or -1 if its storage cannot be allocated.
+     */
+    private int startSegment() {
+        int segment = mSegmentCount;
+        int window = segment / WINDOW_SEGMENTS;
+        if (window == mWindows.size()) {
+            try {
+                ByteBuffer bytes = allocateWindow(window);
+                mWindows.add(bytes.asFloatBuffer());
+                bytes.position(WINDOW_VERTEX_BYTES);
+                mTimestampWindows.add(bytes.slice().order(ByteOrder.nativeOrder())
+                        .asDoubleBuffer());
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot extend the trajectory file", e);
+                return -1;
+            }
+        }
+        if (segment == mVbos.length) {
+            int capacity = segment * 2;
+            mSegmentVertexCounts = grow(mSegmentVertexCounts, capacity);
+            mVbos = grow(mVbos, capacity);
+            mUploadedVertexCounts = grow(mUploadedVertexCounts, capacity);
+            mLastDrawnFrames = grow(mLastDrawnFrames, capacity);
+            float[] bounds = new float[capacity * BOUNDS_PER_SEGMENT];
+            System.arraycopy(mSegmentBounds, 0, bounds, 0, mSegmentBounds.length);
+            mSegmentBounds = bounds;
+            mSegmentStartTimes = grow(mSegmentStartTimes, capacity);
+            mSegmentEndTimes = grow(mSegmentEndTimes, capacity);
+            float[] matrices = new float[capacity * MATRIX_SIZE];
+            System.arraycopy(mSegmentMatrices, 0, matrices, 0, mSegmentMatrices.length);
+            mSegmentMatrices = matrices;
+        }
+        mSegmentCount++;
+        mSegmentVertexCounts[segment] = 0;
+        mVbos[segment] = 0;
+        mUploadedVertexCounts[segment] = 0;
+        mLastDrawnFrames[segment] = 0;
+        int b = segment * BOUNDS_PER_SEGMENT;
+        mSegmentBounds[b] = mSegmentBounds[b + 1] = mSegmentBounds[b + 2] = Float.MAX_VALUE;
+        mSegmentBounds[b + 3] = mSegmentBounds[b + 4] = mSegmentBounds[b + 5] = -Float.MAX_VALUE;
+        // The segment shares a vertex with the previous one, and so its matrix.
+        if (segment > 0) {
+            System.arraycopy(mSegmentMatrices, (segment - 1) * MATRIX_SIZE,
+                    mSegmentMatrices, segment * MATRIX_SIZE, MATRIX_SIZE);
+            appendVertex(segment, mLastX, mLastY, mLastZ, mLastTimestamp);
+        } else {
+            Mat4.setIdentity(mSegmentMatrices, 0);
+        }
+        return segment;
+    }
+
+    private ByteBuffer allocateWindow(int window) throws IOException {
+        ByteBuffer bytes;
+        if (mSpillChannel != null) {
+            bytes = mSpillChannel.map(FileChannel.MapMode.READ_WRITE,
+                    (long) window * WINDOW_BYTES, WINDOW_BYTES);
+        } else {
+            bytes = ByteBuffer.allocateDirect(WINDOW_BYTES);
         }
-        float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
-        if (distance > MIN_DISTANCE_CHECK) {
-            mVertexBuffer.put(new float[] { translation[0], translation[2],
-                    -translation[1] });
-            mTrajectoryCount++;
+        return bytes.order(ByteOrder.nativeOrder());
+    }
+
+    private void appendVertex(int segment, float x, float y, float z,
+            double timestamp) {
+        int vertex = mSegmentVertexCounts[segment];
+        FloatBuffer window = mWindows.get(segment / WINDOW_SEGMENTS);
+        int p = (segment % WINDOW_SEGMENTS) * SEGMENT_FLOATS + vertex * COORDS_PER_VERTEX;
+        window.put(p, x);
+        window.put(p + 1, y);
+        window.put(p + 2, z);
+        mTimestampWindows.get(segment / WINDOW_SEGMENTS).put(
+                (segment % WINDOW_SEGMENTS) * SEGMENT_VERTICES + vertex, timestamp);
+        if (vertex == 0) {
+            mSegmentStartTimes[segment] = timestamp;
         }
+        mSegmentEndTimes[segment] = timestamp;
+        mSegmentVertexCounts[segment]++;
+        float[] bounds = mSegmentBounds;
+        int b = segment * BOUNDS_PER_SEGMENT;
+        bounds[b] = Math.min(bounds[b], x);
+        bounds[b + 1] = Math.min(bounds[b + 1], y);
+        bounds[b + 2] = Math.min(bounds[b + 2], z);
+        bounds[b + 3] = Math.max(bounds[b + 3], x);
+        bounds[b + 4] = Math.max(bounds[b + 4], y);
+        bounds[b + 5] = Math.max(bounds[b + 5], z);
+        mLastX = x;
+        mLastY = y;
+        mLastZ = z;
+        mLastTimestamp = timestamp;
     }
 
-    public void resetPath() {
-        int currentPosition = mVertexBuffer.position();
-        int pointsToGet = (MAX_VERTICES / 3);
-        mVertexBuffer.position(currentPosition - pointsToGet);
+    private static int[] grow(int[] array, int capacity) {
+        int[] grown = new int[capacity];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
 
-        float[] tail = new float[pointsToGet];
-        mVertexBuffer.get(tail, 0, pointsToGet);
+    private static double[] grow(double[] array, int capacity) {
+        double[] grown = new double[capacity];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
 
-        mVertexBuffer.clear();
-        mVertexBuffer.put(tail);
+    /**
+     * Limits the drawn trajectory to the vertices with a timestamp in a range.
+     *
+     * @param start
+     *            the first timestamp drawn, in seconds.
+     * @param end
+     *            the last timestamp drawn, in seconds.
+     */
+    public void setTimeRange(double start, double end) {
+        mRangeStart = start;
+        mRangeEnd = end;
+    }
 
-        mTrajectoryCount = pointsToGet / 3;
+    /**
+     * Draws the whole trajectory again.
+     */
+    public void clearTimeRange() {
+        mRangeStart = Double.NEGATIVE_INFINITY;
+        mRangeEnd = Double.POSITIVE_INFINITY;
     }
 
+    /**
+     * @return the index in a segment of the first vertex with a timestamp
+     *         above the given one, or not below it if inclusive is true.
+     */
+    private int searchTimestamp(int segment, double timestamp, boolean inclusive) {
+        DoubleBuffer timestamps = mTimestampWindows.get(segment / WINDOW_SEGMENTS);
+        int offset = (segment % WINDOW_SEGMENTS) * SEGMENT_VERTICES;
+        int low = 0;
+        int high = mSegmentVertexCounts[segment];
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            double t = timestamps.get(offset + middle);
+            if (t < timestamp || (!inclusive && t == timestamp)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Removes all the vertices. The storage and the VBOs are kept for reuse.
+     */
     public void clearPath() {
-        ByteBuffer vertexByteBuffer = ByteBuffer.allocateDirect(MAX_VERTICES
-                * BYTES_PER_FLOAT);
-        vertexByteBuffer.order(ByteOrder.nativeOrder());
-        mVertexBuffer = vertexByteBuffer.asFloatBuffer();
+        for (int i = 0; i < mResidentSegmentCount; i++) {
+            int segment = mResidentSegments[i];
+            mFreeVbos[mFreeVboCount++] = mVbos[segment];
+            mVbos[segment] = 0;
+        }
+        mResidentSegmentCount = 0;
+        mSegmentCount = 0;
+        mVertexCount = 0;
+        mSimplifier.reset();
+    }
+
+    /**
+     * Deletes the VBOs and the shader program, and closes the backing file.
+     * The trajectory cannot be used afterwards. Must be called on the GL
+     * thread; after a loss of the GL context, before any other GL object is
+     * created, since the names of the deleted objects are then stale.
+     */
+    public void release() {
+        clearPath();
+        GLES20.glDeleteBuffers(mFreeVboCount, mFreeVbos, 0);
+        mFreeVboCount = 0;
+        mCreatedVboCount = 0;
+        GLES20.glDeleteProgram(mProgram);
+        mWindows.clear();
+        mTimestampWindows.clear();
+        if (mSpillChannel != null) {
+            try {
+                mSpillChannel.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot close the trajectory file", e);
+            }
+            mSpillChannel = null;
+        }
+    }
+
+    /**
+     * Sets the model matrix of a run of segments. Segments added later start
+     * with the matrix of the last segment.
+     *
+     * @param first
+     *            the first segment of the run.
+     * @param last
+     *            the last segment of the run, included.
+     * @param matrix
+     *            the model matrix, applied to the vertices before the one of
+     *            the trajectory.
+     * @param offset
+     *            index of the first element of the matrix.
+     */
+    public void setSegmentMatrix(int first, int last, float[] matrix, int offset) {
+        for (int segment = first; segment <= last; segment++) {
+            System.arraycopy(matrix, offset, mSegmentMatrices, segment * MATRIX_SIZE,
+                    MATRIX_SIZE);
+        }
+    }
+
+    /**
+     * Sets the model matrix of a run of segments to the transform of a pose,
+     * given in the frame of the translations passed to
+     * {@link #updateTrajectory(float[], double)}.
+     *
+     * @param first
+     *            the first segment of the run.
+     * @param last
+     *            the last segment of the run, included.
+     * @param translation
+     *            a three-element array of translation data.
+     * @param rotation
+     *            a four-element array of rotation data (x, y, z, w).
+     */
+    public void setSegmentPose(int first, int last, float[] translation,
+            float[] rotation) {
+        // Same axis swap as the vertices, which is a proper rotation, so the
+        // quaternion axis swaps the same way.
+        mPoseTranslation[0] = translation[0];
+        mPoseTranslation[1] = translation[2];
+        mPoseTranslation[2] = -translation[1];
+        mPoseRotation[0] = rotation[0];
+        mPoseRotation[1] = rotation[2];
+        mPoseRotation[2] = -rotation[1];
+        mPoseRotation[3] = rotation[3];
+        RigidTransform.compose(mPoseMatrix, 0, mPoseTranslation, mPoseRotation);
+        setSegmentMatrix(first, last, mPoseMatrix, 0);
+    }
+
+    /**
+     * @return the segment holding the vertex at a timestamp, the first one if
+     *         the timestamp comes before all vertices, or -1 if there are
+     *         none.
+     */
+    public int getSegmentAt(double timestamp) {
+        int low = 0;
+        int high = mSegmentCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mSegmentStartTimes[middle] <= timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        if (mSegmentCount == 0) {
+            return -1;
+        }
+        return Math.max(low - 1, 0);
+    }
+
+    /**
+     * Gives a segment a VBO, taking it from the least recently drawn segment
+     * if all of them are in use.
+     *
+     * @return false if no VBO can be spared this frame.
+     */
+    private boolean makeResident(int segment) {
+        int vbo;
+        if (mFreeVboCount > 0) {
+            vbo = mFreeVbos[--mFreeVboCount];
+        } else if (mCreatedVboCount < MAX_RESIDENT_SEGMENTS) {
+            int[] buffers = new int[1];
+            GLES20.glGenBuffers(1, buffers, 0);
+            vbo = buffers[0];
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
+            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, SEGMENT_BYTES, null,
+                    GLES20.GL_DYNAMIC_DRAW);
+            mCreatedVboCount++;
+        } else {
+            int oldest = -1;
+            for (int i = 0; i < mResidentSegmentCount; i++) {
+                int frame = mLastDrawnFrames[mResidentSegments[i]];
+                if (frame != mFrame
+                        && (oldest < 0 || frame < mLastDrawnFrames[mResidentSegments[oldest]])) {
+                    oldest = i;
+                }
+            }
+            if (oldest < 0) {
+                return false;
+            }
+            int evicted = mResidentSegments[oldest];
+            vbo = mVbos[evicted];
+            mVbos[evicted] = 0;
+            mUploadedVertexCounts[evicted] = 0;
+            mResidentSegments[oldest] = mResidentSegments[--mResidentSegmentCount];
+        }
+        mVbos[segment] = vbo;
+        mUploadedVertexCounts[segment] = 0;
+        mResidentSegments[mResidentSegmentCount++] = segment;
+        return true;
+    }
+
+    /**
+     * Uploads the vertices of a segment added since its last upload. Call
+     * with the VBO of the segment bound.
+     */
+    private void uploadPendingVertices(int segment) {
+        int first = mUploadedVertexCounts[segment];
+        int count = mSegmentVertexCounts[segment] - first;
+        if (count == 0) {
+            return;
+        }
+        FloatBuffer window = mWindows.get(segment / WINDOW_SEGMENTS);
+        window.position((segment % WINDOW_SEGMENTS) * SEGMENT_FLOATS
+                + first * COORDS_PER_VERTEX);
+        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, first * BYTES_PER_VERTEX,
+                count * BYTES_PER_VERTEX, window);
+        mUploadedVertexCounts[segment] += count;
+        mUploadBytes += count * BYTES_PER_VERTEX;
     }
 
     @Override
     public void draw(float[] viewMatrix, float[] projectionMatrix) {
         GLES20.glUseProgram(mProgram);
-        mVertexBuffer.position(0);
 
         // Compose the model, view, and projection matrices into a single m-v-p
         // matrix
         updateMvpMatrix(viewMatrix, projectionMatrix);
 
-        // Load vertex attribute data
         mPosHandle = GLES20.glGetAttribLocation(mProgram, "vPosition");
-        GLES20.glVertexAttribPointer(mPosHandle, COORDS_PER_VERTEX,
-                GLES20.GL_FLOAT, false, 0, mVertexBuffer);
         GLES20.glEnableVertexAttribArray(mPosHandle);
 
         mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix");
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, getMvpMatrix(), 0);
 
         mColorHandle = GLES20.glGetUniformLocation(mProgram, "aColor");
         GLES20.glUniform4f(mColorHandle, mColor[0], mColor[1], mColor[2],
                 mColor[3]);
         GLES20.glLineWidth(mLineWidth);
-        GLES20.glDrawArrays(GLES20.GL_LINE_STRIP, 0, mTrajectoryCount);
+
+        mFrame++;
+        int pageIns = 0;
+        float[] bounds = mSegmentBounds;
+        int loadedMatrix = -1;
+        for (int segment = 0; segment < mSegmentCount; segment++) {
+            if (mSegmentEndTimes[segment] < mRangeStart
+                    || mSegmentStartTimes[segment] > mRangeEnd) {
+                continue;
+            }
+            int first = 0;
+            int count = mSegmentVertexCounts[segment];
+            if (mSegmentStartTimes[segment] < mRangeStart) {
+                first = searchTimestamp(segment, mRangeStart, true);
+            }
+            if (mSegmentEndTimes[segment] > mRangeEnd) {
+                count = searchTimestamp(segment, mRangeEnd, false);
+            }
+            count -= first;
+            if (count < 2) {
+                continue;
+            }
+            // Consecutive segments usually share their matrix, and then their
+            // m-v-p matrix and frustum planes.
+            if (loadedMatrix < 0 || !sameMatrix(loadedMatrix, segment)) {
+                Mat4.multiply(mSegmentMvpMatrix, 0, getMvpMatrix(), 0,
+                        mSegmentMatrices, segment * MATRIX_SIZE);
+                // The segment bounds are in segment space, and so are these
+                // planes.
+                Frustum.setFromMatrix(mFrustumPlanes, mSegmentMvpMatrix, 0);
+                GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false,
+                        mSegmentMvpMatrix, 0);
+                loadedMatrix = segment;
+            }
+            int b = segment * BOUNDS_PER_SEGMENT;
+            if (!Frustum.intersectsBox(mFrustumPlanes, bounds[b], bounds[b + 1],
+                    bounds[b + 2], bounds[b + 3], bounds[b + 4], bounds[b + 5])) {
+                continue;
+            }
+            if (mVbos[segment] == 0) {
+                if (pageIns == MAX_UPLOADS_PER_FRAME || !makeResident(segment)) {
+                    continue;
+                }
+                pageIns++;
+            }
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVbos[segment]);
+            uploadPendingVertices(segment);
+            GLES20.glVertexAttribPointer(mPosHandle, COORDS_PER_VERTEX,
+                    GLES20.GL_FLOAT, false, 0, 0);
+            GLES20.glDrawArrays(GLES20.GL_LINE_STRIP, first, count);
+            mLastDrawnFrames[segment] = mFrame;
+        }
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+
+    private boolean sameMatrix(int segment, int other) {
+        float[] matrices = mSegmentMatrices;
+        int a = segment * MATRIX_SIZE;
+        int b = other * MATRIX_SIZE;
+        for (int i = 0; i < MATRIX_SIZE; i++) {
+            if (matrices[a + i] != matrices[b + i]) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public void setColor(float[] color) {
         mColor = color;
     }
-}
\ No newline at end of file
+
+    /**
+     * @return the number of vertices left after simplification.
+     */
+    public int getVertexCount() {
+        return mVertexCount;
+    }
+
+    public int getSegmentCount() {
+        return mSegmentCount;
+    }
+
+    /**
+     * @return the number of segments currently held in VBOs.
+     */
+    public int getResidentSegmentCount() {
+        return mResidentSegmentCount;
+    }
+
+    /**
+     * @return the total number of bytes uploaded to the VBOs.
+     */
+    public long getUploadBytes() {
+        return mUploadBytes;
+    }
+
+    /**
+     * @return the number of positions passed to
+     *         {@link #updateTrajectory(float[])}.
+     */
+    public long getPoseCount() {
+        return mPoseCount;
+    }
+
+    /**
+     * @return the average time spent adding a position, in nanoseconds.
+     */
+    public long getAveragePoseNanos() {
+        long count = mPoseCount;
+        return count == 0 ? 0 : mPoseNanos / count;
+    }
+}
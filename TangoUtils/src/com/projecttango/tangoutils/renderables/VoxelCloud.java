@@ -0,0 +1,187 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.renderables;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+import com.projecttango.tangoutils.VoxelMap;
+
+/**
+ * {@link Renderable} OpenGL object showing the accumulated points of a
+ * {@link VoxelMap}, one point per voxel. Each block of the map has its own
+ * VBO, and only the blocks that changed since the last frame are uploaded
+ * again. The map is filled on another thread, and a frame that finds it busy
+ * inserting draws the blocks as last uploaded instead of waiting. The voxels
+ * are already in world space, so the model matrix stays the identity.
+ */
+public class VoxelCloud extends Renderable {
+
+    private static final int COORDS_PER_VERTEX = 3;
+    private static final int BYTES_PER_FLOAT = 4;
+
+    private static final String sVertexShaderCode = "uniform mat4 uMVPMatrix;"
+            + "attribute vec4 vPosition;" + "varying vec4 vColor;"
+            + "void main() {" + "gl_PointSize = 3.0;"
+            + "  gl_Position = uMVPMatrix * vPosition;"
+            + "  vColor = vec4(abs(fract(vPosition.xyz)), 1.0);" + "}";
+    private static final String sFragmentShaderCode = "precision mediump float;"
+            + "varying vec4 vColor;"
+            + "void main() {"
+            + "  gl_FragColor = vColor;" + "}";
+
+    private final VoxelMap mVoxelMap;
+    private final ArrayList<VoxelMap.Block> mChangedBlocks = new ArrayList<VoxelMap.Block>();
+    private final int mProgram;
+    private int mPosHandle;
+    private int mMVPMatrixHandle;
+
+    // Per-block GL state, indexed by block id.
+    private int[] mVbos = new int[64];
+    private int[] mVboCapacities = new int[64];
+    private int[] mVertexCounts = new int[64];
+    private int mBlockCount;
+    private FloatBuffer mStagingBuffer;
+
+    private volatile long mBlockUploadCount;
+    private volatile long mUploadBytes;
+
+    /**
+     * Creates the renderable on the GL thread. Every block of the map is
+     * uploaded with the first frame drawn.
+     */
+    public VoxelCloud(VoxelMap voxelMap) {
+        mVoxelMap = voxelMap;
+        int vertexShader = RenderUtils.loadShader(GLES20.GL_VERTEX_SHADER,
+                sVertexShaderCode);
+        int fragShader = RenderUtils.loadShader(GLES20.GL_FRAGMENT_SHADER,
+                sFragmentShaderCode);
+        mProgram = GLES20.glCreateProgram();
+        GLES20.glAttachShader(mProgram, vertexShader);
+        GLES20.glAttachShader(mProgram, fragShader);
+        GLES20.glLinkProgram(mProgram);
+        Matrix.setIdentityM(getModelMatrix(), 0);
+        allocateStagingBuffer(VoxelMap.BLOCK_SIZE * VoxelMap.BLOCK_SIZE * COORDS_PER_VERTEX);
+        // A new GL context starts without buffers, so upload everything.
+        mVoxelMap.markAllDirty();
+    }
+
+    @Override
+    public void draw(float[] viewMatrix, float[] projectionMatrix) {
+        mVoxelMap.drainDirtyBlocks(mChangedBlocks);
+        for (int i = 0; i < mChangedBlocks.size(); i++) {
+            uploadBlock(mChangedBlocks.get(i));
+        }
+        mChangedBlocks.clear();
+
+        GLES20.glUseProgram(mProgram);
+        updateMvpMatrix(viewMatrix, projectionMatrix);
+        mPosHandle = GLES20.glGetAttribLocation(mProgram, "vPosition");
+        mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix");
+        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, getMvpMatrix(), 0);
+        GLES20.glEnableVertexAttribArray(mPosHandle);
+        for (int b = 0; b < mBlockCount; b++) {
+            if (mVertexCounts[b] == 0) {
+                continue;
+            }
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVbos[b]);
+            GLES20.glVertexAttribPointer(mPosHandle, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false,
+                    0, 0);
+            GLES20.glDrawArrays(GLES20.GL_POINTS, 0, mVertexCounts[b]);
+        }
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Uploads the vertices of a block to its VBO, creating or growing the VBO
+     * as needed.
+     */
+    private void uploadBlock(VoxelMap.Block block) {
+        int id = block.getId();
+        ensureBlockCapacity(id + 1);
+        int floatCount = block.getVertexCount() * COORDS_PER_VERTEX;
+        if (mStagingBuffer.capacity() < floatCount) {
+            allocateStagingBuffer(floatCount * 2);
+        }
+        mStagingBuffer.clear();
+        mStagingBuffer.put(block.getVertices(), 0, floatCount);
+        mStagingBuffer.position(0);
+
+        if (mVbos[id] == 0) {
+            int[] buffers = new int[1];
+            GLES20.glGenBuffers(1, buffers, 0);
+            mVbos[id] = buffers[0];
+        }
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVbos[id]);
+        int byteCount = floatCount * BYTES_PER_FLOAT;
+        if (mVboCapacities[id] < byteCount) {
+            // Leave room for the block to grow before reallocating again.
+            mVboCapacities[id] = byteCount * 2;
+            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mVboCapacities[id], null,
+                    GLES20.GL_DYNAMIC_DRAW);
+        }
+        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, byteCount, mStagingBuffer);
+        mVertexCounts[id] = block.getVertexCount();
+        mBlockCount = Math.max(mBlockCount, id + 1);
+        mBlockUploadCount++;
+        mUploadBytes += byteCount;
+    }
+
+    private void ensureBlockCapacity(int blockCount) {
+        if (blockCount <= mVbos.length) {
+            return;
+        }
+        int capacity = Math.max(blockCount, mVbos.length * 2);
+        int[] vbos = new int[capacity];
+        System.arraycopy(mVbos, 0, vbos, 0, mVbos.length);
+        mVbos = vbos;
+        int[] capacities = new int[capacity];
+        System.arraycopy(mVboCapacities, 0, capacities, 0, mVboCapacities.length);
+        mVboCapacities = capacities;
+        int[] counts = new int[capacity];
+        System.arraycopy(mVertexCounts, 0, counts, 0, mVertexCounts.length);
+        mVertexCounts = counts;
+    }
+
+    private void allocateStagingBuffer(int floatCount) {
+        mStagingBuffer = ByteBuffer.allocateDirect(floatCount * BYTES_PER_FLOAT)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    public VoxelMap getVoxelMap() {
+        return mVoxelMap;
+    }
+
+    /**
+     * @return the number of blocks uploaded, counting re-uploads.
+     */
+    public long getBlockUploadCount() {
+        return mBlockUploadCount;
+    }
+
+    /**
+     * @return the total number of bytes uploaded.
+     */
+    public long getUploadBytes() {
+        return mUploadBytes;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.session;
+
+import java.nio.ByteOrder;
+import java.util.Locale;
+
+/**
+ * Layout of a recorded session. A session is a directory of fixed-size
+ * segment files holding the records, and an index file.
+ *
+ * A segment starts with a header of {@link #SEGMENT_HEADER_BYTES}: the magic
+ * number, the format version and the segment number. Records follow, each
+ * made of a type, a payload length and a timestamp, then the payload, padded
+ * to a multiple of 8 bytes. A record of type {@link #TYPE_END}, or the end of
+ * the file, ends the segment. Depth frames are stored either raw, as
+ * {@link #TYPE_DEPTH}, or as {@link #TYPE_DEPTH_COMPRESSED} frames of
+ * {@link com.projecttango.tangoutils.PointCloudCodec}, which version 2 added;
+ * version 1 sessions are still read.
+ *
+ * The index starts with the magic number and the format version, followed by
+ * one entry per record in the order they were written: the timestamp, the
+ * segment number, the offset of the record in the segment and the type.
+ *
+ * Everything is little endian.
+ */
+final class SessionFormat {
+
+    static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+    static final int MAGIC = 0x31535354; // "TSS1"
+    static final int VERSION = 2;
+    static final int MIN_VERSION = 1;
+
+    static final int SEGMENT_HEADER_BYTES = 16;
+    static final int RECORD_HEADER_BYTES = 16;
+    static final int INDEX_HEADER_BYTES = 8;
+    static final int INDEX_ENTRY_BYTES = 24;
+
+    static final int TYPE_END = 0;
+    static final int TYPE_POSE = 1;
+    static final int TYPE_DEPTH = 2;
+    static final int TYPE_EVENT = 3;
+    /**
+     * Compressed depth record, whose payload is one encoded frame. The frame
+     * starts with its own length and point count, see
+     * {@link com.projecttango.tangoutils.PointCloudCodec#HEADER_BYTES}.
+     */
+    static final int TYPE_DEPTH_COMPRESSED = 4;
+
+    /**
+     * Pose payload: base frame, target frame and status code as ints, 4 bytes
+     * of padding, then the translation and rotation as doubles.
+     */
+    static final int POSE_PAYLOAD_BYTES = 4 * 4 + 7 * 8;
+    /**
+     * Depth payload header: the point count as an int and 4 bytes of padding,
+     * followed by the XYZ coordinates as floats.
+     */
+    static final int DEPTH_PAYLOAD_HEADER_BYTES = 8;
+    /**
+     * Event payload header: the event type, the key length and the value
+     * length as ints, and 4 bytes of padding, followed by the UTF-8 key and
+     * value.
+     */
+    static final int EVENT_PAYLOAD_HEADER_BYTES = 16;
+    /** Longest UTF-8 key or value of a recorded event; longer ones are cut. */
+    static final int MAX_EVENT_STRING_BYTES = 1024;
+
+    static final String INDEX_FILE_NAME = "index.bin";
+
+    private SessionFormat() {
+    }
+
+    static String getSegmentFileName(int segment) {
+        return String.format(Locale.US, "segment-%05d.bin", segment);
+    }
+
+    /**
+     * @return the payload length rounded up to a multiple of 8 bytes.
+     */
+    static int align(int length) {
+        return (length + 7) & ~7;
+    }
+
+    static boolean isSupportedVersion(int version) {
+        return version >= MIN_VERSION && version <= VERSION;
+    }
+
+    static int getDepthPayloadBytes(int pointCount) {
+        return DEPTH_PAYLOAD_HEADER_BYTES + pointCount * 3 * 4;
+    }
+}
@@ -0,0 +1,532 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.session;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.locks.LockSupport;
+
+import com.projecttango.tangoutils.PointCloudCodec;
+
+/**
+ * Replays a session recorded by {@link SessionRecorder}, standing in for the
+ * Tango service. Records are delivered to a {@link Listener} in timestamp
+ * order, ties kept in recording order, so every replay of a session delivers
+ * the same sequence. Replay can follow the recorded pace, a multiple of it,
+ * or run as fast as possible with {@link #SPEED_UNLIMITED}.
+ *
+ * The player only depends on the JVM, so the data pipelines fed by the
+ * listener can be driven and measured off the device.
+ */
+public class SessionPlayer {
+
+    /**
+     * String intent extra with the directory of a session an activity should
+     * replay instead of connecting to the Tango service.
+     */
+    public static final String EXTRA_REPLAY_SESSION = "replay_session";
+    /**
+     * Float intent extra with the replay speed, 1 by default.
+     */
+    public static final String EXTRA_REPLAY_SPEED = "replay_speed";
+    /** Speed replaying the records without waiting between them. */
+    public static final float SPEED_UNLIMITED = Float.POSITIVE_INFINITY;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Receives the replayed records, on the replaying thread.
+     */
+    public interface Listener {
+        /**
+         * @param translation
+         *            the translation of the pose, reused by the next call.
+         * @param rotation
+         *            the rotation of the pose, reused by the next call.
+         */
+        void onPose(double timestamp, int baseFrame, int targetFrame, int statusCode,
+                double[] translation, double[] rotation);
+
+        /**
+         * @param xyz
+         *            the XYZ coordinates of the points, from position 0. For a
+         *            raw frame the buffer maps the session file and is read
+         *            only; a compressed frame is decoded into a buffer of the
+         *            player, overwritten by the next frame.
+         */
+        void onDepthFrame(double timestamp, FloatBuffer xyz, int pointCount);
+
+        void onEvent(double timestamp, int eventType, String key, String value);
+    }
+
+    private final File mDirectory;
+    // The index, sorted by timestamp.
+    private final double[] mTimestamps;
+    private final int[] mSegments;
+    private final int[] mOffsets;
+    private final int[] mTypes;
+    private int mPosition;
+
+    private int mMappedSegmentNumber = -1;
+    private MappedByteBuffer mMappedSegment;
+    private final double[] mTranslation = new double[3];
+    private final double[] mRotation = new double[4];
+    // Created and grown on the first compressed frame that needs it.
+    private PointCloudCodec mDepthCodec;
+    private FloatBuffer mDecodedDepth;
+
+    private volatile Thread mReplayThread;
+    private volatile boolean mStopRequested;
+    private volatile Exception mFailure;
+
+    private volatile long mDeliveredCount;
+    private volatile long mReplayNanos;
+    private volatile long mTotalLatenessNanos;
+    private volatile long mMaxLatenessNanos;
+
+    /**
+     * Opens a session and reads its index.
+     *
+     * @param directory
+     *            the directory of the session.
+     * @throws IOException
+     *             if the index cannot be read.
+     */
+    public SessionPlayer(File directory) throws IOException {
+        mDirectory = directory;
+        RandomAccessFile indexFile = new RandomAccessFile(new File(directory,
+                SessionFormat.INDEX_FILE_NAME), "r");
+        try {
+            FileChannel channel = indexFile.getChannel();
+            ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            index.order(SessionFormat.BYTE_ORDER);
+            if (index.remaining() < SessionFormat.INDEX_HEADER_BYTES
+                    || index.getInt() != SessionFormat.MAGIC
+                    || !SessionFormat.isSupportedVersion(index.getInt())) {
+                throw new IOException("Not a session index: " + directory);
+            }
+            int count = index.remaining() / SessionFormat.INDEX_ENTRY_BYTES;
+            double[] timestamps = new double[count];
+            int[] segments = new int[count];
+            int[] offsets = new int[count];
+            int[] types = new int[count];
+            for (int i = 0; i < count; i++) {
+                timestamps[i] = index.getDouble();
+                segments[i] = index.getInt();
+                offsets[i] = index.getInt();
+                types[i] = index.getInt();
+                index.getInt();
+            }
+            int[] order = sortByTimestamp(timestamps);
+            mTimestamps = new double[count];
+            mSegments = new int[count];
+            mOffsets = new int[count];
+            mTypes = new int[count];
+            for (int i = 0; i < count; i++) {
+                int entry = order[i];
+                mTimestamps[i] = timestamps[entry];
+                mSegments[i] = segments[entry];
+                mOffsets[i] = offsets[entry];
+                mTypes[i] = types[entry];
+            }
+        } finally {
+            indexFile.close();
+        }
+    }
+
+    /**
+     * @return a stable order of the entries by increasing timestamp.
+     */
+    private static int[] sortByTimestamp(double[] timestamps) {
+        int count = timestamps.length;
+        int[] order = new int[count];
+        int[] scratch = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        // Bottom-up merge sort, which keeps equal timestamps in their
+        // recording order.
+        for (int width = 1; width < count; width *= 2) {
+            for (int low = 0; low < count - width; low += 2 * width) {
+                int middle = low + width;
+                int high = Math.min(low + 2 * width, count);
+                int left = low;
+                int right = middle;
+                for (int k = low; k < high; k++) {
+                    if (left < middle && (right >= high
+                            || timestamps[order[left]] <= timestamps[order[right]])) {
+                        scratch[k] = order[left++];
+                    } else {
+                        scratch[k] = order[right++];
+                    }
+                }
+                System.arraycopy(scratch, low, order, low, high - low);
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Replays the records from the current position on the calling thread,
+     * until the end of the session or {@link #stop()}.
+     *
+     * @param listener
+     *            receives the records.
+     * @param speed
+     *            the replay speed relative to the recording, or
+     *            {@link #SPEED_UNLIMITED}.
+     * @throws IOException
+     *             if a segment cannot be read.
+     */
+    public void play(Listener listener, float speed) throws IOException {
+        checkSpeed(speed);
+        mStopRequested = false;
+        replay(listener, speed);
+    }
+
+    private void replay(Listener listener, float speed) throws IOException {
+        long startNanos = System.nanoTime();
+        double startTimestamp = mPosition < mTimestamps.length ? mTimestamps[mPosition] : 0;
+        boolean paced = speed != SPEED_UNLIMITED;
+        while (mPosition < mTimestamps.length && !mStopRequested) {
+            int entry = mPosition++;
+            long lateness = 0;
+            if (paced) {
+                long dueNanos = startNanos
+                        + (long) ((mTimestamps[entry] - startTimestamp) * 1e9 / speed);
+                long waitNanos;
+                while ((waitNanos = dueNanos - System.nanoTime()) > 0 && !mStopRequested) {
+                    LockSupport.parkNanos(this, waitNanos);
+                }
+                lateness = System.nanoTime() - dueNanos;
+            }
+            deliver(entry, listener);
+            mDeliveredCount++;
+            mTotalLatenessNanos += lateness;
+            if (lateness > mMaxLatenessNanos) {
+                mMaxLatenessNanos = lateness;
+            }
+        }
+        mReplayNanos += System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Replays the records from the current position on a background thread.
+     *
+     * @param listener
+     *            receives the records.
+     * @param speed
+     *            the replay speed relative to the recording, or
+     *            {@link #SPEED_UNLIMITED}.
+     */
+    public synchronized void start(final Listener listener, final float speed) {
+        checkSpeed(speed);
+        if (mReplayThread != null) {
+            return;
+        }
+        mStopRequested = false;
+        mFailure = null;
+        mReplayThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replay(listener, speed);
+                } catch (IOException e) {
+                    mFailure = e;
+                } catch (RuntimeException e) {
+                    // Thrown by the listener or by a record the checks
+                    // missed; either way the replay is over.
+                    mFailure = e;
+                }
+            }
+        }, "SessionPlayer");
+        mReplayThread.start();
+    }
+
+    private static void checkSpeed(float speed) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("Speed must be positive: " + speed);
+        }
+    }
+
+    /**
+     * Stops the replay and waits for the background thread, if any.
+     */
+    public synchronized void stop() {
+        mStopRequested = true;
+        Thread replayThread = mReplayThread;
+        mReplayThread = null;
+        if (replayThread != null) {
+            LockSupport.unpark(replayThread);
+            try {
+                replayThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Moves the replay position to the first record at or after a timestamp.
+     * Only call this while not replaying.
+     *
+     * @param timestamp
+     *            the timestamp, in seconds.
+     */
+    public void seek(double timestamp) {
+        int low = 0;
+        int high = mTimestamps.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mTimestamps[middle] < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        mPosition = low;
+    }
+
+    /**
+     * Finds the first recorded pose of a frame pair, for instance to stand in
+     * for the extrinsics queries made to the Tango service at startup. Only
+     * call this while not replaying.
+     *
+     * @param baseFrame
+     *            the base frame of the pose.
+     * @param targetFrame
+     *            the target frame of the pose.
+     * @param translation
+     *            receives the translation of the pose.
+     * @param rotation
+     *            receives the rotation of the pose.
+     * @return the timestamp of the pose, or NaN if the session has none.
+     * @throws IOException
+     *             if a segment cannot be read.
+     */
+    public double findFirstPose(int baseFrame, int targetFrame, double[] translation,
+            double[] rotation) throws IOException {
+        for (int i = 0; i < mTypes.length; i++) {
+            if (mTypes[i] != SessionFormat.TYPE_POSE) {
+                continue;
+            }
+            ByteBuffer segment = mapSegment(mSegments[i]);
+            int payload = mOffsets[i] + SessionFormat.RECORD_HEADER_BYTES;
+            if (segment.getInt(payload) == baseFrame
+                    && segment.getInt(payload + 4) == targetFrame) {
+                readPose(segment, payload, translation, rotation);
+                return mTimestamps[i];
+            }
+        }
+        return Double.NaN;
+    }
+
+    private void deliver(int entry, Listener listener) throws IOException {
+        ByteBuffer segment = mapSegment(mSegments[entry]);
+        int offset = mOffsets[entry];
+        int payload = offset + SessionFormat.RECORD_HEADER_BYTES;
+        double timestamp = mTimestamps[entry];
+        int payloadBytes = segment.getInt(offset + 4);
+        if (payloadBytes < 0 || (long) payload + payloadBytes > segment.limit()) {
+            throw new IOException("Truncated record of " + payloadBytes + " bytes in segment "
+                    + mSegments[entry] + " at " + offset);
+        }
+        switch (mTypes[entry]) {
+        case SessionFormat.TYPE_POSE:
+            readPose(segment, payload, mTranslation, mRotation);
+            listener.onPose(timestamp, segment.getInt(payload), segment.getInt(payload + 4),
+                    segment.getInt(payload + 8), mTranslation, mRotation);
+            break;
+        case SessionFormat.TYPE_DEPTH:
+            int pointCount = segment.getInt(payload);
+            if (pointCount < 0 || (long) pointCount * 3 * 4 > payloadBytes
+                    - SessionFormat.DEPTH_PAYLOAD_HEADER_BYTES) {
+                throw new IOException("Invalid depth frame of " + pointCount
+                        + " points in segment " + mSegments[entry] + " at " + offset);
+            }
+            ByteBuffer points = segment.duplicate();
+            points.position(payload + SessionFormat.DEPTH_PAYLOAD_HEADER_BYTES);
+            points.limit(payload + SessionFormat.DEPTH_PAYLOAD_HEADER_BYTES + pointCount * 3 * 4);
+            FloatBuffer xyz = points.slice().order(SessionFormat.BYTE_ORDER).asFloatBuffer();
+            listener.onDepthFrame(timestamp, xyz, pointCount);
+            break;
+        case SessionFormat.TYPE_DEPTH_COMPRESSED:
+            FloatBuffer decoded = getDecodedDepth(segment.getInt(payload + 4));
+            ByteBuffer frame = segment.duplicate();
+            frame.position(payload);
+            frame.limit(payload + payloadBytes);
+            try {
+                pointCount = mDepthCodec.decode(frame, decoded);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Corrupted depth frame in segment " + mSegments[entry]
+                        + " at " + offset, e);
+            }
+            listener.onDepthFrame(timestamp, decoded, pointCount);
+            break;
+        case SessionFormat.TYPE_EVENT:
+            int eventType = segment.getInt(payload);
+            byte[] key = new byte[segment.getInt(payload + 4)];
+            byte[] value = new byte[segment.getInt(payload + 8)];
+            ByteBuffer strings = segment.duplicate();
+            strings.position(payload + SessionFormat.EVENT_PAYLOAD_HEADER_BYTES);
+            strings.get(key);
+            strings.get(value);
+            listener.onEvent(timestamp, eventType, new String(key, UTF_8), new String(value,
+                    UTF_8));
+            break;
+        default:
+            throw new IOException("Unknown record type " + mTypes[entry] + " in segment "
+                    + mSegments[entry] + " at " + offset);
+        }
+    }
+
+    /**
+     * @return the buffer to decode a compressed frame into, with the codec to
+     *         decode it, grown if needed.
+     */
+    private FloatBuffer getDecodedDepth(int pointCount) throws IOException {
+        if (pointCount < 0 || pointCount > Integer.MAX_VALUE / (3 * 4)) {
+            throw new IOException("Invalid depth frame of " + pointCount + " points");
+        }
+        if (mDecodedDepth == null || mDecodedDepth.capacity() < pointCount * 3) {
+            mDepthCodec = new PointCloudCodec(pointCount);
+            mDecodedDepth = ByteBuffer.allocateDirect(pointCount * 3 * 4)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+        return mDecodedDepth;
+    }
+
+    private static void readPose(ByteBuffer segment, int payload, double[] translation,
+            double[] rotation) {
+        int doubles = payload + 16;
+        for (int i = 0; i < 3; i++) {
+            translation[i] = segment.getDouble(doubles + i * 8);
+        }
+        for (int i = 0; i < 4; i++) {
+            rotation[i] = segment.getDouble(doubles + (3 + i) * 8);
+        }
+    }
+
+    /**
+     * Maps a segment, keeping only the last mapped one.
+     */
+    private ByteBuffer mapSegment(int segmentNumber) throws IOException {
+        if (segmentNumber == mMappedSegmentNumber) {
+            return mMappedSegment;
+        }
+        File file = new File(mDirectory, SessionFormat.getSegmentFileName(segmentNumber));
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.toString());
+        }
+        RandomAccessFile segmentFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = segmentFile.getChannel();
+            mMappedSegment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            segmentFile.close();
+        }
+        mMappedSegment.order(SessionFormat.BYTE_ORDER);
+        if (mMappedSegment.getInt(0) != SessionFormat.MAGIC
+                || !SessionFormat.isSupportedVersion(mMappedSegment.getInt(4))) {
+            throw new IOException("Not a session segment: " + file);
+        }
+        mMappedSegmentNumber = segmentNumber;
+        return mMappedSegment;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * @return the error that ended the last background replay, either an
+     *         {@link IOException} reading the session or an unchecked
+     *         exception thrown by the listener, or null.
+     */
+    public Exception getFailure() {
+        return mFailure;
+    }
+
+    /**
+     * @return true while a background replay is running.
+     */
+    public boolean isReplaying() {
+        Thread replayThread = mReplayThread;
+        return replayThread != null && replayThread.isAlive();
+    }
+
+    /**
+     * @return the number of records in the session.
+     */
+    public int getRecordCount() {
+        return mTimestamps.length;
+    }
+
+    /**
+     * @return the timestamp of the first record, or NaN for an empty session.
+     */
+    public double getStartTimestamp() {
+        return mTimestamps.length > 0 ? mTimestamps[0] : Double.NaN;
+    }
+
+    /**
+     * @return the timestamp of the last record, or NaN for an empty session.
+     */
+    public double getEndTimestamp() {
+        return mTimestamps.length > 0 ? mTimestamps[mTimestamps.length - 1] : Double.NaN;
+    }
+
+    /**
+     * @return the number of records delivered.
+     */
+    public long getDeliveredCount() {
+        return mDeliveredCount;
+    }
+
+    /**
+     * @return the time, in nanoseconds, spent replaying, including the time
+     *         the listener took.
+     */
+    public long getReplayNanos() {
+        return mReplayNanos;
+    }
+
+    /**
+     * @return the average delay, in nanoseconds, between the time a paced
+     *         record was due and the time it was delivered.
+     */
+    public long getAverageLatenessNanos() {
+        long delivered = mDeliveredCount;
+        return delivered > 0 ? mTotalLatenessNanos / delivered : 0;
+    }
+
+    /**
+     * @return the longest delay, in nanoseconds, between the time a paced
+     *         record was due and the time it was delivered.
+     */
+    public long getMaxLatenessNanos() {
+        return mMaxLatenessNanos;
+    }
+}
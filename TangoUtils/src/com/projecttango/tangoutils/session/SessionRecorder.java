@@ -0,0 +1,642 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.session;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import android.app.Activity;
+import android.util.Log;
+
+import com.projecttango.tangoutils.PointCloudCodec;
+
+/**
+ * Records the pose and depth streams of a session to disk, so that it can be
+ * replayed later with {@link SessionPlayer}. Records are appended to a series
+ * of fixed-size, memory-mapped segment files, and a timestamp index of every
+ * record is written next to them, see {@link SessionFormat}.
+ *
+ * The record methods only copy the data into a pre-allocated record and queue
+ * it; a writer thread appends the queued records to the log. When the writer
+ * falls behind and no record is free, the new data is dropped and counted.
+ *
+ * Depth frames can be compressed with {@link PointCloudCodec}, which takes a
+ * frame to about 40% of its raw size. Compression runs on the writer thread,
+ * so it does not slow down the recording thread.
+ */
+public class SessionRecorder {
+
+    /**
+     * Boolean intent extra asking an activity to record its session.
+     */
+    public static final String EXTRA_RECORD_SESSION = "record_session";
+    /**
+     * Boolean intent extra asking to record raw depth frames instead of
+     * compressed ones.
+     */
+    public static final String EXTRA_RAW_DEPTH = "raw_depth";
+    /** Default size of each segment file. */
+    public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    private static final String TAG = SessionRecorder.class.getSimpleName();
+    private static final int POSE_RECORDS = 256;
+    private static final int DEPTH_RECORDS = 4;
+    private static final int EVENT_RECORDS = 16;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int INDEX_BUFFER_ENTRIES = 1024;
+
+    private final File mDirectory;
+    private final int mSegmentBytes;
+    private final PointCloudCodec mDepthCodec;
+    private final ArrayBlockingQueue<Record> mPendingRecords;
+    private final ArrayBlockingQueue<Record> mFreePoseRecords;
+    private final ArrayBlockingQueue<Record> mFreeDepthRecords;
+    private final ArrayBlockingQueue<Record> mFreeEventRecords;
+    // Queued by stop() to end the writer thread.
+    private final Record mStopRecord = new Record(SessionFormat.TYPE_END, 0);
+    private volatile Thread mWriter;
+
+    // Only used on the writer thread.
+    private RandomAccessFile mSegmentFile;
+    private MappedByteBuffer mSegment;
+    private int mSegmentNumber;
+    private RandomAccessFile mIndexFile;
+    private final ByteBuffer mIndexBuffer = ByteBuffer.allocateDirect(
+            INDEX_BUFFER_ENTRIES * SessionFormat.INDEX_ENTRY_BYTES).order(
+            SessionFormat.BYTE_ORDER);
+    private final ByteBuffer mEncodedDepth;
+
+    private volatile long mPoseCount;
+    private volatile long mDepthFrameCount;
+    private volatile long mDroppedPoseCount;
+    private volatile long mDroppedDepthFrameCount;
+    private volatile long mEventCount;
+    private volatile long mDroppedEventCount;
+    private volatile long mBytesWritten;
+    private volatile long mWriteNanos;
+    private volatile long mStartNanos;
+    private volatile long mStopNanos;
+
+    /**
+     * A pre-allocated record, queued between the recording thread and the
+     * writer thread.
+     */
+    private static class Record {
+        int mType;
+        double mTimestamp;
+        int mBaseFrame;
+        int mTargetFrame;
+        int mStatusCode;
+        final double[] mTranslation = new double[3];
+        final double[] mRotation = new double[4];
+        final ByteBuffer mPoints;
+        final FloatBuffer mPointFloats;
+        int mPointCount;
+        int mEventType;
+        String mEventKey;
+        String mEventValue;
+
+        Record(int type, int maxDepthPoints) {
+            mType = type;
+            if (type == SessionFormat.TYPE_DEPTH) {
+                mPoints = ByteBuffer.allocateDirect(maxDepthPoints * 3 * 4).order(
+                        SessionFormat.BYTE_ORDER);
+                mPointFloats = mPoints.asFloatBuffer();
+            } else {
+                mPoints = null;
+                mPointFloats = null;
+            }
+        }
+    }
+
+    /**
+     * @param directory
+     *            the directory of the session, created if needed. Any previous
+     *            session in it is overwritten.
+     * @param segmentBytes
+     *            the size of each segment file. It must hold at least one depth
+     *            frame of maxDepthPoints points.
+     * @param maxDepthPoints
+     *            the largest number of points in a depth frame.
+     */
+    public SessionRecorder(File directory, int segmentBytes, int maxDepthPoints) {
+        this(directory, segmentBytes, maxDepthPoints, false);
+    }
+
+    /**
+     * @param directory
+     *            the directory of the session, created if needed. Any previous
+     *            session in it is overwritten.
+     * @param segmentBytes
+     *            the size of each segment file. It must hold at least one depth
+     *            frame of maxDepthPoints points.
+     * @param maxDepthPoints
+     *            the largest number of points in a depth frame.
+     * @param compressDepth
+     *            whether to record depth frames compressed with
+     *            {@link PointCloudCodec}.
+     */
+    public SessionRecorder(File directory, int segmentBytes, int maxDepthPoints,
+            boolean compressDepth) {
+        int largestPayload = Math.max(SessionFormat.getDepthPayloadBytes(maxDepthPoints),
+                SessionFormat.EVENT_PAYLOAD_HEADER_BYTES + 2
+                        * SessionFormat.MAX_EVENT_STRING_BYTES);
+        int largestRecord = SessionFormat.SEGMENT_HEADER_BYTES
+                + SessionFormat.RECORD_HEADER_BYTES + SessionFormat.align(largestPayload)
+                + SessionFormat.RECORD_HEADER_BYTES;
+        if (segmentBytes < largestRecord) {
+            throw new IllegalArgumentException("Segments of " + segmentBytes
+                    + " bytes cannot hold a depth frame of " + maxDepthPoints + " points");
+        }
+        mDirectory = directory;
+        mSegmentBytes = segmentBytes;
+        if (compressDepth && maxDepthPoints > 0) {
+            mDepthCodec = new PointCloudCodec(maxDepthPoints);
+            mEncodedDepth = ByteBuffer.allocateDirect(
+                    PointCloudCodec.getMaxFrameBytes(maxDepthPoints));
+        } else {
+            mDepthCodec = null;
+            mEncodedDepth = null;
+        }
+        mPendingRecords = new ArrayBlockingQueue<Record>(POSE_RECORDS + DEPTH_RECORDS
+                + EVENT_RECORDS + 1);
+        mFreePoseRecords = new ArrayBlockingQueue<Record>(POSE_RECORDS);
+        mFreeDepthRecords = new ArrayBlockingQueue<Record>(DEPTH_RECORDS);
+        mFreeEventRecords = new ArrayBlockingQueue<Record>(EVENT_RECORDS);
+        for (int i = 0; i < POSE_RECORDS; i++) {
+            mFreePoseRecords.add(new Record(SessionFormat.TYPE_POSE, 0));
+        }
+        for (int i = 0; i < DEPTH_RECORDS; i++) {
+            mFreeDepthRecords.add(new Record(SessionFormat.TYPE_DEPTH, maxDepthPoints));
+        }
+        for (int i = 0; i < EVENT_RECORDS; i++) {
+            mFreeEventRecords.add(new Record(SessionFormat.TYPE_EVENT, 0));
+        }
+    }
+
+    /**
+     * Starts recording to a new session directory in the external files of the
+     * activity, if the activity was started with {@link #EXTRA_RECORD_SESSION}
+     * set, for instance with
+     * {@code adb shell am start --ez record_session true <activity>}. Depth
+     * frames are compressed unless {@link #EXTRA_RAW_DEPTH} is set.
+     *
+     * @param activity
+     *            the activity to record.
+     * @param maxDepthPoints
+     *            the largest number of points in a depth frame, or 0 if the
+     *            activity does not use depth.
+     * @return the started recorder, or null if recording was not requested or
+     *         could not start.
+     */
+    public static SessionRecorder startIfRequested(Activity activity, int maxDepthPoints) {
+        if (!activity.getIntent().getBooleanExtra(EXTRA_RECORD_SESSION, false)) {
+            return null;
+        }
+        File root = activity.getExternalFilesDir("sessions");
+        if (root == null) {
+            root = new File(activity.getFilesDir(), "sessions");
+        }
+        File directory = new File(root, "session-" + System.currentTimeMillis());
+        SessionRecorder recorder = new SessionRecorder(directory, DEFAULT_SEGMENT_BYTES,
+                maxDepthPoints, !activity.getIntent().getBooleanExtra(EXTRA_RAW_DEPTH, false));
+        try {
+            recorder.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot record the session to " + directory, e);
+            return null;
+        }
+        Log.i(TAG, "Recording the session to " + directory);
+        return recorder;
+    }
+
+    /**
+     * Creates the first segment and the index and starts the writer thread.
+     *
+     * @throws IOException
+     *             if the session files cannot be created.
+     */
+    public synchronized void start() throws IOException {
+        if (mWriter != null) {
+            return;
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + mDirectory);
+        }
+        mIndexFile = new RandomAccessFile(new File(mDirectory, SessionFormat.INDEX_FILE_NAME),
+                "rw");
+        mIndexFile.setLength(0);
+        ByteBuffer header = ByteBuffer.allocate(SessionFormat.INDEX_HEADER_BYTES).order(
+                SessionFormat.BYTE_ORDER);
+        header.putInt(SessionFormat.MAGIC).putInt(SessionFormat.VERSION).flip();
+        mIndexFile.getChannel().write(header);
+        // Records queued after the previous session stopped are discarded.
+        Record stale;
+        while ((stale = mPendingRecords.poll()) != null) {
+            release(stale);
+        }
+        mSegmentNumber = -1;
+        openNextSegment();
+        mStartNanos = System.nanoTime();
+        mStopNanos = 0;
+
+        mWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Record record = mPendingRecords.take();
+                        if (record == mStopRecord) {
+                            break;
+                        }
+                        write(record);
+                        release(record);
+                    }
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "Recording interrupted");
+                } catch (IOException e) {
+                    Log.e(TAG, "Recording failed", e);
+                }
+                closeFiles();
+            }
+        }, "SessionRecorder");
+        mWriter.start();
+    }
+
+    /**
+     * Writes the queued records, closes the session files and stops the
+     * writer thread. Blocks until the files are closed.
+     */
+    public synchronized void stop() {
+        Thread writer = mWriter;
+        mWriter = null;
+        if (writer == null) {
+            return;
+        }
+        mPendingRecords.add(mStopRecord);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mStopNanos = System.nanoTime();
+        Log.i(TAG, "Recorded " + mPoseCount + " poses and " + mDepthFrameCount
+                + " depth frames, dropped " + mDroppedPoseCount + " poses and "
+                + mDroppedDepthFrameCount + " depth frames");
+    }
+
+    /**
+     * Queues a pose to be recorded.
+     *
+     * @param timestamp
+     *            the pose timestamp, in seconds.
+     * @param baseFrame
+     *            the base frame of the pose.
+     * @param targetFrame
+     *            the target frame of the pose.
+     * @param statusCode
+     *            the status code of the pose.
+     * @param translation
+     *            the translation of the pose.
+     * @param rotation
+     *            the rotation quaternion of the pose, as (x, y, z, w).
+     */
+    public void recordPose(double timestamp, int baseFrame, int targetFrame, int statusCode,
+            double[] translation, double[] rotation) {
+        if (mWriter == null) {
+            return;
+        }
+        Record record = mFreePoseRecords.poll();
+        if (record == null) {
+            mDroppedPoseCount++;
+            return;
+        }
+        record.mTimestamp = timestamp;
+        record.mBaseFrame = baseFrame;
+        record.mTargetFrame = targetFrame;
+        record.mStatusCode = statusCode;
+        System.arraycopy(translation, 0, record.mTranslation, 0, 3);
+        System.arraycopy(rotation, 0, record.mRotation, 0, 4);
+        mPendingRecords.add(record);
+        mPoseCount++;
+    }
+
+    /**
+     * Queues a depth frame to be recorded. The points are copied in bulk, so
+     * the buffer can be reused as soon as this returns.
+     *
+     * @param timestamp
+     *            the timestamp of the depth frame, in seconds.
+     * @param xyz
+     *            the XYZ coordinates of the points, from position 0.
+     * @param pointCount
+     *            the number of points in the buffer.
+     */
+    public void recordDepthFrame(double timestamp, FloatBuffer xyz, int pointCount) {
+        if (mWriter == null) {
+            return;
+        }
+        Record record = mFreeDepthRecords.poll();
+        if (record == null) {
+            mDroppedDepthFrameCount++;
+            return;
+        }
+        pointCount = Math.min(pointCount, record.mPointFloats.capacity() / 3);
+        FloatBuffer source = xyz.duplicate();
+        source.position(0);
+        source.limit(pointCount * 3);
+        record.mPointFloats.clear();
+        record.mPointFloats.put(source);
+        record.mPointCount = pointCount;
+        record.mTimestamp = timestamp;
+        mPendingRecords.add(record);
+        mDepthFrameCount++;
+    }
+
+    private void release(Record record) {
+        if (record.mType == SessionFormat.TYPE_DEPTH) {
+            mFreeDepthRecords.add(record);
+        } else if (record.mType == SessionFormat.TYPE_POSE) {
+            mFreePoseRecords.add(record);
+        } else if (record.mType == SessionFormat.TYPE_EVENT) {
+            record.mEventKey = null;
+            record.mEventValue = null;
+            mFreeEventRecords.add(record);
+        }
+    }
+
+    /**
+     * Queues a Tango event to be recorded.
+     *
+     * @param timestamp
+     *            the event timestamp, in seconds.
+     * @param eventType
+     *            the type of the event.
+     * @param key
+     *            the key of the event.
+     * @param value
+     *            the value of the event.
+     */
+    public void recordEvent(double timestamp, int eventType, String key, String value) {
+        if (mWriter == null) {
+            return;
+        }
+        Record record = mFreeEventRecords.poll();
+        if (record == null) {
+            mDroppedEventCount++;
+            return;
+        }
+        record.mTimestamp = timestamp;
+        record.mEventType = eventType;
+        record.mEventKey = key;
+        record.mEventValue = value;
+        mPendingRecords.add(record);
+        mEventCount++;
+    }
+
+    /**
+     * Appends a record to the current segment, moving to the next segment if
+     * it does not fit.
+     */
+    private void write(Record record) throws IOException {
+        long start = System.nanoTime();
+        int type = record.mType;
+        byte[] key = null;
+        byte[] value = null;
+        int payloadBytes;
+        if (type == SessionFormat.TYPE_DEPTH && mDepthCodec != null) {
+            type = SessionFormat.TYPE_DEPTH_COMPRESSED;
+            mEncodedDepth.clear();
+            payloadBytes = mDepthCodec.encode(record.mPointFloats, record.mPointCount,
+                    mEncodedDepth);
+            mEncodedDepth.flip();
+        } else if (type == SessionFormat.TYPE_DEPTH) {
+            payloadBytes = SessionFormat.getDepthPayloadBytes(record.mPointCount);
+        } else if (type == SessionFormat.TYPE_EVENT) {
+            key = encodeEventString(record.mEventKey);
+            value = encodeEventString(record.mEventValue);
+            payloadBytes = SessionFormat.EVENT_PAYLOAD_HEADER_BYTES + key.length + value.length;
+        } else {
+            payloadBytes = SessionFormat.POSE_PAYLOAD_BYTES;
+        }
+        int recordBytes = SessionFormat.RECORD_HEADER_BYTES + SessionFormat.align(payloadBytes);
+        // Keep room for the end record.
+        if (mSegment.remaining() < recordBytes + SessionFormat.RECORD_HEADER_BYTES) {
+            openNextSegment();
+        }
+        int offset = mSegment.position();
+        mSegment.putInt(type);
+        mSegment.putInt(payloadBytes);
+        mSegment.putDouble(record.mTimestamp);
+        if (type == SessionFormat.TYPE_DEPTH_COMPRESSED) {
+            mSegment.put(mEncodedDepth);
+        } else if (type == SessionFormat.TYPE_DEPTH) {
+            mSegment.putInt(record.mPointCount);
+            mSegment.putInt(0);
+            ByteBuffer points = record.mPoints.duplicate();
+            points.position(0);
+            points.limit(record.mPointCount * 3 * 4);
+            mSegment.put(points);
+        } else if (type == SessionFormat.TYPE_EVENT) {
+            mSegment.putInt(record.mEventType);
+            mSegment.putInt(key.length);
+            mSegment.putInt(value.length);
+            mSegment.putInt(0);
+            mSegment.put(key);
+            mSegment.put(value);
+        } else {
+            mSegment.putInt(record.mBaseFrame);
+            mSegment.putInt(record.mTargetFrame);
+            mSegment.putInt(record.mStatusCode);
+            mSegment.putInt(0);
+            for (int i = 0; i < 3; i++) {
+                mSegment.putDouble(record.mTranslation[i]);
+            }
+            for (int i = 0; i < 4; i++) {
+                mSegment.putDouble(record.mRotation[i]);
+            }
+        }
+        mSegment.position(offset + recordBytes);
+
+        if (mIndexBuffer.remaining() < SessionFormat.INDEX_ENTRY_BYTES) {
+            flushIndex();
+        }
+        mIndexBuffer.putDouble(record.mTimestamp);
+        mIndexBuffer.putInt(mSegmentNumber);
+        mIndexBuffer.putInt(offset);
+        mIndexBuffer.putInt(type);
+        mIndexBuffer.putInt(0);
+
+        mBytesWritten += recordBytes + SessionFormat.INDEX_ENTRY_BYTES;
+        mWriteNanos += System.nanoTime() - start;
+    }
+
+    private static byte[] encodeEventString(String string) {
+        byte[] bytes = string == null ? new byte[0] : string.getBytes(UTF_8);
+        if (bytes.length > SessionFormat.MAX_EVENT_STRING_BYTES) {
+            byte[] cut = new byte[SessionFormat.MAX_EVENT_STRING_BYTES];
+            System.arraycopy(bytes, 0, cut, 0, cut.length);
+            bytes = cut;
+        }
+        return bytes;
+    }
+
+    private void openNextSegment() throws IOException {
+        closeSegment();
+        mSegmentNumber++;
+        File file = new File(mDirectory, SessionFormat.getSegmentFileName(mSegmentNumber));
+        mSegmentFile = new RandomAccessFile(file, "rw");
+        mSegmentFile.setLength(0);
+        mSegment = mSegmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                mSegmentBytes);
+        mSegment.order(SessionFormat.BYTE_ORDER);
+        mSegment.putInt(SessionFormat.MAGIC);
+        mSegment.putInt(SessionFormat.VERSION);
+        mSegment.putInt(mSegmentNumber);
+        mSegment.putInt(0);
+        // Flush the index at every segment boundary, so that a crash only
+        // loses the index entries of the last segment.
+        flushIndex();
+    }
+
+    /**
+     * Ends the current segment and trims its file to the written records.
+     */
+    private void closeSegment() throws IOException {
+        if (mSegment == null) {
+            return;
+        }
+        int end = mSegment.position();
+        mSegment.putInt(SessionFormat.TYPE_END);
+        mSegment.putInt(0);
+        mSegment.putDouble(0);
+        mSegment.force();
+        mSegment = null;
+        mSegmentFile.getChannel().truncate(end + SessionFormat.RECORD_HEADER_BYTES);
+        mSegmentFile.close();
+        mSegmentFile = null;
+    }
+
+    private void flushIndex() throws IOException {
+        mIndexBuffer.flip();
+        FileChannel channel = mIndexFile.getChannel();
+        while (mIndexBuffer.hasRemaining()) {
+            channel.write(mIndexBuffer);
+        }
+        mIndexBuffer.clear();
+    }
+
+    private void closeFiles() {
+        try {
+            closeSegment();
+            flushIndex();
+            mIndexFile.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot close the session files", e);
+        }
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * @return the codec compressing the depth frames, for its counters, or
+     *         null if depth frames are recorded raw.
+     */
+    public PointCloudCodec getDepthCodec() {
+        return mDepthCodec;
+    }
+
+    /**
+     * @return the number of recorded poses.
+     */
+    public long getPoseCount() {
+        return mPoseCount;
+    }
+
+    /**
+     * @return the number of recorded depth frames.
+     */
+    public long getDepthFrameCount() {
+        return mDepthFrameCount;
+    }
+
+    /**
+     * @return the number of poses dropped because the writer was behind.
+     */
+    public long getDroppedPoseCount() {
+        return mDroppedPoseCount;
+    }
+
+    /**
+     * @return the number of depth frames dropped because the writer was
+     *         behind.
+     */
+    public long getDroppedDepthFrameCount() {
+        return mDroppedDepthFrameCount;
+    }
+
+    /**
+     * @return the number of recorded events.
+     */
+    public long getEventCount() {
+        return mEventCount;
+    }
+
+    /**
+     * @return the number of events dropped because the writer was behind.
+     */
+    public long getDroppedEventCount() {
+        return mDroppedEventCount;
+    }
+
+    /**
+     * @return the number of bytes written to the segments and the index.
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @return the total time, in nanoseconds, the writer spent appending
+     *         records.
+     */
+    public long getWriteNanos() {
+        return mWriteNanos;
+    }
+
+    /**
+     * @return the average number of bytes written per second since the
+     *         recording started.
+     */
+    public double getThroughput() {
+        long start = mStartNanos;
+        long end = mStopNanos != 0 ? mStopNanos : System.nanoTime();
+        if (start == 0 || end <= start) {
+            return 0;
+        }
+        return mBytesWritten * 1e9 / (end - start);
+    }
+}
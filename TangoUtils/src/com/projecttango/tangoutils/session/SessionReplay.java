@@ -0,0 +1,166 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.session;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.app.Activity;
+import android.util.Log;
+
+/**
+ * Drives an activity from a recorded session in place of the Tango service,
+ * when the activity is started with the {@link SessionPlayer#EXTRA_REPLAY_SESSION}
+ * extra. This is the part of the replay that does not depend on the Tango
+ * SDK: opening the session named by the intent, starting and stopping the
+ * {@link SessionPlayer}, keeping only the poses of the listened frame pairs,
+ * and answering the first pose queries made at startup.
+ *
+ * Subclasses turn the records into Tango data objects for the activity's
+ * listener. They live in the applications, which bundle the Tango SDK, as
+ * TangoUtils does not link against it.
+ */
+public abstract class SessionReplay implements SessionPlayer.Listener {
+
+    private static final String TAG = SessionReplay.class.getSimpleName();
+
+    private final SessionPlayer mPlayer;
+    private final float mSpeed;
+    private int[] mBaseFrames = new int[0];
+    private int[] mTargetFrames = new int[0];
+
+    /**
+     * @param player
+     *            the player of the session.
+     * @param speed
+     *            the replay speed, see {@link SessionPlayer#start}.
+     */
+    protected SessionReplay(SessionPlayer player, float speed) {
+        mPlayer = player;
+        mSpeed = speed;
+    }
+
+    /**
+     * Opens the session named by the intent of an activity, if any.
+     *
+     * @return the player of the session, or null if the activity was not
+     *         asked to replay one or the session cannot be read.
+     */
+    public static SessionPlayer openPlayerIfRequested(Activity activity) {
+        String directory = activity.getIntent().getStringExtra(
+                SessionPlayer.EXTRA_REPLAY_SESSION);
+        if (directory == null) {
+            return null;
+        }
+        try {
+            SessionPlayer player = new SessionPlayer(new File(directory));
+            Log.i(TAG, "Replaying " + player.getRecordCount() + " records from "
+                    + directory + " at speed " + getRequestedSpeed(activity));
+            return player;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open session " + directory, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the replay speed asked for by the intent of an activity, 1 by
+     *         default.
+     */
+    public static float getRequestedSpeed(Activity activity) {
+        return activity.getIntent().getFloatExtra(SessionPlayer.EXTRA_REPLAY_SPEED, 1f);
+    }
+
+    /**
+     * Sets the frame pairs whose poses are delivered, like the frame pairs
+     * passed to Tango.connectListener.
+     *
+     * @param baseFrames
+     *            the base frame of each pair.
+     * @param targetFrames
+     *            the target frame of each pair.
+     */
+    protected void setFramePairs(int[] baseFrames, int[] targetFrames) {
+        mBaseFrames = baseFrames.clone();
+        mTargetFrames = targetFrames.clone();
+    }
+
+    /**
+     * Starts the replay on a background thread.
+     */
+    public void connect() {
+        mPlayer.start(this, mSpeed);
+    }
+
+    /**
+     * Stops the replay and logs how closely it kept to the recorded pace.
+     */
+    public void disconnect() {
+        mPlayer.stop();
+        if (mPlayer.getFailure() != null) {
+            Log.e(TAG, "Replay failed", mPlayer.getFailure());
+        }
+        Log.i(TAG, "Replayed " + mPlayer.getDeliveredCount() + " records in "
+                + mPlayer.getReplayNanos() / 1000000 + " ms, "
+                + mPlayer.getAverageLatenessNanos() / 1000 + " us late on average, "
+                + mPlayer.getMaxLatenessNanos() / 1000 + " us at most");
+    }
+
+    /**
+     * Reads the first pose of a frame pair from the session, standing in for
+     * the Tango.getPoseAtTime queries made at startup. Only call this before
+     * {@link #connect()}.
+     *
+     * @return the timestamp of the pose, or NaN if the session has none or
+     *         cannot be read.
+     * @see SessionPlayer#findFirstPose
+     */
+    protected double findFirstPose(int baseFrame, int targetFrame, double[] translation,
+            double[] rotation) {
+        try {
+            return mPlayer.findFirstPose(baseFrame, targetFrame, translation, rotation);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read the session", e);
+            return Double.NaN;
+        }
+    }
+
+    @Override
+    public final void onPose(double timestamp, int baseFrame, int targetFrame,
+            int statusCode, double[] translation, double[] rotation) {
+        for (int i = 0; i < mBaseFrames.length; i++) {
+            if (mBaseFrames[i] == baseFrame && mTargetFrames[i] == targetFrame) {
+                onListenedPose(timestamp, baseFrame, targetFrame, statusCode,
+                        translation, rotation);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Receives the replayed poses of the listened frame pairs, on the
+     * replaying thread.
+     *
+     * @see SessionPlayer.Listener#onPose
+     */
+    protected abstract void onListenedPose(double timestamp, int baseFrame,
+            int targetFrame, int statusCode, double[] translation, double[] rotation);
+
+    public SessionPlayer getPlayer() {
+        return mPlayer;
+    }
+}
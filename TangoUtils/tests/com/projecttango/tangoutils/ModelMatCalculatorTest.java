@@ -0,0 +1,151 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+public class ModelMatCalculatorTest {
+
+    private static final int WARM_UP_ITERATIONS = 20000;
+    private static final int MEASURED_ITERATIONS = 100000;
+    private static final int MEASURED_RUNS = 5;
+
+    @Test
+    public void poseToModelMatrixDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads = threadMXBean();
+        ModelMatCalculator calculator = new ModelMatCalculator();
+        float[] translation = new float[3];
+        float[] rotation = new float[4];
+        float[] dest = new float[16];
+
+        runPoses(calculator, translation, rotation, dest, WARM_UP_ITERATIONS);
+        // The first runs may still allocate while the JIT compiles the loop,
+        // so keep the least allocating of a few runs.
+        long threadId = Thread.currentThread().getId();
+        long allocated = Long.MAX_VALUE;
+        for (int run = 0; run < MEASURED_RUNS; run++) {
+            long before = threads.getThreadAllocatedBytes(threadId);
+            runPoses(calculator, translation, rotation, dest, MEASURED_ITERATIONS);
+            allocated = Math.min(allocated, threads.getThreadAllocatedBytes(threadId) - before);
+        }
+
+        assertEquals("bytes allocated by " + MEASURED_ITERATIONS + " poses", 0, allocated);
+    }
+
+    @Test
+    public void batchMatchesSinglePoses() {
+        assertBatchMatchesSinglePoses(1f);
+    }
+
+    @Test
+    public void batchMatchesSinglePosesWithUnnormalizedQuaternions() {
+        assertBatchMatchesSinglePoses(2.5f);
+    }
+
+    @Test
+    public void quaternionIsNormalizedBeforeComposing() {
+        ModelMatCalculator calculator = new ModelMatCalculator();
+        float[] pose = pose(3);
+        float[] translation = new float[] { pose[0], pose[1], pose[2] };
+        calculator.updateModelMatrix(translation, new float[] { pose[3], pose[4], pose[5],
+                pose[6] });
+        float[] expected = calculator.getModelMatrixCopy();
+        calculator.updateModelMatrix(translation, new float[] { 3f * pose[3], 3f * pose[4],
+                3f * pose[5], 3f * pose[6] });
+        assertArrayEquals(expected, calculator.getModelMatrixCopy(), 1e-6f);
+    }
+
+    private static void assertBatchMatchesSinglePoses(float quaternionScale) {
+        ModelMatCalculator calculator = new ModelMatCalculator();
+        calculator.SetDevice2IMUMatrix(new float[] { 0.01f, 0.02f, 0.03f },
+                new float[] { 0.1f, 0.2f, 0.3f, 0.9f });
+        int count = 5;
+        float[] poses = new float[7 * count];
+        for (int i = 0; i < count; i++) {
+            float[] pose = pose(i, quaternionScale);
+            for (int c = 0; c < 7; c++) {
+                poses[c * count + i] = pose[c];
+            }
+        }
+        float[] matrices = new float[16 * count];
+        calculator.computeModelMatrices(poses, count, matrices, 0);
+
+        float[] expected = new float[16];
+        float[] actual = new float[16];
+        for (int i = 0; i < count; i++) {
+            float[] pose = pose(i, quaternionScale);
+            calculator.updateModelMatrix(new float[] { pose[0], pose[1], pose[2] },
+                    new float[] { pose[3], pose[4], pose[5], pose[6] });
+            calculator.getModelMatrix(expected, 0);
+            System.arraycopy(matrices, 16 * i, actual, 0, 16);
+            assertArrayEquals(expected, actual, 1e-6f);
+        }
+    }
+
+    @Test
+    public void translationIsConvertedToOpenGlAxes() {
+        ModelMatCalculator calculator = new ModelMatCalculator();
+        calculator.updateModelMatrix(new float[] { 1f, 2f, 3f },
+                new float[] { 0f, 0f, 0f, 1f });
+        float[] translation = new float[3];
+        calculator.getTranslation(translation);
+        assertArrayEquals(new float[] { 1f, 3f, -2f }, translation, 0f);
+    }
+
+    private static void runPoses(ModelMatCalculator calculator, float[] translation,
+            float[] rotation, float[] dest, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            float angle = i * 1e-3f;
+            translation[0] = angle;
+            translation[1] = -angle;
+            translation[2] = 1f;
+            rotation[0] = 0f;
+            rotation[1] = 0f;
+            rotation[2] = (float) Math.sin(angle);
+            rotation[3] = (float) Math.cos(angle);
+            calculator.updateModelMatrix(translation, rotation);
+            calculator.updatePointCloudModelMatrix(translation, rotation);
+            calculator.getModelMatrix(dest, 0);
+            calculator.getPointCloudModelMatrix(dest, 0);
+        }
+    }
+
+    private static float[] pose(int i) {
+        return pose(i, 1f);
+    }
+
+    private static float[] pose(int i, float quaternionScale) {
+        double angle = 0.3 * i;
+        return new float[] { i, 2f * i, -i, 0f, quaternionScale * (float) Math.sin(angle), 0f,
+                quaternionScale * (float) Math.cos(angle) };
+    }
+
+    private static com.sun.management.ThreadMXBean threadMXBean() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(sunThreads.isThreadAllocatedMemorySupported());
+        sunThreads.setThreadAllocatedMemoryEnabled(true);
+        return sunThreads;
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PointCloudCodecTest {
+
+    private static final int MAX_POINTS = 20000;
+    // The class comment promises at most half a step of the 16 bit grid.
+    private static final double ERROR_BOUND = 1.0 / 131070;
+
+    @Test
+    public void roundTripsAroundBlockBoundaries() {
+        Random random = new Random(1);
+        for (int pointCount : new int[] { 0, 1, 32, 33, 64, 65 }) {
+            assertRoundTrip(depthPoints(random, pointCount));
+        }
+    }
+
+    @Test
+    public void errorStaysWithinHalfAStep() {
+        float[] points = depthPoints(new Random(2), MAX_POINTS);
+        float[] decoded = roundTrip(points);
+        double[] worst = assertRoundTrip(points, decoded);
+        // The bound is tight: random points come close to it on every axis.
+        for (int axis = 0; axis < 3; axis++) {
+            assertTrue("axis " + axis + " error " + worst[axis], worst[axis] > 0.9 * ERROR_BOUND);
+        }
+    }
+
+    @Test
+    public void equalPointsDecodeExactly() {
+        float[] points = new float[3 * 40];
+        for (int i = 0; i < points.length; i += 3) {
+            points[i] = 0.25f;
+            points[i + 1] = -1.5f;
+            points[i + 2] = 2.75f;
+        }
+        float[] decoded = roundTrip(points);
+        for (int i = 0; i < points.length; i++) {
+            assertEquals(points[i], decoded[i], 0f);
+        }
+    }
+
+    @Test
+    public void pointsBehindTheCameraRoundTrip() {
+        Random random = new Random(3);
+        float[] points = depthPoints(random, 100);
+        for (int i = 0; i < points.length; i += 9) {
+            points[i + 2] = i % 2 == 0 ? 0f : -points[i + 2];
+        }
+        assertRoundTrip(points);
+    }
+
+    @Test
+    public void fullWidthDifferencesRoundTrip() {
+        // Points on one ray share a grid cell and keep their order, so the
+        // differences go from one corner of the box to the other and back,
+        // 17 bits each once zigzag encoded.
+        float[] points = { 0.1f, 0.2f, 1f, 1f, 2f, 10f, 0.1f, 0.2f, 1f };
+        PointCloudCodec codec = new PointCloudCodec(3);
+        ByteBuffer frame = ByteBuffer.allocate(PointCloudCodec.getMaxFrameBytes(3));
+        int length = codec.encode(floatBuffer(points), 3, frame);
+        assertEquals(PointCloudCodec.getMaxFrameBytes(3), length);
+        frame.flip();
+        FloatBuffer decoded = floatBuffer(new float[points.length]);
+        assertEquals(3, codec.decode(frame, decoded));
+        for (int i = 0; i < points.length; i++) {
+            assertEquals(points[i], decoded.get(i), 1e-4f);
+        }
+    }
+
+    @Test
+    public void framesStreamBackToBack() {
+        Random random = new Random(4);
+        float[] first = depthPoints(random, 500);
+        float[] second = depthPoints(random, 70);
+        PointCloudCodec codec = new PointCloudCodec(MAX_POINTS);
+        ByteBuffer stream = ByteBuffer.allocate(2 * PointCloudCodec.getMaxFrameBytes(500));
+        int firstLength = codec.encode(floatBuffer(first), 500, stream);
+        codec.encode(floatBuffer(second), 70, stream);
+        stream.flip();
+
+        assertEquals(firstLength, PointCloudCodec.getFrameBytes(stream));
+        FloatBuffer decoded = floatBuffer(new float[3 * MAX_POINTS]);
+        assertEquals(500, codec.decode(stream, decoded));
+        assertEquals(firstLength, stream.position());
+        assertEquals(70, codec.decode(stream, decoded));
+        assertEquals(0, stream.remaining());
+        assertEquals(2, codec.getDecodedFrameCount());
+    }
+
+    @Test
+    public void truncatedFramesAreRejected() {
+        float[] points = depthPoints(new Random(5), 1000);
+        PointCloudCodec codec = new PointCloudCodec(MAX_POINTS);
+        ByteBuffer frame = ByteBuffer.allocate(PointCloudCodec.getMaxFrameBytes(1000));
+        int length = codec.encode(floatBuffer(points), 1000, frame);
+        FloatBuffer decoded = floatBuffer(new float[3 * MAX_POINTS]);
+        for (int cut : new int[] { 1, 8, length / 2, length - PointCloudCodec.HEADER_BYTES }) {
+            // The header claims the shorter length, so the data runs out
+            // before the points do.
+            ByteBuffer truncated = ByteBuffer.allocate(length - cut);
+            truncated.put(frame.array(), 0, length - cut).flip();
+            truncated.order(ByteOrder.LITTLE_ENDIAN).putInt(0, length - cut);
+            assertRejected(codec, truncated, decoded);
+        }
+
+        ByteBuffer incomplete = ByteBuffer.allocate(length - 1);
+        incomplete.put(frame.array(), 0, length - 1).flip();
+        assertRejected(codec, incomplete, decoded);
+    }
+
+    @Test
+    public void corruptedWidthsAreRejected() {
+        // With a codec sized for the frame, reading wider differences than
+        // were written would run past the end of its scratch array.
+        int pointCount = 33;
+        float[] points = depthPoints(new Random(6), pointCount);
+        PointCloudCodec codec = new PointCloudCodec(pointCount);
+        ByteBuffer frame = ByteBuffer.allocate(PointCloudCodec.getMaxFrameBytes(pointCount));
+        codec.encode(floatBuffer(points), pointCount, frame);
+        frame.flip();
+        int widths = PointCloudCodec.HEADER_BYTES;
+        frame.put(widths, (byte) 0xFF);
+        frame.put(widths + 1, (byte) (frame.get(widths + 1) | 0x7F));
+        assertRejected(codec, frame, floatBuffer(new float[3 * pointCount]));
+    }
+
+    private static void assertRejected(PointCloudCodec codec, ByteBuffer frame,
+            FloatBuffer decoded) {
+        try {
+            codec.decode(frame, decoded);
+            fail("decoded a frame of " + frame.remaining() + " bytes");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static void assertRoundTrip(float[] points) {
+        assertRoundTrip(points, roundTrip(points));
+    }
+
+    /**
+     * Matches every decoded point with a distinct original point within the
+     * error bound.
+     *
+     * @return the largest error along each axis, relative to the extent of
+     *         the points along that axis.
+     */
+    private static double[] assertRoundTrip(float[] points, float[] decoded) {
+        assertEquals(points.length, decoded.length);
+        int pointCount = points.length / 3;
+        double[] min = { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+        double[] max = { -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+        for (int i = 0; i < points.length; i++) {
+            min[i % 3] = Math.min(min[i % 3], points[i]);
+            max[i % 3] = Math.max(max[i % 3], points[i]);
+        }
+        // Allow for the float arithmetic of the encoder and the decoder.
+        double[] tolerance = new double[3];
+        for (int axis = 0; axis < 3; axis++) {
+            double magnitude = Math.max(Math.abs(min[axis]), Math.abs(max[axis]));
+            tolerance[axis] = (max[axis] - min[axis]) * ERROR_BOUND * 1.001 + 4
+                    * Math.ulp((float) magnitude);
+        }
+
+        // The points are far enough apart, compared with the error, for the
+        // first match to be the right one.
+        boolean[] matched = new boolean[pointCount];
+        double[] worst = new double[3];
+        for (int d = 0; d < pointCount; d++) {
+            int match = -1;
+            for (int p = 0; p < pointCount && match < 0; p++) {
+                if (!matched[p] && Math.abs(points[3 * p] - decoded[3 * d]) <= tolerance[0]
+                        && Math.abs(points[3 * p + 1] - decoded[3 * d + 1]) <= tolerance[1]
+                        && Math.abs(points[3 * p + 2] - decoded[3 * d + 2]) <= tolerance[2]) {
+                    match = p;
+                }
+            }
+            if (match < 0) {
+                fail("decoded point " + d + " (" + decoded[3 * d] + ", " + decoded[3 * d + 1]
+                        + ", " + decoded[3 * d + 2] + ") is not within the error bound");
+            }
+            matched[match] = true;
+            for (int axis = 0; axis < 3; axis++) {
+                double extent = max[axis] - min[axis];
+                double error = Math.abs(points[3 * match + axis] - decoded[3 * d + axis]);
+                worst[axis] = Math.max(worst[axis], extent > 0 ? error / extent : 0);
+            }
+        }
+        return worst;
+    }
+
+    private static float[] roundTrip(float[] points) {
+        int pointCount = points.length / 3;
+        PointCloudCodec codec = new PointCloudCodec(MAX_POINTS);
+        ByteBuffer frame = ByteBuffer.allocateDirect(PointCloudCodec.getMaxFrameBytes(pointCount));
+        int length = codec.encode(floatBuffer(points), pointCount, frame);
+        assertEquals(length, frame.position());
+        frame.flip();
+        FloatBuffer decoded = floatBuffer(new float[3 * MAX_POINTS]);
+        assertEquals(pointCount, codec.decode(frame, decoded));
+        assertEquals(3 * pointCount, decoded.remaining());
+        float[] result = new float[3 * pointCount];
+        decoded.get(result);
+        return result;
+    }
+
+    /**
+     * @return points seen by a depth camera, within its field of view and
+     *         between 0.5 and 4.5 m.
+     */
+    private static float[] depthPoints(Random random, int pointCount) {
+        float[] points = new float[3 * pointCount];
+        for (int i = 0; i < points.length; i += 3) {
+            float z = 0.5f + 4f * random.nextFloat();
+            points[i] = (random.nextFloat() - 0.5f) * z;
+            points[i + 1] = (random.nextFloat() - 0.5f) * 0.6f * z;
+            points[i + 2] = z;
+        }
+        return points;
+    }
+
+    private static FloatBuffer floatBuffer(float[] values) {
+        FloatBuffer buffer = ByteBuffer.allocateDirect(Math.max(values.length, 1) * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        buffer.put(values).flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.projecttango.tangoutils.math.Mat4;
+
+public class PointOctreeTest {
+
+    private static final float HALF_SIZE = 8f;
+    private static final float[] IDENTITY = new float[16];
+    static {
+        Mat4.setIdentity(IDENTITY, 0);
+    }
+
+    @Test(timeout = 60000)
+    public void insertedPointsCanBeSelectedAndCopied() throws InterruptedException {
+        int pointCount = 20000;
+        PointOctree octree = new PointOctree(HALF_SIZE, pointCount, pointCount);
+        octree.start();
+        octree.submit(boxPoints(new Random(1), pointCount), pointCount, IDENTITY);
+        waitForPoints(octree, pointCount);
+        octree.stop();
+
+        assertEquals(pointCount, octree.getPointCount());
+        assertEquals(pointCount, copyAll(octree));
+        ArrayList<PointOctree.Node> selected = new ArrayList<PointOctree.Node>();
+        assertEquals(pointCount, selectAll(octree, selected));
+        for (PointOctree.Node node : selected) {
+            assertTrue(node.getSelectedVersion() > 0);
+        }
+    }
+
+    @Test
+    public void pointsOutsideTheRootAreDropped() throws InterruptedException {
+        PointOctree octree = new PointOctree(HALF_SIZE, 10, 10);
+        octree.start();
+        FloatBuffer points = floatBuffer(new float[] { 1f, 1f, -5f, 9f, 0f, 0f });
+        octree.submit(points, 2, IDENTITY);
+        while (octree.getPointCount() + octree.getDroppedPointCount() < 2) {
+            Thread.sleep(1);
+        }
+        octree.stop();
+        assertEquals(1, octree.getPointCount());
+        assertEquals(1, octree.getDroppedPointCount());
+    }
+
+    @Test(timeout = 120000)
+    public void readersSeeFramesWhileTheyAreInserted() throws InterruptedException {
+        // One large frame: a reader that had to wait for the whole frame
+        // would only ever see none or all of its points.
+        int pointCount = 1000000;
+        PointOctree octree = new PointOctree(HALF_SIZE, pointCount, pointCount);
+        octree.submit(boxPoints(new Random(2), pointCount), pointCount, IDENTITY);
+        octree.start();
+
+        ArrayList<PointOctree.Node> selected = new ArrayList<PointOctree.Node>();
+        boolean sawPartialSelection = false;
+        boolean sawPartialCopy = false;
+        while (octree.getPointCount() < pointCount) {
+            int selectedCount = selectAll(octree, selected);
+            sawPartialSelection |= selectedCount > 0 && selectedCount < pointCount;
+            int copiedCount = copyAll(octree);
+            sawPartialCopy |= copiedCount > 0 && copiedCount < pointCount;
+            Thread.yield();
+        }
+        octree.stop();
+
+        assertTrue("selection waited for the whole frame", sawPartialSelection);
+        assertTrue("copy waited for the whole frame", sawPartialCopy);
+        assertEquals(pointCount, copyAll(octree));
+    }
+
+    /**
+     * Copies the points of every node, checking that none is a stale or
+     * unwritten value.
+     *
+     * @return the number of copied points.
+     */
+    private static int copyAll(PointOctree octree) {
+        FloatBuffer dest = floatBuffer(new float[PointOctree.NODE_CAPACITY * 3]);
+        int total = 0;
+        int nodeCount = octree.getNodeCount();
+        for (int id = 0; id < nodeCount; id++) {
+            dest.clear();
+            int copied = octree.copyPoints(id, dest);
+            assertEquals(copied * 3, dest.position());
+            for (int i = 0; i < copied * 3; i += 3) {
+                assertInBox(dest.get(i), dest.get(i + 1), dest.get(i + 2));
+            }
+            total += copied;
+        }
+        return total;
+    }
+
+    /**
+     * Selects every node in front of a camera at the origin, which looks down
+     * -Z at the points with a viewport tall enough to refine down to the
+     * leaves.
+     */
+    private static int selectAll(PointOctree octree, ArrayList<PointOctree.Node> selected) {
+        float[] projection = new float[16];
+        Mat4.perspective(projection, 0, 90f, 1f, 0.1f, 100f);
+        selected.clear();
+        return octree.select(IDENTITY, projection, 1 << 20, Integer.MAX_VALUE, selected);
+    }
+
+    private static void waitForPoints(PointOctree octree, int pointCount)
+            throws InterruptedException {
+        while (octree.getPointCount() + octree.getDroppedPointCount() < pointCount) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static void assertInBox(float x, float y, float z) {
+        if (x < 1f || x > 2f || y < 1f || y > 2f || z < -6f || z > -5f) {
+            fail("point (" + x + ", " + y + ", " + z + ") was never inserted");
+        }
+    }
+
+    /**
+     * @return points in a box in front of the origin, away from the zero
+     *         values of unwritten array elements.
+     */
+    private static FloatBuffer boxPoints(Random random, int pointCount) {
+        float[] points = new float[3 * pointCount];
+        for (int i = 0; i < points.length; i += 3) {
+            points[i] = 1f + random.nextFloat();
+            points[i + 1] = 1f + random.nextFloat();
+            points[i + 2] = -6f + random.nextFloat();
+        }
+        return floatBuffer(points);
+    }
+
+    private static FloatBuffer floatBuffer(float[] values) {
+        FloatBuffer buffer = ByteBuffer.allocateDirect(values.length * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        buffer.put(values).flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class PoseQueueTest {
+
+    private static final int CAPACITY = 64;
+    // Poses are stored as floats, so keep the values exactly representable.
+    private static final int OFFERED_COUNT = 1 << 21;
+
+    @Test
+    public void pollReturnsPosesInOrder() {
+        PoseQueue queue = new PoseQueue(CAPACITY);
+        PoseSnapshot snapshot = new PoseSnapshot();
+        assertFalse(queue.poll(snapshot));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(queue.offer(i, pose(i, 3), pose(i, 4), i));
+        }
+        assertEquals(3, queue.size());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(queue.poll(snapshot));
+            assertPose(i, snapshot);
+        }
+        assertFalse(queue.poll(snapshot));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void fullQueueDropsNewPoses() {
+        PoseQueue queue = new PoseQueue(4);
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i < 4, queue.offer(i, pose(i, 3), pose(i, 4), i));
+        }
+        assertEquals(2, queue.getDropCount());
+
+        // The queued poses are the oldest ones, not overwritten by the drops.
+        PoseSnapshot snapshot = new PoseSnapshot();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.poll(snapshot));
+            assertPose(i, snapshot);
+        }
+        assertFalse(queue.poll(snapshot));
+
+        // Room freed by the consumer is reused.
+        assertTrue(queue.offer(6, pose(6, 3), pose(6, 4), 6));
+        assertTrue(queue.poll(snapshot));
+        assertPose(6, snapshot);
+    }
+
+    @Test(timeout = 60000)
+    public void consumerReceivesEveryAcceptedPoseInOrder() throws InterruptedException {
+        final PoseQueue queue = new PoseQueue(CAPACITY);
+        // Only written by the producer, read after it is joined.
+        final boolean[] accepted = new boolean[OFFERED_COUNT];
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                double[] translation = new double[3];
+                double[] rotation = new double[4];
+                for (int i = 0; i < OFFERED_COUNT; i++) {
+                    fill(translation, i);
+                    fill(rotation, i);
+                    accepted[i] = queue.offer(i, translation, rotation, i);
+                }
+            }
+        });
+        producer.start();
+
+        int[] received = new int[OFFERED_COUNT];
+        int receivedCount = 0;
+        PoseSnapshot snapshot = new PoseSnapshot();
+        while (true) {
+            if (!queue.poll(snapshot)) {
+                if (!producer.isAlive() && queue.size() == 0) {
+                    break;
+                }
+                Thread.yield();
+                continue;
+            }
+            int value = (int) snapshot.timestamp;
+            assertPose(value, snapshot);
+            if (receivedCount > 0 && value <= received[receivedCount - 1]) {
+                fail("pose " + value + " received after " + received[receivedCount - 1]);
+            }
+            received[receivedCount++] = value;
+        }
+        producer.join();
+
+        int acceptedCount = 0;
+        for (int i = 0; i < OFFERED_COUNT; i++) {
+            if (accepted[i]) {
+                assertEquals("pose number " + acceptedCount, i, received[acceptedCount]);
+                acceptedCount++;
+            }
+        }
+        assertEquals(acceptedCount, receivedCount);
+        assertEquals(OFFERED_COUNT - acceptedCount, queue.getDropCount());
+    }
+
+    private static void assertPose(int value, PoseSnapshot snapshot) {
+        if (snapshot.timestamp != value || snapshot.baseFrame != value) {
+            fail("torn pose " + value + ": timestamp " + snapshot.timestamp + ", base frame "
+                    + snapshot.baseFrame);
+        }
+        for (float t : snapshot.translation) {
+            if (t != value) {
+                fail("torn pose " + value + ": translation " + t);
+            }
+        }
+        for (float r : snapshot.rotation) {
+            if (r != value) {
+                fail("torn pose " + value + ": rotation " + r);
+            }
+        }
+    }
+
+    private static double[] pose(int value, int length) {
+        double[] v = new double[length];
+        fill(v, value);
+        return v;
+    }
+
+    private static void fill(double[] v, int value) {
+        for (int i = 0; i < v.length; i++) {
+            v[i] = value;
+        }
+    }
+}
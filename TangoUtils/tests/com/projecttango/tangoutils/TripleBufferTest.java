@@ -0,0 +1,117 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TripleBufferTest {
+
+    private static final int SNAPSHOT_SIZE = 64;
+    private static final int PUBLISHED_COUNT = 1000000;
+
+    @Test
+    public void acquireReturnsNullUntilSomethingIsPublished() {
+        TripleBuffer<long[]> buffer = newBuffer();
+        assertNull(buffer.acquire());
+        buffer.getWriteBuffer()[0] = 1;
+        buffer.publish();
+        assertEquals(1, buffer.acquire()[0]);
+        assertNull(buffer.acquire());
+    }
+
+    @Test
+    public void acquireReturnsTheNewestSnapshot() {
+        TripleBuffer<long[]> buffer = newBuffer();
+        for (long value = 1; value <= 3; value++) {
+            Arrays.fill(buffer.getWriteBuffer(), value);
+            buffer.publish();
+        }
+        long[] snapshot = buffer.acquire();
+        assertEquals(3, snapshot[0]);
+        assertEquals(2, buffer.getDropCount());
+        assertEquals(1, buffer.getAcquireCount());
+    }
+
+    @Test
+    public void slotsRotateWithoutSharing() {
+        TripleBuffer<long[]> buffer = newBuffer();
+        long[] write = buffer.getWriteBuffer();
+        buffer.publish();
+        long[] read = buffer.acquire();
+        assertSame(write, read);
+        assertTrue(buffer.getWriteBuffer() != read);
+    }
+
+    @Test(timeout = 60000)
+    public void consumerSeesWholeSnapshotsInPublishOrder() throws InterruptedException {
+        final TripleBuffer<long[]> buffer = newBuffer();
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (long value = 1; value <= PUBLISHED_COUNT; value++) {
+                    Arrays.fill(buffer.getWriteBuffer(), value);
+                    buffer.publish();
+                }
+            }
+        });
+        producer.start();
+
+        long last = 0;
+        while (last < PUBLISHED_COUNT) {
+            long[] snapshot = buffer.acquire();
+            if (snapshot == null) {
+                if (!producer.isAlive() && buffer.getPublishCount() == PUBLISHED_COUNT) {
+                    // The last snapshot must still be there to acquire.
+                    snapshot = buffer.acquire();
+                    assertNotNull("newest snapshot lost after " + last, snapshot);
+                } else {
+                    Thread.yield();
+                    continue;
+                }
+            }
+            long value = snapshot[0];
+            for (int i = 1; i < SNAPSHOT_SIZE; i++) {
+                if (snapshot[i] != value) {
+                    fail("torn snapshot: " + value + " and " + snapshot[i]);
+                }
+            }
+            if (value <= last) {
+                fail("snapshot " + value + " acquired after " + last);
+            }
+            last = value;
+        }
+        producer.join();
+
+        assertNull(buffer.acquire());
+        assertEquals(PUBLISHED_COUNT, buffer.getPublishCount());
+        assertEquals(buffer.getPublishCount(), buffer.getAcquireCount() + buffer.getDropCount());
+    }
+
+    private static TripleBuffer<long[]> newBuffer() {
+        return new TripleBuffer<long[]>(new long[SNAPSHOT_SIZE], new long[SNAPSHOT_SIZE],
+                new long[SNAPSHOT_SIZE]);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.projecttango.tangoutils.math.Mat4;
+
+public class VoxelMapTest {
+
+    private static final float RESOLUTION = 0.05f;
+    private static final float[] IDENTITY = new float[16];
+    static {
+        Mat4.setIdentity(IDENTITY, 0);
+    }
+
+    @Test
+    public void voxelsAreDrawnAtTheCentroidOfTheirPoints() {
+        VoxelMap map = new VoxelMap(RESOLUTION, 100);
+        float[] translation = IDENTITY.clone();
+        translation[12] = 1f;
+        map.insert(floatBuffer(new float[] { 0.01f, 0.01f, 0.01f, 0.03f, 0.02f, 0.01f }), 2,
+                translation);
+        assertEquals(1, map.getVoxelCount());
+        assertEquals(2, map.getInsertedPointCount());
+
+        ArrayList<VoxelMap.Block> blocks = new ArrayList<VoxelMap.Block>();
+        assertTrue(map.drainDirtyBlocks(blocks));
+        assertEquals(1, blocks.size());
+        VoxelMap.Block block = blocks.get(0);
+        assertEquals(1, block.getVertexCount());
+        float[] vertex = new float[3];
+        System.arraycopy(block.getVertices(), 0, vertex, 0, 3);
+        assertArrayEquals(new float[] { 1.02f, 0.015f, 0.01f }, vertex, 1e-6f);
+    }
+
+    @Test
+    public void onlyChangedBlocksAreDrained() {
+        VoxelMap map = new VoxelMap(RESOLUTION, 100);
+        // Two voxels in different blocks of 16 voxels.
+        map.insert(floatBuffer(new float[] { 0.01f, 0.01f, 0.01f, 2f, 0.01f, 0.01f }), 2,
+                IDENTITY);
+        ArrayList<VoxelMap.Block> blocks = new ArrayList<VoxelMap.Block>();
+        map.drainDirtyBlocks(blocks);
+        assertEquals(2, blocks.size());
+
+        blocks.clear();
+        map.drainDirtyBlocks(blocks);
+        assertEquals(0, blocks.size());
+
+        map.insert(floatBuffer(new float[] { 2.01f, 0.01f, 0.01f }), 1, IDENTITY);
+        map.drainDirtyBlocks(blocks);
+        assertEquals(1, blocks.size());
+        assertEquals(1, blocks.get(0).getId());
+
+        blocks.clear();
+        map.markAllDirty();
+        map.drainDirtyBlocks(blocks);
+        assertEquals(2, blocks.size());
+    }
+
+    @Test
+    public void fullMapDropsPointsInNewVoxels() {
+        VoxelMap map = new VoxelMap(RESOLUTION, 1);
+        map.insert(floatBuffer(new float[] { 0.01f, 0.01f, 0.01f, 1f, 1f, 1f, 0.02f, 0.02f,
+                0.02f }), 3, IDENTITY);
+        assertEquals(1, map.getVoxelCount());
+        assertEquals(2, map.getInsertedPointCount());
+        assertEquals(1, map.getDroppedPointCount());
+    }
+
+    @Test(timeout = 120000)
+    public void octreeFeedsTheMapWithoutBlockingTheDrain() throws InterruptedException {
+        int pointCount = 1000000;
+        PointOctree octree = new PointOctree(16f, pointCount, pointCount);
+        VoxelMap map = new VoxelMap(RESOLUTION, pointCount);
+        octree.setVoxelMap(map);
+        Random random = new Random(1);
+        float[] points = new float[3 * pointCount];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = 4f * random.nextFloat() - 2f;
+        }
+        octree.submit(floatBuffer(points), pointCount, IDENTITY);
+        octree.start();
+
+        // The frame takes long enough to insert for the drain to find the
+        // map busy at least once, and it must give up rather than wait.
+        ArrayList<VoxelMap.Block> blocks = new ArrayList<VoxelMap.Block>();
+        boolean sawBusyMap = false;
+        while (map.getInsertedPointCount() + map.getDroppedPointCount() < pointCount) {
+            blocks.clear();
+            sawBusyMap |= !map.drainDirtyBlocks(blocks);
+            Thread.yield();
+        }
+        octree.stop();
+
+        assertTrue("the drain never found the map busy", sawBusyMap);
+        assertEquals(pointCount, map.getInsertedPointCount());
+        blocks.clear();
+        assertTrue(map.drainDirtyBlocks(blocks));
+        int vertexCount = 0;
+        for (VoxelMap.Block block : blocks) {
+            vertexCount += block.getVertexCount();
+        }
+        assertEquals(map.getVoxelCount(), vertexCount);
+    }
+
+    private static FloatBuffer floatBuffer(float[] values) {
+        FloatBuffer buffer = ByteBuffer.allocateDirect(values.length * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        buffer.put(values).flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.math;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class Mat4Test {
+
+    private static final float EPSILON = 1e-5f;
+
+    @Test
+    public void multiplyComposesTransforms() {
+        // Translation by (1, 2, 3) after a scale by 2.
+        float[] translation = identity();
+        translation[12] = 1f;
+        translation[13] = 2f;
+        translation[14] = 3f;
+        float[] scale = identity();
+        scale[0] = scale[5] = scale[10] = 2f;
+        float[] result = new float[16];
+        Mat4.multiply(result, 0, translation, 0, scale, 0);
+        assertArrayEquals(new float[] { 2, 0, 0, 0, 0, 2, 0, 0, 0, 0, 2, 0, 1, 2, 3, 1 },
+                result, 0f);
+    }
+
+    @Test
+    public void multiplyMatchesReference() {
+        Random random = new Random(7);
+        float[] lhs = randomMatrix(random);
+        float[] rhs = randomMatrix(random);
+        float[] expected = new float[16];
+        for (int c = 0; c < 4; c++) {
+            for (int r = 0; r < 4; r++) {
+                float sum = 0f;
+                for (int k = 0; k < 4; k++) {
+                    sum += lhs[k * 4 + r] * rhs[c * 4 + k];
+                }
+                expected[c * 4 + r] = sum;
+            }
+        }
+        float[] result = new float[20];
+        Mat4.multiply(result, 4, lhs, 0, rhs, 0);
+        float[] actual = new float[16];
+        System.arraycopy(result, 4, actual, 0, 16);
+        assertArrayEquals(expected, actual, EPSILON);
+    }
+
+    @Test
+    public void invertGivesTheInverse() {
+        Random random = new Random(11);
+        for (int i = 0; i < 100; i++) {
+            float[] m = randomMatrix(random);
+            float[] inverse = new float[16];
+            assertTrue(Mat4.invert(inverse, 0, m, 0));
+            float[] product = new float[16];
+            Mat4.multiply(product, 0, m, 0, inverse, 0);
+            assertArrayEquals(identity(), product, 1e-4f);
+        }
+    }
+
+    @Test
+    public void invertRejectsSingularMatrices() {
+        float[] m = identity();
+        m[10] = 0f;
+        assertFalse(Mat4.invert(new float[16], 0, m, 0));
+    }
+
+    @Test
+    public void lookAtMapsEyeToOriginAndCenterAhead() {
+        float[] view = new float[16];
+        Mat4.setLookAt(view, 0, 5f, 5f, 5f, 0f, 0f, 0f, 0f, 1f, 0f);
+        float[] eye = transform(view, 5f, 5f, 5f);
+        assertArrayEquals(new float[] { 0f, 0f, 0f }, eye, EPSILON);
+        float[] center = transform(view, 0f, 0f, 0f);
+        assertArrayEquals(new float[] { 0f, 0f, (float) -Math.sqrt(75.0) }, center, EPSILON);
+        // The up vector stays in the upper half of the view.
+        float[] above = transform(view, 0f, 1f, 0f);
+        assertTrue(above[1] > 0f);
+        assertEquals(0f, above[0], EPSILON);
+    }
+
+    @Test
+    public void lookAtAlongMinusZIsATranslation() {
+        float[] view = new float[16];
+        Mat4.setLookAt(view, 0, 0f, 0f, 5f, 0f, 0f, 0f, 0f, 1f, 0f);
+        assertArrayEquals(new float[] { 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, -5, 1 },
+                view, EPSILON);
+    }
+
+    @Test
+    public void perspectiveMatchesReferenceValues() {
+        float[] projection = new float[16];
+        Mat4.perspective(projection, 0, 90f, 2f, 1f, 10f);
+        assertArrayEquals(new float[] { 0.5f, 0, 0, 0, 0, 1f, 0, 0, 0, 0, -11f / 9f, -1f, 0, 0,
+                -20f / 9f, 0 }, projection, EPSILON);
+        // The near and far planes map to -1 and 1.
+        assertEquals(-1f, ndcDepth(projection, -1f), EPSILON);
+        assertEquals(1f, ndcDepth(projection, -10f), EPSILON);
+    }
+
+    @Test
+    public void floatAndDoubleKernelsAgree() {
+        Random random = new Random(3);
+        for (int i = 0; i < 100; i++) {
+            float[] lhs = randomMatrix(random);
+            float[] rhs = randomMatrix(random);
+            float[] product = new float[16];
+            Mat4.multiply(product, 0, lhs, 0, rhs, 0);
+            double[] productd = new double[16];
+            Mat4d.multiply(productd, 0, toDouble(lhs), 0, toDouble(rhs), 0);
+            assertArrayEquals(toFloat(productd), product, EPSILON);
+
+            float[] inverse = new float[16];
+            double[] inversed = new double[16];
+            assertTrue(Mat4.invert(inverse, 0, lhs, 0));
+            assertTrue(Mat4d.invert(inversed, 0, toDouble(lhs), 0));
+            assertRelativelyClose(toFloat(inversed), inverse, 1e-5f);
+        }
+        float[] view = new float[16];
+        double[] viewd = new double[16];
+        Mat4.setLookAt(view, 0, 1f, 2f, 3f, -1f, 0.5f, 0f, 0f, 1f, 0f);
+        Mat4d.setLookAt(viewd, 0, 1, 2, 3, -1, 0.5, 0, 0, 1, 0);
+        assertArrayEquals(toFloat(viewd), view, EPSILON);
+        float[] projection = new float[16];
+        double[] projectiond = new double[16];
+        Mat4.perspective(projection, 0, 45f, 1.5f, 0.1f, 100f);
+        Mat4d.perspective(projectiond, 0, 45, 1.5, 0.1, 100);
+        assertArrayEquals(toFloat(projectiond), projection, EPSILON);
+    }
+
+    static float[] identity() {
+        float[] m = new float[16];
+        Mat4.setIdentity(m, 0);
+        return m;
+    }
+
+    /**
+     * @return a well-conditioned matrix: a random rotation-like part close to
+     *         the identity, and a random translation.
+     */
+    static float[] randomMatrix(Random random) {
+        float[] m = identity();
+        for (int i = 0; i < 12; i++) {
+            m[i] += random.nextFloat() - 0.5f;
+        }
+        m[12] = random.nextFloat() * 4f - 2f;
+        m[13] = random.nextFloat() * 4f - 2f;
+        m[14] = random.nextFloat() * 4f - 2f;
+        return m;
+    }
+
+    static float[] transform(float[] m, float x, float y, float z) {
+        return new float[] { m[0] * x + m[4] * y + m[8] * z + m[12],
+                m[1] * x + m[5] * y + m[9] * z + m[13], m[2] * x + m[6] * y + m[10] * z + m[14] };
+    }
+
+    static double[] toDouble(float[] values) {
+        double[] result = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = values[i];
+        }
+        return result;
+    }
+
+    static float[] toFloat(double[] values) {
+        float[] result = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (float) values[i];
+        }
+        return result;
+    }
+
+    /**
+     * Compares the elements with a tolerance relative to their magnitude, for
+     * results of ill-conditioned operations.
+     */
+    static void assertRelativelyClose(float[] expected, float[] actual, float epsilon) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("element " + i, expected[i], actual[i],
+                    epsilon * Math.max(1f, Math.abs(expected[i])));
+        }
+    }
+
+    private static float ndcDepth(float[] projection, float z) {
+        float clipZ = projection[10] * z + projection[14];
+        float clipW = projection[11] * z + projection[15];
+        return clipZ / clipW;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.math;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class QuatTest {
+
+    private static final float EPSILON = 1e-5f;
+    private static final float[] IDENTITY = { 0f, 0f, 0f, 1f };
+
+    @Test
+    public void slerpReturnsTheEndpoints() {
+        float[] q0 = aboutZ(0.3);
+        float[] q1 = aboutZ(1.2);
+        float[] result = new float[4];
+        Quat.slerp(result, 0, q0, 0, q1, 0, 0f);
+        assertArrayEquals(q0, result, EPSILON);
+        Quat.slerp(result, 0, q0, 0, q1, 0, 1f);
+        assertArrayEquals(q1, result, EPSILON);
+    }
+
+    @Test
+    public void slerpInterpolatesTheAngle() {
+        float[] result = new float[4];
+        Quat.slerp(result, 0, IDENTITY, 0, aboutZ(Math.PI / 2), 0, 0.5f);
+        assertArrayEquals(aboutZ(Math.PI / 4), result, EPSILON);
+    }
+
+    @Test
+    public void slerpOfAntipodalQuaternionsStaysPut() {
+        // q and -q are the same rotation, so there is nothing to interpolate.
+        float[] q = aboutZ(0.8);
+        float[] negated = { -q[0], -q[1], -q[2], -q[3] };
+        float[] result = new float[4];
+        Quat.slerp(result, 0, q, 0, negated, 0, 0.5f);
+        assertEquals(0f, Quat.angleBetween(q, 0, result, 0), 1e-3f);
+    }
+
+    @Test
+    public void slerpTakesTheShortestPath() {
+        // 350 degrees is -10 degrees, so halfway is -5 degrees.
+        float[] result = new float[4];
+        Quat.slerp(result, 0, IDENTITY, 0, aboutZ(Math.toRadians(350)), 0, 0.5f);
+        assertEquals(Math.toRadians(5), Quat.angleBetween(IDENTITY, 0, result, 0), 1e-4);
+    }
+
+    @Test
+    public void slerpOfNearlyIdenticalQuaternionsIsNormalized() {
+        float[] q0 = aboutZ(1.0);
+        float[] q1 = aboutZ(1.0 + 1e-6);
+        float[] result = new float[4];
+        Quat.slerp(result, 0, q0, 0, q1, 0, 0.5f);
+        assertEquals(1f, Quat.dot(result, 0, result, 0), EPSILON);
+        assertArrayEquals(q0, result, EPSILON);
+    }
+
+    @Test
+    public void scaleAngleScalesTheRotation() {
+        float[] result = new float[4];
+        Quat.scaleAngle(result, 0, aboutZ(Math.PI / 2), 0, 0.5f);
+        assertArrayEquals(aboutZ(Math.PI / 4), result, EPSILON);
+        Quat.scaleAngle(result, 0, aboutZ(0.4), 0, 2f);
+        assertArrayEquals(aboutZ(0.8), result, EPSILON);
+    }
+
+    @Test
+    public void scaleAngleTakesTheShortestPath() {
+        float[] q = aboutZ(0.6);
+        float[] negated = { -q[0], -q[1], -q[2], -q[3] };
+        float[] result = new float[4];
+        Quat.scaleAngle(result, 0, negated, 0, 0.5f);
+        assertArrayEquals(aboutZ(0.3), result, EPSILON);
+    }
+
+    @Test
+    public void scaleAngleOfTinyRotationsIsTheIdentity() {
+        float[] result = new float[4];
+        Quat.scaleAngle(result, 0, IDENTITY, 0, 3f);
+        assertArrayEquals(IDENTITY, result, 0f);
+        Quat.scaleAngle(result, 0, aboutZ(1e-9), 0, 3f);
+        assertArrayEquals(IDENTITY, result, EPSILON);
+    }
+
+    @Test
+    public void toRotationMatrixRotatesVectors() {
+        float[] m = new float[16];
+        Quat.toRotationMatrix(m, 0, aboutZ(Math.PI / 2), 0);
+        assertArrayEquals(new float[] { 0f, 1f, 0f }, Mat4Test.transform(m, 1f, 0f, 0f),
+                EPSILON);
+    }
+
+    @Test
+    public void floatAndDoubleKernelsAgree() {
+        Random random = new Random(5);
+        float[] result = new float[4];
+        double[] resultd = new double[4];
+        float[] m = new float[16];
+        double[] md = new double[16];
+        for (int i = 0; i < 100; i++) {
+            float[] q0 = randomQuat(random);
+            float[] q1 = randomQuat(random);
+            float t = random.nextFloat();
+            Quat.slerp(result, 0, q0, 0, q1, 0, t);
+            Quatd.slerp(resultd, 0, Mat4Test.toDouble(q0), 0, Mat4Test.toDouble(q1), 0, t);
+            assertArrayEquals(Mat4Test.toFloat(resultd), result, EPSILON);
+
+            Quat.scaleAngle(result, 0, q0, 0, 1.5f);
+            Quatd.scaleAngle(resultd, 0, Mat4Test.toDouble(q0), 0, 1.5);
+            assertArrayEquals(Mat4Test.toFloat(resultd), result, EPSILON);
+
+            Quat.multiply(result, 0, q0, 0, q1, 0);
+            Quatd.multiply(resultd, 0, Mat4Test.toDouble(q0), 0, Mat4Test.toDouble(q1), 0);
+            assertArrayEquals(Mat4Test.toFloat(resultd), result, EPSILON);
+
+            Quat.toRotationMatrix(m, 0, q0, 0);
+            Quatd.toRotationMatrix(md, 0, Mat4Test.toDouble(q0), 0);
+            assertArrayEquals(Mat4Test.toFloat(md), m, EPSILON);
+        }
+    }
+
+    static float[] aboutZ(double angle) {
+        return new float[] { 0f, 0f, (float) Math.sin(angle / 2), (float) Math.cos(angle / 2) };
+    }
+
+    static float[] randomQuat(Random random) {
+        float[] q = { (float) random.nextGaussian(), (float) random.nextGaussian(),
+                (float) random.nextGaussian(), (float) random.nextGaussian() };
+        Quat.normalize(q, 0);
+        return q;
+    }
+}
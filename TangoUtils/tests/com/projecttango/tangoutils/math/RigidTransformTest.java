@@ -0,0 +1,89 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.math;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RigidTransformTest {
+
+    private static final float EPSILON = 1e-5f;
+
+    @Test
+    public void invertMatchesGeneralInverse() {
+        Random random = new Random(13);
+        for (int i = 0; i < 100; i++) {
+            float[] m = randomRigidTransform(random);
+            float[] expected = new float[16];
+            Mat4.invert(expected, 0, m, 0);
+            float[] actual = new float[16];
+            RigidTransform.invert(actual, 0, m, 0);
+            assertArrayEquals(expected, actual, EPSILON);
+        }
+    }
+
+    @Test
+    public void multiplyMatchesGeneralProduct() {
+        Random random = new Random(17);
+        for (int i = 0; i < 100; i++) {
+            float[] lhs = randomRigidTransform(random);
+            float[] rhs = randomRigidTransform(random);
+            float[] expected = new float[16];
+            Mat4.multiply(expected, 0, lhs, 0, rhs, 0);
+            float[] actual = new float[16];
+            RigidTransform.multiply(actual, 0, lhs, 0, rhs, 0);
+            assertArrayEquals(expected, actual, EPSILON);
+        }
+    }
+
+    @Test
+    public void composeRotatesThenTranslates() {
+        float[] m = new float[16];
+        RigidTransform.compose(m, 0, new float[] { 1f, 2f, 3f }, QuatTest.aboutZ(Math.PI / 2));
+        assertArrayEquals(new float[] { 1f, 3f, 3f }, Mat4Test.transform(m, 1f, 0f, 0f),
+                EPSILON);
+    }
+
+    @Test
+    public void floatAndDoubleKernelsAgree() {
+        Random random = new Random(19);
+        for (int i = 0; i < 100; i++) {
+            float[] lhs = randomRigidTransform(random);
+            float[] rhs = randomRigidTransform(random);
+            float[] result = new float[16];
+            double[] resultd = new double[16];
+            RigidTransform.multiply(result, 0, lhs, 0, rhs, 0);
+            RigidTransformd.multiply(resultd, 0, Mat4Test.toDouble(lhs), 0,
+                    Mat4Test.toDouble(rhs), 0);
+            assertArrayEquals(Mat4Test.toFloat(resultd), result, EPSILON);
+            RigidTransform.invert(result, 0, lhs, 0);
+            RigidTransformd.invert(resultd, 0, Mat4Test.toDouble(lhs), 0);
+            assertArrayEquals(Mat4Test.toFloat(resultd), result, EPSILON);
+        }
+    }
+
+    static float[] randomRigidTransform(Random random) {
+        float[] m = new float[16];
+        RigidTransform.compose(m, 0, new float[] { random.nextFloat() * 4f - 2f,
+                random.nextFloat() * 4f - 2f, random.nextFloat() * 4f - 2f },
+                QuatTest.randomQuat(random));
+        return m;
+    }
+}
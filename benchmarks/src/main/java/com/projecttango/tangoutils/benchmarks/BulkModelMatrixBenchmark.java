@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.projecttango.tangoutils.ModelMatCalculator;
+
+/**
+ * Sequential against parallel throughput of the bulk model matrix API, on a
+ * recorded-session sized batch of synthetic poses, from arrays and from
+ * direct buffers. The parallel runs use a fixed pool with one thread per core;
+ * batches below {@link ModelMatCalculator#PARALLEL_BATCH_SIZE} stay on the
+ * calling thread, which the smallest size shows. The one-at-a-time
+ * updateModelMatrix loop is the baseline the bulk API replaces.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BulkModelMatrixBenchmark {
+
+    @Param({ "10000", "100000", "500000" })
+    public int poseCount;
+
+    private ModelMatCalculator mModelMatCalculator;
+    private ExecutorService mExecutor;
+    private SyntheticPoses mPoses;
+    private float[] mPoseArray;
+    private float[] mMatrixArray;
+    private FloatBuffer mPoseBuffer;
+    private FloatBuffer mMatrixBuffer;
+    private final float[] mTranslation = new float[3];
+    private final float[] mRotation = new float[4];
+
+    @Setup
+    public void setUp() {
+        mModelMatCalculator = new ModelMatCalculator();
+        mExecutor = Executors.newFixedThreadPool(Runtime.getRuntime()
+                .availableProcessors());
+        mPoses = new SyntheticPoses(poseCount, 1);
+        mPoseArray = mPoses.toStructureOfArrays();
+        mMatrixArray = new float[16 * poseCount];
+        mPoseBuffer = ByteBuffer.allocateDirect(mPoseArray.length * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        mPoseBuffer.put(mPoseArray).rewind();
+        mMatrixBuffer = ByteBuffer.allocateDirect(mMatrixArray.length * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mExecutor.shutdown();
+    }
+
+    @Benchmark
+    public float[] onePoseAtATime() {
+        for (int i = 0; i < poseCount; i++) {
+            mPoses.getTranslation(i, mTranslation);
+            mPoses.getRotation(i, mRotation);
+            mModelMatCalculator.updateModelMatrix(mTranslation, mRotation);
+            mModelMatCalculator.getModelMatrix(mMatrixArray, i * 16);
+        }
+        return mMatrixArray;
+    }
+
+    @Benchmark
+    public float[] sequentialArray() {
+        mModelMatCalculator.computeModelMatrices(mPoseArray, poseCount,
+                mMatrixArray, 0);
+        return mMatrixArray;
+    }
+
+    @Benchmark
+    public float[] parallelArray() {
+        mModelMatCalculator.computeModelMatrices(mPoseArray, poseCount,
+                mMatrixArray, 0, mExecutor);
+        return mMatrixArray;
+    }
+
+    @Benchmark
+    public FloatBuffer sequentialBuffer() {
+        mModelMatCalculator.computeModelMatrices(mPoseBuffer, poseCount,
+                mMatrixBuffer);
+        return mMatrixBuffer;
+    }
+
+    @Benchmark
+    public FloatBuffer parallelBuffer() {
+        mModelMatCalculator.computeModelMatrices(mPoseBuffer, poseCount,
+                mMatrixBuffer, mExecutor);
+        return mMatrixBuffer;
+    }
+}
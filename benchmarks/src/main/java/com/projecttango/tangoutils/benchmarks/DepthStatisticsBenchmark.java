@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.projecttango.tangoutils.DepthStatistics;
+
+/**
+ * The depth statistics that used to run inside PointCloud.draw, now on the
+ * worker thread of {@link DepthStatistics}. Each invocation submits the next
+ * synthetic depth frame, as the Tango callback does, and waits until its
+ * statistics can be read, so the score is the latency of one frame from
+ * callback to UI, copy included.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DepthStatisticsBenchmark {
+
+    private static final int FRAME_COUNT = 16;
+    private static final float MAX_DEPTH = 5f;
+    private static final int BIN_COUNT = 100;
+
+    /** Points per depth frame; the Tango depth camera yields 10k to 60k. */
+    @Param({ "10000", "60000" })
+    public int pointCount;
+
+    private SyntheticDepthFrames mFrames;
+    private DepthStatistics mStatistics;
+    private double mTimestamp;
+
+    @Setup
+    public void setUp() {
+        mFrames = new SyntheticDepthFrames(FRAME_COUNT, pointCount, 1);
+        mStatistics = new DepthStatistics(pointCount, MAX_DEPTH, BIN_COUNT);
+        mStatistics.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mStatistics.stop();
+    }
+
+    @Benchmark
+    public DepthStatistics.Result submitAndWait() {
+        int frame = (int) (mTimestamp % FRAME_COUNT);
+        mTimestamp += 1.0;
+        mStatistics.submit(mTimestamp, mFrames.getFrame(frame),
+                mFrames.getPointCount(frame));
+        DepthStatistics.Result result;
+        do {
+            result = mStatistics.getLatestResult();
+        } while (result == null || result.timestamp != mTimestamp);
+        return result;
+    }
+}
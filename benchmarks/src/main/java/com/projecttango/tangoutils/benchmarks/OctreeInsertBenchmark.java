@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.projecttango.tangoutils.PointOctree;
+
+/**
+ * Time to build a {@link PointOctree} from a multi-million-point synthetic
+ * scene, submitted in depth frame sized batches and inserted on the octree's
+ * background thread, as the point cloud renderer does during a scan.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class OctreeInsertBenchmark {
+
+    private static final int POINTS_PER_FRAME = 60000;
+
+    @Param({ "1000000", "4000000" })
+    public int pointCount;
+
+    private SyntheticScene mScene;
+    private PointOctree mOctree;
+
+    @Setup(Level.Trial)
+    public void createScene() {
+        mScene = new SyntheticScene(pointCount, POINTS_PER_FRAME, 1);
+    }
+
+    @Setup(Level.Invocation)
+    public void createOctree() {
+        mOctree = new PointOctree(mScene.getHalfSize(), pointCount, POINTS_PER_FRAME);
+        mOctree.start();
+    }
+
+    @TearDown(Level.Invocation)
+    public void stopOctree() {
+        mOctree.stop();
+    }
+
+    @Benchmark
+    public int insert() {
+        mScene.insertInto(mOctree);
+        return mOctree.getNodeCount();
+    }
+}
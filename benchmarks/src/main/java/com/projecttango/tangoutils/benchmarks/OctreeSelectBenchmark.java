@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.benchmarks;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.projecttango.tangoutils.PointOctree;
+import com.projecttango.tangoutils.math.Mat4;
+
+/**
+ * Per-frame node selection of a {@link PointOctree} holding a
+ * multi-million-point synthetic scene, against a point budget. The camera
+ * either walks through the rooms at eye height, as in first person, or looks
+ * down on the whole floor, as in the top-down view; each invocation moves it
+ * one step along its path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class OctreeSelectBenchmark {
+
+    private static final int POINTS_PER_FRAME = 60000;
+    private static final int VIEWPORT_HEIGHT = 1080;
+    private static final int STEPS = 360;
+
+    @Param({ "1000000", "4000000" })
+    public int pointCount;
+
+    @Param({ "500000" })
+    public int pointBudget;
+
+    @Param({ "walk", "topDown" })
+    public String view;
+
+    private PointOctree mOctree;
+    private final ArrayList<PointOctree.Node> mSelected = new ArrayList<PointOctree.Node>();
+    private final float[] mViewMatrix = new float[16];
+    private final float[] mProjectionMatrix = new float[16];
+    private int mStep;
+
+    @Setup
+    public void setUp() {
+        SyntheticScene scene = new SyntheticScene(pointCount, POINTS_PER_FRAME, 1);
+        mOctree = new PointOctree(scene.getHalfSize(), pointCount, POINTS_PER_FRAME);
+        mOctree.start();
+        scene.insertInto(mOctree);
+        mOctree.stop();
+        Mat4.perspective(mProjectionMatrix, 0, 45f, 16f / 9f, 0.1f, 100f);
+    }
+
+    @Benchmark
+    public int select() {
+        double angle = 2 * Math.PI * mStep / STEPS;
+        mStep = (mStep + 1) % STEPS;
+        float x = (float) Math.cos(angle);
+        float y = (float) Math.sin(angle);
+        if (view.equals("walk")) {
+            // A 10 m circle at eye height, looking along the path.
+            Mat4.setLookAt(mViewMatrix, 0, 10f * x, 10f * y, 1.5f,
+                    10f * x - y, 10f * y + x, 1.5f, 0f, 0f, 1f);
+        } else {
+            float height = SyntheticScene.FLOOR_SIZE * 1.2f;
+            Mat4.setLookAt(mViewMatrix, 0, x, y, height, 0f, 0f, 0f, -x, -y, 0f);
+        }
+        mSelected.clear();
+        return mOctree.select(mViewMatrix, mProjectionMatrix, VIEWPORT_HEIGHT,
+                pointBudget, mSelected);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.projecttango.tangoutils.PathSimplifier;
+
+/**
+ * The per-pose work of Trajectory.updateTrajectory: the {@link PathSimplifier}
+ * deciding what becomes of each position of a synthetic walk at the Tango
+ * pose rate. The vertexFraction counter is the fraction of the positions
+ * that became vertices, so 1 - vertexFraction is the reduction; tolerances of
+ * 0 keep every position and give the baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathSimplifierBenchmark {
+
+    private static final int POSE_COUNT = 100000;
+
+    @Param({ "0", "0.025" })
+    public float minDistance;
+
+    @Param({ "0", "0.02", "0.05" })
+    public float maxError;
+
+    private PathSimplifier mSimplifier;
+    private float[] mPositions;
+    private int mIndex;
+
+    /**
+     * The actions taken during the iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Actions {
+        public double vertexFraction;
+        private long mPositions;
+        private long mVertices;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            mPositions = 0;
+            mVertices = 0;
+        }
+
+        void add(int action) {
+            mPositions++;
+            if (action == PathSimplifier.APPEND) {
+                mVertices++;
+            }
+            vertexFraction = (double) mVertices / mPositions;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        SyntheticPoses poses = new SyntheticPoses(POSE_COUNT, 1);
+        float[] translation = new float[3];
+        mPositions = new float[POSE_COUNT * 3];
+        for (int i = 0; i < POSE_COUNT; i++) {
+            // The OpenGL axes, as Trajectory adds them.
+            poses.getTranslation(i, translation);
+            mPositions[i * 3] = translation[0];
+            mPositions[i * 3 + 1] = translation[2];
+            mPositions[i * 3 + 2] = -translation[1];
+        }
+        mSimplifier = new PathSimplifier();
+        mSimplifier.setTolerances(minDistance, maxError);
+    }
+
+    @Benchmark
+    public int add(Actions actions) {
+        int p = mIndex * 3;
+        if (++mIndex == POSE_COUNT) {
+            // Start the walk over rather than jump back to its start.
+            mIndex = 0;
+            mSimplifier.reset();
+        }
+        int action = mSimplifier.add(mPositions[p], mPositions[p + 1], mPositions[p + 2]);
+        actions.add(action);
+        return action;
+    }
+}
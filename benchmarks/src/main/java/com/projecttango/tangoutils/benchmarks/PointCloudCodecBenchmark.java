@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.projecttango.tangoutils.PointCloudCodec;
+
+/**
+ * Encode and decode throughput of the {@link PointCloudCodec} on synthetic
+ * depth frames, and the compression ratio it reaches on them. The
+ * rawMegabytes counter is the size of the raw XYZ coordinates going through
+ * the codec, so in throughput mode it reads as MB/s of depth data; the
+ * compressionRatio counter is raw bytes over encoded bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PointCloudCodecBenchmark {
+
+    private static final int FRAME_COUNT = 16;
+    private static final int BYTES_PER_POINT = 3 * 4;
+
+    @Param({ "10000", "60000" })
+    public int pointCount;
+
+    private SyntheticDepthFrames mFrames;
+    private PointCloudCodec mCodec;
+    private ByteBuffer[] mEncodedFrames;
+    private ByteBuffer mEncoded;
+    private FloatBuffer mDecoded;
+    private int mFrame;
+
+    /**
+     * The raw depth data through the codec, in MB.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Raw {
+        public double rawMegabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            rawMegabytes = 0;
+        }
+    }
+
+    /**
+     * The compression ratio of the frames encoded during the iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Ratio {
+        public double compressionRatio;
+        private long mRawBytes;
+        private long mEncodedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            mRawBytes = 0;
+            mEncodedBytes = 0;
+        }
+
+        void add(int points, int encodedBytes) {
+            mRawBytes += (long) points * BYTES_PER_POINT;
+            mEncodedBytes += encodedBytes;
+            compressionRatio = (double) mRawBytes / mEncodedBytes;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        mFrames = new SyntheticDepthFrames(FRAME_COUNT, pointCount, 1);
+        mCodec = new PointCloudCodec(pointCount);
+        mEncoded = ByteBuffer.allocateDirect(PointCloudCodec.getMaxFrameBytes(pointCount))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        mDecoded = ByteBuffer.allocateDirect(pointCount * BYTES_PER_POINT)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        mEncodedFrames = new ByteBuffer[FRAME_COUNT];
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            mEncoded.clear();
+            mCodec.encode(mFrames.getFrame(i), mFrames.getPointCount(i), mEncoded);
+            mEncoded.flip();
+            mEncodedFrames[i] = ByteBuffer.allocateDirect(mEncoded.remaining());
+            mEncodedFrames[i].put(mEncoded).flip();
+        }
+    }
+
+    private int nextFrame() {
+        int frame = mFrame;
+        mFrame = (mFrame + 1) % FRAME_COUNT;
+        return frame;
+    }
+
+    @Benchmark
+    public ByteBuffer encode(Raw raw, Ratio ratio) {
+        int frame = nextFrame();
+        int points = mFrames.getPointCount(frame);
+        mEncoded.clear();
+        int length = mCodec.encode(mFrames.getFrame(frame), points, mEncoded);
+        raw.rawMegabytes += points * BYTES_PER_POINT / 1e6;
+        ratio.add(points, length);
+        return mEncoded;
+    }
+
+    @Benchmark
+    public FloatBuffer decode(Raw raw) {
+        ByteBuffer in = mEncodedFrames[nextFrame()];
+        in.rewind();
+        int points = mCodec.decode(in, mDecoded);
+        raw.rawMegabytes += points * BYTES_PER_POINT / 1e6;
+        return mDecoded;
+    }
+}
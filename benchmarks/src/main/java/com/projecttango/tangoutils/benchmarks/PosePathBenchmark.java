@@ -0,0 +1,137 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.projecttango.tangoutils.ModelMatCalculator;
+import com.projecttango.tangoutils.math.Mat4;
+import com.projecttango.tangoutils.renderables.Renderable;
+
+/**
+ * The per-pose work of the render path: turning a Tango pose into model
+ * matrices, reading them back on the render thread, and composing the mvp
+ * matrix of a renderable. Each invocation consumes the next pose of a
+ * synthetic stream. Run with -prof gc to check that the paths meant to be
+ * allocation free are.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PosePathBenchmark {
+
+    private static final int POSE_COUNT = 4096;
+
+    private SyntheticPoses mPoses;
+    private ModelMatCalculator mModelMatCalculator;
+    private Renderable mRenderable;
+    private final float[] mTranslation = new float[3];
+    private final float[] mRotation = new float[4];
+    private final float[] mMatrix = new float[16];
+    private final float[] mViewMatrix = new float[16];
+    private final float[] mProjectionMatrix = new float[16];
+    private int mIndex;
+
+    /**
+     * A renderable that only keeps matrices, as updateMvpMatrix does not
+     * touch OpenGL.
+     */
+    private static class MatrixRenderable extends Renderable {
+        @Override
+        public void draw(float[] viewMatrix, float[] projectionMatrix) {
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        mPoses = new SyntheticPoses(POSE_COUNT, 1);
+        mModelMatCalculator = new ModelMatCalculator();
+        mRenderable = new MatrixRenderable();
+        Mat4.setLookAt(mViewMatrix, 0, 0f, 5f, 5f, 0f, 0f, 0f, 0f, 1f, 0f);
+        Mat4.perspective(mProjectionMatrix, 0, 45f, 16f / 9f, 0.1f, 100f);
+    }
+
+    /**
+     * Loads the next pose of the stream into mTranslation and mRotation.
+     */
+    private void nextPose() {
+        mPoses.getTranslation(mIndex, mTranslation);
+        mPoses.getRotation(mIndex, mRotation);
+        mIndex = (mIndex + 1) % POSE_COUNT;
+    }
+
+    @Benchmark
+    public float[] updateModelMatrix() {
+        nextPose();
+        mModelMatCalculator.updateModelMatrix(mTranslation, mRotation);
+        return mModelMatCalculator.getModelMatrix();
+    }
+
+    @Benchmark
+    public float[] updatePointCloudModelMatrix() {
+        nextPose();
+        mModelMatCalculator.updatePointCloudModelMatrix(mTranslation, mRotation);
+        mModelMatCalculator.getPointCloudModelMatrix(mMatrix, 0);
+        return mMatrix;
+    }
+
+    @Benchmark
+    public float[] getPointCloudModelMatrixCopy() {
+        return mModelMatCalculator.getPointCloudModelMatrixCopy();
+    }
+
+    @Benchmark
+    public long getPointCloudModelMatrixInto() {
+        return mModelMatCalculator.getPointCloudModelMatrix(mMatrix, 0);
+    }
+
+    @Benchmark
+    public float[] quaternionMatrixOpenGL() {
+        nextPose();
+        return ModelMatCalculator.quaternionMatrixOpenGL(mRotation);
+    }
+
+    @Benchmark
+    public float[] quaternionMatrixOpenGLInto() {
+        nextPose();
+        ModelMatCalculator.quaternionMatrixOpenGL(mRotation, mMatrix, 0);
+        return mMatrix;
+    }
+
+    @Benchmark
+    public float[] updateMvpMatrix() {
+        nextPose();
+        mModelMatCalculator.updateModelMatrix(mTranslation, mRotation);
+        mModelMatCalculator.getModelMatrix(mRenderable.getModelMatrix(), 0);
+        mRenderable.updateMvpMatrix(mViewMatrix, mProjectionMatrix);
+        return mRenderable.getMvpMatrix();
+    }
+}
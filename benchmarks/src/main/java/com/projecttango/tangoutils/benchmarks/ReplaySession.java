@@ -0,0 +1,246 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Locale;
+
+import com.projecttango.tangoutils.ModelMatCalculator;
+import com.projecttango.tangoutils.PointOctree;
+import com.projecttango.tangoutils.PoseHistory;
+import com.projecttango.tangoutils.PosePredictor;
+import com.projecttango.tangoutils.VoxelGridFilter;
+import com.projecttango.tangoutils.math.Mat4;
+import com.projecttango.tangoutils.math.RigidTransform;
+import com.projecttango.tangoutils.session.SessionPlayer;
+
+/**
+ * Replays a recorded session on a desktop JVM through the stages of the point
+ * cloud sample that do not need Android or OpenGL, and reports how the
+ * player and each stage kept up. Usage:
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar \
+ *     com.projecttango.tangoutils.benchmarks.ReplaySession &lt;session&gt; [speed|max]
+ * </pre>
+ *
+ * Poses feed the {@link PoseHistory}; every 1/60 s of session time, a render
+ * frame predicts the device pose with the {@link PosePredictor}, composes the
+ * model matrix with the {@link ModelMatCalculator} and selects the nodes of
+ * the {@link PointOctree} to draw. Depth frames look up their pose in the
+ * history, go through the {@link VoxelGridFilter} and are inserted in the
+ * octree on its background thread. Everything but the octree insertion runs
+ * on the replaying thread, so the player lateness includes the stages.
+ */
+public final class ReplaySession implements SessionPlayer.Listener {
+
+    // Values of the Tango SDK constants, which is not available here.
+    private static final int COORDINATE_FRAME_START_OF_SERVICE = 2;
+    private static final int COORDINATE_FRAME_DEVICE = 4;
+    private static final int POSE_VALID = 1;
+
+    // As in the point cloud sample.
+    private static final int POSE_HISTORY_CAPACITY = 256;
+    private static final float DOWNSAMPLE_LEAF_SIZE = 0.01f;
+    private static final float OCTREE_HALF_SIZE = 128f;
+    private static final int OCTREE_MAX_POINTS = 4000000;
+    private static final int POINT_BUDGET = 500000;
+    private static final int MAX_DEPTH_POINTS = 100000;
+    private static final float CAMERA_FOV = 37.8f;
+    private static final float CAMERA_NEAR = 0.01f;
+    private static final float CAMERA_FAR = 200f;
+    private static final int VIEWPORT_WIDTH = 1920;
+    private static final int VIEWPORT_HEIGHT = 1080;
+    private static final double FRAME_INTERVAL = 1.0 / 60;
+
+    private final PoseHistory mPoseHistory = new PoseHistory(POSE_HISTORY_CAPACITY);
+    private final PosePredictor mPosePredictor = new PosePredictor(mPoseHistory);
+    private final ModelMatCalculator mModelMatCalculator = new ModelMatCalculator();
+    private final VoxelGridFilter mVoxelGridFilter = new VoxelGridFilter(MAX_DEPTH_POINTS,
+            DOWNSAMPLE_LEAF_SIZE);
+    private final PointOctree mPointOctree = new PointOctree(OCTREE_HALF_SIZE,
+            OCTREE_MAX_POINTS, MAX_DEPTH_POINTS);
+
+    private final float[] mTranslation = new float[3];
+    private final float[] mRotation = new float[4];
+    private final float[] mPointCloudMatrix = new float[16];
+    private final float[] mViewMatrix = new float[16];
+    private final float[] mProjectionMatrix = new float[16];
+    private final ArrayList<PointOctree.Node> mSelectedNodes = new ArrayList<PointOctree.Node>();
+    private double mNextFrameTime = Double.NaN;
+
+    private long mPoseCount;
+    private long mPoseNanos;
+    private long mFrameCount;
+    private long mFrameNanos;
+    private long mDepthFrameCount;
+    private long mDepthFramesWithoutPose;
+    private long mDepthNanos;
+    private long mSubmittedPointCount;
+    private long mEventCount;
+
+    private ReplaySession() {
+        Mat4.perspective(mProjectionMatrix, 0, CAMERA_FOV,
+                (float) VIEWPORT_WIDTH / VIEWPORT_HEIGHT, CAMERA_NEAR, CAMERA_FAR);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: ReplaySession <session directory> [speed|max]");
+            System.exit(2);
+        }
+        float speed = 1f;
+        if (args.length == 2) {
+            speed = args[1].equals("max") ? SessionPlayer.SPEED_UNLIMITED
+                    : Float.parseFloat(args[1]);
+        }
+        SessionPlayer player = new SessionPlayer(new File(args[0]));
+        ReplaySession replay = new ReplaySession();
+        replay.mPointOctree.start();
+        player.play(replay, speed);
+        replay.waitForOctree();
+        replay.mPointOctree.stop();
+        replay.report(player, speed);
+    }
+
+    @Override
+    public void onPose(double timestamp, int baseFrame, int targetFrame, int statusCode,
+            double[] translation, double[] rotation) {
+        if (baseFrame != COORDINATE_FRAME_START_OF_SERVICE
+                || targetFrame != COORDINATE_FRAME_DEVICE) {
+            return;
+        }
+        long start = System.nanoTime();
+        if (statusCode == POSE_VALID) {
+            mPoseHistory.add(timestamp, translation, rotation);
+        } else {
+            mPoseHistory.clear();
+        }
+        mPoseCount++;
+        mPoseNanos += System.nanoTime() - start;
+
+        if (Double.isNaN(mNextFrameTime)) {
+            mNextFrameTime = timestamp;
+        }
+        while (timestamp >= mNextFrameTime) {
+            renderFrame(mNextFrameTime);
+            mNextFrameTime += FRAME_INTERVAL;
+        }
+    }
+
+    /**
+     * The work of Renderer.updateFrameMatrices and of the octree cloud for a
+     * frame displayed at a session time.
+     */
+    private void renderFrame(double displayTime) {
+        long start = System.nanoTime();
+        mPosePredictor.updatePredictionError();
+        if (mPosePredictor.predict(displayTime + mPosePredictor.getHorizon(), mTranslation,
+                mRotation)) {
+            mModelMatCalculator.updateModelMatrix(mTranslation, mRotation);
+            RigidTransform.invert(mViewMatrix, 0, mModelMatCalculator.getModelMatrix(), 0);
+            mSelectedNodes.clear();
+            mPointOctree.select(mViewMatrix, mProjectionMatrix, VIEWPORT_HEIGHT, POINT_BUDGET,
+                    mSelectedNodes);
+        }
+        mFrameCount++;
+        mFrameNanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public void onDepthFrame(double timestamp, FloatBuffer xyz, int pointCount) {
+        long start = System.nanoTime();
+        mDepthFrameCount++;
+        if (!mPoseHistory.getPoseAtTime(timestamp, mTranslation, mRotation)) {
+            mDepthFramesWithoutPose++;
+            return;
+        }
+        mModelMatCalculator.updatePointCloudModelMatrix(mTranslation, mRotation);
+        mModelMatCalculator.getPointCloudModelMatrix(mPointCloudMatrix, 0);
+        int filteredCount = mVoxelGridFilter.filter(xyz, pointCount);
+        long droppedFrames = mPointOctree.getDroppedFrameCount();
+        mPointOctree.submit(mVoxelGridFilter.getOutput(), filteredCount, mPointCloudMatrix);
+        if (mPointOctree.getDroppedFrameCount() == droppedFrames) {
+            mSubmittedPointCount += filteredCount;
+        }
+        mDepthNanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public void onEvent(double timestamp, int eventType, String key, String value) {
+        mEventCount++;
+    }
+
+    /**
+     * Waits until the octree inserted every submitted frame.
+     */
+    private void waitForOctree() throws InterruptedException {
+        while (mPointOctree.getPointCount() + mPointOctree.getDroppedPointCount()
+                < mSubmittedPointCount) {
+            Thread.sleep(1);
+        }
+    }
+
+    private void report(SessionPlayer player, float speed) {
+        double sessionSeconds = player.getEndTimestamp() - player.getStartTimestamp();
+        double replaySeconds = player.getReplayNanos() * 1e-9;
+        print("Session", "%s, %d records over %.1f s", player.getDirectory(),
+                player.getRecordCount(), sessionSeconds);
+        print("Replay", "%.2f s at speed %s, %.0f records/s, %.1fx real time",
+                replaySeconds, speed == SessionPlayer.SPEED_UNLIMITED ? "max" : speed,
+                player.getDeliveredCount() / replaySeconds, sessionSeconds / replaySeconds);
+        if (speed != SessionPlayer.SPEED_UNLIMITED) {
+            print("Lateness", "%.1f us average, %.1f us max",
+                    player.getAverageLatenessNanos() / 1e3, player.getMaxLatenessNanos() / 1e3);
+        }
+        print("Poses", "%d, %.2f us each in the pose history", mPoseCount,
+                average(mPoseNanos, mPoseCount) / 1e3);
+        print("Frames", "%d, %.2f us each to predict, compose and select",
+                mFrameCount, average(mFrameNanos, mFrameCount) / 1e3);
+        print("Prediction", "%.2f mm and %.3f deg mean error over %d predictions",
+                mPosePredictor.getMeanTranslationError() * 1e3,
+                Math.toDegrees(mPosePredictor.getMeanRotationError()),
+                mPosePredictor.getPredictionErrorCount());
+        print("Depth", "%d frames, %d without a pose, %.2f ms each on the replay thread",
+                mDepthFrameCount, mDepthFramesWithoutPose,
+                average(mDepthNanos, mDepthFrameCount) / 1e6);
+        print("Downsampling", "%d to %d points, %.2f ms per frame",
+                mVoxelGridFilter.getInputPointCount(), mVoxelGridFilter.getOutputPointCount(),
+                average(mVoxelGridFilter.getFilterNanos(), mVoxelGridFilter.getFrameCount())
+                        / 1e6);
+        print("Octree", "%d points in %d nodes, %d points and %d frames dropped, "
+                + "%.2f ms inserting per frame, %.2f ms last selection",
+                mPointOctree.getPointCount(), mPointOctree.getNodeCount(),
+                mPointOctree.getDroppedPointCount(), mPointOctree.getDroppedFrameCount(),
+                average(mPointOctree.getInsertNanos(), mDepthFrameCount
+                        - mDepthFramesWithoutPose - mPointOctree.getDroppedFrameCount()) / 1e6,
+                mPointOctree.getSelectNanos() / 1e6);
+        print("Events", "%d", mEventCount);
+    }
+
+    private static double average(long total, long count) {
+        return count > 0 ? (double) total / count : 0;
+    }
+
+    private static void print(String label, String format, Object... args) {
+        System.out.println(String.format(Locale.US, "%-14s", label + ":")
+                + String.format(Locale.US, format, args));
+    }
+}
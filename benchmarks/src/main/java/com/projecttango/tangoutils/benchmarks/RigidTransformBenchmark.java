@@ -0,0 +1,116 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.projecttango.tangoutils.math.Mat4;
+import com.projecttango.tangoutils.math.RigidTransform;
+
+/**
+ * The first-person view matrix and the model-view product, computed with the
+ * rigid transform fast paths against the general 4x4 routines they replaced.
+ * android.opengl.Matrix does not run on the JVM, so the general paths use
+ * {@link Mat4}, which ports its invertM and multiplyMM; the invertM baseline
+ * keeps the two temporary arrays and the identity multiply of the old
+ * Renderer.updateViewMatrix.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RigidTransformBenchmark {
+
+    private static final int POSE_COUNT = 4096;
+
+    /** The model matrices of the pose stream, 16 floats each. */
+    private float[] mModelMatrices;
+    private final float[] mViewMatrix = new float[16];
+    private final float[] mMvMatrix = new float[16];
+    private int mIndex;
+
+    @Setup
+    public void setUp() {
+        SyntheticPoses poses = new SyntheticPoses(POSE_COUNT, 1);
+        float[] translation = new float[3];
+        float[] rotation = new float[4];
+        mModelMatrices = new float[POSE_COUNT * 16];
+        for (int i = 0; i < POSE_COUNT; i++) {
+            poses.getTranslation(i, translation);
+            poses.getRotation(i, rotation);
+            Mat4.setIdentity(mModelMatrices, i * 16);
+            RigidTransform.compose(mModelMatrices, i * 16, translation, rotation);
+        }
+        Mat4.setLookAt(mViewMatrix, 0, 0f, 5f, 5f, 0f, 0f, 0f, 0f, 1f, 0f);
+    }
+
+    /**
+     * @return the offset of the next model matrix of the stream.
+     */
+    private int nextModelMatrix() {
+        int offset = mIndex * 16;
+        mIndex = (mIndex + 1) % POSE_COUNT;
+        return offset;
+    }
+
+    @Benchmark
+    public float[] viewMatrixGeneral() {
+        int offset = nextModelMatrix();
+        float[] invertModelMat = new float[16];
+        Mat4.setIdentity(invertModelMat, 0);
+        float[] temporaryMatrix = new float[16];
+        Mat4.setIdentity(temporaryMatrix, 0);
+        Mat4.setIdentity(mViewMatrix, 0);
+        Mat4.invert(invertModelMat, 0, mModelMatrices, offset);
+        Mat4.multiply(temporaryMatrix, 0, mViewMatrix, 0, invertModelMat, 0);
+        System.arraycopy(temporaryMatrix, 0, mViewMatrix, 0, 16);
+        return mViewMatrix;
+    }
+
+    @Benchmark
+    public float[] viewMatrixRigid() {
+        RigidTransform.invert(mViewMatrix, 0, mModelMatrices, nextModelMatrix());
+        return mViewMatrix;
+    }
+
+    @Benchmark
+    public float[] mvMatrixGeneral() {
+        Mat4.multiply(mMvMatrix, 0, mViewMatrix, 0, mModelMatrices,
+                nextModelMatrix());
+        return mMvMatrix;
+    }
+
+    @Benchmark
+    public float[] mvMatrixRigid() {
+        RigidTransform.multiply(mMvMatrix, 0, mViewMatrix, 0, mModelMatrices,
+                nextModelMatrix());
+        return mMvMatrix;
+    }
+}
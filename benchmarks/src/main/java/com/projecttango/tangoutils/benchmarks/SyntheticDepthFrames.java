@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+/**
+ * Synthetic depth frames, as the depth camera reports them in a room: points
+ * on a back wall, a side wall, the floor and a box, with the depth noise of
+ * the sensor. Each point comes from a pixel of the depth image, scanned row by
+ * row, in the depth camera frame (X right, Y down, Z forward). Frames differ by
+ * a small camera motion.
+ */
+public final class SyntheticDepthFrames {
+
+    private static final int IMAGE_WIDTH = 320;
+    private static final int IMAGE_HEIGHT = 180;
+    private static final float FOCAL_LENGTH = 260f;
+    private static final float MAX_DEPTH = 4.5f;
+
+    private final FloatBuffer[] mFrames;
+    private final int[] mPointCounts;
+
+    /**
+     * @param frameCount
+     *            the number of distinct frames.
+     * @param pointsPerFrame
+     *            the number of points of each frame, up to the number of
+     *            pixels of the depth image.
+     * @param seed
+     *            the seed of the noise.
+     */
+    public SyntheticDepthFrames(int frameCount, int pointsPerFrame, long seed) {
+        mFrames = new FloatBuffer[frameCount];
+        mPointCounts = new int[frameCount];
+        Random random = new Random(seed);
+        int pixels = IMAGE_WIDTH * IMAGE_HEIGHT;
+        for (int f = 0; f < frameCount; f++) {
+            FloatBuffer frame = ByteBuffer.allocateDirect(pointsPerFrame * 3 * 4)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+            float shift = 0.01f * f;
+            int count = 0;
+            // Visit the pixels at a stride that yields about the wanted count,
+            // as the sensor returns a subset of them.
+            double stride = Math.max(1.0, (double) pixels / pointsPerFrame);
+            for (double p = 0; p < pixels && count < pointsPerFrame; p += stride) {
+                int pixel = (int) p;
+                float rayX = ((pixel % IMAGE_WIDTH) - IMAGE_WIDTH / 2f) / FOCAL_LENGTH;
+                float rayY = ((pixel / IMAGE_WIDTH) - IMAGE_HEIGHT / 2f) / FOCAL_LENGTH;
+                float depth = depthAlong(rayX + shift, rayY);
+                if (depth > MAX_DEPTH) {
+                    continue;
+                }
+                depth += (float) random.nextGaussian() * 0.002f * depth * depth;
+                frame.put(count * 3, rayX * depth);
+                frame.put(count * 3 + 1, rayY * depth);
+                frame.put(count * 3 + 2, depth);
+                count++;
+            }
+            mFrames[f] = frame;
+            mPointCounts[f] = count;
+        }
+    }
+
+    /**
+     * @return the depth of the closest surface along a ray through the
+     *         normalized image point (x, y).
+     */
+    private static float depthAlong(float x, float y) {
+        float depth = 3.5f; // Back wall.
+        if (x > 0f) {
+            depth = Math.min(depth, 1.8f / x); // Side wall at 1.8 m.
+        }
+        if (y > 0f) {
+            depth = Math.min(depth, 1.2f / y); // Floor 1.2 m below.
+        }
+        if (x > -0.4f && x < -0.1f && y > 0.1f && y < 0.4f) {
+            depth = Math.min(depth, 2.2f); // Box.
+        }
+        return depth;
+    }
+
+    public int getFrameCount() {
+        return mFrames.length;
+    }
+
+    /**
+     * @return the XYZ points of a frame, from position 0.
+     */
+    public FloatBuffer getFrame(int index) {
+        return mFrames[index];
+    }
+
+    public int getPointCount(int index) {
+        return mPointCounts[index];
+    }
+}
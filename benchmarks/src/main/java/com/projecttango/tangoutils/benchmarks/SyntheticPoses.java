@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.benchmarks;
+
+import java.util.Random;
+
+/**
+ * A synthetic stream of device poses, as the Tango service reports them at
+ * 100 Hz while someone walks around a room with the device: a slow loop with
+ * some sway and noise, and an orientation that follows the path with a small
+ * head bob. Poses are in the Tango start of service frame, Z up.
+ */
+public final class SyntheticPoses {
+
+    /** Pose rate of the Tango service, in poses per second. */
+    public static final double POSE_RATE = 100.0;
+
+    private final int mCount;
+    private final double[] mTimestamps;
+    private final float[] mTranslations;
+    private final float[] mRotations;
+
+    /**
+     * @param count
+     *            the number of poses.
+     * @param seed
+     *            the seed of the noise.
+     */
+    public SyntheticPoses(int count, long seed) {
+        mCount = count;
+        mTimestamps = new double[count];
+        mTranslations = new float[count * 3];
+        mRotations = new float[count * 4];
+        Random random = new Random(seed);
+        for (int i = 0; i < count; i++) {
+            double t = i / POSE_RATE;
+            // A 4 m wide loop walked at about 1 m/s.
+            double angle = t * 0.25;
+            mTimestamps[i] = t;
+            mTranslations[i * 3] = (float) (2.0 * Math.cos(angle) + 0.002 * random.nextGaussian());
+            mTranslations[i * 3 + 1] = (float) (2.0 * Math.sin(angle)
+                    + 0.1 * Math.sin(t * 1.7) + 0.002 * random.nextGaussian());
+            mTranslations[i * 3 + 2] = (float) (1.5 + 0.02 * Math.sin(t * 11.0));
+            double yaw = angle + Math.PI / 2;
+            double pitch = 0.05 * Math.sin(t * 11.0);
+            // Yaw about Z, then pitch about X.
+            double cy = Math.cos(yaw / 2);
+            double sy = Math.sin(yaw / 2);
+            double cp = Math.cos(pitch / 2);
+            double sp = Math.sin(pitch / 2);
+            mRotations[i * 4] = (float) (cy * sp);
+            mRotations[i * 4 + 1] = (float) (sy * sp);
+            mRotations[i * 4 + 2] = (float) (sy * cp);
+            mRotations[i * 4 + 3] = (float) (cy * cp);
+        }
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public double getTimestamp(int index) {
+        return mTimestamps[index];
+    }
+
+    /**
+     * Copies the translation of a pose.
+     */
+    public void getTranslation(int index, float[] dest) {
+        System.arraycopy(mTranslations, index * 3, dest, 0, 3);
+    }
+
+    /**
+     * Copies the rotation of a pose, as an (x, y, z, w) quaternion.
+     */
+    public void getRotation(int index, float[] dest) {
+        System.arraycopy(mRotations, index * 4, dest, 0, 4);
+    }
+
+    public void getTranslation(int index, double[] dest) {
+        for (int i = 0; i < 3; i++) {
+            dest[i] = mTranslations[index * 3 + i];
+        }
+    }
+
+    public void getRotation(int index, double[] dest) {
+        for (int i = 0; i < 4; i++) {
+            dest[i] = mRotations[index * 4 + i];
+        }
+    }
+
+    /**
+     * @return the poses packed as a structure of arrays, as taken by
+     *         ModelMatCalculator.computeModelMatrices: component c of pose i
+     *         at [c * count + i], translation x, y, z then rotation x, y, z,
+     *         w.
+     */
+    public float[] toStructureOfArrays() {
+        float[] poses = new float[7 * mCount];
+        for (int i = 0; i < mCount; i++) {
+            for (int c = 0; c < 3; c++) {
+                poses[c * mCount + i] = mTranslations[i * 3 + c];
+            }
+            for (int c = 0; c < 4; c++) {
+                poses[(3 + c) * mCount + i] = mRotations[i * 4 + c];
+            }
+        }
+        return poses;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import com.projecttango.tangoutils.PointOctree;
+
+/**
+ * A synthetic accumulated scan of a building floor, in world space, Z up: a
+ * grid of rooms with a floor and walls, sampled at random with the noise of
+ * the depth sensor. The points are split into depth frames of a fixed size,
+ * to be submitted with an identity model matrix.
+ */
+public final class SyntheticScene {
+
+    /** Edge length of the square floor, in meters. */
+    public static final float FLOOR_SIZE = 40f;
+    /** Edge length of each room, in meters. */
+    public static final float ROOM_SIZE = 5f;
+    /** Height of the walls, in meters. */
+    public static final float WALL_HEIGHT = 2.5f;
+
+    private final FloatBuffer[] mFrames;
+    private final int[] mPointCounts;
+    private final int mPointCount;
+
+    /**
+     * @param pointCount
+     *            the number of points of the scene.
+     * @param pointsPerFrame
+     *            the number of points of each frame.
+     * @param seed
+     *            the seed of the sampling.
+     */
+    public SyntheticScene(int pointCount, int pointsPerFrame, long seed) {
+        int frameCount = (pointCount + pointsPerFrame - 1) / pointsPerFrame;
+        mFrames = new FloatBuffer[frameCount];
+        mPointCounts = new int[frameCount];
+        mPointCount = pointCount;
+        Random random = new Random(seed);
+        int rooms = (int) (FLOOR_SIZE / ROOM_SIZE);
+        float origin = -FLOOR_SIZE / 2;
+        for (int f = 0; f < frameCount; f++) {
+            int count = Math.min(pointsPerFrame, pointCount - f * pointsPerFrame);
+            FloatBuffer frame = ByteBuffer.allocateDirect(count * 3 * 4)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+            for (int i = 0; i < count; i++) {
+                float u = random.nextFloat() * FLOOR_SIZE + origin;
+                float v = random.nextFloat() * FLOOR_SIZE + origin;
+                float h = random.nextFloat() * WALL_HEIGHT;
+                float wall = origin + random.nextInt(rooms + 1) * ROOM_SIZE;
+                float x;
+                float y;
+                float z;
+                // Half the points on the floor, the rest on the walls along
+                // either axis.
+                switch (random.nextInt(4)) {
+                case 0:
+                case 1:
+                    x = u;
+                    y = v;
+                    z = 0f;
+                    break;
+                case 2:
+                    x = wall;
+                    y = v;
+                    z = h;
+                    break;
+                default:
+                    x = u;
+                    y = wall;
+                    z = h;
+                    break;
+                }
+                frame.put(x + (float) random.nextGaussian() * 0.005f);
+                frame.put(y + (float) random.nextGaussian() * 0.005f);
+                frame.put(z + (float) random.nextGaussian() * 0.005f);
+            }
+            frame.rewind();
+            mFrames[f] = frame;
+            mPointCounts[f] = count;
+        }
+    }
+
+    public int getPointCount() {
+        return mPointCount;
+    }
+
+    public int getFrameCount() {
+        return mFrames.length;
+    }
+
+    /**
+     * @return the XYZ points of a frame, from position 0.
+     */
+    public FloatBuffer getFrame(int index) {
+        return mFrames[index];
+    }
+
+    public int getPointCount(int index) {
+        return mPointCounts[index];
+    }
+
+    /**
+     * @return half the edge length of an octree root cube holding the scene.
+     */
+    public float getHalfSize() {
+        return FLOOR_SIZE;
+    }
+
+    /**
+     * Submits every frame to a started octree and waits until they are all
+     * inserted. Frames the octree drops because its background thread is
+     * behind are submitted again.
+     */
+    public void insertInto(PointOctree octree) {
+        float[] identity = new float[16];
+        identity[0] = identity[5] = identity[10] = identity[15] = 1f;
+        long submitted = 0;
+        for (int f = 0; f < mFrames.length; f++) {
+            long dropped = octree.getDroppedFrameCount();
+            octree.submit(mFrames[f], mPointCounts[f], identity);
+            while (octree.getDroppedFrameCount() != dropped) {
+                Thread.yield();
+                dropped = octree.getDroppedFrameCount();
+                octree.submit(mFrames[f], mPointCounts[f], identity);
+            }
+            submitted += mPointCounts[f];
+        }
+        while (octree.getPointCount() + octree.getDroppedPointCount() < submitted) {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.projecttango.tangoutils.VoxelGridFilter;
+
+/**
+ * How the cost of a depth frame scales with the leaf size of the
+ * {@link VoxelGridFilter}. Each invocation filters the next synthetic frame
+ * and copies the result into a direct buffer the size of the point cloud VBO,
+ * the CPU side of the upload; a leaf size of 0 is the unfiltered path, which
+ * copies the whole frame. The upload counters report the points and bytes
+ * that reach the VBO per frame. Draw time cannot be measured without a GL
+ * context; GL_POINTS draw time is linear in the vertex count, so the points
+ * per frame counter is its proxy here.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VoxelGridFilterBenchmark {
+
+    private static final int FRAME_COUNT = 16;
+    private static final int BYTES_PER_POINT = 3 * 4;
+
+    @Param({ "60000" })
+    public int pointCount;
+
+    /** Edge length of the cells, in meters; 0 disables the filter. */
+    @Param({ "0", "0.01", "0.02", "0.05", "0.1" })
+    public float leafSize;
+
+    private SyntheticDepthFrames mFrames;
+    private VoxelGridFilter mFilter;
+    private FloatBuffer mVbo;
+    private int mFrame;
+
+    /**
+     * The points and bytes uploaded per frame, averaged over the iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Upload {
+        public double uploadPointsPerFrame;
+        public double uploadBytesPerFrame;
+        private long mFrames;
+        private long mPoints;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            mFrames = 0;
+            mPoints = 0;
+        }
+
+        void add(int points) {
+            mFrames++;
+            mPoints += points;
+            uploadPointsPerFrame = (double) mPoints / mFrames;
+            uploadBytesPerFrame = uploadPointsPerFrame * BYTES_PER_POINT;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        mFrames = new SyntheticDepthFrames(FRAME_COUNT, pointCount, 1);
+        mFilter = new VoxelGridFilter(pointCount, Math.max(leafSize, 0.01f));
+        mVbo = ByteBuffer.allocateDirect(pointCount * BYTES_PER_POINT)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    @Benchmark
+    public FloatBuffer filterAndUpload(Upload upload) {
+        FloatBuffer frame = mFrames.getFrame(mFrame);
+        int points = mFrames.getPointCount(mFrame);
+        mFrame = (mFrame + 1) % FRAME_COUNT;
+        FloatBuffer source;
+        if (leafSize > 0f) {
+            points = mFilter.filter(frame, points);
+            source = mFilter.getOutput();
+        } else {
+            source = frame;
+        }
+        source.position(0);
+        source.limit(points * 3);
+        mVbo.clear();
+        mVbo.put(source);
+        source.clear();
+        upload.add(points);
+        return mVbo;
+    }
+}